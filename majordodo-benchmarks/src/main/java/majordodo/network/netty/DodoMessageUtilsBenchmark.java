@@ -0,0 +1,102 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.network.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import majordodo.network.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of the messages exchanged between brokers, workers and clients
+ *
+ * @author enrico.olivelli
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DodoMessageUtilsBenchmark {
+
+    /**
+     * Number of tasks notified by a TASK_FINISHED message
+     */
+    @Param({"1", "100"})
+    public int tasks;
+
+    private Message message;
+    private ByteBuf buffer;
+    private ByteBuf encoded;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        List<Map<String, Object>> tasksData = new ArrayList<>();
+        for (int i = 0; i < tasks; i++) {
+            Map<String, Object> taskData = new HashMap<>();
+            taskData.put("taskid", 1000L + i);
+            taskData.put("status", "finished");
+            taskData.put("result", "a result of the task " + i);
+            tasksData.add(taskData);
+        }
+        message = Message.TASK_FINISHED("myprocess", tasksData).setMessageId("1234");
+        buffer = PooledByteBufAllocator.DEFAULT.directBuffer(1024);
+        encoded = PooledByteBufAllocator.DEFAULT.directBuffer(1024);
+        DodoMessageUtils.encodeMessage(encoded, message);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        buffer.release();
+        encoded.release();
+    }
+
+    @Benchmark
+    public int encodeMessage() {
+        buffer.clear();
+        DodoMessageUtils.encodeMessage(buffer, message);
+        return buffer.writerIndex();
+    }
+
+    @Benchmark
+    public Message decodeMessage() {
+        encoded.readerIndex(0);
+        return DodoMessageUtils.decodeMessage(encoded);
+    }
+
+}
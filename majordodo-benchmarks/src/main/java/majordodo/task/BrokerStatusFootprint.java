@@ -0,0 +1,77 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the heap retained by {@link BrokerStatus} for each task. Usage: BrokerStatusFootprint [number of tasks]
+ *
+ * @author enrico.olivelli
+ */
+public class BrokerStatusFootprint {
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    public static void main(String... args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        long before = usedHeap();
+
+        BrokerStatus status = new BrokerStatus(new DiscardingStatusChangesLog());
+        status.recover();
+        status.startWriting();
+        List<StatusEdit> edits = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            long taskId = status.nextTaskId();
+            edits.add(StatusEdit.ADD_TASK(taskId, "mytasktype" + (i % 4), "{\"param\":" + i + "}", "user" + (i % 100), 3, 0, 0, null, 0, null, Task.MODE_DEFAULT));
+            // realistic mix: most of the retained tasks are finished, some are running, some are waiting
+            int kind = i % 10;
+            if (kind < 8) {
+                edits.add(StatusEdit.ASSIGN_TASK_TO_WORKER(taskId, "worker" + (i % 10), 1, null));
+            }
+            if (kind < 7) {
+                edits.add(StatusEdit.TASK_STATUS_CHANGE(taskId, "worker" + (i % 10), Task.STATUS_FINISHED, "result of task " + i));
+            }
+            if (edits.size() >= 1000) {
+                status.applyModifications(edits);
+                edits.clear();
+            }
+        }
+        status.applyModifications(edits);
+        edits.clear();
+
+        long after = usedHeap();
+        // the status is reachable until the end of the measure
+        System.out.println("tasks: " + status.getStats().getTasks());
+        System.out.println("retained heap: " + (after - before) / (1024 * 1024) + " MB");
+        System.out.println("bytes per task: " + (after - before) / count);
+    }
+
+}
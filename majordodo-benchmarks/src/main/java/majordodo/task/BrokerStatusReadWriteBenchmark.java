@@ -0,0 +1,102 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import majordodo.clientfacade.TaskStatusView;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Status polling of single tasks (like the view=task HTTP API) while edits are applied to the status of the broker
+ *
+ * @author enrico.olivelli
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BrokerStatusReadWriteBenchmark {
+
+    private static final int TASKS = 100000;
+
+    private BrokerStatus status;
+    private long firstTaskId;
+    private long edits;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        status = new BrokerStatus(new DiscardingStatusChangesLog());
+        status.recover();
+        status.startWriting();
+        firstTaskId = status.nextTaskId();
+        status.applyModification(StatusEdit.ADD_TASK(firstTaskId, "mytasktype", "{\"param\":0}", "user", 0, 0, 0, null, 0, null, null));
+        for (int i = 1; i < TASKS; i++) {
+            long taskId = status.nextTaskId();
+            status.applyModification(StatusEdit.ADD_TASK(taskId, "mytasktype", "{\"param\":" + i + "}", "user", 0, 0, 0, null, 0, null, null));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        status.close();
+    }
+
+    /**
+     * Assigns a task to a worker and then puts it back to waiting status, over and over
+     */
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public Object write() throws Exception {
+        long taskId = firstTaskId + (edits / 2) % TASKS;
+        StatusEdit edit;
+        if (edits % 2 == 0) {
+            edit = StatusEdit.ASSIGN_TASK_TO_WORKER(taskId, "worker", 1, null);
+        } else {
+            edit = StatusEdit.TASK_STATUS_CHANGE(taskId, "worker", Task.STATUS_WAITING, null);
+        }
+        edits++;
+        return status.applyModification(edit);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(4)
+    public TaskStatusView read() {
+        return status.getTaskStatus(firstTaskId + ThreadLocalRandom.current().nextInt(TASKS));
+    }
+
+}
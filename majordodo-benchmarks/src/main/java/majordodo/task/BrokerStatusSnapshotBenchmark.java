@@ -0,0 +1,105 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization and deserialization of the snapshots of the status of the broker (checkpoints)
+ *
+ * @author enrico.olivelli
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BrokerStatusSnapshotBenchmark {
+
+    @Param({"1000", "100000"})
+    public int tasks;
+
+    private BrokerStatusSnapshot snapshot;
+    private byte[] serialized;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        snapshot = new BrokerStatusSnapshot(tasks, 0, new LogSequenceNumber(1, tasks));
+        long now = System.currentTimeMillis();
+        for (int i = 1; i <= tasks; i++) {
+            Task task = new Task();
+            task.setTaskId(i);
+            task.setType("mytasktype" + (i % 4));
+            task.setUserId("user" + (i % 100));
+            task.setParameter("{\"param\":" + i + "}");
+            task.setStatus(i % 2 == 0 ? Task.STATUS_WAITING : Task.STATUS_FINISHED);
+            task.setCreatedTimestamp(now);
+            task.setMaxattempts(3);
+            task.setAttempts(1);
+            task.setMode(Task.MODE_DEFAULT);
+            if (task.getStatus() == Task.STATUS_FINISHED) {
+                task.setWorkerId("worker" + (i % 10));
+                task.setResult("a result of the task " + i);
+            }
+            snapshot.getTasks().add(task);
+        }
+        for (int i = 0; i < 10; i++) {
+            WorkerStatus worker = new WorkerStatus();
+            worker.setWorkerId("worker" + i);
+            worker.setStatus(WorkerStatus.STATUS_CONNECTED);
+            worker.setWorkerLocation("localhost:" + (7000 + i));
+            worker.setProcessId("process" + i);
+            worker.setLastConnectionTs(now);
+            snapshot.getWorkers().add(worker);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BrokerStatusSnapshot.serializeSnapshot(snapshot, out);
+        serialized = out.toByteArray();
+    }
+
+    @Benchmark
+    public int serialize() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(serialized.length);
+        BrokerStatusSnapshot.serializeSnapshot(snapshot, out);
+        return out.size();
+    }
+
+    @Benchmark
+    public BrokerStatusSnapshot deserialize() throws IOException {
+        return BrokerStatusSnapshot.deserializeSnapshot(new ByteArrayInputStream(serialized));
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * A log which does not retain anything, so that only the status of the broker is measured
+ *
+ * @author enrico.olivelli
+ */
+class DiscardingStatusChangesLog extends StatusChangesLog {
+
+    private final AtomicLong sequenceNumber = new AtomicLong();
+
+    @Override
+    public LogSequenceNumber logStatusEdit(StatusEdit edit) {
+        return new LogSequenceNumber(1, sequenceNumber.incrementAndGet());
+    }
+
+    @Override
+    public void recovery(LogSequenceNumber snapshotSequenceNumber, BiConsumer<LogSequenceNumber, StatusEdit> consumer, boolean fencing) {
+    }
+
+    @Override
+    public void checkpoint(BrokerStatusSnapshot snapshotData) {
+    }
+
+    @Override
+    public BrokerStatusSnapshot loadBrokerStatusSnapshot() {
+        return new BrokerStatusSnapshot(0, 0, new LogSequenceNumber(-1, -1));
+    }
+
+    @Override
+    public LogSequenceNumber getLastSequenceNumber() {
+        return new LogSequenceNumber(1, sequenceNumber.get());
+    }
+
+    @Override
+    public boolean isClosed() {
+        return false;
+    }
+
+    @Override
+    public boolean isWritable() {
+        return true;
+    }
+}
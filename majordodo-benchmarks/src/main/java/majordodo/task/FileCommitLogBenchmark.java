@@ -0,0 +1,92 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Append and sync throughput of the local commit log. Run with -t N to measure concurrent writers, each
+ * operation writes a batch of edits and waits for the sync of the last one
+ *
+ * @author enrico.olivelli
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileCommitLogBenchmark {
+
+    @Param({"1", "100"})
+    public int batchSize;
+
+    @Param({"1048576", "67108864"})
+    public long maxLogFileSize;
+
+    private Path directory;
+    private FileCommitLog log;
+    private List<StatusEdit> batch;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("majordodo-bench");
+        log = new FileCommitLog(directory.resolve("snapshots"), directory.resolve("txlog"), maxLogFileSize);
+        Files.createDirectories(directory.resolve("snapshots"));
+        Files.createDirectories(directory.resolve("txlog"));
+        log.startWriting();
+        batch = new ArrayList<>();
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(StatusEdit.ADD_TASK(i + 1, "mytasktype", "{\"param\":\"a parameter of the task\"}", "myuser",
+                3, 0, 0, null, 0, null, Task.MODE_DEFAULT));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        log.close();
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    @Benchmark
+    public List<LogSequenceNumber> append() throws LogNotAvailableException {
+        return log.logStatusEditBatch(batch);
+    }
+
+}
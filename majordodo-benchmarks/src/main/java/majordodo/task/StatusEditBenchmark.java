@@ -0,0 +1,94 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of the entries of the commit log
+ *
+ * @author enrico.olivelli
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatusEditBenchmark {
+
+    @Param({"ADD_TASK", "ASSIGN_TASK_TO_WORKER", "TASK_STATUS_CHANGE", "WORKER_CONNECTED"})
+    public String editType;
+
+    @Param({"V2", "V3"})
+    public String format;
+
+    private StatusEdit edit;
+    private byte[] serialized;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        switch (editType) {
+            case "ADD_TASK":
+                edit = StatusEdit.ADD_TASK(1234567, "mytasktype", "{\"param\":\"a parameter of the task\"}", "myuser",
+                    3, System.currentTimeMillis(), 0, "myslot", 0, "mycodepool", Task.MODE_DEFAULT);
+                break;
+            case "ASSIGN_TASK_TO_WORKER":
+                edit = StatusEdit.ASSIGN_TASK_TO_WORKER(1234567, "myworker", 1, "db1,db2");
+                break;
+            case "TASK_STATUS_CHANGE":
+                edit = StatusEdit.TASK_STATUS_CHANGE(1234567, "myworker", Task.STATUS_FINISHED, "a result");
+                break;
+            case "WORKER_CONNECTED":
+                edit = StatusEdit.WORKER_CONNECTED("myworker", "myprocess", "localhost:1234",
+                    new HashSet<>(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L)), System.currentTimeMillis());
+                break;
+            default:
+                throw new IllegalArgumentException(editType);
+        }
+        serialized = edit.serialize(format.equals("V3"));
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return edit.serialize(format.equals("V3"));
+    }
+
+    @Benchmark
+    public StatusEdit read() throws IOException {
+        return StatusEdit.read(serialized);
+    }
+
+}
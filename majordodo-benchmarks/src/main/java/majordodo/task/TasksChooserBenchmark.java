@@ -0,0 +1,121 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import majordodo.utils.IntCounter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Selection of the best tasks among a set of candidates, as done by the tasksheap for each worker request
+ *
+ * @author enrico.olivelli
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TasksChooserBenchmark {
+
+    private static final int TASKTYPES = 4;
+    private static final int RESOURCES = 4;
+
+    @Param({"1000", "100000"})
+    public int candidates;
+
+    @Param({"1", "100"})
+    public int max;
+
+    @Param({"10", "1000"})
+    public int groups;
+
+    @Param({"false", "true"})
+    public boolean resourceLimits;
+
+    private List<Integer> acceptedGroups;
+    private Map<Integer, Integer> availableSpace;
+    private Map<Integer, IntCounter> availableResources;
+    private final TasksChooser.Recycler recycler = new TasksChooser.Recycler();
+    private String[] users;
+    private int[][] resourcesByGroup;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // half of the groups are accepted, in priority order
+        acceptedGroups = new ArrayList<>();
+        for (int i = 0; i < groups; i += 2) {
+            acceptedGroups.add(i);
+        }
+        availableSpace = new HashMap<>();
+        for (int tasktype = 1; tasktype <= TASKTYPES; tasktype++) {
+            availableSpace.put(tasktype, max);
+        }
+        users = new String[groups];
+        resourcesByGroup = new int[groups][];
+        for (int i = 0; i < groups; i++) {
+            users[i] = "user" + i;
+            resourcesByGroup[i] = resourceLimits ? new int[]{i % RESOURCES} : null;
+        }
+        availableResources = new HashMap<>();
+        if (resourceLimits) {
+            for (int i = 0; i < RESOURCES; i++) {
+                availableResources.put(i, new IntCounter());
+            }
+        }
+    }
+
+    @Benchmark
+    public int choose() {
+        for (IntCounter counter : availableResources.values()) {
+            counter.count = max / 2 + 1;
+        }
+        TasksChooser chooser = new TasksChooser(acceptedGroups, Collections.emptySet(), availableSpace,
+            availableResources, max, null, 0, recycler);
+        try {
+            for (int position = 0; position < candidates; position++) {
+                int group = position % groups;
+                int tasktype = 1 + position % TASKTYPES;
+                chooser.accept(position, position + 1, tasktype, users[group], group, resourcesByGroup[group]);
+            }
+            return chooser.getChoosenTasks().size();
+        } finally {
+            chooser.release();
+        }
+    }
+
+}
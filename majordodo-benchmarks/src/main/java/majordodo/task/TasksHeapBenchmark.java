@@ -0,0 +1,142 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scheduler hot path: a tasksheap filled with heapSize waiting tasks, every operation inserts new tasks and takes
+ * the same number of tasks, this way the size of the heap stays constant
+ *
+ * @author enrico.olivelli
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TasksHeapBenchmark {
+
+    private static final String[] TASKTYPES = {"tasktype1", "tasktype2", "tasktype3", "tasktype4"};
+    private static final String[] RESOURCES = {"db1", "db2", "db3", "db4"};
+
+    @Param({"10000", "100000"})
+    public int heapSize;
+
+    @Param({"1", "10", "100"})
+    public int groups;
+
+    @Param({"false", "true"})
+    public boolean resourceLimits;
+
+    @Param({"objects", "columns"})
+    public String layout;
+
+    private TasksHeap heap;
+    private long nextTaskId;
+    private String[] users;
+    private List<Integer> acceptedGroups;
+    private Map<String, Integer> availableSpace;
+    private Map<String, Integer> workerResourceLimits;
+    private Map<String, Integer> globalResourceLimits;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        users = new String[groups];
+        for (int i = 0; i < groups; i++) {
+            users[i] = "user" + i;
+        }
+        TaskPropertiesMapperFunction mapper = (long taskid, String taskType, String userid) -> {
+            int group = Integer.parseInt(userid.substring(4));
+            String[] resources = resourceLimits ? new String[]{RESOURCES[group % RESOURCES.length]} : null;
+            return new TaskProperties(group, resources);
+        };
+        heap = new TasksHeap(heapSize, mapper, TasksHeapLayout.parse(layout));
+        for (int i = 0; i < heapSize; i++) {
+            insertTask();
+        }
+        acceptedGroups = Arrays.asList(Task.GROUP_ANY);
+        availableSpace = new HashMap<>();
+        availableSpace.put(Task.TASKTYPE_ANY, 100);
+        if (resourceLimits) {
+            workerResourceLimits = new HashMap<>();
+            globalResourceLimits = new HashMap<>();
+            for (String resource : RESOURCES) {
+                workerResourceLimits.put(resource, 100);
+                globalResourceLimits.put(resource, 1000);
+            }
+        } else {
+            workerResourceLimits = Collections.emptyMap();
+            globalResourceLimits = Collections.emptyMap();
+        }
+    }
+
+    private void insertTask() {
+        long taskid = ++nextTaskId;
+        heap.insertTask(taskid, TASKTYPES[(int) (taskid % TASKTYPES.length)], users[(int) (taskid % users.length)]);
+    }
+
+    private List<AssignedTask> take(int max) {
+        // counters are not shared among invocations, otherwise resource limits would be saturated soon
+        return heap.takeTasks(max, acceptedGroups, Collections.emptySet(), availableSpace,
+            workerResourceLimits, new ResourceUsageCounters(), globalResourceLimits, new ResourceUsageCounters(), null, 0);
+    }
+
+    @Benchmark
+    public List<AssignedTask> insertAndTakeOne() {
+        insertTask();
+        return take(1);
+    }
+
+    @Benchmark
+    public List<AssignedTask> insertAndTakeBatch() {
+        List<Task> batch = new ArrayList<>(32);
+        for (int i = 0; i < 32; i++) {
+            long taskid = ++nextTaskId;
+            Task task = new Task();
+            task.setTaskId(taskid);
+            task.setType(TASKTYPES[(int) (taskid % TASKTYPES.length)]);
+            task.setUserId(users[(int) (taskid % users.length)]);
+            batch.add(task);
+        }
+        heap.insertTasks(batch);
+        return take(32);
+    }
+
+}
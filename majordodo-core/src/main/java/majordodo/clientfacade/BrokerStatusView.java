@@ -19,6 +19,8 @@
  */
 package majordodo.clientfacade;
 
+import java.util.Map;
+
 /**
  * General view of the status of the broker
  *
@@ -36,6 +38,12 @@ public class BrokerStatusView {
     private long errorTasks;
     private long finishedTasks;
     private long runningTasks;
+    private double submitRate;
+    private double assignRate;
+    private double finishRate;
+    private double errorRate;
+    private Map<String, Map<String, Long>> tasksByTaskType;
+    private Map<String, Map<String, Long>> tasksByUser;
 
     public long getDelayedTasks() {
         return delayedTasks;
@@ -113,6 +121,72 @@ public class BrokerStatusView {
     
     
 
+    /**
+     * @return submitted tasks per second, averaged over the last minute
+     */
+    public double getSubmitRate() {
+        return submitRate;
+    }
+
+    public void setSubmitRate(double submitRate) {
+        this.submitRate = submitRate;
+    }
+
+    /**
+     * @return tasks assigned to workers per second, averaged over the last minute
+     */
+    public double getAssignRate() {
+        return assignRate;
+    }
+
+    public void setAssignRate(double assignRate) {
+        this.assignRate = assignRate;
+    }
+
+    /**
+     * @return finished tasks per second, averaged over the last minute
+     */
+    public double getFinishRate() {
+        return finishRate;
+    }
+
+    public void setFinishRate(double finishRate) {
+        this.finishRate = finishRate;
+    }
+
+    /**
+     * @return tasks gone in error status per second, averaged over the last minute
+     */
+    public double getErrorRate() {
+        return errorRate;
+    }
+
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * @return number of tasks for each status, for each tasktype
+     */
+    public Map<String, Map<String, Long>> getTasksByTaskType() {
+        return tasksByTaskType;
+    }
+
+    public void setTasksByTaskType(Map<String, Map<String, Long>> tasksByTaskType) {
+        this.tasksByTaskType = tasksByTaskType;
+    }
+
+    /**
+     * @return number of tasks for each status, for each user
+     */
+    public Map<String, Map<String, Long>> getTasksByUser() {
+        return tasksByUser;
+    }
+
+    public void setTasksByUser(Map<String, Map<String, Long>> tasksByUser) {
+        this.tasksByUser = tasksByUser;
+    }
+
     public String getClusterMode() {
         return clusterMode;
     }
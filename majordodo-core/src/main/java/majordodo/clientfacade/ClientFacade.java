@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import majordodo.task.AddTaskResult;
 import majordodo.task.Broker;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Client API
@@ -123,4 +124,12 @@ public class ClientFacade {
         return broker.getSlotsStatusView();
     }
 
+    /**
+     * @return for each tasktype, for each phase of the lifecycle of the tasks, latency percentiles in milliseconds
+     * @see majordodo.task.TaskLatencyTracker
+     */
+    public Map<String, Map<String, Map<String, Object>>> getTaskLatencies() {
+        return broker.getTaskLatencyTracker().getLatencies();
+    }
+
 }
@@ -30,6 +30,15 @@ import java.util.List;
 public class HeapStatusView {
 
     private List<TaskStatus> tasks = new ArrayList<>();
+    private int size;
+    private int fragmentation;
+    private long compactionPasses;
+    private long compactionSteps;
+    private long compactionStepsOverBudget;
+    private long lastCompactionPauseMicros;
+    private long maxCompactionPauseMicros;
+    private long totalCompactionPauseMicros;
+    private long shrinks;
 
     public List<TaskStatus> getTasks() {
         return tasks;
@@ -39,6 +48,78 @@ public class HeapStatusView {
         this.tasks = tasks;
     }
 
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    public int getFragmentation() {
+        return fragmentation;
+    }
+
+    public void setFragmentation(int fragmentation) {
+        this.fragmentation = fragmentation;
+    }
+
+    public long getCompactionPasses() {
+        return compactionPasses;
+    }
+
+    public void setCompactionPasses(long compactionPasses) {
+        this.compactionPasses = compactionPasses;
+    }
+
+    public long getCompactionSteps() {
+        return compactionSteps;
+    }
+
+    public void setCompactionSteps(long compactionSteps) {
+        this.compactionSteps = compactionSteps;
+    }
+
+    public long getCompactionStepsOverBudget() {
+        return compactionStepsOverBudget;
+    }
+
+    public void setCompactionStepsOverBudget(long compactionStepsOverBudget) {
+        this.compactionStepsOverBudget = compactionStepsOverBudget;
+    }
+
+    public long getLastCompactionPauseMicros() {
+        return lastCompactionPauseMicros;
+    }
+
+    public void setLastCompactionPauseMicros(long lastCompactionPauseMicros) {
+        this.lastCompactionPauseMicros = lastCompactionPauseMicros;
+    }
+
+    public long getMaxCompactionPauseMicros() {
+        return maxCompactionPauseMicros;
+    }
+
+    public void setMaxCompactionPauseMicros(long maxCompactionPauseMicros) {
+        this.maxCompactionPauseMicros = maxCompactionPauseMicros;
+    }
+
+    public long getTotalCompactionPauseMicros() {
+        return totalCompactionPauseMicros;
+    }
+
+    public void setTotalCompactionPauseMicros(long totalCompactionPauseMicros) {
+        this.totalCompactionPauseMicros = totalCompactionPauseMicros;
+    }
+
+    public long getShrinks() {
+        return shrinks;
+    }
+
+    public void setShrinks(long shrinks) {
+        this.shrinks = shrinks;
+    }
+
     public static class TaskStatus {
 
         private long taskId;
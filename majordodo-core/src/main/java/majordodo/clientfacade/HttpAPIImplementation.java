@@ -118,6 +118,10 @@ public class HttpAPIImplementation {
                     resultMap.put("errortasks", status.getErrorTasks());
                     resultMap.put("waitingtasks", status.getWaitingTasks());
                     resultMap.put("finishedtasks", status.getFinishedTasks());
+                    resultMap.put("submitrate", status.getSubmitRate());
+                    resultMap.put("assignrate", status.getAssignRate());
+                    resultMap.put("finishrate", status.getFinishRate());
+                    resultMap.put("errorrate", status.getErrorRate());
                 } else {
                     resultMap.put("status", "not_started");
                     resultMap.put("version", Broker.VERSION());
@@ -163,6 +167,14 @@ public class HttpAPIImplementation {
                     resultMap.put("status", "not_started");
                 }
                 break;
+            case "latencies":
+                if (broker != null) {
+                    resultMap.put("latencies", broker.getClient().getTaskLatencies());
+                    resultMap.put("status", broker.getClient().getBrokerStatus());
+                } else {
+                    resultMap.put("status", "not_started");
+                }
+                break;
             case "slots":
                 if (broker != null) {
                     resultMap.put("slots", broker.getClient().getSlotsStatusView());
@@ -19,6 +19,7 @@
  */
 package majordodo.clientfacade;
 
+import java.util.function.Consumer;
 import majordodo.task.Task;
 
 /**
@@ -44,6 +45,7 @@ public class TaskStatusView {
     private String mode;
     private String codePoolId;
     private String resources;
+    private Consumer<TaskStatusView> payloadLoader;
 
     public static String convertTaskStatusForClient(int taskStatus) {
         String status;
@@ -71,7 +73,7 @@ public class TaskStatusView {
 
     @Override
     public String toString() {
-        return "TaskStatusView{" + "taskId=" + taskId + ", status=" + status + " " + convertTaskStatusForClient(status) + ", user=" + user + ", workerId=" + workerId + ", createdTimestamp=" + createdTimestamp + ", data=" + data + ", result=" + result + ", type=" + type + ", slot=" + slot + ", attempts=" + attempts + ", maxattempts=" + maxattempts + ", resources=" + resources + ", executionDeadline=" + executionDeadline + '}';
+        return "TaskStatusView{" + "taskId=" + taskId + ", status=" + status + " " + convertTaskStatusForClient(status) + ", user=" + user + ", workerId=" + workerId + ", createdTimestamp=" + createdTimestamp + ", data=" + getData() + ", result=" + getResult() + ", type=" + type + ", slot=" + slot + ", attempts=" + attempts + ", maxattempts=" + maxattempts + ", resources=" + resources + ", executionDeadline=" + executionDeadline + '}';
     }
 
     public long getRequestedStartTime() {
@@ -162,7 +164,26 @@ public class TaskStatusView {
         this.createdTimestamp = createdTimestamp;
     }
 
+    /**
+     * Sets a function which fills data and result the first time they are requested, used when the payload of the
+     * task is not kept in memory by the broker
+     *
+     * @param payloadLoader
+     */
+    public void setPayloadLoader(Consumer<TaskStatusView> payloadLoader) {
+        this.payloadLoader = payloadLoader;
+    }
+
+    private void loadPayload() {
+        Consumer<TaskStatusView> loader = payloadLoader;
+        if (loader != null) {
+            payloadLoader = null;
+            loader.accept(this);
+        }
+    }
+
     public String getData() {
+        loadPayload();
         return data;
     }
 
@@ -171,6 +192,7 @@ public class TaskStatusView {
     }
 
     public String getResult() {
+        loadPayload();
         return result;
     }
 
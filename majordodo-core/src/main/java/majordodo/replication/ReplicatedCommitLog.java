@@ -62,6 +62,7 @@ import majordodo.network.Message;
 import majordodo.network.netty.NettyBrokerLocator;
 import majordodo.task.BrokerStatusSnapshot;
 import majordodo.task.LogNotAvailableException;
+import majordodo.task.LogRecoveryPipeline;
 import majordodo.task.LogSequenceNumber;
 import majordodo.task.StatusChangesLog;
 import majordodo.task.StatusEdit;
@@ -611,65 +612,67 @@ public class ReplicatedCommitLog extends StatusChangesLog {
             throw new LogNotAvailableException(new Exception("Actual ledgers list does not include latest snapshot ledgerid:" + currentLedgerId + ". manual recoveryis needed (pickup a recent snapshot from a live broker please)"));
         }
         try {
-            for (long ledgerId : actualLedgersList.getActiveLedgers()) {
+            new LogRecoveryPipeline("ledgers").run((sink) -> {
+                for (long ledgerId : actualLedgersList.getActiveLedgers()) {
 
-                if (ledgerId < snapshotSequenceNumber.ledgerId) {
-                    LOGGER.log(Level.INFO, "Skipping ledger " + ledgerId);
-                    continue;
-                }
-                LedgerHandle handle;
-                if (fencing) {
-                    handle = bookKeeper.openLedger(ledgerId, BookKeeper.DigestType.MAC, sharedSecret.getBytes(StandardCharsets.UTF_8));
-                } else {
-                    handle = bookKeeper.openLedgerNoRecovery(ledgerId, BookKeeper.DigestType.MAC, sharedSecret.getBytes(StandardCharsets.UTF_8));
-                }
-                try {
-                    long first;
-                    if (ledgerId == snapshotSequenceNumber.ledgerId) {
-                        first = snapshotSequenceNumber.sequenceNumber;
-                        LOGGER.log(Level.INFO, "Recovering from latest snapshot ledger " + ledgerId + ", starting from entry " + first);
+                    if (ledgerId < snapshotSequenceNumber.ledgerId) {
+                        LOGGER.log(Level.INFO, "Skipping ledger " + ledgerId);
+                        continue;
+                    }
+                    LedgerHandle handle;
+                    if (fencing) {
+                        handle = bookKeeper.openLedger(ledgerId, BookKeeper.DigestType.MAC, sharedSecret.getBytes(StandardCharsets.UTF_8));
                     } else {
-                        first = 0;
-                        LOGGER.log(Level.INFO, "Recovering from ledger " + ledgerId + ", starting from entry " + first);
+                        handle = bookKeeper.openLedgerNoRecovery(ledgerId, BookKeeper.DigestType.MAC, sharedSecret.getBytes(StandardCharsets.UTF_8));
                     }
-                    long lastAddConfirmed = handle.getLastAddConfirmed();
-                    LOGGER.log(Level.INFO, "Recovering from ledger " + ledgerId + ", first=" + first, " lastAddConfirmed=" + lastAddConfirmed);
-                    final int BATCH_SIZE = 10000;
-                    if (lastAddConfirmed >= 0) {
-
-                        for (long b = first; b <= lastAddConfirmed;) {
-                            long start = b;
-                            long end = b + BATCH_SIZE;
-                            if (end > lastAddConfirmed) {
-                                end = lastAddConfirmed;
-                            }
-                            b = end + 1;
-                            double percent = ((start - first) * 100.0 / (lastAddConfirmed + 1));
-                            if (LOGGER.isLoggable(Level.FINE)) {
-                                LOGGER.log(Level.FINE, "From entry {0}, to entry {1} ({2} %)", new Object[]{start, end, percent});                            
-                            }
-                            Enumeration<LedgerEntry> seq = handle.readEntries(start, end);
-                            while (seq.hasMoreElements()) {
-                                LedgerEntry entry = seq.nextElement();
-                                LogSequenceNumber number = new LogSequenceNumber(ledgerId, entry.getEntryId());
-                                StatusEdit statusEdit = StatusEdit.read(entry.getEntry());
-                                if (number.after(snapshotSequenceNumber)) {
-                                    LOGGER.log(Level.FINEST, "RECOVER ENTRY {0}, {1}", new Object[]{number, statusEdit});
-                                    consumer.accept(number, statusEdit);
-                                } else {
-                                    LOGGER.log(Level.FINEST, "SKIP ENTRY {0}<{1}, {2}", new Object[]{number, snapshotSequenceNumber, statusEdit});
+                    try {
+                        long first;
+                        if (ledgerId == snapshotSequenceNumber.ledgerId) {
+                            first = snapshotSequenceNumber.sequenceNumber;
+                            LOGGER.log(Level.INFO, "Recovering from latest snapshot ledger " + ledgerId + ", starting from entry " + first);
+                        } else {
+                            first = 0;
+                            LOGGER.log(Level.INFO, "Recovering from ledger " + ledgerId + ", starting from entry " + first);
+                        }
+                        long lastAddConfirmed = handle.getLastAddConfirmed();
+                        LOGGER.log(Level.INFO, "Recovering from ledger " + ledgerId + ", first=" + first, " lastAddConfirmed=" + lastAddConfirmed);
+                        final int BATCH_SIZE = 10000;
+                        if (lastAddConfirmed >= 0) {
+
+                            for (long b = first; b <= lastAddConfirmed;) {
+                                long start = b;
+                                long end = b + BATCH_SIZE;
+                                if (end > lastAddConfirmed) {
+                                    end = lastAddConfirmed;
+                                }
+                                b = end + 1;
+                                double percent = ((start - first) * 100.0 / (lastAddConfirmed + 1));
+                                if (LOGGER.isLoggable(Level.FINE)) {
+                                    LOGGER.log(Level.FINE, "From entry {0}, to entry {1} ({2} %)", new Object[]{start, end, percent});
+                                }
+                                Enumeration<LedgerEntry> seq = handle.readEntries(start, end);
+                                while (seq.hasMoreElements()) {
+                                    LedgerEntry entry = seq.nextElement();
+                                    LogSequenceNumber number = new LogSequenceNumber(ledgerId, entry.getEntryId());
+                                    if (number.after(snapshotSequenceNumber)) {
+                                        LOGGER.log(Level.FINEST, "RECOVER ENTRY {0}", number);
+                                        // decoding is done by the pipeline
+                                        sink.accept(number, entry.getEntry());
+                                    } else {
+                                        LOGGER.log(Level.FINEST, "SKIP ENTRY {0}<{1}", new Object[]{number, snapshotSequenceNumber});
+                                    }
                                 }
                             }
                         }
+                    } finally {
+                        handle.close();
                     }
-                } finally {
-                    handle.close();
                 }
-            }
-        } catch (InterruptedException | BKException err) {
+            }, consumer);
+        } catch (LogNotAvailableException err) {
             LOGGER.log(Level.SEVERE, "Fatal error during recovery", err);
             signalBrokerFailed(err);
-            throw new LogNotAvailableException(err);
+            throw err;
         } catch (Exception err) {
             LOGGER.log(Level.SEVERE, "Unknown fatal error during recovery", err);
             signalBrokerFailed(err);
@@ -23,6 +23,8 @@ package majordodo.task;
 import majordodo.clientfacade.ClientFacade;
 import majordodo.network.jvm.JVMBrokerSupportInterface;
 import majordodo.network.jvm.JVMBrokersRegistry;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -30,10 +32,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.DelayQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -60,7 +62,6 @@ import majordodo.utils.Version;
  */
 public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, BrokerFailureListener {
 
-    public static final int MAX_SIMULTANEOUS_RESUMED_TASKS = 1000;
 
     private static final Logger LOGGER = Logger.getLogger(Broker.class.getName());
     private String brokerId = UUID.randomUUID().toString();
@@ -123,8 +124,8 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
 
     private final Workers workers;
     public final TasksHeap tasksHeap;
-    private final DelayQueue<Task> delayedTasksQueue = new DelayQueue<>();
     private final BrokerStatus brokerStatus;
+    private final TaskLatencyTracker latencyTracker = new TaskLatencyTracker();
     private final StatusChangesLog log;
     private final ResourceUsageCounters globalResourceUsageCounters;
     private final BrokerServerEndpoint acceptor;
@@ -136,6 +137,8 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
     private final BrokerConfiguration configuration;
     private final CheckpointScheduler checkpointScheduler;
     private final ResourcesScheduler groupMapperScheduler;
+    private final TasksHeapCompactionScheduler tasksHeapCompactionScheduler;
+    private final DelayedTasksScheduler delayedTasksScheduler;
     private final FinishedTaskCollectorScheduler finishedTaskCollectorScheduler;
     private final BrokerStatusMonitor brokerStatusMonitor;
     private final Thread brokerLifeThread;
@@ -175,6 +178,10 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
         return workers;
     }
 
+    public TaskLatencyTracker getTaskLatencyTracker() {
+        return latencyTracker;
+    }
+
     public BrokerStatus getBrokerStatus() {
         return brokerStatus;
     }
@@ -186,11 +193,26 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
         this.authenticationManager = new SingleUserAuthenticationManager("admin", "password");
         this.client = new ClientFacade(this);
         this.brokerStatus = new BrokerStatus(log);
+        this.brokerStatus.setLatencyTracker(latencyTracker);
+        if (!configuration.getFinishedTasksStorePath().isEmpty()) {
+            try {
+                this.brokerStatus.setFinishedTasksStore(new FinishedTasksStore(Paths.get(configuration.getFinishedTasksStorePath()),
+                        configuration.getFinishedTasksStoreSegmentSize(), configuration.getFinishedTasksStoreCacheSize()));
+            } catch (IOException err) {
+                throw new RuntimeException(err);
+            }
+        }
         this.tasksHeap = tasksHeap;
+        this.tasksHeap.setConcurrentClaim(configuration.isTasksHeapConcurrentClaim());
+        this.tasksHeap.setCompactionStepSize(configuration.getTasksHeapCompactionStepSize());
+        this.tasksHeap.setCompactionPauseBudgetNanos(TimeUnit.MICROSECONDS.toNanos(configuration.getTasksHeapCompactionMaxPauseMicros()));
+        this.tasksHeap.setListener(workers::wakeUpForTasks);
         this.log = log;
         this.log.setFailureListener(this);
         this.checkpointScheduler = new CheckpointScheduler(configuration, this);
         this.groupMapperScheduler = new ResourcesScheduler(configuration, this);
+        this.tasksHeapCompactionScheduler = new TasksHeapCompactionScheduler(configuration, this);
+        this.delayedTasksScheduler = new DelayedTasksScheduler(configuration, this);
         this.finishedTaskCollectorScheduler = new FinishedTaskCollectorScheduler(configuration, this);
         this.brokerStatusMonitor = new BrokerStatusMonitor(configuration, this);
         this.brokerLifeThread = new Thread(brokerLife, "broker-life");
@@ -225,6 +247,7 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
         this.checkpointScheduler.start();
         this.brokerLifeThread.start();
         this.groupMapperScheduler.start();
+        this.tasksHeapCompactionScheduler.start();
     }
 
     public void startAsWritable() throws InterruptedException {
@@ -262,19 +285,22 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
 
                 brokerStatus.setReadonly(true);
                 Map<String, Long> busySlots = new HashMap<>();
+                // delayed tasks are scheduled relative to the time of the leadership, not to the construction time
+                delayedTasksScheduler.realign(System.currentTimeMillis());
                 Collection<Task> tasksAtBoot = brokerStatus.getTasksAtBoot();
+                List<Task> waitingTasksAtBoot = new ArrayList<>();
                 for (Task task : tasksAtBoot) {
                     switch (task.getStatus()) {
                         case Task.STATUS_WAITING:
                             LOGGER.log(Level.INFO, "Task {0}, {1}, user={2}, slot={3} is to be scheduled (status=waiting)", new Object[]{task.getTaskId(), task.getType(), task.getUserId(), task.getSlot()});
-                            tasksHeap.insertTask(task.getTaskId(), task.getType(), task.getUserId());
+                            waitingTasksAtBoot.add(task);
                             if (task.getSlot() != null && !task.getSlot().isEmpty()) {
                                 busySlots.put(task.getSlot(), task.getTaskId());
                             }
                             break;
                         case Task.STATUS_DELAYED:
                             LOGGER.log(Level.INFO, "Task {0}, {1}, user={2}, slot={3} is to be scheduled (status=delayed)", new Object[]{task.getTaskId(), task.getType(), task.getUserId(), task.getSlot()});
-                            delayedTasksQueue.add(task);
+                            delayedTasksScheduler.schedule(task.getTaskId(), task.getRequestedStartTime());
                             if (task.getSlot() != null && !task.getSlot().isEmpty()) {
                                 busySlots.put(task.getSlot(), task.getTaskId());
                             }
@@ -291,6 +317,7 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
 
                     }
                 }
+                tasksHeap.insertTasks(waitingTasksAtBoot);
                 for (Transaction t : brokerStatus.getTransactionsAtBoot()) {
                     if (t.getPreparedTasks() != null) {
                         for (Task task : t.getPreparedTasks()) {
@@ -316,6 +343,7 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
                 if (PERFORM_CHECKPOINT_AT_LEADERSHIP) {
                     checkpoint();
                 }
+                delayedTasksScheduler.start();
                 try {
                     while (!stopped && !failed) {
                         if (!suspendLogFlush) {
@@ -323,7 +351,6 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
                             // to other follower brokers
                             noop();
                         }
-                        resumeDelayedTasks();
                         if (externalProcessChecker != null) {
                             externalProcessChecker.call();
                         }
@@ -341,25 +368,55 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
 
     };
 
+    /**
+     * Resumes every delayed task whose requested start time has been reached, with a single batch of modifications
+     *
+     * @throws LogNotAvailableException
+     */
     public void resumeDelayedTasks() throws LogNotAvailableException {
-        List<Task> tasksToResume = new ArrayList<>();
-        List<StatusEdit> edits = new ArrayList<>();
-        delayedTasksQueue.drainTo(tasksToResume, MAX_SIMULTANEOUS_RESUMED_TASKS);
-        for (Task task : tasksToResume) {
-            edits.add(StatusEdit.TASK_STATUS_CHANGE(task.getTaskId(), null, Task.STATUS_WAITING, null));
-        }
-        List<BrokerStatus.ModificationResult> results = brokerStatus.applyModifications(edits);
-        int i = 0;
-        for (BrokerStatus.ModificationResult mod : results) {
-            Task task = tasksToResume.get(i++);
-            if (mod.error == null) {
-                LOGGER.log(Level.FINER, "task {0} resumed", task.getTaskId());
-            } else {
-                //LOGGER.log(Level.SEVERE, String.format("fail to resume task %s (%s)", task.getTaskId(), mod.error));
-                throw new IllegalStateException(String.format("fail to resume task %s (%s)", task.getTaskId(), mod.error));
+        List<Long> dueTasks = new ArrayList<>();
+        delayedTasksScheduler.takeDueTasks(System.currentTimeMillis(), dueTasks::add);
+        if (dueTasks.isEmpty()) {
+            return;
+        }
+        List<Task> tasksToResume = new ArrayList<>(dueTasks.size());
+        List<StatusEdit> edits = new ArrayList<>(dueTasks.size());
+        for (Long taskId : dueTasks) {
+            Task task = brokerStatus.getTask(taskId);
+            if (task == null || task.getStatus() != Task.STATUS_DELAYED) {
+                LOGGER.log(Level.FINE, "task {0} is no more delayed ({1}), not resuming it", new Object[]{taskId, task});
+                continue;
             }
-            tasksHeap.insertTask(task.getTaskId(), task.getType(), task.getUserId());
-
+            tasksToResume.add(task);
+            edits.add(StatusEdit.TASK_STATUS_CHANGE(taskId, null, Task.STATUS_WAITING, null));
+        }
+        if (edits.isEmpty()) {
+            return;
+        }
+        List<BrokerStatus.ModificationResult> results;
+        try {
+            results = brokerStatus.applyModifications(edits);
+        } catch (LogNotAvailableException | RuntimeException error) {
+            // nothing has been resumed, try again at the next tick
+            for (Task task : tasksToResume) {
+                delayedTasksScheduler.schedule(task.getTaskId(), task.getRequestedStartTime());
+            }
+            throw error;
+        }
+        List<Task> resumedTasks = new ArrayList<>(tasksToResume.size());
+        try {
+            int i = 0;
+            for (BrokerStatus.ModificationResult mod : results) {
+                Task task = tasksToResume.get(i++);
+                if (mod.error == null) {
+                    LOGGER.log(Level.FINER, "task {0} resumed", task.getTaskId());
+                } else {
+                    throw new IllegalStateException(String.format("fail to resume task %s (%s)", task.getTaskId(), mod.error));
+                }
+                resumedTasks.add(task);
+            }
+        } finally {
+            tasksHeap.insertTasks(resumedTasks);
         }
     }
 
@@ -380,6 +437,8 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
         this.finishedTaskCollectorScheduler.stop();
         this.checkpointScheduler.stop();
         this.groupMapperScheduler.stop();
+        this.tasksHeapCompactionScheduler.stop();
+        this.delayedTasksScheduler.stop();
         this.workers.stop();
         this.brokerStatus.close();
 
@@ -469,6 +528,64 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
         return tasks;
     }
 
+    /**
+     * Assigns tasks to many workers with a single pass over the tasksheap, see
+     * {@link TasksHeap#takeTasksForWorkers(java.util.List, java.util.Map, majordodo.task.ResourceUsageCounters)}.
+     * All the assignments are written to the log as a single batch
+     *
+     * @param requests
+     * @throws LogNotAvailableException
+     */
+    public void assignTasksToWorkers(List<WorkerTasksRequest> requests) throws LogNotAvailableException {
+        if (!started || requests.isEmpty()) {
+            return;
+        }
+        for (WorkerTasksRequest request : requests) {
+            if (request.maxThreadPerUserPerTaskTypePercent > 0) {
+                request.availableSpacePerUser = this.brokerStatus
+                    .collectMaxAvailableSpacePerUserOnWorker(request.workerId, request.maxThreadPerUserPerTaskTypePercent, request.availableSpace);
+            }
+        }
+        Map<String, Integer> globalResourceLimits = globalResourceLimitsConfiguration.getGlobalResourceLimits();
+        long start = System.currentTimeMillis();
+        tasksHeap.takeTasksForWorkers(requests, globalResourceLimits, globalResourceUsageCounters);
+
+        long now = System.currentTimeMillis();
+        List<StatusEdit> edits = new ArrayList<>();
+        Map<Long, String[]> resourcesByTaskId = new HashMap<>();
+        int count = 0;
+        for (WorkerTasksRequest request : requests) {
+            for (AssignedTask entry : request.getAssignedTasks()) {
+                long taskId = entry.taskid;
+                Task task = this.brokerStatus.getTask(taskId);
+                if (task != null) {
+                    StatusEdit edit = StatusEdit.ASSIGN_TASK_TO_WORKER(taskId, request.workerId, task.getAttempts() + 1, entry.resources);
+                    edits.add(edit);
+                    resourcesByTaskId.put(taskId, entry.resourceIds);
+                }
+                count++;
+            }
+        }
+        if (edits.isEmpty()) {
+            return;
+        }
+
+        List<BrokerStatus.ModificationResult> modifications = brokerStatus.applyModifications(edits);
+
+        for (int i = 0; i < edits.size(); i++) {
+            if (modifications.get(i).sequenceNumber != null) {
+                StatusEdit edit = edits.get(i);
+                String[] resourceIds = resourcesByTaskId.get(edit.taskId);
+                if (resourceIds != null) {
+                    globalResourceUsageCounters.useResources(resourceIds);
+                }
+            }
+        }
+
+        long end = System.currentTimeMillis();
+        LOGGER.log(Level.FINER, "assignTasksToWorkers workers {3} count {4} take: {0}, assign:{1}, total:{2}", new Object[]{now - start, end - now, end - start, requests.size(), count});
+    }
+
     public void checkpoint() throws LogNotAvailableException {
         checkpoint(true);
     }
@@ -478,7 +595,8 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
     }
 
     void purgeTasks() {
-        Set<Long> expired = this.brokerStatus.purgeFinishedTasksAndSignalExpiredTasks(configuration.getFinishedTasksRetention(), configuration.getMaxExpiredTasksPerCycle());
+        Set<Long> expired = this.brokerStatus.purgeFinishedTasksAndSignalExpiredTasks(configuration.getFinishedTasksRetention(), configuration.getMaxExpiredTasksPerCycle(),
+            configuration.getFinishedTasksPurgeBatchSize());
         if (expired.isEmpty()) {
             return;
         }
@@ -498,12 +616,25 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
 
     public void recomputeGroups() {
         try {
-            tasksHeap.recomputeGroups();
+            if (tasksHeap.recomputeGroups()) {
+                // waiting tasks may have moved to groups accepted by idle workers
+                workers.wakeUp();
+            }
         } catch (Throwable t) {
             LOGGER.log(Level.SEVERE, "error during group mapping recomputation", t);
         }
     }
 
+    public void compactTasksHeap() {
+        try {
+            while (!stopped && tasksHeap.runCompactionStep()) {
+                // every step releases the lock, so that workers and clients can access the heap
+            }
+        } catch (Throwable t) {
+            LOGGER.log(Level.SEVERE, "error during tasksheap compaction", t);
+        }
+    }
+
     public void noop() throws LogNotAvailableException {
         this.brokerStatus.applyModification(StatusEdit.NOOP());
     }
@@ -538,18 +669,20 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
             throw new IllegalActionException(result.error);
         }
         List<Task> preparedtasks = (List<Task>) result.data;
+        List<Task> waitingTasks = new ArrayList<>(preparedtasks.size());
         for (Task task : preparedtasks) {
             switch (task.getStatus()) {
                 case Task.STATUS_WAITING:
-                    this.tasksHeap.insertTask(task.getTaskId(), task.getType(), task.getUserId());
+                    waitingTasks.add(task);
                     break;
                 case Task.STATUS_DELAYED:
-                    this.delayedTasksQueue.add(task);
+                    this.delayedTasksScheduler.schedule(task.getTaskId(), task.getRequestedStartTime());
                     break;
                 default:
                     throw new IllegalStateException("Impossibile");
             }
         }
+        this.tasksHeap.insertTasks(waitingTasks);
 
     }
 
@@ -592,11 +725,36 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
         res.setDelayedTasks(brokerStatus.getStats().getDelayedTasks());
         res.setErrorTasks(brokerStatus.getStats().getErrorTasks());
         res.setFinishedTasks(brokerStatus.getStats().getFinishedTasks());
+        res.setSubmitRate(brokerStatus.getStats().getSubmitRate());
+        res.setAssignRate(brokerStatus.getStats().getAssignRate());
+        res.setFinishRate(brokerStatus.getStats().getFinishRate());
+        res.setErrorRate(brokerStatus.getStats().getErrorRate());
+        res.setTasksByTaskType(countersToMap(brokerStatus.getStats().getTasksByTaskType()));
+        res.setTasksByUser(countersToMap(brokerStatus.getStats().getTasksByUser()));
+        return res;
+    }
+
+    private static Map<String, Map<String, Long>> countersToMap(Map<String, BrokerStatusStats.TaskCounters> counters) {
+        Map<String, Map<String, Long>> res = new TreeMap<>();
+        counters.forEach((key, value) -> {
+            if (value.getTasks() > 0) {
+                res.put(key, value.toMap());
+            }
+        });
         return res;
     }
 
     public HeapStatusView getHeapStatusView() {
         HeapStatusView res = new HeapStatusView();
+        res.setSize(tasksHeap.getSize());
+        res.setFragmentation(tasksHeap.getFragmentation());
+        res.setCompactionPasses(tasksHeap.getCompactionPasses());
+        res.setCompactionSteps(tasksHeap.getCompactionSteps());
+        res.setCompactionStepsOverBudget(tasksHeap.getCompactionStepsOverBudget());
+        res.setLastCompactionPauseMicros(TimeUnit.NANOSECONDS.toMicros(tasksHeap.getLastCompactionPauseNanos()));
+        res.setMaxCompactionPauseMicros(TimeUnit.NANOSECONDS.toMicros(tasksHeap.getMaxCompactionPauseNanos()));
+        res.setTotalCompactionPauseMicros(TimeUnit.NANOSECONDS.toMicros(tasksHeap.getTotalCompactionPauseNanos()));
+        res.setShrinks(tasksHeap.getShrinks());
         tasksHeap.scan((task) -> {
             TaskStatus status = new TaskStatus();
             status.setGroup(task.groupid);
@@ -609,10 +767,11 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
 
     public DelayedTasksQueueView getDelayedTasksQueueView() {
         DelayedTasksQueueView res = new DelayedTasksQueueView();
-        delayedTasksQueue.forEach(task -> {
+        long now = System.currentTimeMillis();
+        delayedTasksScheduler.forEach((taskId, startTime) -> {
             DelayedTasksQueueView.TaskStatus status = new DelayedTasksQueueView.TaskStatus();
-            status.setTaskId(task.getTaskId());
-            status.setDelay(task.getDelay(TimeUnit.MILLISECONDS));
+            status.setTaskId(taskId);
+            status.setDelay(startTime - now);
             res.getTasks().add(status);
         });
         return res;
@@ -726,7 +885,7 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
                         this.tasksHeap.insertTask(taskId, request.taskType, request.userId);
                         break;
                     case Task.STATUS_DELAYED:
-                        this.delayedTasksQueue.add(newTask);
+                        this.delayedTasksScheduler.schedule(taskId, newTask.getRequestedStartTime());
                         break;
                     default:
                         throw new IllegalStateException("Impossibile");
@@ -756,6 +915,7 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
             LOGGER.log(Level.FINEST, "addTasks {0}", requests);
             LOGGER.log(Level.FINEST, "addTasks results {0}", batch);
         }
+        List<Task> waitingTasks = new ArrayList<>(size);
         for (int i = 0; i < size; i++) {
             StatusEdit addTask = edits.get(i);
             BrokerStatus.ModificationResult result = batch.get(i);
@@ -767,10 +927,10 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
                 if (taskId > 0 && result.error == null && newTask != null) {
                     switch (newTask.getStatus()) {
                         case Task.STATUS_WAITING:
-                            this.tasksHeap.insertTask(taskId, addTask.taskType, addTask.userid);
+                            waitingTasks.add(newTask);
                             break;
                         case Task.STATUS_DELAYED:
-                            this.delayedTasksQueue.add(newTask);
+                            this.delayedTasksScheduler.schedule(taskId, newTask.getRequestedStartTime());
                             break;
                         default:
                             throw new IllegalStateException("Impossibile");
@@ -779,6 +939,7 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
                 res.add(new AddTaskResult(taskId, result.error));
             }
         }
+        this.tasksHeap.insertTasks(waitingTasks);
         return res;
     }
 
@@ -827,6 +988,7 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
             resourcesByTaskId.put(taskId, resourceIds);
 
             workers.getWorkerManager(workerId).taskFinished(taskId);
+            latencyTracker.taskExecuted(taskId, taskData.executionStart, taskData.executionEnd);
 
             if (task.getStatus() != Task.STATUS_RUNNING) {
                 LOGGER.log(Level.SEVERE, "taskFinished {0}, task already in status {1}", new Object[]{taskId, Task.statusToString(task.getStatus())});
@@ -871,6 +1033,7 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
 
         List<BrokerStatus.ModificationResult> modifications = brokerStatus.applyModifications(edits);
 
+        boolean globalResourcesReleased = false;
         for (int i = 0; i < edits.size(); i++) {
             if (modifications.get(i).sequenceNumber != null) {
                 StatusEdit edit = edits.get(i);
@@ -878,14 +1041,21 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
                 if (resourceIds != null) {
                     workers.getWorkerManager(workerId).releaseResources(resourceIds);
                     globalResourceUsageCounters.releaseResources(resourceIds);
+                    globalResourcesReleased = true;
                 }
             }
         }
+        if (globalResourcesReleased && !globalResourceLimitsConfiguration.getGlobalResourceLimits().isEmpty()) {
+            // resources are shared, other workers could be waiting for them
+            workers.wakeUp();
+        } else {
+            workers.wakeUpWorker(workerId);
+        }
 
         for (Task task : toSchedule) {
             LOGGER.log(Level.INFO, "Schedule task for recovery {0} {1} {2} ({3})", new Object[]{task.getTaskId(), task.getType(), task.getUserId(), task.getResult() + ""});
-            this.tasksHeap.insertTask(task.getTaskId(), task.getType(), task.getUserId());
         }
+        this.tasksHeap.insertTasks(toSchedule);
 
     }
 
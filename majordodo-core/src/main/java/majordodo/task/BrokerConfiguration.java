@@ -136,6 +136,74 @@ public class BrokerConfiguration {
         this.maxExpiredTasksPerCycle = maxExpiredTasksPerCycle;
     }
 
+    private int finishedTasksPurgeBatchSize = 1000;
+
+    /**
+     * Maximum number of finished tasks purged from memory while holding the lock on the status of the broker, the lock
+     * is released between batches
+     *
+     * @return
+     * @see #finishedTasksPurgeSchedulerPeriod
+     */
+    public int getFinishedTasksPurgeBatchSize() {
+        return finishedTasksPurgeBatchSize;
+    }
+
+    public void setFinishedTasksPurgeBatchSize(int finishedTasksPurgeBatchSize) {
+        if (finishedTasksPurgeBatchSize <= 0) {
+            throw new IllegalArgumentException("finishedTasksPurgeBatchSize must be greater than zero, not " + finishedTasksPurgeBatchSize);
+        }
+        this.finishedTasksPurgeBatchSize = finishedTasksPurgeBatchSize;
+    }
+
+    private String finishedTasksStorePath = "";
+
+    /**
+     * Local directory where parameter and result of finished tasks are moved out of memory until they are purged.
+     * Empty means that they are kept in memory
+     *
+     * @return
+     */
+    public String getFinishedTasksStorePath() {
+        return finishedTasksStorePath;
+    }
+
+    public void setFinishedTasksStorePath(String finishedTasksStorePath) {
+        this.finishedTasksStorePath = finishedTasksStorePath;
+    }
+
+    private long finishedTasksStoreSegmentSize = 64L * 1024 * 1024;
+
+    /**
+     * Size of each file of the finished tasks store, a file is deleted when all of its tasks have been purged
+     *
+     * @return
+     * @see #finishedTasksStorePath
+     */
+    public long getFinishedTasksStoreSegmentSize() {
+        return finishedTasksStoreSegmentSize;
+    }
+
+    public void setFinishedTasksStoreSegmentSize(long finishedTasksStoreSegmentSize) {
+        this.finishedTasksStoreSegmentSize = finishedTasksStoreSegmentSize;
+    }
+
+    private int finishedTasksStoreCacheSize = 1000;
+
+    /**
+     * Number of recently finished tasks whose payload is also kept in memory
+     *
+     * @return
+     * @see #finishedTasksStorePath
+     */
+    public int getFinishedTasksStoreCacheSize() {
+        return finishedTasksStoreCacheSize;
+    }
+
+    public void setFinishedTasksStoreCacheSize(int finishedTasksStoreCacheSize) {
+        this.finishedTasksStoreCacheSize = finishedTasksStoreCacheSize;
+    }
+
     private long transactionsTtl = 1000 * 60 * 5;
 
     /**
@@ -164,6 +232,126 @@ public class BrokerConfiguration {
         this.tasksHeapSize = tasksHeapSize;
     }
 
+    /**
+     * Memory layout of the tasksheap, see {@link TasksHeapLayout}
+     */
+    private String tasksHeapLayout = TasksHeapLayout.OBJECTS.name();
+
+    public String getTasksHeapLayout() {
+        return tasksHeapLayout;
+    }
+
+    public void setTasksHeapLayout(String tasksHeapLayout) {
+        this.tasksHeapLayout = tasksHeapLayout;
+    }
+
+    /**
+     * Let workers claim tasks from the tasksheap in parallel, see {@link TasksHeap#setConcurrentClaim(boolean)}
+     */
+    private boolean tasksHeapConcurrentClaim;
+
+    public boolean isTasksHeapConcurrentClaim() {
+        return tasksHeapConcurrentClaim;
+    }
+
+    public void setTasksHeapConcurrentClaim(boolean tasksHeapConcurrentClaim) {
+        this.tasksHeapConcurrentClaim = tasksHeapConcurrentClaim;
+    }
+
+    /**
+     * Maximum number of slots visited by each step of incremental compaction of the tasksheap. 0 means that the heap
+     * is compacted in a single pass while assigning tasks to workers. Defaults to 0.
+     */
+    private int tasksHeapCompactionStepSize;
+
+    public int getTasksHeapCompactionStepSize() {
+        return tasksHeapCompactionStepSize;
+    }
+
+    public void setTasksHeapCompactionStepSize(int tasksHeapCompactionStepSize) {
+        this.tasksHeapCompactionStepSize = tasksHeapCompactionStepSize;
+    }
+
+    /**
+     * Maximum time (in microseconds) a single step of incremental compaction can hold the lock on the tasksheap
+     */
+    private long tasksHeapCompactionMaxPauseMicros = 2000;
+
+    public long getTasksHeapCompactionMaxPauseMicros() {
+        return tasksHeapCompactionMaxPauseMicros;
+    }
+
+    public void setTasksHeapCompactionMaxPauseMicros(long tasksHeapCompactionMaxPauseMicros) {
+        this.tasksHeapCompactionMaxPauseMicros = tasksHeapCompactionMaxPauseMicros;
+    }
+
+    /**
+     * Period (in milliseconds) of the background incremental compaction of the tasksheap
+     */
+    private int tasksHeapCompactionPeriod = 1000;
+
+    public int getTasksHeapCompactionPeriod() {
+        return tasksHeapCompactionPeriod;
+    }
+
+    public void setTasksHeapCompactionPeriod(int tasksHeapCompactionPeriod) {
+        this.tasksHeapCompactionPeriod = tasksHeapCompactionPeriod;
+    }
+
+    /**
+     * Time-to-live (in milliseconds) of the cached results of the TaskPropertiesMapperFunction, 0 means no cache
+     */
+    private long taskPropertiesCacheTtl = 0;
+
+    public long getTaskPropertiesCacheTtl() {
+        return taskPropertiesCacheTtl;
+    }
+
+    public void setTaskPropertiesCacheTtl(long taskPropertiesCacheTtl) {
+        this.taskPropertiesCacheTtl = taskPropertiesCacheTtl;
+    }
+
+    /**
+     * Maximum number of (tasktype, userid) pairs in the cache of the TaskPropertiesMapperFunction
+     */
+    private int taskPropertiesCacheSize = 10000;
+
+    public int getTaskPropertiesCacheSize() {
+        return taskPropertiesCacheSize;
+    }
+
+    public void setTaskPropertiesCacheSize(int taskPropertiesCacheSize) {
+        this.taskPropertiesCacheSize = taskPropertiesCacheSize;
+    }
+
+    /**
+     * Resolution (in milliseconds) of the scheduler of delayed tasks: tasks are resumed at most this amount of time
+     * after their requested start time
+     */
+    private long delayedTasksTickPeriod = 5;
+
+    public long getDelayedTasksTickPeriod() {
+        return delayedTasksTickPeriod;
+    }
+
+    public void setDelayedTasksTickPeriod(long delayedTasksTickPeriod) {
+        this.delayedTasksTickPeriod = delayedTasksTickPeriod;
+    }
+
+    /**
+     * Period (in milliseconds) of the wake up of every worker. Workers are also woken up as soon as new tasks are
+     * available for them, they finish tasks, they connect or they ping the broker, so this is only a slow fallback
+     */
+    private long workersFullSweepPeriod = 5000;
+
+    public long getWorkersFullSweepPeriod() {
+        return workersFullSweepPeriod;
+    }
+
+    public void setWorkersFullSweepPeriod(long workersFullSweepPeriod) {
+        this.workersFullSweepPeriod = workersFullSweepPeriod;
+    }
+
     /**
      * Parallelism of worker assigment operations
      */
@@ -177,6 +365,20 @@ public class BrokerConfiguration {
         this.workersThreadpoolSize = workersThreadpoolSize;
     }
 
+    /**
+     * Assign tasks to all of the idle workers with a single pass over the tasksheap, instead of letting each worker scan
+     * the tasksheap on its own
+     */
+    private boolean workersBatchScheduling;
+
+    public boolean isWorkersBatchScheduling() {
+        return workersBatchScheduling;
+    }
+
+    public void setWorkersBatchScheduling(boolean workersBatchScheduling) {
+        this.workersBatchScheduling = workersBatchScheduling;
+    }
+
     public void read(Map<String, Object> properties) {
         ReflectionUtils.apply(properties, this);
     }
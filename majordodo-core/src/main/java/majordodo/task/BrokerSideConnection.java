@@ -302,7 +302,11 @@ public class BrokerSideConnection implements ChannelEventListener, ServerSideCon
                     String status = (String) task.get("status");
                     String result = (String) task.get("result");
                     int finalStatus = Task.taskExecutorStatusToTaskStatus(status);
-                    TaskFinishedData dd = new TaskFinishedData(taskid, result, finalStatus);
+                    Number executionStart = (Number) task.get("startts");
+                    Number executionEnd = (Number) task.get("finishts");
+                    TaskFinishedData dd = new TaskFinishedData(taskid, result, finalStatus,
+                            executionStart != null ? executionStart.longValue() : 0,
+                            executionEnd != null ? executionEnd.longValue() : 0);
                     finishedTasksInfo.add(dd);
                 }
 
@@ -344,6 +348,7 @@ public class BrokerSideConnection implements ChannelEventListener, ServerSideCon
                 }
                 this.manager = broker.getWorkers().getWorkerManager(clientId);
                 manager.applyConfiguration(maxThreads, maxThreadsByTaskType, groups, excludedGroups, resourceLimits, maxThreadPerUserPerTaskTypePercent);
+                broker.getWorkers().wakeUp(manager);
                 break;
             case Message.TYPE_WORKER_SHUTDOWN:
                 if (!authenticated && requireAuthentication) {
@@ -21,18 +21,22 @@ package majordodo.task;
 
 import majordodo.clientfacade.TaskStatusView;
 import majordodo.clientfacade.WorkerStatusView;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -40,6 +44,7 @@ import majordodo.clientfacade.CodePoolView;
 import majordodo.clientfacade.TransactionStatus;
 import majordodo.codepools.CodePool;
 import majordodo.utils.IntCounter;
+import majordodo.utils.LongObjectHashMap;
 
 /**
  * Replicated status of the broker. Each broker, leader or follower, contains a copy of this status. The status is
@@ -51,8 +56,56 @@ public final class BrokerStatus {
 
     private static final Logger LOGGER = Logger.getLogger(BrokerStatus.class.getName());
 
-    private final Map<Long, Task> tasks = new HashMap<>();
-    private final Map<Long, Transaction> transactions = new HashMap<>();
+    /**
+     * Tasks by id, without boxing and without an entry object per task
+     */
+    private final LongObjectHashMap<Task> tasks = new LongObjectHashMap<>();
+    /**
+     * Waiting and delayed tasks which have an execution deadline, ordered by deadline
+     */
+    private final TreeSet<Task> tasksByExecutionDeadline = new TreeSet<>(Comparator.comparingLong(Task::getExecutionDeadline).thenComparingLong(Task::getTaskId));
+    /**
+     * Finished and error tasks, ordered by creation time, which drives their retention
+     */
+    private final TreeSet<Task> finishedTasksByCreationTime = new TreeSet<>(Comparator.comparingLong(Task::getCreatedTimestamp).thenComparingLong(Task::getTaskId));
+    /**
+     * Running tasks, by worker
+     */
+    private final Map<String, WorkerRunningTasks> runningTasksByWorker = new HashMap<>();
+
+    /**
+     * Index of the tasks running on a worker, with counters by tasktype and by (tasktype, user)
+     */
+    private static final class WorkerRunningTasks {
+
+        private final Set<Long> taskIds = new HashSet<>();
+        private final Map<String, IntCounter> countByTaskType = new HashMap<>();
+        private final Map<TaskTypeUser, IntCounter> countByTaskTypeUser = new HashMap<>();
+
+        void add(Task task) {
+            if (!taskIds.add(task.getTaskId())) {
+                return;
+            }
+            countByTaskType.computeIfAbsent(task.getType(), k -> new IntCounter()).count++;
+            countByTaskTypeUser.computeIfAbsent(new TaskTypeUser(task.getType(), task.getUserId()), k -> new IntCounter()).count++;
+        }
+
+        void remove(Task task) {
+            if (!taskIds.remove(task.getTaskId())) {
+                return;
+            }
+            decrement(countByTaskType, task.getType());
+            decrement(countByTaskTypeUser, new TaskTypeUser(task.getType(), task.getUserId()));
+        }
+
+        private static <K> void decrement(Map<K, IntCounter> counters, K key) {
+            IntCounter counter = counters.get(key);
+            if (counter != null && --counter.count <= 0) {
+                counters.remove(key);
+            }
+        }
+    }
+    private final LongObjectHashMap<Transaction> transactions = new LongObjectHashMap<>();
 
     private final Map<String, WorkerStatus> workers = new HashMap<>();
     private final Map<String, CodePool> codePools = new HashMap<>();
@@ -61,12 +114,46 @@ public final class BrokerStatus {
     private long maxTaskId = -1;
     private long maxTransactionId = -1;
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * Write-locked, together with {@link #lock}, by every modification of tasks, transactions and codepools. Single
+     * lookups read optimistically and validate their stamp, so that status polling does not contend with writers
+     */
+    private final StampedLock modificationsLock = new StampedLock();
     private final StatusChangesLog log;
     private LogSequenceNumber lastLogSequenceNumber;
     private final AtomicInteger checkpointsCount = new AtomicInteger();
     private final SlotsManager slotsManager = new SlotsManager();
     private final BrokerStatusStats stats = new BrokerStatusStats();
     private boolean readonly;
+    private FinishedTasksStore finishedTasksStore;
+    private TaskLatencyTracker latencyTracker;
+
+    /**
+     * Tasks captured by a snapshot which is in progress
+     */
+    private static final class SnapshotCapture {
+
+        private final int epoch;
+        /**
+         * Copies of the tasks which have been modified before the snapshot copied them, guarded by the capture itself
+         */
+        private final LongObjectHashMap<Task> preImages = new LongObjectHashMap<>();
+        /**
+         * Payloads released while the snapshot is in progress, as taskId and position, guarded by modificationsLock
+         */
+        private final List<long[]> pendingReleases = new ArrayList<>();
+
+        SnapshotCapture(int epoch) {
+            this.epoch = epoch;
+        }
+    }
+
+    private final Object snapshotLock = new Object();
+    /**
+     * Written by the snapshot while holding the read lock, read by the writers
+     */
+    private volatile int snapshotEpoch;
+    private volatile SnapshotCapture snapshotCapture;
 
     public boolean isReadonly() {
         return readonly;
@@ -76,6 +163,19 @@ public final class BrokerStatus {
         this.readonly = readonly;
     }
 
+    /**
+     * Moves the payloads of finished tasks out of memory, must be set before recovery
+     *
+     * @param finishedTasksStore
+     */
+    public void setFinishedTasksStore(FinishedTasksStore finishedTasksStore) {
+        this.finishedTasksStore = finishedTasksStore;
+    }
+
+    public void setLatencyTracker(TaskLatencyTracker latencyTracker) {
+        this.latencyTracker = latencyTracker;
+    }
+
     public WorkerStatus getWorkerStatus(String workerId) {
         return workers.get(workerId);
     }
@@ -137,14 +237,28 @@ public final class BrokerStatus {
         s.setWorkerId(task.getWorkerId());
         s.setStatus(task.getStatus());
         s.setTaskId(task.getTaskId());
-        s.setData(task.getParameter());
+        // views do not keep the decoded strings on the task
+        s.setData(Task.decode(task.getParameterBytes()));
         s.setType(task.getType());
-        s.setResult(task.getResult());
+        s.setResult(Task.decode(task.getResultBytes()));
         s.setAttempts(task.getAttempts());
         s.setMaxattempts(task.getMaxattempts());
         s.setSlot(task.getSlot());
         s.setRequestedStartTime(task.getRequestedStartTime());
         s.setExecutionDeadline(task.getExecutionDeadline());
+        long payloadPosition = task.getPayloadPosition();
+        if (payloadPosition >= 0) {
+            // the payload is read only if the client actually looks at it
+            long taskId = task.getTaskId();
+            s.setPayloadLoader(view -> {
+                // the task may have been purged in the meantime
+                FinishedTasksStore.Payload payload = readPayload(taskId, payloadPosition, Level.FINE);
+                if (payload != null) {
+                    view.setData(Task.decode(payload.parameter));
+                    view.setResult(Task.decode(payload.result));
+                }
+            });
+        }
         if (task.getMode() != null && !Task.MODE_EXECUTE_FACTORY.equals(task.getMode())) {
             s.setMode(task.getMode());
         }
@@ -297,22 +411,93 @@ public final class BrokerStatus {
         this.log.checkpoint(snapshot);
     }
 
+    /**
+     * Creates a snapshot of the status. The read lock is only held to capture the references to the tasks, which are then
+     * copied while new edits are applied: a task which is going to be modified before it has been copied is copied by
+     * the writer, so that the snapshot sees every task as it was at the captured log position
+     *
+     * @return
+     */
     public BrokerStatusSnapshot createSnapshot() {
-        lock.readLock().lock();
-        try {
-            BrokerStatusSnapshot snap = new BrokerStatusSnapshot(maxTaskId, maxTransactionId, lastLogSequenceNumber);
-            for (Task task : tasks.values()) {
-                snap.tasks.add(task.cloneForSnapshot());
-            }
-            for (WorkerStatus status : workers.values()) {
-                snap.workers.add(status.cloneForSnapshot());
+        synchronized (snapshotLock) {
+            BrokerStatusSnapshot snap;
+            Object[] capturedTasks;
+            SnapshotCapture capture;
+            // excluding writers is enough, readers can go on while the references are captured
+            lock.readLock().lock();
+            try {
+                snap = new BrokerStatusSnapshot(maxTaskId, maxTransactionId, lastLogSequenceNumber);
+                // workers and transactions are few, they are copied immediately
+                for (WorkerStatus status : workers.values()) {
+                    snap.workers.add(status.cloneForSnapshot());
+                }
+                for (Transaction status : transactions.values()) {
+                    snap.transactions.add(status.cloneForSnapshot());
+                }
+                capturedTasks = tasks.copyValues();
+                capture = new SnapshotCapture(++snapshotEpoch);
+                snapshotCapture = capture;
+            } finally {
+                lock.readLock().unlock();
             }
-            for (Transaction status : transactions.values()) {
-                snap.transactions.add(status.cloneForSnapshot());
+            try {
+                for (Object captured : capturedTasks) {
+                    if (captured != null) {
+                        snap.tasks.add(copyForSnapshot(capture, (Task) captured));
+                    }
+                }
+            } finally {
+                long stamp = modificationsLock.writeLock();
+                try {
+                    snapshotCapture = null;
+                    for (long[] release : capture.pendingReleases) {
+                        finishedTasksStore.release(release[0], release[1]);
+                    }
+                } finally {
+                    modificationsLock.unlockWrite(stamp);
+                }
             }
             return snap;
-        } finally {
-            lock.readLock().unlock();
+        }
+    }
+
+    private Task copyForSnapshot(SnapshotCapture capture, Task task) {
+        Task copy;
+        synchronized (capture) {
+            if (task.snapshotEpoch == capture.epoch) {
+                copy = capture.preImages.get(task.getTaskId());
+            } else {
+                copy = task.cloneForSnapshot();
+                task.snapshotEpoch = capture.epoch;
+            }
+        }
+        if (copy.getPayloadPosition() >= 0) {
+            // releases are deferred until the end of the snapshot, so the payload is still in the store
+            FinishedTasksStore.Payload payload = readPayload(copy.getTaskId(), copy.getPayloadPosition());
+            if (payload != null) {
+                copy.restorePayload(payload.parameter, payload.result);
+            } else {
+                copy.restorePayload(null, null);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Copies a task which is going to be modified, if a snapshot is in progress and the task has not been copied yet.
+     * Must be called while holding the write lock
+     *
+     * @param task
+     */
+    private void copyBeforeModification(Task task) {
+        SnapshotCapture capture = snapshotCapture;
+        if (capture != null) {
+            synchronized (capture) {
+                if (task.snapshotEpoch < capture.epoch) {
+                    capture.preImages.put(task.getTaskId(), task.cloneForSnapshot());
+                    task.snapshotEpoch = capture.epoch;
+                }
+            }
         }
     }
 
@@ -322,57 +507,252 @@ public final class BrokerStatus {
         } catch (LogNotAvailableException sorry) {
             LOGGER.log(Level.SEVERE, "Error while closing transaction log", sorry);
         }
-
+        if (finishedTasksStore != null) {
+            finishedTasksStore.close();
+        }
     }
 
-    public Set<Long> purgeFinishedTasksAndSignalExpiredTasks(int finishedTasksRetention, int maxExpiredPerCycle) {
+    /**
+     * Purges from memory the finished tasks which are over the retention and looks for the tasks whose deadline
+     * expired. Both operations only visit the tasks which are actually due, thanks to time-ordered indexes, and purging
+     * is done in batches which release the lock between them
+     *
+     * @param finishedTasksRetention
+     * @param maxExpiredPerCycle
+     * @param purgeBatchSize maximum number of tasks purged while holding the lock
+     * @return the ids of the tasks whose deadline expired
+     */
+    public Set<Long> purgeFinishedTasksAndSignalExpiredTasks(int finishedTasksRetention, int maxExpiredPerCycle, int purgeBatchSize) {
         long now = System.currentTimeMillis();
         long finished_deadline = now - finishedTasksRetention;
 
         Set<Long> expired = new HashSet<>();
-        int expiredcount = 0;
-        this.lock.writeLock().lock();
+        this.lock.readLock().lock();
         try {
             // when running in FOLLOWER MODE we cannot expire tasks, but we need to remove them from memory, see MAJ-58
             boolean allowExpire = this.log.isLeader() && this.log.isWritable();
-            // tasks are only purged from memry, not from logs
-            // in case of broker restart it may re-appear
-            for (Iterator<Map.Entry<Long, Task>> it = tasks.entrySet().iterator(); it.hasNext();) {
-                Map.Entry<Long, Task> taskEntry = it.next();
-                Task t = taskEntry.getValue();
-                switch (t.getStatus()) {
-                    case Task.STATUS_WAITING:
-                    case Task.STATUS_DELAYED:
-                        if (expiredcount < maxExpiredPerCycle && allowExpire) {
-                            long taskdeadline = t.getExecutionDeadline();
-                            if (taskdeadline > 0 && taskdeadline < now) {
-                                expired.add(t.getTaskId());
-                                expiredcount++;
-                                LOGGER.log(Level.INFO, "task {0}, created at {1}, expired, deadline {2}", new Object[]{t.getTaskId(), new java.util.Date(t.getCreatedTimestamp()), new java.util.Date(taskdeadline)});
-                            }
-                        }
-                        break;
-                    case Task.STATUS_ERROR:
-                    case Task.STATUS_FINISHED:
-                        if (t.getCreatedTimestamp() < finished_deadline) {
-                            if (LOGGER.isLoggable(Level.FINER)) {
-                                LOGGER.log(Level.FINER, "purging finished task {0} slot {2}, created at {1}", new Object[]{t.getTaskId(), new java.util.Date(t.getCreatedTimestamp()), t.getSlot()});
-                            }                            
-                            it.remove();
-                            stats.taskStatusChange(t.getStatus(), -1);
-                        }
-                        break;
-                    default:
-                        // not interesting
+            if (allowExpire) {
+                for (Task t : tasksByExecutionDeadline) {
+                    long taskdeadline = t.getExecutionDeadline();
+                    if (expired.size() >= maxExpiredPerCycle || taskdeadline >= now) {
                         break;
+                    }
+                    expired.add(t.getTaskId());
+                    LOGGER.log(Level.INFO, "task {0}, created at {1}, expired, deadline {2}", new Object[]{t.getTaskId(), new java.util.Date(t.getCreatedTimestamp()), new java.util.Date(taskdeadline)});
                 }
             }
         } finally {
-            this.lock.writeLock().unlock();
+            this.lock.readLock().unlock();
         }
+
+        // tasks are only purged from memry, not from logs
+        // in case of broker restart it may re-appear
+        int purged;
+        do {
+            purged = 0;
+            this.lock.writeLock().lock();
+            long stamp = modificationsLock.writeLock();
+            try {
+                while (purged < purgeBatchSize && !finishedTasksByCreationTime.isEmpty()) {
+                    Task t = finishedTasksByCreationTime.first();
+                    if (t.getCreatedTimestamp() >= finished_deadline) {
+                        break;
+                    }
+                    if (LOGGER.isLoggable(Level.FINER)) {
+                        LOGGER.log(Level.FINER, "purging finished task {0} slot {2}, created at {1}", new Object[]{t.getTaskId(), new java.util.Date(t.getCreatedTimestamp()), t.getSlot()});
+                    }
+                    copyBeforeModification(t);
+                    tasks.remove(t.getTaskId());
+                    taskStatusChanged(t, t.getStatus(), -1);
+                    purged++;
+                }
+            } finally {
+                modificationsLock.unlockWrite(stamp);
+                this.lock.writeLock().unlock();
+            }
+        } while (purged > 0 && purged == purgeBatchSize);
         return expired;
     }
 
+    private void addRunningTask(Task task) {
+        String workerId = task.getWorkerId();
+        if (workerId != null) {
+            runningTasksByWorker.computeIfAbsent(workerId, k -> new WorkerRunningTasks()).add(task);
+        }
+    }
+
+    private void removeRunningTask(Task task) {
+        String workerId = task.getWorkerId();
+        if (workerId != null) {
+            WorkerRunningTasks running = runningTasksByWorker.get(workerId);
+            if (running != null) {
+                running.remove(task);
+                if (running.taskIds.isEmpty()) {
+                    runningTasksByWorker.remove(workerId);
+                }
+            }
+        }
+    }
+
+    private static boolean isExpirable(int status) {
+        return status == Task.STATUS_WAITING || status == Task.STATUS_DELAYED;
+    }
+
+    private static boolean isFinished(int status) {
+        return status == Task.STATUS_FINISHED || status == Task.STATUS_ERROR;
+    }
+
+    /**
+     * Keeps stats and time-ordered indexes up to date, status -1 means that the task is not in the status
+     */
+    private void taskStatusChanged(Task task, int oldStatus, int newStatus) {
+        boolean live = log.isWritable();
+        stats.taskStatusChange(task, oldStatus, newStatus, live);
+        if (oldStatus == -1) {
+            // new tasks are not seen by the snapshot which is in progress, if any
+            task.snapshotEpoch = snapshotEpoch;
+        }
+        if (oldStatus == Task.STATUS_RUNNING && newStatus != Task.STATUS_RUNNING) {
+            removeRunningTask(task);
+        } else if (newStatus == Task.STATUS_RUNNING && oldStatus != Task.STATUS_RUNNING) {
+            addRunningTask(task);
+        }
+        if (task.getExecutionDeadline() > 0 && isExpirable(oldStatus) != isExpirable(newStatus)) {
+            if (isExpirable(newStatus)) {
+                tasksByExecutionDeadline.add(task);
+            } else {
+                tasksByExecutionDeadline.remove(task);
+            }
+        }
+        if (isFinished(oldStatus) != isFinished(newStatus)) {
+            if (isFinished(newStatus)) {
+                finishedTasksByCreationTime.add(task);
+            } else {
+                finishedTasksByCreationTime.remove(task);
+            }
+        }
+        if (latencyTracker != null && live) {
+            // only live changes are tracked, not the ones replayed during recovery or by followers
+            trackLatency(task, oldStatus, newStatus);
+        }
+        if (finishedTasksStore != null) {
+            if (newStatus == -1) {
+                if (task.getPayloadPosition() >= 0) {
+                    releasePayload(task);
+                }
+            } else if (isFinished(newStatus)) {
+                if (task.getPayloadPosition() < 0) {
+                    spillPayload(task);
+                }
+            } else if (task.getPayloadPosition() >= 0) {
+                reloadPayload(task);
+            }
+        }
+    }
+
+    private void trackLatency(Task task, int oldStatus, int newStatus) {
+        long now = System.currentTimeMillis();
+        if (newStatus == Task.STATUS_RUNNING) {
+            latencyTracker.taskAssigned(task, now);
+        } else if (isFinished(newStatus) && oldStatus == Task.STATUS_RUNNING) {
+            latencyTracker.taskFinished(task.getTaskId(), now);
+        } else if (newStatus == Task.STATUS_WAITING && oldStatus == Task.STATUS_RUNNING) {
+            latencyTracker.taskRequeued(task.getTaskId(), now);
+        } else if (oldStatus == Task.STATUS_RUNNING || oldStatus == Task.STATUS_WAITING) {
+            latencyTracker.forget(task.getTaskId());
+        }
+    }
+
+    /**
+     * The payload is written in background, the task keeps it in memory until the write completes
+     */
+    private void spillPayload(Task task) {
+        byte[] parameter = task.getParameterBytes();
+        byte[] result = task.getResultBytes();
+        finishedTasksStore.writeAsync(task.getTaskId(), parameter, result, position -> {
+            payloadSpilled(task, parameter, result, position);
+        });
+    }
+
+    private void payloadSpilled(Task task, byte[] parameter, byte[] result, long position) {
+        if (position < 0) {
+            LOGGER.log(Level.SEVERE, "cannot move payload of task {0} to the finished tasks store, keeping it in memory", task.getTaskId());
+            return;
+        }
+        lock.writeLock().lock();
+        long stamp = modificationsLock.writeLock();
+        try {
+            // the task may have been purged, retried or finished again while the payload was written
+            if (tasks.get(task.getTaskId()) == task && isFinished(task.getStatus()) && task.getPayloadPosition() < 0
+                && task.getParameterBytes() == parameter && task.getResultBytes() == result) {
+                copyBeforeModification(task);
+                task.spillPayload(position);
+            } else {
+                // nobody has ever seen this position
+                finishedTasksStore.release(task.getTaskId(), position);
+            }
+        } finally {
+            modificationsLock.unlockWrite(stamp);
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the payload of a task which is going to be modified before the lock is taken, so that the modification
+     * finds it in the cache
+     */
+    private void prefetchPayload(long taskId) {
+        Task task = getTask(taskId);
+        if (task == null) {
+            return;
+        }
+        long position = task.getPayloadPosition();
+        if (position >= 0) {
+            try {
+                finishedTasksStore.prefetch(taskId, position);
+            } catch (IOException err) {
+                LOGGER.log(Level.SEVERE, "cannot prefetch payload of task " + taskId, err);
+            }
+        }
+    }
+
+    private void reloadPayload(Task task) {
+        FinishedTasksStore.Payload payload = readPayload(task.getTaskId(), task.getPayloadPosition());
+        releasePayload(task);
+        if (payload != null) {
+            task.restorePayload(payload.parameter, payload.result);
+        } else {
+            task.restorePayload(null, null);
+        }
+    }
+
+    private void releasePayload(Task task) {
+        SnapshotCapture capture = snapshotCapture;
+        if (capture != null) {
+            // the snapshot in progress may still need it
+            capture.pendingReleases.add(new long[]{task.getTaskId(), task.getPayloadPosition()});
+        } else {
+            finishedTasksStore.release(task.getTaskId(), task.getPayloadPosition());
+        }
+    }
+
+    private FinishedTasksStore.Payload readPayload(long taskId, long position) {
+        return readPayload(taskId, position, Level.SEVERE);
+    }
+
+    private FinishedTasksStore.Payload readPayload(long taskId, long position, Level missingPayloadLevel) {
+        try {
+            FinishedTasksStore.Payload payload = finishedTasksStore.read(taskId, position);
+            if (payload == null) {
+                LOGGER.log(missingPayloadLevel, "payload of task {0} is no more available", taskId);
+            }
+            return payload;
+        } catch (IOException err) {
+            LOGGER.log(Level.SEVERE, "cannot read payload of task " + taskId, err);
+            return null;
+        }
+    }
+
     public void followTheLeader() throws InterruptedException {
         try {
             log.requestLeadership();
@@ -392,7 +772,8 @@ public final class BrokerStatus {
     List<Long> getRunningTasksAssignedToWorker(String workerId) {
         this.lock.readLock().lock();
         try {
-            return tasks.values().stream().filter(t -> t.getStatus() == Task.STATUS_RUNNING && workerId.equals(t.getWorkerId())).map(Task::getTaskId).collect(Collectors.toList());
+            WorkerRunningTasks running = runningTasksByWorker.get(workerId);
+            return running == null ? new ArrayList<>() : new ArrayList<>(running.taskIds);
         } finally {
             this.lock.readLock().unlock();
         }
@@ -441,24 +822,23 @@ public final class BrokerStatus {
     int applyRunningTasksFilterToAssignTasksRequest(String workerId, Map<String, Integer> availableSpace) {
         lock.readLock().lock();
         try {
-            AtomicInteger running = new AtomicInteger();
-            tasks.values().forEach(t -> {
-                if (t.getStatus() != Task.STATUS_RUNNING || !workerId.equals(t.getWorkerId())) {
-                    return;
-                }
-                running.incrementAndGet();
-                String taskType = t.getType();
+            WorkerRunningTasks running = runningTasksByWorker.get(workerId);
+            if (running == null) {
+                return 0;
+            }
+            for (Map.Entry<String, IntCounter> entry : running.countByTaskType.entrySet()) {
+                String taskType = entry.getKey();
                 Integer count = availableSpace.get(taskType);
                 if (count != null) {
-                    int newCount = count - 1;
+                    int newCount = count - entry.getValue().count;
                     if (newCount > 0) {
                         availableSpace.put(taskType, newCount);
                     } else {
                         availableSpace.remove(taskType);
                     }
                 }
-            });
-            return running.get();
+            }
+            return running.taskIds.size();
         } finally {
             lock.readLock().unlock();
         }
@@ -469,29 +849,23 @@ public final class BrokerStatus {
     }
 
     public TransactionStatus getTransaction(long transactionId) {
-        lock.readLock().lock();
-        try {
+        return optimisticRead(() -> {
             Transaction t = transactions.get(transactionId);
             if (t == null) {
                 return null;
             }
             return createTransactionStatusView(t);
-        } finally {
-            lock.readLock().unlock();
-        }
+        });
     }
 
     CodePoolView getCodePoolView(String codePoolId) {
-        lock.readLock().lock();
-        try {
+        return optimisticRead(() -> {
             CodePool codePool = codePools.get(codePoolId);
             if (codePool == null) {
                 return null;
             }
             return createCodePoolView(codePool);
-        } finally {
-            lock.readLock().unlock();
-        }
+        });
     }
 
     private CodePoolView createCodePoolView(CodePool codePool) {
@@ -503,13 +877,8 @@ public final class BrokerStatus {
     }
 
     CodePool getCodePool(String codePoolId) {
-        lock.readLock().lock();
-        try {
-            // codepools are immutable, no copy is needed
-            return codePools.get(codePoolId);
-        } finally {
-            lock.readLock().unlock();
-        }
+        // codepools are immutable, no copy is needed
+        return optimisticRead(() -> codePools.get(codePoolId));
     }
 
     Map<TaskTypeUser, IntCounter> collectMaxAvailableSpacePerUserOnWorker(String workerId,
@@ -518,35 +887,26 @@ public final class BrokerStatus {
         Map<TaskTypeUser, IntCounter> res = new HashMap<>();
         lock.readLock().lock();
         try {
-            this.tasks
-                .values()
-                .stream()
-                .filter(t -> t.getStatus() == Task.STATUS_RUNNING
-                && workerId.equals(t.getWorkerId()))
-                .forEach(t -> {
-                    String type = t.getType();
-                    Integer startingMaxAvailableSpacePerUser = startingAvailableSpace.get(type);
-                    if (startingMaxAvailableSpacePerUser == null) {
-                        startingMaxAvailableSpacePerUser = startingAvailableSpace.get(Task.TASKTYPE_ANY);
-                    }
-                    if (startingMaxAvailableSpacePerUser != null && startingMaxAvailableSpacePerUser > 0) {
-                        TaskTypeUser key = new TaskTypeUser(type, t.getUserId());
-                        IntCounter count = res.get(key);
-                        if (count == null) {
-                            int effectiveBoundForUser
-                                = (startingMaxAvailableSpacePerUser * maxThreadPerUserPerTaskTypePercent) / 100;
-                            if (effectiveBoundForUser <= 0) {
-                                effectiveBoundForUser = 1;
-                            }
-                            LOGGER.log(Level.FINEST, "collectMaxAvailableSpacePerUserOnWorker {0} -> for user {1} we are starting from {2} - bound is {3}", new Object[]{workerId, t.getUserId(), startingMaxAvailableSpacePerUser, effectiveBoundForUser});
-                            count = new IntCounter(effectiveBoundForUser);
-                            res.put(key, count);
-
-                        }
-                        LOGGER.log(Level.FINEST, "collectMaxAvailableSpacePerUserOnWorker {0} -> for user {1} found task {2} - id {3}", new Object[]{workerId, t.getUserId(), t.getType(), t.getTaskId()});
-                        count.count--;
+            WorkerRunningTasks running = runningTasksByWorker.get(workerId);
+            if (running == null) {
+                return res;
+            }
+            for (Map.Entry<TaskTypeUser, IntCounter> entry : running.countByTaskTypeUser.entrySet()) {
+                TaskTypeUser key = entry.getKey();
+                Integer startingMaxAvailableSpacePerUser = startingAvailableSpace.get(key.taskType);
+                if (startingMaxAvailableSpacePerUser == null) {
+                    startingMaxAvailableSpacePerUser = startingAvailableSpace.get(Task.TASKTYPE_ANY);
+                }
+                if (startingMaxAvailableSpacePerUser != null && startingMaxAvailableSpacePerUser > 0) {
+                    int effectiveBoundForUser
+                        = (startingMaxAvailableSpacePerUser * maxThreadPerUserPerTaskTypePercent) / 100;
+                    if (effectiveBoundForUser <= 0) {
+                        effectiveBoundForUser = 1;
                     }
-                });
+                    LOGGER.log(Level.FINEST, "collectMaxAvailableSpacePerUserOnWorker {0} -> for user {1} we are starting from {2} - bound is {3}, running {4}", new Object[]{workerId, key.userId, startingMaxAvailableSpacePerUser, effectiveBoundForUser, entry.getValue().count});
+                    res.put(key, new IntCounter(effectiveBoundForUser - entry.getValue().count));
+                }
+            }
         } finally {
             lock.readLock().unlock();
         }
@@ -590,6 +950,9 @@ public final class BrokerStatus {
                     toLog.add(edit);
                 }
             } else {
+                if (edit.editType == StatusEdit.TYPE_TASK_STATUS_CHANGE && finishedTasksStore != null) {
+                    prefetchPayload(edit.taskId);
+                }
                 toLog.add(edit);
             }
             index++;
@@ -664,6 +1027,9 @@ public final class BrokerStatus {
                     return new ModificationResult(null, edit.codepool, "codepool " + edit.codepool + " already exists");
                 }
             }
+            if (edit.editType == StatusEdit.TYPE_TASK_STATUS_CHANGE && finishedTasksStore != null) {
+                prefetchPayload(edit.taskId);
+            }
             LogSequenceNumber num = log.logStatusEdit(edit); // ? out of the lock ?        
             return applyEdit(num, edit);
         }
@@ -679,6 +1045,7 @@ public final class BrokerStatus {
         LOGGER.log(Level.FINEST, "applyEdit {0}", edit);
 
         lock.writeLock().lock();
+        long stamp = modificationsLock.writeLock();
         try {
             if (readonly) {
                 throw new IllegalStateException("readonly");
@@ -693,17 +1060,25 @@ public final class BrokerStatus {
                     if (task == null) {
                         throw new RuntimeException("task " + taskId + " not present in brokerstatus. maybe you are recovering broken snapshot");
                     }
+                    copyBeforeModification(task);
                     int oldStatus = task.getStatus();
-                    task.setStatus(Task.STATUS_RUNNING);
                     if (workerId == null || workerId.isEmpty()) {
                         throw new RuntimeException("bug " + edit);
                     }
+                    if (oldStatus == Task.STATUS_RUNNING) {
+                        // the worker may change
+                        removeRunningTask(task);
+                    }
+                    task.setStatus(Task.STATUS_RUNNING);
                     task.setWorkerId(workerId.intern());
                     if (resources != null) {
                         task.setResources(resources.intern());
                     }
                     task.setAttempts(edit.attempt);
-                    stats.taskStatusChange(oldStatus, task.getStatus());
+                    if (oldStatus == Task.STATUS_RUNNING) {
+                        addRunningTask(task);
+                    }
+                    taskStatusChanged(task, oldStatus, task.getStatus());
                     return new ModificationResult(num, null, null);
                 }
                 case StatusEdit.TYPE_TASK_STATUS_CHANGE: {
@@ -712,7 +1087,12 @@ public final class BrokerStatus {
                     if (task == null) {
                         throw new IllegalStateException("task " + taskId + " does not exist");
                     }
+                    copyBeforeModification(task);
                     int oldStatus = task.getStatus();
+                    if (task.getPayloadPosition() >= 0) {
+                        // the result is going to be replaced
+                        reloadPayload(task);
+                    }
                     task.setStatus(edit.taskStatus);
                     task.setResult(edit.result);
                     if (task.getSlot() != null) {
@@ -728,7 +1108,7 @@ public final class BrokerStatus {
                         }
                     }
 
-                    stats.taskStatusChange(oldStatus, edit.taskStatus);
+                    taskStatusChanged(task, oldStatus, edit.taskStatus);
 
                     return new ModificationResult(num, null, null);
                 }
@@ -748,7 +1128,7 @@ public final class BrokerStatus {
                     }
                     for (Task task : transaction.getPreparedTasks()) {
                         tasks.put(task.getTaskId(), task);
-                        stats.taskStatusChange(-1, task.getStatus());
+                        taskStatusChanged(task, -1, task.getStatus());
                     }
                     transactions.remove(edit.transactionId);
                     return new ModificationResult(num, transaction.getPreparedTasks(), null);
@@ -797,7 +1177,7 @@ public final class BrokerStatus {
                         task.setStatus(Task.STATUS_WAITING);
                     }
                     tasks.put(edit.taskId, task);
-                    stats.taskStatusChange(-1, task.getStatus());
+                    taskStatusChanged(task, -1, task.getStatus());
 
                     if (edit.slot != null) {
                         // we need this, for log-replay on recovery and on followers
@@ -899,6 +1279,7 @@ public final class BrokerStatus {
 
             }
         } finally {
+            modificationsLock.unlockWrite(stamp);
             lock.writeLock().unlock();
         }
 
@@ -915,48 +1296,53 @@ public final class BrokerStatus {
                 throw new IllegalStateException("readonly");
             }
             BrokerStatusSnapshot snapshot = log.loadBrokerStatusSnapshot();
-            this.maxTaskId = snapshot.getMaxTaskId();
-            this.newTaskId.set(maxTaskId + 1);
-            this.maxTransactionId = snapshot.getMaxTransactionId();
-            this.newTransactionId.set(maxTransactionId + 1);
-            this.lastLogSequenceNumber = snapshot.getActualLogSequenceNumber();
-            Map<String, Long> busySlots = new HashMap<>();
-            for (Task task : snapshot.getTasks()) {
-                long taskId = task.getTaskId();
-                this.tasks.put(taskId, task);
-                if (maxTaskId < taskId) {
-                    maxTaskId = taskId;
-                }
-                stats.taskStatusChange(-1, task.getStatus());
-                switch (task.getStatus()) {
-                    case Task.STATUS_RUNNING:
-                    case Task.STATUS_WAITING:
-                    case Task.STATUS_DELAYED: {
-                        if (task.getSlot() != null && !task.getSlot().isEmpty()) {
-                            busySlots.put(task.getSlot(), taskId);
+            long stamp = modificationsLock.writeLock();
+            try {
+                this.maxTaskId = snapshot.getMaxTaskId();
+                this.newTaskId.set(maxTaskId + 1);
+                this.maxTransactionId = snapshot.getMaxTransactionId();
+                this.newTransactionId.set(maxTransactionId + 1);
+                this.lastLogSequenceNumber = snapshot.getActualLogSequenceNumber();
+                Map<String, Long> busySlots = new HashMap<>();
+                for (Task task : snapshot.getTasks()) {
+                    long taskId = task.getTaskId();
+                    this.tasks.put(taskId, task);
+                    if (maxTaskId < taskId) {
+                        maxTaskId = taskId;
+                    }
+                    taskStatusChanged(task, -1, task.getStatus());
+                    switch (task.getStatus()) {
+                        case Task.STATUS_RUNNING:
+                        case Task.STATUS_WAITING:
+                        case Task.STATUS_DELAYED: {
+                            if (task.getSlot() != null && !task.getSlot().isEmpty()) {
+                                busySlots.put(task.getSlot(), taskId);
+                            }
+                            break;
                         }
-                        break;
+                        default:
+                            // not interesting
+                            break;
                     }
-                    default:
-                        // not interesting
-                        break;
-                }
 
-            }
-            for (WorkerStatus worker : snapshot.getWorkers()) {
-                this.workers.put(worker.getWorkerId(), worker);
-            }
-            for (Transaction tx : snapshot.getTransactions()) {
-                long transactionId = tx.getTransactionId();
-                if (maxTransactionId < transactionId) {
-                    maxTransactionId = transactionId;
                 }
-                this.transactions.put(transactionId, tx);
-            }
-            for (CodePool codePool : snapshot.getCodePools()) {
-                this.codePools.put(codePool.getId(), codePool);
+                for (WorkerStatus worker : snapshot.getWorkers()) {
+                    this.workers.put(worker.getWorkerId(), worker);
+                }
+                for (Transaction tx : snapshot.getTransactions()) {
+                    long transactionId = tx.getTransactionId();
+                    if (maxTransactionId < transactionId) {
+                        maxTransactionId = transactionId;
+                    }
+                    this.transactions.put(transactionId, tx);
+                }
+                for (CodePool codePool : snapshot.getCodePools()) {
+                    this.codePools.put(codePool.getId(), codePool);
+                }
+                this.slotsManager.loadBusySlots(busySlots);
+            } finally {
+                modificationsLock.unlockWrite(stamp);
             }
-            this.slotsManager.loadBusySlots(busySlots);
             log.recovery(snapshot.getActualLogSequenceNumber(),
                 (logSeqNumber, edit) -> {
                     applyEdit(logSeqNumber, edit);
@@ -988,25 +1374,39 @@ public final class BrokerStatus {
     }
 
     public Task getTask(long taskId) {
-        lock.readLock().lock();
-        try {
-            return tasks.get(taskId);
-        } finally {
-            lock.readLock().unlock();
-        }
+        return optimisticRead(() -> tasks.get(taskId));
     }
 
     public TaskStatusView getTaskStatus(long taskId) {
-        Task task;
+        return optimisticRead(() -> createTaskStatusView(tasks.get(taskId)));
+    }
+
+    /**
+     * Runs a lookup without locking, the lookup is repeated under the read lock only if a modification happened in the
+     * meantime. The lookup must not have side effects
+     *
+     * @param <T>
+     * @param lookup
+     * @return
+     */
+    private <T> T optimisticRead(Supplier<T> lookup) {
+        long stamp = modificationsLock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                T result = lookup.get();
+                if (modificationsLock.validate(stamp)) {
+                    return result;
+                }
+            } catch (RuntimeException concurrentModification) {
+                // the data changed while it was being read
+            }
+        }
         lock.readLock().lock();
         try {
-            task = tasks.get(taskId);
+            return lookup.get();
         } finally {
             lock.readLock().unlock();
         }
-
-        TaskStatusView s = createTaskStatusView(task);
-        return s;
     }
 
 }
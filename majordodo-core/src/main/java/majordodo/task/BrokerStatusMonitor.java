@@ -103,9 +103,14 @@ public class BrokerStatusMonitor {
                     + ", waiting:" + brokerStatusView.getWaitingTasks()
                     + ", running:" + brokerStatusView.getRunningTasks()
                     + ", error:" + brokerStatusView.getErrorTasks()
-                    + ", finished:" + brokerStatusView.getFinishedTasks() + ","
+                    + ", finished:" + brokerStatusView.getFinishedTasks()
+                    + ", rates/s submit:" + String.format("%.1f", brokerStatusView.getSubmitRate())
+                    + " assign:" + String.format("%.1f", brokerStatusView.getAssignRate())
+                    + " finish:" + String.format("%.1f", brokerStatusView.getFinishRate())
+                    + " error:" + String.format("%.1f", brokerStatusView.getErrorRate()) + ","
                     + "Transactions: count " + transactions.getTransactions().size() + ", oldest " + oldestTransaction + ", "
-                    + "TasksHeap: size " + heap.getTasks().size() + ", first " + first + ", last " + last + ", "
+                    + "TasksHeap: size " + heap.getTasks().size() + ", first " + first + ", last " + last
+                    + ", compaction passes " + heap.getCompactionPasses() + ", max compaction pause " + heap.getMaxCompactionPauseMicros() + " us, "
                     + "DelayedTasksQueue: size " + delayedQueue.getTasks().size() + ", average delay " + averageDelayInSeconds + ", "
                     + "Slots: " + slots.getBusySlots().size());
         }
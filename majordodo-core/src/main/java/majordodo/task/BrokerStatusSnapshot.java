@@ -435,6 +435,13 @@ public class BrokerStatusSnapshot {
         }
     }
 
+    private static void writeSimpleProperty(JsonGenerator g, String name, byte[] utf8value) throws IOException {
+        if (utf8value != null) {
+            g.writeFieldName(name);
+            g.writeUTF8String(utf8value, 0, utf8value.length);
+        }
+    }
+
     private static void writeSimpleProperty(JsonGenerator g, String name, long value) throws IOException {
 
         g.writeFieldName(name);
@@ -499,8 +506,8 @@ public class BrokerStatusSnapshot {
         writeSimpleProperty(g, "attempts", task.getAttempts());
         writeSimpleProperty(g, "requestedStartTime", task.getRequestedStartTime());
         writeSimpleProperty(g, "executionDeadline", task.getExecutionDeadline());
-        writeSimpleProperty(g, "parameter", task.getParameter());
-        writeSimpleProperty(g, "result", task.getResult());
+        writeSimpleProperty(g, "parameter", task.getParameterBytes());
+        writeSimpleProperty(g, "result", task.getResultBytes());
         writeSimpleProperty(g, "userId", task.getUserId());
         if (task.getResources() != null) {
             writeSimpleProperty(g, "resources", task.getResources());
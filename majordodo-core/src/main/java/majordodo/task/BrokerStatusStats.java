@@ -19,127 +19,268 @@
  */
 package majordodo.task;
 
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import majordodo.utils.RateMeter;
+
 /**
- * Statistics
+ * Statistics. Counters are updated by the thread which applies the edits and can be read at any time by other threads
  *
  * @author enrico.olivelli
  */
 public class BrokerStatusStats {
 
-    private long tasks;
-    private long pendingTasks;
+    /**
+     * Number of tasks for each status
+     */
+    public static final class TaskCounters {
+
+        private final LongAdder tasks = new LongAdder();
+        private final LongAdder runningTasks = new LongAdder();
+        private final LongAdder waitingTasks = new LongAdder();
+        private final LongAdder delayedTasks = new LongAdder();
+        private final LongAdder errorTasks = new LongAdder();
+        private final LongAdder finishedTasks = new LongAdder();
+
+        private void statusChange(int prevStatus, int newStatus) {
+            LongAdder prev = counterForStatus(prevStatus);
+            if (prev != null) {
+                prev.decrement();
+            }
+            LongAdder next = counterForStatus(newStatus);
+            if (next != null) {
+                next.increment();
+            }
+        }
+
+        private LongAdder counterForStatus(int status) {
+            switch (status) {
+                case Task.STATUS_ERROR:
+                    return errorTasks;
+                case Task.STATUS_WAITING:
+                    return waitingTasks;
+                case Task.STATUS_DELAYED:
+                    return delayedTasks;
+                case Task.STATUS_RUNNING:
+                    return runningTasks;
+                case Task.STATUS_FINISHED:
+                    return finishedTasks;
+                default:
+                    return null;
+            }
+        }
+
+        public long getTasks() {
+            return tasks.sum();
+        }
 
-    private long runningTasks;
-    private long waitingTasks;
-    private long delayedTasks;
-    private long errorTasks;
-    private long finishedTasks;
+        public long getRunningTasks() {
+            return runningTasks.sum();
+        }
+
+        public long getWaitingTasks() {
+            return waitingTasks.sum();
+        }
+
+        public long getDelayedTasks() {
+            return delayedTasks.sum();
+        }
+
+        public long getErrorTasks() {
+            return errorTasks.sum();
+        }
+
+        public long getFinishedTasks() {
+            return finishedTasks.sum();
+        }
+
+        /**
+         * @return a copy of the counters, with the names used by the HTTP API
+         */
+        public Map<String, Long> toMap() {
+            Map<String, Long> res = new TreeMap<>();
+            res.put("tasks", getTasks());
+            res.put("runningtasks", getRunningTasks());
+            res.put("waitingtasks", getWaitingTasks());
+            res.put("delayedtasks", getDelayedTasks());
+            res.put("errortasks", getErrorTasks());
+            res.put("finishedtasks", getFinishedTasks());
+            return res;
+        }
+    }
+
+    private final TaskCounters totals = new TaskCounters();
+    private final LongAdder pendingTasks = new LongAdder();
+    private final Map<String, TaskCounters> byTaskType = new ConcurrentHashMap<>();
+    private final Map<String, TaskCounters> byUser = new ConcurrentHashMap<>();
+    private final RateMeter submitted = new RateMeter();
+    private final RateMeter assigned = new RateMeter();
+    private final RateMeter finished = new RateMeter();
+    private final RateMeter errors = new RateMeter();
 
     public long getTasks() {
-        return tasks;
+        return totals.getTasks();
     }
 
     public void setTasks(long tasks) {
-        this.tasks = tasks;
+        set(totals.tasks, tasks);
     }
 
     public long getPendingTasks() {
-        return pendingTasks;
+        return pendingTasks.sum();
     }
 
     public void setPendingTasks(long pendingTasks) {
-        this.pendingTasks = pendingTasks;
+        set(this.pendingTasks, pendingTasks);
     }
 
-    void taskStatusChange(int prevStatus, int newStatus) {
-        switch (prevStatus) {
-            case -1:
-                // new task
-                tasks++;
-                break;
-            case Task.STATUS_ERROR:
-                errorTasks--;
-                break;
-            case Task.STATUS_WAITING:
-                waitingTasks--;
-                break;
-            case Task.STATUS_DELAYED:
-                delayedTasks--;
-                break;
-            case Task.STATUS_RUNNING:
-                runningTasks--;
-                break;
-            case Task.STATUS_FINISHED:
-                finishedTasks--;
-                break;
-            default:
-                /// ?
-                break;
+    private static void set(LongAdder counter, long value) {
+        counter.reset();
+        counter.add(value);
+    }
+
+    /**
+     * Updates the counters. Rates are marked only for live changes, the ones replayed during recovery or by followers
+     * would be seen as a burst of events at boot
+     */
+    void taskStatusChange(Task task, int prevStatus, int newStatus, boolean live) {
+        TaskCounters typeCounters = task.getType() != null ? byTaskType.computeIfAbsent(task.getType(), k -> new TaskCounters()) : null;
+        TaskCounters userCounters = task.getUserId() != null ? byUser.computeIfAbsent(task.getUserId(), k -> new TaskCounters()) : null;
+        if (prevStatus == -1) {
+            // new task
+            totals.tasks.increment();
+            if (typeCounters != null) {
+                typeCounters.tasks.increment();
+            }
+            if (userCounters != null) {
+                userCounters.tasks.increment();
+            }
+            if (live) {
+                submitted.mark();
+            }
+        }
+        if (newStatus == -1) {
+            // task disappeared
+            totals.tasks.decrement();
+            if (typeCounters != null) {
+                typeCounters.tasks.decrement();
+            }
+            if (userCounters != null) {
+                userCounters.tasks.decrement();
+            }
+        }
+        totals.statusChange(prevStatus, newStatus);
+        if (typeCounters != null) {
+            typeCounters.statusChange(prevStatus, newStatus);
+        }
+        if (userCounters != null) {
+            userCounters.statusChange(prevStatus, newStatus);
+            if (newStatus == -1 && userCounters.getTasks() <= 0) {
+                // users come and go, only the ones with tasks in memory are tracked
+                byUser.remove(task.getUserId(), userCounters);
+            }
+        }
+        if (!live) {
+            return;
         }
         switch (newStatus) {
-            case -1:
-                // task disappeared
-                tasks--;
-                break;
-            case Task.STATUS_ERROR:
-                errorTasks++;
-                break;
-            case Task.STATUS_WAITING:
-                waitingTasks++;
-                break;
-            case Task.STATUS_DELAYED:
-                delayedTasks++;
-                break;
             case Task.STATUS_RUNNING:
-                runningTasks++;
+                assigned.mark();
                 break;
             case Task.STATUS_FINISHED:
-                finishedTasks++;
+                finished.mark();
+                break;
+            case Task.STATUS_ERROR:
+                errors.mark();
                 break;
             default:
-                /// ?
+                // not interesting
                 break;
         }
     }
 
     public long getRunningTasks() {
-        return runningTasks;
+        return totals.getRunningTasks();
     }
 
     public void setRunningTasks(long runningTasks) {
-        this.runningTasks = runningTasks;
+        set(totals.runningTasks, runningTasks);
     }
 
     public long getWaitingTasks() {
-        return waitingTasks;
+        return totals.getWaitingTasks();
     }
 
     public void setWaitingTasks(long waitingTasks) {
-        this.waitingTasks = waitingTasks;
+        set(totals.waitingTasks, waitingTasks);
     }
 
     public long getErrorTasks() {
-        return errorTasks;
+        return totals.getErrorTasks();
     }
 
     public void setErrorTasks(long errorTasks) {
-        this.errorTasks = errorTasks;
+        set(totals.errorTasks, errorTasks);
     }
 
     public long getFinishedTasks() {
-        return finishedTasks;
+        return totals.getFinishedTasks();
     }
 
     public void setFinishedTasks(long finishedTasks) {
-        this.finishedTasks = finishedTasks;
+        set(totals.finishedTasks, finishedTasks);
     }
 
     public long getDelayedTasks() {
-        return delayedTasks;
+        return totals.getDelayedTasks();
     }
 
     public void setDelayedTasks(long delayedTasks) {
-        this.delayedTasks = delayedTasks;
+        set(totals.delayedTasks, delayedTasks);
+    }
+
+    /**
+     * @return counters for each tasktype which has ever been seen
+     */
+    public Map<String, TaskCounters> getTasksByTaskType() {
+        return byTaskType;
+    }
+
+    /**
+     * @return counters for each user who has at least a task in memory
+     */
+    public Map<String, TaskCounters> getTasksByUser() {
+        return byUser;
+    }
+
+    /**
+     * @return submitted tasks per second, averaged over the last minute
+     */
+    public double getSubmitRate() {
+        return submitted.getRate();
+    }
+
+    /**
+     * @return tasks assigned to workers per second, averaged over the last minute
+     */
+    public double getAssignRate() {
+        return assigned.getRate();
+    }
+
+    /**
+     * @return tasks finished per second, averaged over the last minute
+     */
+    public double getFinishRate() {
+        return finished.getRate();
+    }
+
+    /**
+     * @return tasks gone in error status per second, averaged over the last minute
+     */
+    public double getErrorRate() {
+        return errors.getRate();
     }
 
 }
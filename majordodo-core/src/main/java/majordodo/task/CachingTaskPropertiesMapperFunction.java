@@ -0,0 +1,242 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Caches the results of a {@link TaskPropertiesMapperFunction}, keyed by (tasktype, userid). Entries expire after a
+ * time-to-live and the least recently used ones are evicted when the cache is full.<br>
+ * This cache assumes that the properties of a task do not depend on the taskid.<br>
+ * The cache keeps track of the (tasktype, userid) pairs whose properties changed, this way
+ * {@link TasksHeap#recomputeGroups()} can update only the tasks affected by the change, see {@link #refresh()}.
+ * Changes of evicted pairs cannot be tracked, so an eviction leads to a full recomputation, the cache should be big
+ * enough to hold every pair of the waiting tasks
+ *
+ * @author enrico.olivelli
+ */
+public class CachingTaskPropertiesMapperFunction implements TaskPropertiesMapperFunction {
+
+    private static final class CachedProperties {
+
+        final TaskProperties properties;
+        final long taskid;
+        long loadTimestamp;
+
+        CachedProperties(TaskProperties properties, long taskid, long loadTimestamp) {
+            this.properties = properties;
+            this.taskid = taskid;
+            this.loadTimestamp = loadTimestamp;
+        }
+    }
+
+    private final TaskPropertiesMapperFunction delegate;
+    private final int maxSize;
+    private final long ttl;
+    private final LongSupplier clock;
+    private final LinkedHashMap<TaskTypeUser, CachedProperties> cache;
+    private final Map<TaskTypeUser, TaskProperties> changed = new HashMap<>();
+    /**
+     * An entry was evicted since the last full recomputation, tasks of that pair may still be waiting and further
+     * changes to its properties would go unnoticed
+     */
+    private boolean evictedSinceFullRecomputation;
+    /**
+     * Too many changes to be tracked, next refresh will ask for a full recomputation
+     */
+    private boolean trackingOverflow;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param delegate the actual function
+     * @param maxSize max number of cached (tasktype, userid) pairs
+     * @param ttl time-to-live of each entry, in milliseconds
+     */
+    public CachingTaskPropertiesMapperFunction(TaskPropertiesMapperFunction delegate, int maxSize, long ttl) {
+        this(delegate, maxSize, ttl, System::currentTimeMillis);
+    }
+
+    CachingTaskPropertiesMapperFunction(TaskPropertiesMapperFunction delegate, int maxSize, long ttl, LongSupplier clock) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("invalid maxSize " + maxSize);
+        }
+        this.delegate = delegate;
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        this.clock = clock;
+        this.cache = new LinkedHashMap<TaskTypeUser, CachedProperties>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<TaskTypeUser, CachedProperties> eldest) {
+                if (size() <= CachingTaskPropertiesMapperFunction.this.maxSize) {
+                    return false;
+                }
+                evictedSinceFullRecomputation = true;
+                return true;
+            }
+        };
+    }
+
+    public TaskPropertiesMapperFunction getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public TaskProperties getTaskProperties(long taskid, String taskType, String userid) {
+        TaskTypeUser key = new TaskTypeUser(taskType, userid);
+        long now = clock.getAsLong();
+        synchronized (this) {
+            CachedProperties cached = cache.get(key);
+            if (cached != null && !isExpired(cached, now)) {
+                hits++;
+                return cached.properties;
+            }
+            misses++;
+        }
+        // the delegate is invoked outside the lock
+        TaskProperties properties = delegate.getTaskProperties(taskid, taskType, userid);
+        synchronized (this) {
+            store(key, properties, taskid, now);
+        }
+        return properties;
+    }
+
+    /**
+     * Forces the reload of the properties of a given (tasktype, userid) pair
+     *
+     * @param taskType
+     * @param userid
+     */
+    public synchronized void invalidate(String taskType, String userid) {
+        CachedProperties cached = cache.get(new TaskTypeUser(taskType, userid));
+        if (cached != null) {
+            cached.loadTimestamp = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Forces the reload of the properties of every pair which refers to the given user
+     *
+     * @param userid
+     */
+    public synchronized void invalidateUser(String userid) {
+        for (Map.Entry<TaskTypeUser, CachedProperties> entry : cache.entrySet()) {
+            if (entry.getKey().userId.equals(userid)) {
+                entry.getValue().loadTimestamp = Long.MIN_VALUE;
+            }
+        }
+    }
+
+    /**
+     * Forces the reload of every entry
+     */
+    public synchronized void invalidateAll() {
+        for (CachedProperties cached : cache.values()) {
+            cached.loadTimestamp = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Reloads every expired or invalidated entry and returns the pairs whose properties changed since the last
+     * refresh, together with the new properties.
+     *
+     * @return the changed pairs, or null if changes could not be tracked (too many changes or evicted entries) and
+     * every task has to be mapped again
+     */
+    public Map<TaskTypeUser, TaskProperties> refresh() {
+        long now = clock.getAsLong();
+        List<Map.Entry<TaskTypeUser, CachedProperties>> toReload = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<TaskTypeUser, CachedProperties> entry : cache.entrySet()) {
+                if (isExpired(entry.getValue(), now)) {
+                    toReload.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+                }
+            }
+        }
+        for (Map.Entry<TaskTypeUser, CachedProperties> entry : toReload) {
+            TaskTypeUser key = entry.getKey();
+            CachedProperties previous = entry.getValue();
+            TaskProperties properties = delegate.getTaskProperties(previous.taskid, key.taskType, key.userId);
+            synchronized (this) {
+                if (cache.containsKey(key)) {
+                    store(key, properties, previous.taskid, now);
+                }
+            }
+        }
+        synchronized (this) {
+            if (trackingOverflow || evictedSinceFullRecomputation) {
+                trackingOverflow = false;
+                evictedSinceFullRecomputation = false;
+                changed.clear();
+                return null;
+            }
+            Map<TaskTypeUser, TaskProperties> result = new HashMap<>(changed);
+            changed.clear();
+            return result;
+        }
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private boolean isExpired(CachedProperties cached, long now) {
+        return cached.loadTimestamp == Long.MIN_VALUE || now - cached.loadTimestamp >= ttl;
+    }
+
+    private void store(TaskTypeUser key, TaskProperties properties, long taskid, long now) {
+        CachedProperties previous = cache.put(key, new CachedProperties(properties, taskid, now));
+        if (previous != null && !sameProperties(previous.properties, properties)) {
+            trackChanged(key, properties);
+        }
+    }
+
+    private void trackChanged(TaskTypeUser key, TaskProperties properties) {
+        if (trackingOverflow) {
+            return;
+        }
+        if (changed.size() >= maxSize && !changed.containsKey(key)) {
+            trackingOverflow = true;
+            changed.clear();
+            return;
+        }
+        changed.put(key, properties);
+    }
+
+    private static boolean sameProperties(TaskProperties a, TaskProperties b) {
+        return a.groupId == b.groupId && Arrays.equals(a.resources, b.resources);
+    }
+
+}
@@ -0,0 +1,257 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores the slots of the heap in parallel columns of primitive values. Users and resource lists are stored as
+ * references to dictionaries, 0 always means 'null'. On-heap columns are backed by plain primitive arrays, off-heap
+ * columns by direct buffers. Users come and go, so the entries of the users dictionary are reference counted and
+ * recycled as soon as no slot refers to them.
+ *
+ * @author enrico.olivelli
+ */
+final class ColumnarTasksHeapStorage extends TasksHeapStorage {
+
+    private final boolean offHeap;
+    private int capacity;
+    private LongBuffer taskids;
+    private IntBuffer tasktypes;
+    private IntBuffer groups;
+    private IntBuffer users;
+    private IntBuffer resources;
+
+    private final Map<String, Integer> usersDictionary = new HashMap<>();
+    private final List<String> usersById = new ArrayList<>();
+    /**
+     * Number of slots referring to each user, updated only while holding the exclusive lock of the heap
+     */
+    private int[] usersReferences = new int[16];
+    private final Deque<Integer> freeUserIds = new ArrayDeque<>();
+    // resource lists are pooled by the TasksHeap, so we can use reference equality
+    private final Map<int[], Integer> resourcesDictionary = new IdentityHashMap<>();
+    private final List<int[]> resourcesById = new ArrayList<>();
+
+    ColumnarTasksHeapStorage(int size, boolean offHeap) {
+        this.offHeap = offHeap;
+        this.capacity = size;
+        this.taskids = allocateLongs(size);
+        this.tasktypes = allocateInts(size);
+        this.groups = allocateInts(size);
+        this.users = allocateInts(size);
+        this.resources = allocateInts(size);
+        this.usersById.add(null);
+        this.resourcesById.add(null);
+    }
+
+    private LongBuffer allocateLongs(int size) {
+        if (offHeap) {
+            return ByteBuffer.allocateDirect(size * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+        } else {
+            return LongBuffer.wrap(new long[size]);
+        }
+    }
+
+    private IntBuffer allocateInts(int size) {
+        if (offHeap) {
+            return ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        } else {
+            return IntBuffer.wrap(new int[size]);
+        }
+    }
+
+    private IntBuffer copy(IntBuffer source, int newCapacity) {
+        IntBuffer res = allocateInts(newCapacity);
+        int preserved = Math.min(capacity, newCapacity);
+        for (int i = 0; i < preserved; i++) {
+            res.put(i, source.get(i));
+        }
+        return res;
+    }
+
+    @Override
+    int capacity() {
+        return capacity;
+    }
+
+    @Override
+    void resize(int newCapacity) {
+        for (int i = newCapacity; i < capacity; i++) {
+            setUser(i, 0);
+        }
+        LongBuffer newTaskids = allocateLongs(newCapacity);
+        int preserved = Math.min(capacity, newCapacity);
+        for (int i = 0; i < preserved; i++) {
+            newTaskids.put(i, taskids.get(i));
+        }
+        this.taskids = newTaskids;
+        this.tasktypes = copy(tasktypes, newCapacity);
+        this.groups = copy(groups, newCapacity);
+        this.users = copy(users, newCapacity);
+        this.resources = copy(resources, newCapacity);
+        this.capacity = newCapacity;
+    }
+
+    private int internUser(String userid) {
+        if (userid == null) {
+            return 0;
+        }
+        Integer id = usersDictionary.get(userid);
+        if (id == null) {
+            id = freeUserIds.poll();
+            if (id == null) {
+                id = usersById.size();
+                usersById.add(userid);
+                if (id == usersReferences.length) {
+                    usersReferences = Arrays.copyOf(usersReferences, id * 2);
+                }
+            } else {
+                usersById.set(id, userid);
+            }
+            usersDictionary.put(userid, id);
+        }
+        return id;
+    }
+
+    private void setUser(int position, int id) {
+        int previous = users.get(position);
+        if (previous == id) {
+            return;
+        }
+        if (id != 0) {
+            usersReferences[id]++;
+        }
+        users.put(position, id);
+        if (previous != 0 && --usersReferences[previous] == 0) {
+            usersDictionary.remove(usersById.get(previous));
+            usersById.set(previous, null);
+            freeUserIds.push(previous);
+        }
+    }
+
+    /**
+     * @return number of distinct users referred by the slots
+     */
+    int getUsersCount() {
+        return usersDictionary.size();
+    }
+
+    private int internResources(int[] resourceList) {
+        if (resourceList == null) {
+            return 0;
+        }
+        Integer id = resourcesDictionary.get(resourceList);
+        if (id == null) {
+            id = resourcesById.size();
+            resourcesById.add(resourceList);
+            resourcesDictionary.put(resourceList, id);
+        }
+        return id;
+    }
+
+    @Override
+    long getTaskId(int position) {
+        return taskids.get(position);
+    }
+
+    @Override
+    int getTaskType(int position) {
+        return tasktypes.get(position);
+    }
+
+    @Override
+    int getGroupId(int position) {
+        return groups.get(position);
+    }
+
+    @Override
+    String getUserId(int position) {
+        return usersById.get(users.get(position));
+    }
+
+    @Override
+    int[] getResources(int position) {
+        return resourcesById.get(resources.get(position));
+    }
+
+    @Override
+    void set(int position, long taskid, int tasktype, String userid, int groupid, int[] resourceList) {
+        taskids.put(position, taskid);
+        tasktypes.put(position, tasktype);
+        setUser(position, internUser(userid));
+        groups.put(position, groupid);
+        resources.put(position, internResources(resourceList));
+    }
+
+    @Override
+    void setGroupAndResources(int position, int groupid, int[] resourceList) {
+        groups.put(position, groupid);
+        resources.put(position, internResources(resourceList));
+    }
+
+    @Override
+    void move(int from, int to) {
+        taskids.put(to, taskids.get(from));
+        tasktypes.put(to, tasktypes.get(from));
+        setUser(to, users.get(from));
+        groups.put(to, groups.get(from));
+        resources.put(to, resources.get(from));
+    }
+
+    /**
+     * The slot keeps its reference to the user, which is released by {@link #clear(int) } under the exclusive lock of
+     * the heap, because this method can be invoked concurrently
+     */
+    @Override
+    void clearTask(int position) {
+        taskids.put(position, 0);
+        tasktypes.put(position, 0);
+    }
+
+    @Override
+    void clear(int position) {
+        taskids.put(position, 0);
+        tasktypes.put(position, 0);
+        setUser(position, 0);
+        groups.put(position, 0);
+        resources.put(position, 0);
+    }
+
+    @Override
+    TasksHeap.TaskEntry getEntry(int position) {
+        long taskid = getTaskId(position);
+        // an empty slot may still refer to the user of the task which has been claimed
+        String userid = taskid != 0 ? getUserId(position) : null;
+        return new TasksHeap.TaskEntry(taskid, getTaskType(position), userid, getGroupId(position), getResources(position));
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the delayed tasks on a {@link DelayedTasksTimingWheel} and resumes them as soon as their start time is
+ * reached
+ *
+ * @author enrico.olivelli
+ */
+public class DelayedTasksScheduler {
+
+    private static final Logger LOGGER = Logger.getLogger(DelayedTasksScheduler.class.getName());
+
+    private final BrokerConfiguration configuration;
+    private final ScheduledExecutorService timer;
+    private final Broker broker;
+    private final DelayedTasksTimingWheel wheel;
+
+    public DelayedTasksScheduler(BrokerConfiguration configuration, Broker broker) {
+        this.configuration = configuration;
+        this.broker = broker;
+        this.wheel = new DelayedTasksTimingWheel(configuration.getDelayedTasksTickPeriod(), System.currentTimeMillis());
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "dodo-broker-delayed-tasks-thread");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public synchronized void schedule(long taskId, long startTime) {
+        wheel.schedule(taskId, startTime);
+    }
+
+    /**
+     * Moves the clock of the wheel to the given time, the broker may have been following the leader for a long time
+     *
+     * @param now
+     */
+    public synchronized void realign(long now) {
+        wheel.realign(now);
+    }
+
+    /**
+     * Removes from the wheel the tasks which are due
+     *
+     * @param now
+     * @param tasks receives the ids of the tasks
+     * @return the number of due tasks
+     */
+    public synchronized int takeDueTasks(long now, LongConsumer tasks) {
+        return wheel.advance(now, tasks);
+    }
+
+    public synchronized int size() {
+        return wheel.size();
+    }
+
+    public synchronized void forEach(DelayedTasksTimingWheel.EntryConsumer consumer) {
+        wheel.forEach(consumer);
+    }
+
+    private class Resumer implements Runnable {
+
+        @Override
+        public void run() {
+            if (broker.isStopped()) {
+                return;
+            }
+            try {
+                broker.resumeDelayedTasks();
+            } catch (LogNotAvailableException | RuntimeException error) {
+                LOGGER.log(Level.SEVERE, "error while resuming delayed tasks", error);
+            }
+        }
+
+    }
+
+    public void start() {
+        this.timer.scheduleWithFixedDelay(new Resumer(), configuration.getDelayedTasksTickPeriod(), configuration.getDelayedTasksTickPeriod(), TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        this.timer.shutdown();
+    }
+
+}
@@ -0,0 +1,293 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * Hierarchical timing wheel of delayed tasks. Only the id and the requested start time of each task are stored. Level
+ * 0 has a slot for each tick, every upper level has slots {@link #WHEEL_SIZE} times wider than the level below it;
+ * entries are moved down one level at a time as the time passes, so both scheduling and advancing cost O(1) per task.
+ * This class is not thread safe.
+ *
+ * @author enrico.olivelli
+ */
+public class DelayedTasksTimingWheel {
+
+    /**
+     * Number of slots of each level
+     */
+    public static final int WHEEL_SIZE = 512;
+
+    private static final int MAX_LEVELS = 8;
+    private static final int INITIAL_BUCKET_CAPACITY = 4;
+
+    /**
+     * Callback for {@link #forEach(majordodo.task.DelayedTasksTimingWheel.EntryConsumer)
+     * }
+     */
+    public interface EntryConsumer {
+
+        void accept(long taskId, long startTime);
+    }
+
+    private static final class Bucket {
+
+        private long[] taskIds = new long[INITIAL_BUCKET_CAPACITY];
+        private long[] startTimes = new long[INITIAL_BUCKET_CAPACITY];
+        private int size;
+
+        void add(long taskId, long startTime) {
+            if (size == taskIds.length) {
+                int newCapacity = size * 2;
+                taskIds = Arrays.copyOf(taskIds, newCapacity);
+                startTimes = Arrays.copyOf(startTimes, newCapacity);
+            }
+            taskIds[size] = taskId;
+            startTimes[size] = startTime;
+            size++;
+        }
+
+        void clear() {
+            size = 0;
+            if (taskIds.length > INITIAL_BUCKET_CAPACITY) {
+                // do not retain memory after bursts
+                taskIds = new long[INITIAL_BUCKET_CAPACITY];
+                startTimes = new long[INITIAL_BUCKET_CAPACITY];
+            }
+        }
+    }
+
+    private static final class Level {
+
+        private final long tick;
+        private final Bucket[] slots = new Bucket[WHEEL_SIZE];
+
+        Level(long tick) {
+            this.tick = tick;
+        }
+
+        Bucket slotFor(long time, boolean create) {
+            int index = (int) ((time / tick) % WHEEL_SIZE);
+            Bucket bucket = slots[index];
+            if (bucket == null && create) {
+                bucket = new Bucket();
+                slots[index] = bucket;
+            }
+            return bucket;
+        }
+    }
+
+    private final long tick;
+    private final List<Level> levels = new ArrayList<>();
+    private final Bucket due = new Bucket();
+    /**
+     * Every task whose start time is before this time has already been given back by {@link #advance(long, java.util.function.LongConsumer)
+     * }, always a multiple of the tick
+     */
+    private long currentTime;
+    private int size;
+
+    /**
+     * @param tick width of the slots of the lowest level, in milliseconds. It is the resolution of the wheel
+     * @param now initial time, in milliseconds
+     */
+    public DelayedTasksTimingWheel(long tick, long now) {
+        if (tick <= 0) {
+            throw new IllegalArgumentException("tick must be positive, not " + tick);
+        }
+        this.tick = tick;
+        this.currentTime = now - (now % tick);
+        this.levels.add(new Level(tick));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long getCurrentTime() {
+        return currentTime;
+    }
+
+    /**
+     * Moves the wheel to the given time, which may be far away from the time of the last advance, as it happens when a
+     * follower becomes leader. Scheduled tasks are placed again, so this costs O(n)
+     *
+     * @param now
+     */
+    public void realign(long now) {
+        int count = size;
+        long[] taskIds = new long[count];
+        long[] startTimes = new long[count];
+        int[] index = new int[1];
+        forEach((taskId, startTime) -> {
+            taskIds[index[0]] = taskId;
+            startTimes[index[0]] = startTime;
+            index[0]++;
+        });
+        due.clear();
+        levels.clear();
+        levels.add(new Level(tick));
+        currentTime = now - (now % tick);
+        for (int i = 0; i < count; i++) {
+            place(taskIds[i], startTimes[i]);
+        }
+    }
+
+    /**
+     * Schedules a task. Tasks whose start time is already passed will be given back at the next call to {@link #advance(long, java.util.function.LongConsumer)
+     * }
+     *
+     * @param taskId
+     * @param startTime
+     */
+    public void schedule(long taskId, long startTime) {
+        place(taskId, startTime);
+        size++;
+    }
+
+    private void place(long taskId, long startTime) {
+        if (startTime < currentTime) {
+            due.add(taskId, startTime);
+            return;
+        }
+        for (int i = 0;; i++) {
+            Level level = level(i);
+            if (startTime / level.tick - currentTime / level.tick < WHEEL_SIZE) {
+                level.slotFor(startTime, true).add(taskId, startTime);
+                return;
+            }
+            if (i == MAX_LEVELS - 1 || level.tick > Long.MAX_VALUE / WHEEL_SIZE / WHEEL_SIZE) {
+                // too far in the future: park the task in the farthest slot of the top level, it will be placed again
+                // when that slot is reached
+                long farthest = (currentTime / level.tick + WHEEL_SIZE - 1) * level.tick;
+                level.slotFor(farthest, true).add(taskId, startTime);
+                return;
+            }
+        }
+    }
+
+    private Level level(int index) {
+        if (index == levels.size()) {
+            levels.add(new Level(levels.get(index - 1).tick * WHEEL_SIZE));
+        }
+        return levels.get(index);
+    }
+
+    /**
+     * Advances the wheel up to the given time, giving back every task whose start time is before it (with the
+     * resolution of the tick)
+     *
+     * @param now
+     * @param consumer receives the ids of the tasks which are due
+     * @return the number of tasks given back
+     */
+    public int advance(long now, LongConsumer consumer) {
+        int count = drain(due, consumer);
+        if (size == 0) {
+            // nothing to move, jump directly to the current tick
+            if (now - tick >= currentTime) {
+                currentTime = now - (now % tick);
+            }
+            return count;
+        }
+        while (currentTime + tick <= now) {
+            Bucket bucket = levels.get(0).slotFor(currentTime, false);
+            currentTime += tick;
+            if (bucket != null) {
+                count += drain(bucket, consumer);
+            }
+            for (int i = 1; i < levels.size(); i++) {
+                Level level = levels.get(i);
+                if (currentTime % level.tick != 0) {
+                    break;
+                }
+                Bucket upper = level.slotFor(currentTime, false);
+                if (upper != null && upper.size > 0) {
+                    cascade(upper);
+                }
+            }
+            count += drain(due, consumer);
+            if (size == 0) {
+                if (now - tick >= currentTime) {
+                    currentTime = now - (now % tick);
+                }
+                break;
+            }
+        }
+        return count;
+    }
+
+    private void cascade(Bucket bucket) {
+        int count = bucket.size;
+        long[] taskIds = bucket.taskIds;
+        long[] startTimes = bucket.startTimes;
+        bucket.size = 0;
+        bucket.taskIds = new long[INITIAL_BUCKET_CAPACITY];
+        bucket.startTimes = new long[INITIAL_BUCKET_CAPACITY];
+        for (int i = 0; i < count; i++) {
+            place(taskIds[i], startTimes[i]);
+        }
+    }
+
+    private int drain(Bucket bucket, LongConsumer consumer) {
+        int count = bucket.size;
+        if (count == 0) {
+            return 0;
+        }
+        long[] taskIds = bucket.taskIds;
+        for (int i = 0; i < count; i++) {
+            consumer.accept(taskIds[i]);
+        }
+        bucket.clear();
+        size -= count;
+        return count;
+    }
+
+    /**
+     * Visits every scheduled task, in no particular order
+     *
+     * @param consumer
+     */
+    public void forEach(EntryConsumer consumer) {
+        visit(due, consumer);
+        for (Level level : levels) {
+            for (Bucket bucket : level.slots) {
+                if (bucket != null) {
+                    visit(bucket, consumer);
+                }
+            }
+        }
+    }
+
+    private static void visit(Bucket bucket, EntryConsumer consumer) {
+        for (int i = 0; i < bucket.size; i++) {
+            consumer.accept(bucket.taskIds[i], bucket.startTimes[i]);
+        }
+    }
+
+}
@@ -19,23 +19,26 @@
  */
 package majordodo.task;
 
+import com.scurrilous.circe.checksum.Crc32cIntChecksum;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import io.netty.buffer.Unpooled;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
@@ -50,6 +53,8 @@ import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 import majordodo.utils.FileUtils;
+import majordodo.utils.io.ExtendedDataOutputStream;
+import majordodo.utils.io.VisibleByteArrayOutputStream;
 
 /**
  * Log data and snapshots are stored on the local disk. Suitable for single broker setups
@@ -83,72 +88,267 @@ public class FileCommitLog extends StatusChangesLog {
 
     private final static byte ENTRY_START = 13;
     private final static byte ENTRY_END = 25;
-
+    private final static int ENTRY_HEADER_SIZE = 1 + 8 + 4;
+
+    /* first bytes of a preallocated segment, whose entries end with a CRC32C checksum. Files without this header are in
+     * the legacy format */
+    private final static long SEGMENT_MAGIC_CHECKSUM = 0x4d4a44444c4f4732L;
+    private final static long INDEX_MAGIC = 0x4d4a4444494e4431L;
+    /* one every INDEX_INTERVAL entries is recorded in the index of the segment */
+    private final static int INDEX_INTERVAL = 1000;
+    private final static int SEGMENT_HEADER_SIZE = 8 + 8;
+    private final static int WRITE_BUFFER_SIZE = 64 * 1024;
+    private final static int MAX_RECYCLED_SEGMENTS = 2;
+
+    // used only by the spool thread
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final VisibleByteArrayOutputStream entryBuffer = new VisibleByteArrayOutputStream(1024);
+    private final ExtendedDataOutputStream entryOut = new ExtendedDataOutputStream(entryBuffer);
+
+    /**
+     * Writes a segment which has been preallocated (or recycled) with a size of maxLogFileSize, so that a data-only sync
+     * does not need to update the metadata of the file. The unwritten tail of the segment is filled with zeros.
+     */
     private class CommitFileWriter implements AutoCloseable {
 
         final long ledgerId;
         long sequenceNumber;
-        FileOutputStream fOut;
-        DataOutputStream out;
+        FileChannel channel;
         Path filename;
+        final List<long[]> index = new ArrayList<>();
+        int entries;
 
         private CommitFileWriter(long ledgerId, long sequenceNumber) throws IOException {
             this.ledgerId = ledgerId;
             this.sequenceNumber = sequenceNumber;
             filename = logDirectory.resolve(String.format("%016x", ledgerId) + LOGFILEEXTENSION).toAbsolutePath();
-            // in case of IOException the stream is not opened, not need to close it
             LOGGER.log(Level.INFO, "starting new file {0} ", filename);
-            File file = filename.toFile();
-            if (file.isFile()) {
-                throw new IOException("File " + file.getAbsolutePath() + " already exists");
+            if (Files.exists(filename)) {
+                throw new IOException("File " + filename + " already exists");
+            }
+            this.channel = openSegment(filename);
+            try {
+                writeBuffer.clear();
+                writeBuffer.putLong(SEGMENT_MAGIC_CHECKSUM);
+                writeBuffer.putLong(ledgerId);
+                flushBuffer();
+                // an idle broker would not sync the segment until the first edit
+                channel.force(false);
+            } catch (IOException err) {
+                channel.close();
+                throw err;
             }
-            this.fOut = new FileOutputStream(file);
-            this.out = new DataOutputStream(
-                new BufferedOutputStream(
-                    this.fOut
-                )
-            );
-            writtenBytes = 0;
+            writtenBytes = SEGMENT_HEADER_SIZE;
         }
 
         public void writeEntry(long seqnumber, StatusEdit edit) throws IOException {
-            byte[] serialize = edit.serialize();
-            this.out.writeByte(ENTRY_START);
-            this.out.writeLong(seqnumber);
-            this.out.writeInt(serialize.length);
-            this.out.write(serialize);
-            this.out.writeByte(ENTRY_END);
-            writtenBytes += (1 + 8 + 4 + serialize.length + 1);
+            if (entries++ % INDEX_INTERVAL == 0) {
+                index.add(new long[]{seqnumber, writtenBytes});
+            }
+            entryBuffer.reset();
+            entryOut.writeByte(ENTRY_START);
+            entryOut.writeLong(seqnumber);
+            // the length is patched as soon as the edit has been serialized
+            entryOut.writeInt(0);
+            edit.serialize(entryOut);
+            int len = entryBuffer.size() - ENTRY_HEADER_SIZE;
+            ByteBuffer header = ByteBuffer.wrap(entryBuffer.getBuffer());
+            header.putInt(1 + 8, len);
+            entryOut.writeInt(checksum(entryBuffer.getBuffer(), 1, ENTRY_HEADER_SIZE - 1 + len));
+            entryOut.writeByte(ENTRY_END);
+            int size = entryBuffer.size();
+            ByteBuffer entry = ByteBuffer.wrap(entryBuffer.getBuffer(), 0, size);
+            if (writeBuffer.remaining() < size) {
+                flushBuffer();
+            }
+            if (size > writeBuffer.capacity()) {
+                while (entry.hasRemaining()) {
+                    channel.write(entry);
+                }
+            } else {
+                writeBuffer.put(entry);
+            }
+            writtenBytes += size;
+        }
+
+        private void flushBuffer() throws IOException {
+            writeBuffer.flip();
+            while (writeBuffer.hasRemaining()) {
+                channel.write(writeBuffer);
+            }
+            writeBuffer.clear();
         }
 
         public void synch() throws IOException {
-            this.out.flush();
-            this.fOut.getFD().sync();
+            flushBuffer();
+            // the file has been preallocated, there is no need to sync metadata
+            channel.force(false);
+        }
+
+        /**
+         * Writes the index of the segment. The index is only an hint for recovery, so it is not synched: a missing or
+         * invalid index leads to a full scan of the segment
+         */
+        private void writeIndex() throws IOException {
+            Path indexfilename = indexFile(logDirectory, ledgerId);
+            Path indexfilename_tmp = indexfilename.resolveSibling(indexfilename.getFileName() + ".tmp");
+            VisibleByteArrayOutputStream buffer = new VisibleByteArrayOutputStream(32 + index.size() * 16);
+            try (ExtendedDataOutputStream out = new ExtendedDataOutputStream(buffer)) {
+                out.writeLong(INDEX_MAGIC);
+                out.writeLong(ledgerId);
+                out.writeLong(sequenceNumber);
+                out.writeInt(index.size());
+                for (long[] position : index) {
+                    out.writeLong(position[0]);
+                    out.writeLong(position[1]);
+                }
+                out.writeInt(checksum(buffer.getBuffer(), 0, buffer.size()));
+            }
+            Files.write(indexfilename_tmp, buffer.toByteArray());
+            Files.move(indexfilename_tmp, indexfilename, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
         }
 
         @Override
         public void close() throws LogNotAvailableException {
             try {
-                out.close();
-                fOut.close();
+                try {
+                    flushBuffer();
+                    writeIndex();
+                } finally {
+                    channel.close();
+                }
             } catch (IOException err) {
                 throw new LogNotAvailableException(err);
             }
         }
     }
 
+    private static int checksum(byte[] data, int offset, int len) {
+        return Crc32cIntChecksum.computeChecksum(Unpooled.wrappedBuffer(data, offset, len));
+    }
+
+    private static Path indexFile(Path logDirectory, long ledgerId) {
+        return logDirectory.resolve(String.format("%016x", ledgerId) + INDEXFILEEXTENSION);
+    }
+
+    /**
+     * Looks for the position of the first entry to be read in order to recover entries after the given sequence
+     * number, using the index of the segment
+     *
+     * @return the offset of an entry whose sequence number is not greater than the given one, or -1 if the index is
+     * not available
+     */
+    private long findStartOffset(long ledgerId, long sequenceNumber) {
+        Path indexfilename = indexFile(logDirectory, ledgerId);
+        if (!Files.isRegularFile(indexfilename)) {
+            return -1;
+        }
+        try {
+            byte[] data = Files.readAllBytes(indexfilename);
+            if (data.length < 32
+                || checksum(data, 0, data.length - 4) != ByteBuffer.wrap(data, data.length - 4, 4).getInt()) {
+                LOGGER.log(Level.SEVERE, "invalid index file {0}, ignoring", indexfilename);
+                return -1;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            if (buffer.getLong() != INDEX_MAGIC || buffer.getLong() != ledgerId) {
+                LOGGER.log(Level.SEVERE, "invalid index file {0}, ignoring", indexfilename);
+                return -1;
+            }
+            buffer.getLong();
+            int count = buffer.getInt();
+            long offset = -1;
+            for (int i = 0; i < count; i++) {
+                long seq = buffer.getLong();
+                long position = buffer.getLong();
+                if (seq > sequenceNumber) {
+                    break;
+                }
+                offset = position;
+            }
+            return offset;
+        } catch (IOException | RuntimeException err) {
+            LOGGER.log(Level.SEVERE, "cannot read index file " + indexfilename + ", ignoring", err);
+            return -1;
+        }
+    }
+
+    private FileChannel openSegment(Path filename) throws IOException {
+        Path recycled = takeRecycledSegment();
+        if (recycled != null) {
+            LOGGER.log(Level.INFO, "reusing recycled segment {0} for {1}", new Object[]{recycled, filename});
+            Files.move(recycled, filename, StandardCopyOption.ATOMIC_MOVE);
+            return FileChannel.open(filename, StandardOpenOption.WRITE);
+        }
+        FileChannel channel = FileChannel.open(filename, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            fillWithZeros(channel, maxLogFileSize);
+        } catch (IOException err) {
+            channel.close();
+            throw err;
+        }
+        return channel;
+    }
+
+    private Path takeRecycledSegment() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(logDirectory, "*" + RECYCLEDFILEEXTENSION)) {
+            for (Path path : stream) {
+                return path;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Keeps a segment which is no more needed in order to reuse it for a new ledger. The old entries are overwritten
+     * with zeros, so that they cannot be mistaken for entries of the new ledger during recovery
+     */
+    private void recycleSegment(Path segment, long ledgerId) throws IOException {
+        Files.deleteIfExists(indexFile(logDirectory, ledgerId));
+        int count = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(logDirectory, "*" + RECYCLEDFILEEXTENSION)) {
+            for (Path path : stream) {
+                count++;
+            }
+        }
+        if (count >= MAX_RECYCLED_SEGMENTS) {
+            Files.deleteIfExists(segment);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(maxLogFileSize);
+            fillWithZeros(channel, maxLogFileSize);
+        }
+        Path recycled = logDirectory.resolve(String.format("%016x", ledgerId) + RECYCLEDFILEEXTENSION);
+        Files.move(segment, recycled, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void fillWithZeros(FileChannel channel, long size) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        long position = 0;
+        while (position < size) {
+            zeros.clear();
+            if (size - position < zeros.capacity()) {
+                zeros.limit((int) (size - position));
+            }
+            position += channel.write(zeros, position);
+        }
+        channel.force(true);
+        channel.position(0);
+    }
+
     protected Path getCurrentLedgerFilePath() {
         return writer.filename;
     }
     
-    private static final class StatusEditWithSequenceNumber {
+    private static final class EntryWithSequenceNumber {
 
         LogSequenceNumber logSequenceNumber;
-        StatusEdit statusEdit;
+        byte[] data;
 
-        public StatusEditWithSequenceNumber(LogSequenceNumber logSequenceNumber, StatusEdit statusEdit) {
+        public EntryWithSequenceNumber(LogSequenceNumber logSequenceNumber, byte[] data) {
             this.logSequenceNumber = logSequenceNumber;
-            this.statusEdit = statusEdit;
+            this.data = data;
         }
 
     }
@@ -158,38 +358,102 @@ public class FileCommitLog extends StatusChangesLog {
         DataInputStream in;
         long ledgerId;
         boolean lastFile;
-
-        private CommitFileReader(long ledgerId, boolean lastFile) throws IOException {
+        /* preallocated segments are the only ones with checksums */
+        boolean preallocated;
+        /* the header was never written, the broker crashed while creating the segment */
+        boolean emptySegment;
+        long fileSize;
+        final byte[] header = new byte[ENTRY_HEADER_SIZE];
+
+        private CommitFileReader(long ledgerId, boolean lastFile, long startOffset) throws IOException {
             this.ledgerId = ledgerId;
+            this.lastFile = lastFile;
             Path filename = logDirectory.resolve(String.format("%016x", ledgerId) + LOGFILEEXTENSION);
             // in case of IOException the stream is not opened, not need to close it
-            this.in = new DataInputStream(Files.newInputStream(filename, StandardOpenOption.READ));
+            FileChannel channel = FileChannel.open(filename, StandardOpenOption.READ);
+            try {
+                this.fileSize = channel.size();
+                ByteBuffer segmentHeader = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+                while (segmentHeader.hasRemaining() && channel.read(segmentHeader) >= 0) {
+                }
+                segmentHeader.flip();
+                long position = 0;
+                if (lastFile && isZeroFilled(segmentHeader)) {
+                    // the broker stopped before the header of a new segment reached the disk, so nothing was acked
+                    LOGGER.log(Level.SEVERE, "file {0} has no header, it is an empty segment", filename);
+                    emptySegment = true;
+                    preallocated = true;
+                } else if (segmentHeader.hasRemaining() && segmentHeader.get(0) != ENTRY_START) {
+                    long magic = segmentHeader.remaining() == SEGMENT_HEADER_SIZE ? segmentHeader.getLong() : 0;
+                    if (magic != SEGMENT_MAGIC_CHECKSUM) {
+                        throw new IOException("file " + filename + " is not a valid log segment");
+                    }
+                    long segmentLedgerId = segmentHeader.getLong();
+                    if (segmentLedgerId != ledgerId) {
+                        throw new IOException("file " + filename + " contains ledger " + segmentLedgerId);
+                    }
+                    preallocated = true;
+                    position = SEGMENT_HEADER_SIZE;
+                    if (startOffset > SEGMENT_HEADER_SIZE) {
+                        LOGGER.log(Level.INFO, "skipping to offset {0} of file {1}", new Object[]{startOffset, filename});
+                        position = startOffset;
+                    }
+                }
+                channel.position(position);
+            } catch (IOException err) {
+                channel.close();
+                throw err;
+            }
+            this.in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), WRITE_BUFFER_SIZE));
+        }
+
+        private boolean isZeroFilled(ByteBuffer segmentHeader) {
+            if (!segmentHeader.hasRemaining()) {
+                return false;
+            }
+            for (int i = segmentHeader.position(); i < segmentHeader.limit(); i++) {
+                if (segmentHeader.get(i) != 0) {
+                    return false;
+                }
+            }
+            return true;
         }
 
-        public StatusEditWithSequenceNumber nextEntry() throws IOException {
+        public EntryWithSequenceNumber nextEntry() throws IOException {
             byte entryStart;
             try {
                 entryStart = in.readByte();
             } catch (EOFException okEnd) {
                 return null;
             }
+            if (entryStart == 0 && preallocated) {
+                // end of the written part of the segment
+                return null;
+            }
             try {
                 if (entryStart != ENTRY_START) {
                     throw new IOException("corrupted stream");
                 }
                 long seqNumber = this.in.readLong();
                 int len = this.in.readInt();
+                if (len < 0 || len > fileSize) {
+                    return unfinishedEntry();
+                }
                 byte[] data = new byte[len];
-                int rr = this.in.read(data);
-                if (rr != data.length) {
-                    return null;
+                this.in.readFully(data);
+                if (preallocated) {
+                    int expected = this.in.readInt();
+                    ByteBuffer.wrap(header).put(entryStart).putLong(seqNumber).putInt(len);
+                    int actual = Crc32cIntChecksum.resumeChecksum(checksum(header, 1, ENTRY_HEADER_SIZE - 1), Unpooled.wrappedBuffer(data));
+                    if (actual != expected) {
+                        return unfinishedEntry();
+                    }
                 }
                 int entryEnd = this.in.readByte();
                 if (entryEnd != ENTRY_END) {
-                    throw new IOException("corrupted stream");
+                    return unfinishedEntry();
                 }
-                StatusEdit edit = StatusEdit.read(data);
-                return new StatusEditWithSequenceNumber(new LogSequenceNumber(ledgerId, seqNumber), edit);
+                return new EntryWithSequenceNumber(new LogSequenceNumber(ledgerId, seqNumber), data);
             } catch (EOFException truncatedLog) {
                 // if we hit EOF the entry has not been written, and so not acked, we can ignore it and say that the file is finished
                 // it is important that this is the last file in the set
@@ -202,6 +466,15 @@ public class FileCommitLog extends StatusChangesLog {
             }
         }
 
+        private EntryWithSequenceNumber unfinishedEntry() throws IOException {
+            // in a preallocated segment a torn write is followed by zeros and not by EOF
+            if (preallocated && lastFile) {
+                LOGGER.log(Level.SEVERE, "found unfinished entry in file " + this.ledgerId + ". entry was not acked. ignoring");
+                return null;
+            }
+            throw new IOException("corrupted stream");
+        }
+
         public void close() throws IOException {
             in.close();
         }
@@ -212,6 +485,8 @@ public class FileCommitLog extends StatusChangesLog {
         try {
             if (writer != null) {
                 LOGGER.log(Level.SEVERE, "closing actual file {0}", writer.filename);
+                // entries already written to this file are going to be acked by the next group commit
+                writer.synch();
                 writer.close();
             }
             ensureDirectories();
@@ -236,36 +511,38 @@ public class FileCommitLog extends StatusChangesLog {
 
         @Override
         public void run() {
+            List<StatusEditHolderFuture> doneEntries = new ArrayList<>();
             try {
                 openNewLedger();
-                int count = 0;
-                List<StatusEditHolderFuture> doneEntries = new ArrayList<>();
                 while (!closed || !writeQueue.isEmpty()) {
                     StatusEditHolderFuture entry = writeQueue.poll(MAX_SYNCH_TIME, TimeUnit.MILLISECONDS);
-                    boolean timedOut = false;
-                    if (entry != null) {
+                    if (entry == null) {
+                        continue;
+                    }
+                    // group commit: every batch which has been enqueued while we were writing
+                    // or waiting for the previous fsync shares the next fsync
+                    int count = 0;
+                    while (entry != null) {
                         writeEntry(entry);
                         doneEntries.add(entry);
-                        count++;
-                    } else {
-                        timedOut = true;
+                        count += entry.entries.size();
+                        entry = count < MAX_UNSYNCHED_BATCH ? writeQueue.poll() : null;
                     }
-                    if (timedOut || count >= MAX_UNSYNCHED_BATCH) {
-                        count = 0;
-                        if (!doneEntries.isEmpty()) {
-                            synch();
-                            for (StatusEditHolderFuture e : doneEntries) {
-                                if (e.synch) {
-                                    e.synchDone();
-                                }
-                            }
-                            doneEntries.clear();
-                        }
-
+                    synch();
+                    for (StatusEditHolderFuture e : doneEntries) {
+                        e.synchDone();
                     }
+                    doneEntries.clear();
                 }
             } catch (Throwable t) {
-                LOGGER.log(Level.SEVERE, "general commit log failure on " + FileCommitLog.this.logDirectory);
+                LOGGER.log(Level.SEVERE, "general commit log failure on " + FileCommitLog.this.logDirectory, t);
+                failure = t;
+                closed = true;
+                // nothing of the current group commit can be acked
+                for (StatusEditHolderFuture e : doneEntries) {
+                    e.fail(t);
+                }
+                failPendingEntries();
             }
         }
 
@@ -273,39 +550,33 @@ public class FileCommitLog extends StatusChangesLog {
 
     private static class StatusEditHolderFuture {
 
-        final CompletableFuture<LogSequenceNumber> ack = new CompletableFuture<>();
-        final StatusEdit entry;
-        LogSequenceNumber sequenceNumber;
+        final CompletableFuture<List<LogSequenceNumber>> ack = new CompletableFuture<>();
+        final List<StatusEdit> entries;
+        final List<LogSequenceNumber> sequenceNumbers;
         Throwable error;
-        final boolean synch;
 
-        public StatusEditHolderFuture(StatusEdit entry, boolean synch) {
-            this.entry = entry;
-            this.synch = synch;
+        public StatusEditHolderFuture(List<StatusEdit> entries) {
+            this.entries = entries;
+            this.sequenceNumbers = new ArrayList<>(entries.size());
         }
 
         public void error(Throwable error) {
             this.error = error;
-            if (!synch) {
-                synchDone();
-            }
+        }
+
+        public void fail(Throwable error) {
+            ack.completeExceptionally(error);
         }
 
         public void done(LogSequenceNumber sequenceNumber) {
-            this.sequenceNumber = sequenceNumber;
-            if (!synch) {
-                synchDone();
-            }
+            this.sequenceNumbers.add(sequenceNumber);
         }
 
         private void synchDone() {
-            if (sequenceNumber == null && error == null) {
-                throw new IllegalStateException();
-            }
             if (error != null) {
                 ack.completeExceptionally(error);
             } else {
-                ack.complete(sequenceNumber);
+                ack.complete(sequenceNumbers);
             }
         }
 
@@ -313,26 +584,29 @@ public class FileCommitLog extends StatusChangesLog {
 
     private void writeEntry(StatusEditHolderFuture entry) {
         try {
-            CommitFileWriter writer = this.writer;
+            for (StatusEdit edit : entry.entries) {
+                CommitFileWriter writer = this.writer;
 
-            if (writer == null) {
-                throw new IOException("not yet writable");
-            }
+                if (writer == null) {
+                    throw new IOException("not yet writable");
+                }
 
-            long newSequenceNumber = ++writer.sequenceNumber;
-            writer.writeEntry(newSequenceNumber, entry.entry);
+                long newSequenceNumber = ++writer.sequenceNumber;
+                writer.writeEntry(newSequenceNumber, edit);
 
-            if (writtenBytes > maxLogFileSize) {
-                openNewLedger();
-            }
+                if (writtenBytes > maxLogFileSize) {
+                    openNewLedger();
+                }
 
-            entry.done(new LogSequenceNumber(writer.ledgerId, newSequenceNumber));
+                entry.done(new LogSequenceNumber(writer.ledgerId, newSequenceNumber));
+            }
         } catch (IOException | LogNotAvailableException err) {
             entry.error(err);
         }
     }
 
-    private void synch() throws IOException {
+    /* overridden by tests */
+    void synch() throws IOException {
         if (writer == null) {
             return;
         }
@@ -341,17 +615,27 @@ public class FileCommitLog extends StatusChangesLog {
 
     @Override
     public LogSequenceNumber logStatusEdit(StatusEdit edit) throws LogNotAvailableException {
-        return logStatusEdit(edit, true);
+        return logStatusEditBatch(Collections.singletonList(edit)).get(0);
     }
 
-    private LogSequenceNumber logStatusEdit(StatusEdit edit, boolean synch) throws LogNotAvailableException {
+    @Override
+    public List<LogSequenceNumber> logStatusEditBatch(List<StatusEdit> edits) throws LogNotAvailableException {
 
         if (LOGGER.isLoggable(Level.FINEST)) {
-            LOGGER.log(Level.FINEST, "log {0}", edit);
+            LOGGER.log(Level.FINEST, "log {0}", edits);
         }
-        StatusEditHolderFuture future = new StatusEditHolderFuture(edit, synch);
+        Throwable failure = this.failure;
+        if (failure != null) {
+            throw new LogNotAvailableException(failure);
+        }
+        // the whole batch is written by the spool thread in one shot and acked after a single fsync
+        StatusEditHolderFuture future = new StatusEditHolderFuture(edits);
         try {
             writeQueue.put(future);
+            if (this.failure != null) {
+                // the spool thread may have died after our check, nobody else is going to process the entry
+                failPendingEntries();
+            }
             return future.ack.get();
         } catch (InterruptedException err) {
             Thread.currentThread().interrupt();
@@ -361,15 +645,12 @@ public class FileCommitLog extends StatusChangesLog {
         }
     }
 
-    @Override
-    public List<LogSequenceNumber> logStatusEditBatch(List<StatusEdit> edits) throws LogNotAvailableException {
-        List<LogSequenceNumber> res = new ArrayList<>();
-        int size = edits.size();
-        for (int i = 0; i < size; i++) {
-            boolean synchLast = i == size - 1;
-            res.add(logStatusEdit(edits.get(i), synchLast));
+    private void failPendingEntries() {
+        StatusEditHolderFuture entry = writeQueue.poll();
+        while (entry != null) {
+            entry.fail(failure);
+            entry = writeQueue.poll();
         }
-        return res;
     }
 
     @Override
@@ -391,31 +672,51 @@ public class FileCommitLog extends StatusChangesLog {
             }
             names.sort(Comparator.comparing(Path::toString));
             final Path last = names.isEmpty() ? null : names.get(names.size() - 1);
-
             for (Path p : names) {
-                boolean lastFile = p.equals(last);
-
-                LOGGER.log(Level.SEVERE, "logfile is {0}, lastFile {1}", new Object[]{p.toAbsolutePath(), lastFile});
-
-                String name = (p.getFileName() + "").replace(LOGFILEEXTENSION, "");
-                long ledgerId = Long.parseLong(name, 16);
+                long ledgerId = ledgerIdFromFileName(p);
                 if (ledgerId > currentLedgerId) {
                     currentLedgerId = ledgerId;
                 }
-                try (CommitFileReader reader = new CommitFileReader(ledgerId, lastFile)) {
-                    StatusEditWithSequenceNumber n = reader.nextEntry();
-                    while (n != null) {
-
-                        if (n.logSequenceNumber.after(snapshotSequenceNumber)) {
-                            LOGGER.log(Level.FINE, "RECOVER ENTRY {0}, {1}", new Object[]{n.logSequenceNumber, n.statusEdit});
-                            consumer.accept(n.logSequenceNumber, n.statusEdit);
-                        } else {
-                            LOGGER.log(Level.FINE, "SKIP ENTRY {0}, {1}", new Object[]{n.logSequenceNumber, n.statusEdit});
+            }
+
+            new LogRecoveryPipeline("commitlog-" + logDirectory.getFileName()).run((sink) -> {
+                for (Path p : names) {
+                    boolean lastFile = p.equals(last);
+
+                    LOGGER.log(Level.SEVERE, "logfile is {0}, lastFile {1}", new Object[]{p.toAbsolutePath(), lastFile});
+
+                    long ledgerId = ledgerIdFromFileName(p);
+                    if (ledgerId < snapshotSequenceNumber.ledgerId) {
+                        // every entry of this file is already in the snapshot
+                        LOGGER.log(Level.SEVERE, "skipping logfile {0}, snapshot is at {1}", new Object[]{p.toAbsolutePath(), snapshotSequenceNumber});
+                        continue;
+                    }
+                    long startOffset = -1;
+                    if (ledgerId == snapshotSequenceNumber.ledgerId) {
+                        startOffset = findStartOffset(ledgerId, snapshotSequenceNumber.sequenceNumber);
+                    }
+                    boolean emptySegment;
+                    try (CommitFileReader reader = new CommitFileReader(ledgerId, lastFile, startOffset)) {
+                        emptySegment = reader.emptySegment;
+                        EntryWithSequenceNumber n = reader.nextEntry();
+                        while (n != null) {
+
+                            if (n.logSequenceNumber.after(snapshotSequenceNumber)) {
+                                LOGGER.log(Level.FINE, "RECOVER ENTRY {0}", n.logSequenceNumber);
+                                sink.accept(n.logSequenceNumber, n.data);
+                            } else {
+                                LOGGER.log(Level.FINE, "SKIP ENTRY {0}", n.logSequenceNumber);
+                            }
+                            n = reader.nextEntry();
                         }
-                        n = reader.nextEntry();
+                    }
+                    if (emptySegment) {
+                        // a new ledger is going to be opened, the segment must not stay in the middle of the log
+                        LOGGER.log(Level.SEVERE, "deleting empty segment {0}", p.toAbsolutePath());
+                        Files.delete(p);
                     }
                 }
-            }
+            }, consumer);
             LOGGER.log(Level.SEVERE, "Max ledgerId is {0}", new Object[]{currentLedgerId});
         } catch (IOException err) {
             throw new LogNotAvailableException(err);
@@ -461,6 +762,13 @@ public class FileCommitLog extends StatusChangesLog {
 
     private static final String LOGFILEEXTENSION = ".txlog";
 
+    private static long ledgerIdFromFileName(Path p) {
+        String name = (p.getFileName() + "").replace(LOGFILEEXTENSION, "");
+        return Long.parseLong(name, 16);
+    }
+    private static final String RECYCLEDFILEEXTENSION = ".txfree";
+    private static final String INDEXFILEEXTENSION = ".txidx";
+
     private Path writeSnapshotOnDisk(BrokerStatusSnapshot snapshotData) throws LogNotAvailableException {
         ensureDirectories();
         LogSequenceNumber actualLogSequenceNumber = snapshotData.getActualLogSequenceNumber();
@@ -536,7 +844,7 @@ public class FileCommitLog extends StatusChangesLog {
                     if (ledgerId < snapshotData.actualLogSequenceNumber.ledgerId
                         && ledgerId < currentLedgerId) {
                         LOGGER.log(Level.SEVERE, "snapshot, logfile is {0}, ledgerId {1}. to be removed (snapshot ledger id is {2})", new Object[]{p.toAbsolutePath(), ledgerId, snapshotData.actualLogSequenceNumber.ledgerId});
-                        Files.deleteIfExists(p);
+                        recycleSegment(p, ledgerId);
                     } else {
                         LOGGER.log(Level.SEVERE, "snapshot, logfile is {0}, ledgerId {1}. to be kept (snapshot ledger id is {2})", new Object[]{p.toAbsolutePath(), ledgerId, snapshotData.actualLogSequenceNumber.ledgerId});
                     }
@@ -603,6 +911,8 @@ public class FileCommitLog extends StatusChangesLog {
         }
     }
     private volatile boolean closed = false;
+    /* set when the spool thread dies, no more edits can be written */
+    private volatile Throwable failure;
 
     @Override
     public void close() throws LogNotAvailableException {
@@ -0,0 +1,405 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Local append-only store for the payloads (parameter and result) of finished tasks, which are seldom read again.
+ * Payloads are written to segment files and addressed by their position, a segment is deleted as soon as all of its
+ * tasks have been purged. The store is only a memory offload: it is emptied at boot, because the payloads are
+ * rebuilt from the snapshot and the log during recovery. A small LRU cache keeps the payloads of the most recently
+ * finished tasks, which are the ones usually looked up by clients. Payloads can be written by a background thread, so
+ * that the broker does not wait for the disk while it applies status changes.
+ *
+ * @author enrico.olivelli
+ */
+public class FinishedTasksStore implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(FinishedTasksStore.class.getName());
+    private static final String SEGMENT_SUFFIX = ".payloads";
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    /**
+     * Parameter and result of a task, as UTF-8 bytes
+     */
+    public static final class Payload {
+
+        public final byte[] parameter;
+        public final byte[] result;
+
+        public Payload(byte[] parameter, byte[] result) {
+            this.parameter = parameter;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Receives the position of a payload written in background
+     */
+    public interface WriteCallback {
+
+        /**
+         * @param position the position of the payload, or -1 if it could not be written
+         */
+        void payloadWritten(long position);
+    }
+
+    private static final class CachedPayload {
+
+        private final long position;
+        private final Payload payload;
+
+        CachedPayload(long position, Payload payload) {
+            this.position = position;
+            this.payload = payload;
+        }
+    }
+
+    private static final class Segment {
+
+        private final long id;
+        private final Path file;
+        private final FileChannel channel;
+        private long size;
+        private int liveRecords;
+        /**
+         * One reference is held by the store, the others by the readers. The file is deleted when the last reference
+         * is released
+         */
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        Segment(long id, Path file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        /**
+         * Prevents the segment from being deleted while it is read
+         *
+         * @return false if the segment has already been deleted
+         */
+        boolean pin() {
+            while (true) {
+                int count = references.get();
+                if (count <= 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void unpin() {
+            if (references.decrementAndGet() == 0) {
+                delete();
+            }
+        }
+
+        private void delete() {
+            try {
+                channel.close();
+                Files.deleteIfExists(file);
+            } catch (IOException err) {
+                LOGGER.log(Level.SEVERE, "cannot delete segment " + file, err);
+            }
+        }
+    }
+
+    private final Path directory;
+    private final long segmentSize;
+    private final Map<Long, Segment> segments = new ConcurrentHashMap<>();
+    /**
+     * Payloads by taskId, a task which finishes again gets a new position and the old one must not evict it
+     */
+    private final Map<Long, CachedPayload> recentlyFinished;
+    private final ExecutorService writer;
+    /**
+     * Current segment and records count are guarded by the store itself, the data is written out of the lock
+     */
+    private Segment current;
+    private long nextSegmentId;
+
+    /**
+     * @param directory directory of the segment files, its previous contents are deleted
+     * @param segmentSize size of a segment file, after which a new one is started
+     * @param cacheSize number of payloads of recently finished tasks kept in memory
+     * @throws IOException
+     */
+    public FinishedTasksStore(Path directory, long segmentSize, int cacheSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.recentlyFinished = new LinkedHashMap<Long, CachedPayload>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CachedPayload> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        this.writer = Executors.newSingleThreadExecutor((Runnable r) -> {
+            Thread t = new Thread(r, "dodo-broker-finishedtasks-store-writer-thread");
+            t.setDaemon(true);
+            return t;
+        });
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                LOGGER.log(Level.INFO, "deleting stale segment {0}", file);
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Appends the payload of a finished task in background
+     *
+     * @param taskId
+     * @param parameter
+     * @param result
+     * @param callback called by the writer thread when the payload is available at the given position
+     */
+    public void writeAsync(long taskId, byte[] parameter, byte[] result, WriteCallback callback) {
+        writer.execute(() -> {
+            long position;
+            try {
+                position = write(taskId, parameter, result);
+            } catch (IOException err) {
+                LOGGER.log(Level.SEVERE, "cannot write payload of task " + taskId, err);
+                position = -1;
+            }
+            callback.payloadWritten(position);
+        });
+    }
+
+    /**
+     * Waits for the payloads which are being written in background, including their callbacks
+     *
+     * @throws InterruptedException
+     */
+    public void waitForPendingWrites() throws InterruptedException {
+        try {
+            writer.submit(() -> {
+            }).get();
+        } catch (ExecutionException impossible) {
+            throw new IllegalStateException(impossible);
+        }
+    }
+
+    /**
+     * Appends the payload of a finished task
+     *
+     * @param taskId
+     * @param parameter
+     * @param result
+     * @return the position of the payload
+     * @throws IOException
+     */
+    public long write(long taskId, byte[] parameter, byte[] result) throws IOException {
+        int length = 8 + (parameter != null ? parameter.length : 0) + (result != null ? result.length : 0);
+        Segment segment;
+        long offset;
+        synchronized (this) {
+            if (current == null || current.size + length > segmentSize) {
+                Segment previous = current;
+                long id = nextSegmentId++;
+                current = new Segment(id, directory.resolve(String.format("%016x%s", id, SEGMENT_SUFFIX)));
+                segments.put(current.id, current);
+                if (previous != null && previous.liveRecords == 0) {
+                    segments.remove(previous.id);
+                    previous.unpin();
+                }
+            }
+            // the record is counted at once, the segment cannot be deleted while it is written
+            segment = current;
+            offset = segment.size;
+            segment.size += length;
+            segment.liveRecords++;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        writeArray(buffer, parameter);
+        writeArray(buffer, result);
+        buffer.flip();
+        long position = (segment.id << OFFSET_BITS) | offset;
+        try {
+            while (buffer.hasRemaining()) {
+                segment.channel.write(buffer, offset + buffer.position());
+            }
+        } catch (IOException err) {
+            release(taskId, position);
+            throw err;
+        }
+        synchronized (recentlyFinished) {
+            recentlyFinished.put(taskId, new CachedPayload(position, new Payload(parameter, result)));
+        }
+        return position;
+    }
+
+    private static void writeArray(ByteBuffer buffer, byte[] array) {
+        if (array == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(array.length);
+            buffer.put(array);
+        }
+    }
+
+    /**
+     * Reads a payload, from the cache if possible. This method can be called concurrently with
+     * {@link #release(long, long) }, the segment is not deleted while it is being read
+     *
+     * @param taskId
+     * @param position
+     * @return the payload, or null if it is not available any more
+     * @throws IOException
+     */
+    public Payload read(long taskId, long position) throws IOException {
+        synchronized (recentlyFinished) {
+            CachedPayload cached = recentlyFinished.get(taskId);
+            if (cached != null && cached.position == position) {
+                return cached.payload;
+            }
+        }
+        Segment segment = segments.get(position >>> OFFSET_BITS);
+        if (segment == null || !segment.pin()) {
+            return null;
+        }
+        try {
+            long offset = position & OFFSET_MASK;
+            byte[] parameter = readArray(segment.channel, offset);
+            offset += 4 + (parameter != null ? parameter.length : 0);
+            byte[] result = readArray(segment.channel, offset);
+            return new Payload(parameter, result);
+        } finally {
+            segment.unpin();
+        }
+    }
+
+    /**
+     * Loads a payload into the cache, in order to read it later without waiting for the disk
+     *
+     * @param taskId
+     * @param position
+     * @throws IOException
+     */
+    public void prefetch(long taskId, long position) throws IOException {
+        Payload payload = read(taskId, position);
+        if (payload != null) {
+            synchronized (recentlyFinished) {
+                recentlyFinished.put(taskId, new CachedPayload(position, payload));
+            }
+        }
+    }
+
+    private static byte[] readArray(FileChannel channel, long offset) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(channel, length, offset);
+        int size = length.getInt(0);
+        if (size < 0) {
+            return null;
+        }
+        ByteBuffer data = ByteBuffer.allocate(size);
+        readFully(channel, data, offset + 4);
+        return data.array();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("unexpected end of segment at " + offset);
+            }
+        }
+    }
+
+    /**
+     * Releases the payload of a task which is no more retained, the segment is deleted when none of its payloads is
+     * still in use
+     *
+     * @param taskId
+     * @param position
+     */
+    public void release(long taskId, long position) {
+        synchronized (recentlyFinished) {
+            CachedPayload cached = recentlyFinished.get(taskId);
+            if (cached != null && cached.position == position) {
+                recentlyFinished.remove(taskId);
+            }
+        }
+        synchronized (this) {
+            Segment segment = segments.get(position >>> OFFSET_BITS);
+            if (segment == null) {
+                return;
+            }
+            if (--segment.liveRecords == 0 && segment != current) {
+                segments.remove(segment.id);
+                segment.unpin();
+            }
+        }
+    }
+
+    boolean isCached(long taskId, long position) {
+        synchronized (recentlyFinished) {
+            CachedPayload cached = recentlyFinished.get(taskId);
+            return cached != null && cached.position == position;
+        }
+    }
+
+    public int getSegmentsCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                segment.unpin();
+            }
+            segments.clear();
+            current = null;
+        }
+        synchronized (recentlyFinished) {
+            recentlyFinished.clear();
+        }
+    }
+
+}
@@ -0,0 +1,232 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replays a log in three stages: a reader thread which prefetches raw entries, a pool of threads which decode them
+ * and the calling thread, which applies the edits in log order. Queues between the stages are bounded, so at most a
+ * few chunks of entries are kept in memory. An instance is meant to run only one recovery.
+ *
+ * @author enrico.olivelli
+ */
+public final class LogRecoveryPipeline {
+
+    private static final Logger LOGGER = Logger.getLogger(LogRecoveryPipeline.class.getName());
+
+    private static final int CHUNK_SIZE = 1000;
+    private static final Future<Chunk> END_OF_LOG = CompletableFuture.completedFuture(null);
+
+    /**
+     * Reads the raw entries of the log
+     */
+    public interface EntryReader {
+
+        /**
+         * Passes every entry to be recovered to the sink, in log order
+         *
+         * @param sink
+         * @throws Exception
+         */
+        void readEntries(EntrySink sink) throws Exception;
+    }
+
+    public interface EntrySink {
+
+        void accept(LogSequenceNumber number, byte[] data) throws InterruptedException;
+    }
+
+    private static final class Chunk {
+
+        final List<LogSequenceNumber> numbers = new ArrayList<>(CHUNK_SIZE);
+        final List<byte[]> data = new ArrayList<>(CHUNK_SIZE);
+        StatusEdit[] edits;
+    }
+
+    private final String name;
+    private final int decoderThreads;
+    private final BlockingQueue<Future<Chunk>> chunks;
+    private final LongAdder decodeNanos = new LongAdder();
+    private ExecutorService decoders;
+    private volatile boolean aborted;
+    private long readNanos;
+    private long readerWaitNanos;
+    private long entries;
+
+    public LogRecoveryPipeline(String name) {
+        this(name, Runtime.getRuntime().availableProcessors());
+    }
+
+    public LogRecoveryPipeline(String name, int decoderThreads) {
+        this.name = name;
+        this.decoderThreads = Math.max(1, decoderThreads);
+        this.chunks = new ArrayBlockingQueue<>(this.decoderThreads * 4);
+    }
+
+    private final class Reader implements EntrySink, Runnable {
+
+        private final EntryReader reader;
+        private Chunk current = new Chunk();
+
+        private Reader(EntryReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public void accept(LogSequenceNumber number, byte[] data) throws InterruptedException {
+            current.numbers.add(number);
+            current.data.add(data);
+            if (current.numbers.size() >= CHUNK_SIZE) {
+                submit(current);
+                current = new Chunk();
+            }
+        }
+
+        private void submit(Chunk chunk) throws InterruptedException {
+            Future<Chunk> decoded = decoders.submit(() -> {
+                long start = System.nanoTime();
+                StatusEdit[] edits = new StatusEdit[chunk.data.size()];
+                for (int i = 0; i < edits.length; i++) {
+                    edits[i] = StatusEdit.read(chunk.data.get(i));
+                }
+                chunk.edits = edits;
+                // raw data is no more needed
+                chunk.data.clear();
+                decodeNanos.add(System.nanoTime() - start);
+                return chunk;
+            });
+            put(decoded);
+        }
+
+        private void put(Future<Chunk> future) throws InterruptedException {
+            long start = System.nanoTime();
+            chunks.put(future);
+            readerWaitNanos += System.nanoTime() - start;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                reader.readEntries(this);
+                if (!current.numbers.isEmpty()) {
+                    submit(current);
+                }
+                put(END_OF_LOG);
+            } catch (Throwable error) {
+                if (aborted) {
+                    return;
+                }
+                CompletableFuture<Chunk> failed = new CompletableFuture<>();
+                failed.completeExceptionally(error);
+                try {
+                    put(failed);
+                } catch (InterruptedException abortedWhileReporting) {
+                    // the applier is no more waiting
+                }
+            } finally {
+                readNanos = System.nanoTime() - start - readerWaitNanos;
+            }
+        }
+    }
+
+    /**
+     * Runs the recovery. The consumer is called on the calling thread, in log order
+     *
+     * @param reader
+     * @param consumer
+     * @throws LogNotAvailableException in case of failure of the reader or of decoding. Runtime exceptions thrown by
+     * the consumer are rethrown as is
+     */
+    public void run(EntryReader reader, BiConsumer<LogSequenceNumber, StatusEdit> consumer) throws LogNotAvailableException {
+        long start = System.nanoTime();
+        long applyNanos = 0;
+        AtomicInteger threadCount = new AtomicInteger();
+        decoders = Executors.newFixedThreadPool(decoderThreads, (Runnable r) -> {
+            Thread t = new Thread(r, name + "-recovery-decoder-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        Thread readerThread = new Thread(new Reader(reader), name + "-recovery-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+        try {
+            while (true) {
+                Chunk chunk = chunks.take().get();
+                if (chunk == null) {
+                    break;
+                }
+                long startApply = System.nanoTime();
+                StatusEdit[] edits = chunk.edits;
+                for (int i = 0; i < edits.length; i++) {
+                    consumer.accept(chunk.numbers.get(i), edits[i]);
+                }
+                entries += edits.length;
+                applyNanos += System.nanoTime() - startApply;
+            }
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            throw new LogNotAvailableException(err);
+        } catch (ExecutionException err) {
+            Throwable cause = err.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            if (cause instanceof LogNotAvailableException) {
+                throw (LogNotAvailableException) cause;
+            }
+            throw new LogNotAvailableException(cause);
+        } finally {
+            aborted = true;
+            readerThread.interrupt();
+            chunks.clear();
+            decoders.shutdownNow();
+            try {
+                readerThread.join();
+                decoders.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException err) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        LOGGER.log(Level.INFO, "{0}: recovered {1} entries in {2} ms: read {3} ms, decode {4} ms on {5} threads, apply {6} ms",
+            new Object[]{name, entries, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                TimeUnit.NANOSECONDS.toMillis(readNanos), TimeUnit.NANOSECONDS.toMillis(decodeNanos.sum()),
+                decoderThreads, TimeUnit.NANOSECONDS.toMillis(applyNanos)});
+    }
+
+}
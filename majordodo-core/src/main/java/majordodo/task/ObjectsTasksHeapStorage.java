@@ -0,0 +1,130 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Stores every slot of the heap as a {@link TasksHeap.TaskEntry}
+ *
+ * @author enrico.olivelli
+ */
+final class ObjectsTasksHeapStorage extends TasksHeapStorage {
+
+    private static final AtomicLongFieldUpdater<TasksHeap.TaskEntry> TASKID_UPDATER
+        = AtomicLongFieldUpdater.newUpdater(TasksHeap.TaskEntry.class, "taskid");
+
+    private TasksHeap.TaskEntry[] actuallist;
+
+    ObjectsTasksHeapStorage(int size) {
+        this.actuallist = new TasksHeap.TaskEntry[size];
+        for (int i = 0; i < size; i++) {
+            this.actuallist[i] = new TasksHeap.TaskEntry(0, 0, null, 0, null);
+        }
+    }
+
+    @Override
+    int capacity() {
+        return actuallist.length;
+    }
+
+    @Override
+    void resize(int newCapacity) {
+        TasksHeap.TaskEntry[] newList = new TasksHeap.TaskEntry[newCapacity];
+        int preserved = Math.min(actuallist.length, newCapacity);
+        System.arraycopy(actuallist, 0, newList, 0, preserved);
+        for (int i = preserved; i < newList.length; i++) {
+            newList[i] = new TasksHeap.TaskEntry(0, 0, null, 0, null);
+        }
+        this.actuallist = newList;
+    }
+
+    @Override
+    long getTaskId(int position) {
+        return actuallist[position].taskid;
+    }
+
+    @Override
+    int getTaskType(int position) {
+        return actuallist[position].tasktype;
+    }
+
+    @Override
+    int getGroupId(int position) {
+        return actuallist[position].groupid;
+    }
+
+    @Override
+    String getUserId(int position) {
+        return actuallist[position].userid;
+    }
+
+    @Override
+    int[] getResources(int position) {
+        return actuallist[position].resources;
+    }
+
+    @Override
+    void set(int position, long taskid, int tasktype, String userid, int groupid, int[] resources) {
+        TasksHeap.TaskEntry entry = actuallist[position];
+        entry.taskid = taskid;
+        entry.tasktype = tasktype;
+        entry.userid = userid;
+        entry.groupid = groupid;
+        entry.resources = resources;
+    }
+
+    @Override
+    void setGroupAndResources(int position, int groupid, int[] resources) {
+        TasksHeap.TaskEntry entry = actuallist[position];
+        entry.groupid = groupid;
+        entry.resources = resources;
+    }
+
+    @Override
+    void clearTask(int position) {
+        TasksHeap.TaskEntry entry = actuallist[position];
+        entry.taskid = 0;
+        entry.tasktype = 0;
+        entry.userid = null;
+    }
+
+    @Override
+    boolean claimTask(int position, long taskid) {
+        TasksHeap.TaskEntry entry = actuallist[position];
+        if (taskid == 0 || !TASKID_UPDATER.compareAndSet(entry, taskid, 0)) {
+            return false;
+        }
+        entry.tasktype = 0;
+        entry.userid = null;
+        return true;
+    }
+
+    @Override
+    void clear(int position) {
+        set(position, 0, 0, null, 0, null);
+    }
+
+    @Override
+    TasksHeap.TaskEntry getEntry(int position) {
+        return actuallist[position];
+    }
+
+}
@@ -20,11 +20,10 @@
 package majordodo.task;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.HashSet;
@@ -32,8 +31,11 @@ import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import majordodo.utils.SystemProperties;
 import majordodo.utils.io.ExtendedDataInputStream;
 import majordodo.utils.io.ExtendedDataOutputStream;
+import majordodo.utils.io.SimpleByteArrayInputStream;
+import majordodo.utils.io.VisibleByteArrayOutputStream;
 
 /**
  * An action for the log
@@ -42,7 +44,7 @@ import majordodo.utils.io.ExtendedDataOutputStream;
  */
 public final class StatusEdit {
 
-    /* This version is intended to be a minor version of the Version 2 of the entry format */
+    /* This version is intended to be a minor version of the Version 2 and Version 3 of the entry format */
     public static final int PROTOCOL_VERSION = 0;
     
     public static final short TYPE_ADD_TASK = 1;
@@ -61,6 +63,14 @@ public final class StatusEdit {
     
     /* This type indicates that log entry is in version 2 format */
     public static final short TYPE_V2 = Short.MAX_VALUE;
+    /* Version 3: variable length numbers, length prefixed UTF-8 strings and binary sets of task ids */
+    public static final short TYPE_V3 = Short.MAX_VALUE - 1;
+
+    /**
+     * Brokers which do not know the Version 3 format cannot read it, so it is
+     * written only once every broker of the cluster has been upgraded
+     */
+    public static final boolean WRITE_V3 = SystemProperties.getBooleanSystemProperty("majordodo.statusedit.writev3", false);
 
     public static String typeToString(short type) {
         switch (type) {
@@ -421,144 +431,299 @@ public final class StatusEdit {
     }
     
     public byte[] serialize() {
+        return serialize(WRITE_V3);
+    }
+
+    public byte[] serialize(boolean v3) {
         try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            VisibleByteArrayOutputStream out = new VisibleByteArrayOutputStream(64);
             ExtendedDataOutputStream doo = new ExtendedDataOutputStream(out);
-            doo.writeShort(TYPE_V2);
-            doo.writeVInt(PROTOCOL_VERSION);
-            doo.writeVInt(this.editType);
-            switch (this.editType) {
-                case TYPE_BEGIN_TRANSACTION:
-                    doo.writeLong(transactionId);
-                    doo.writeLong(timestamp);
-                    break;
-                case TYPE_COMMIT_TRANSACTION:
-                    doo.writeLong(transactionId);
-                    break;
-                case TYPE_ROLLBACK_TRANSACTION:
-                    doo.writeLong(transactionId);
-                    break;
-                case TYPE_ADD_TASK:
-                    doo.writeLong(taskId);
-                    doo.writeUTF(userid);
-                    doo.writeVInt(taskStatus);
-                    doo.writeUTF(taskType);
-                    doo.writeVInt(maxattempts);
-                    doo.writeVInt(attempt);
-                    doo.writeVLong(requestedStartTime);
-                    doo.writeLong(executionDeadline);
-                    if (parameter != null) {
-                        doo.writeUTF(parameter);
-                    } else {
-                        doo.writeUTF("");
-                    }
-                    if (slot != null) {
-                        doo.writeUTF(slot);
-                    } else {
-                        doo.writeUTF("");
-                    }
-                    if (codepool != null) {
-                        doo.writeUTF(codepool);
-                    } else {
-                        doo.writeUTF("");
-                    }
-                    if (mode != null) {
-                        doo.writeUTF(mode);
-                    } else {
-                        doo.writeUTF("");
-                    }
-                    break;
-                case TYPE_PREPARE_ADD_TASK:
-                    doo.writeLong(transactionId);
-                    doo.writeLong(taskId);
-                    doo.writeUTF(userid);
-                    doo.writeVInt(taskStatus);
-                    doo.writeUTF(taskType);
-                    doo.writeVInt(maxattempts);
-                    doo.writeVInt(attempt);
-                    doo.writeVLong(requestedStartTime);
-                    doo.writeLong(executionDeadline);
-                    if (parameter != null) {
-                        doo.writeUTF(parameter);
-                    } else {
-                        doo.writeUTF("");
-                    }
-                    if (slot != null) {
-                        doo.writeUTF(slot);
-                    } else {
-                        doo.writeUTF("");
-                    }
-                    if (codepool != null) {
-                        doo.writeUTF(codepool);
-                    } else {
-                        doo.writeUTF("");
-                    }
-                    if (mode != null) {
-                        doo.writeUTF(mode);
-                    } else {
-                        doo.writeUTF("");
-                    }
-                    break;
-                case TYPE_WORKER_CONNECTED:
-                    doo.writeUTF(workerId);
-                    doo.writeUTF(workerLocation);
-                    doo.writeUTF(workerProcessId);
-                    doo.writeLong(timestamp);
-                    doo.writeUTF(actualRunningTasks.stream().map(l -> l.toString()).collect(Collectors.joining(",")));
-                    break;
-                case TYPE_WORKER_DIED:
-                case TYPE_WORKER_DISCONNECTED:
-                    doo.writeUTF(workerId);
-                    doo.writeLong(timestamp);
-                    break;
-
-                case TYPE_ASSIGN_TASK_TO_WORKER:
-                    doo.writeUTF(workerId);
-                    doo.writeLong(taskId);
-                    doo.writeVInt(attempt);
-                    if (resources != null) {
-                        doo.writeUTF(resources);
-                    } else {
-                        doo.writeUTF("");
-                    }
-                    break;
-                case TYPE_TASK_STATUS_CHANGE:
-                    doo.writeLong(taskId);
-                    doo.writeVInt(taskStatus);
-                    if (workerId != null) {
-                        doo.writeUTF(workerId);
-                    } else {
-                        doo.writeUTF("");
-                    }
-                    if (result != null) {
-                        doo.writeUTF(result);
-                    } else {
-                        doo.writeUTF("");
-                    }
-                    break;
-                case TYPE_NOOP:
-                    break;
-                case TYPE_DELETECODEPOOL:
-                    doo.writeUTF(codepool);
-                    break;
-                case TYPE_CREATECODEPOOL:
-                    doo.writeUTF(codepool);
-                    doo.writeLong(timestamp);
-                    doo.writeLong(executionDeadline);
-                    doo.writeVInt(payload.length);
-                    doo.write(payload);
-                    break;
-                default:
-                    throw new UnsupportedOperationException();
-
-            }
+            serialize(doo, v3);
             doo.close();
             return out.toByteArray();
         } catch (IOException err) {
             throw new RuntimeException(err);
         }
     }
-    
+
+    /**
+     * Writes this edit to the given stream, without intermediate copies
+     *
+     * @param doo
+     * @throws IOException
+     */
+    public void serialize(ExtendedDataOutputStream doo) throws IOException {
+        serialize(doo, WRITE_V3);
+    }
+
+    /**
+     * Writes this edit to the given stream, without intermediate copies
+     *
+     * @param doo
+     * @param v3 use the Version 3 format instead of the Version 2 one
+     * @throws IOException
+     */
+    public void serialize(ExtendedDataOutputStream doo, boolean v3) throws IOException {
+        if (v3) {
+            serializeV3(doo);
+        } else {
+            serializeV2(doo);
+        }
+    }
+
+    private void serializeV2(ExtendedDataOutputStream doo) throws IOException {
+        doo.writeShort(TYPE_V2);
+        doo.writeVInt(PROTOCOL_VERSION);
+        doo.writeVInt(this.editType);
+        switch (this.editType) {
+            case TYPE_BEGIN_TRANSACTION:
+                doo.writeLong(transactionId);
+                doo.writeLong(timestamp);
+                break;
+            case TYPE_COMMIT_TRANSACTION:
+                doo.writeLong(transactionId);
+                break;
+            case TYPE_ROLLBACK_TRANSACTION:
+                doo.writeLong(transactionId);
+                break;
+            case TYPE_ADD_TASK:
+                doo.writeLong(taskId);
+                doo.writeUTF(userid);
+                doo.writeVInt(taskStatus);
+                doo.writeUTF(taskType);
+                doo.writeVInt(maxattempts);
+                doo.writeVInt(attempt);
+                doo.writeVLong(requestedStartTime);
+                doo.writeLong(executionDeadline);
+                if (parameter != null) {
+                    doo.writeUTF(parameter);
+                } else {
+                    doo.writeUTF("");
+                }
+                if (slot != null) {
+                    doo.writeUTF(slot);
+                } else {
+                    doo.writeUTF("");
+                }
+                if (codepool != null) {
+                    doo.writeUTF(codepool);
+                } else {
+                    doo.writeUTF("");
+                }
+                if (mode != null) {
+                    doo.writeUTF(mode);
+                } else {
+                    doo.writeUTF("");
+                }
+                break;
+            case TYPE_PREPARE_ADD_TASK:
+                doo.writeLong(transactionId);
+                doo.writeLong(taskId);
+                doo.writeUTF(userid);
+                doo.writeVInt(taskStatus);
+                doo.writeUTF(taskType);
+                doo.writeVInt(maxattempts);
+                doo.writeVInt(attempt);
+                doo.writeVLong(requestedStartTime);
+                doo.writeLong(executionDeadline);
+                if (parameter != null) {
+                    doo.writeUTF(parameter);
+                } else {
+                    doo.writeUTF("");
+                }
+                if (slot != null) {
+                    doo.writeUTF(slot);
+                } else {
+                    doo.writeUTF("");
+                }
+                if (codepool != null) {
+                    doo.writeUTF(codepool);
+                } else {
+                    doo.writeUTF("");
+                }
+                if (mode != null) {
+                    doo.writeUTF(mode);
+                } else {
+                    doo.writeUTF("");
+                }
+                break;
+            case TYPE_WORKER_CONNECTED:
+                doo.writeUTF(workerId);
+                doo.writeUTF(workerLocation);
+                doo.writeUTF(workerProcessId);
+                doo.writeLong(timestamp);
+                doo.writeUTF(actualRunningTasks.stream().map(l -> l.toString()).collect(Collectors.joining(",")));
+                break;
+            case TYPE_WORKER_DIED:
+            case TYPE_WORKER_DISCONNECTED:
+                doo.writeUTF(workerId);
+                doo.writeLong(timestamp);
+                break;
+
+            case TYPE_ASSIGN_TASK_TO_WORKER:
+                doo.writeUTF(workerId);
+                doo.writeLong(taskId);
+                doo.writeVInt(attempt);
+                if (resources != null) {
+                    doo.writeUTF(resources);
+                } else {
+                    doo.writeUTF("");
+                }
+                break;
+            case TYPE_TASK_STATUS_CHANGE:
+                doo.writeLong(taskId);
+                doo.writeVInt(taskStatus);
+                if (workerId != null) {
+                    doo.writeUTF(workerId);
+                } else {
+                    doo.writeUTF("");
+                }
+                if (result != null) {
+                    doo.writeUTF(result);
+                } else {
+                    doo.writeUTF("");
+                }
+                break;
+            case TYPE_NOOP:
+                break;
+            case TYPE_DELETECODEPOOL:
+                doo.writeUTF(codepool);
+                break;
+            case TYPE_CREATECODEPOOL:
+                doo.writeUTF(codepool);
+                doo.writeLong(timestamp);
+                doo.writeLong(executionDeadline);
+                doo.writeVInt(payload.length);
+                doo.write(payload);
+                break;
+            default:
+                throw new UnsupportedOperationException();
+
+        }
+    }
+
+    private void serializeV3(ExtendedDataOutputStream doo) throws IOException {
+        doo.writeShort(TYPE_V3);
+        doo.writeVInt(PROTOCOL_VERSION);
+        doo.writeVInt(this.editType);
+        switch (this.editType) {
+            case TYPE_BEGIN_TRANSACTION:
+                doo.writeZLong(transactionId);
+                doo.writeZLong(timestamp);
+                break;
+            case TYPE_COMMIT_TRANSACTION:
+            case TYPE_ROLLBACK_TRANSACTION:
+                doo.writeZLong(transactionId);
+                break;
+            case TYPE_PREPARE_ADD_TASK:
+                doo.writeZLong(transactionId);
+            // fall through
+            case TYPE_ADD_TASK:
+                doo.writeZLong(taskId);
+                writeString(doo, userid);
+                doo.writeZLong(taskStatus);
+                writeString(doo, taskType);
+                doo.writeZLong(maxattempts);
+                doo.writeZLong(attempt);
+                doo.writeZLong(requestedStartTime);
+                doo.writeZLong(executionDeadline);
+                writeString(doo, parameter != null ? parameter : "");
+                writeString(doo, slot);
+                writeString(doo, codepool);
+                writeString(doo, mode);
+                break;
+            case TYPE_WORKER_CONNECTED:
+                writeString(doo, workerId);
+                writeString(doo, workerLocation);
+                writeString(doo, workerProcessId);
+                doo.writeZLong(timestamp);
+                writeLongSet(doo, actualRunningTasks);
+                break;
+            case TYPE_WORKER_DIED:
+            case TYPE_WORKER_DISCONNECTED:
+                writeString(doo, workerId);
+                doo.writeZLong(timestamp);
+                break;
+            case TYPE_ASSIGN_TASK_TO_WORKER:
+                writeString(doo, workerId);
+                doo.writeZLong(taskId);
+                doo.writeZLong(attempt);
+                writeString(doo, resources != null ? resources : "");
+                break;
+            case TYPE_TASK_STATUS_CHANGE:
+                doo.writeZLong(taskId);
+                doo.writeZLong(taskStatus);
+                writeString(doo, workerId != null ? workerId : "");
+                writeString(doo, result != null ? result : "");
+                break;
+            case TYPE_NOOP:
+                break;
+            case TYPE_DELETECODEPOOL:
+                writeString(doo, codepool);
+                break;
+            case TYPE_CREATECODEPOOL:
+                writeString(doo, codepool);
+                doo.writeZLong(timestamp);
+                doo.writeZLong(executionDeadline);
+                doo.writeArray(payload);
+                break;
+            default:
+                throw new UnsupportedOperationException();
+        }
+    }
+
+    /* null is written as 0, otherwise the length of the UTF-8 representation plus one */
+    private static void writeString(ExtendedDataOutputStream doo, String value) throws IOException {
+        if (value == null) {
+            doo.writeVInt(0);
+            return;
+        }
+        byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        doo.writeVInt(data.length + 1);
+        doo.write(data);
+    }
+
+    private static String readString(ExtendedDataInputStream doo) throws IOException {
+        int len = doo.readVInt();
+        if (len == 0) {
+            return null;
+        }
+        byte[] data = new byte[len - 1];
+        doo.readFully(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    /* sorted values, each one as the delta from the previous one */
+    private static void writeLongSet(ExtendedDataOutputStream doo, Set<Long> values) throws IOException {
+        if (values == null || values.isEmpty()) {
+            doo.writeVInt(0);
+            return;
+        }
+        long[] sorted = new long[values.size()];
+        int i = 0;
+        for (Long value : values) {
+            sorted[i++] = value;
+        }
+        Arrays.sort(sorted);
+        doo.writeVInt(sorted.length);
+        long previous = 0;
+        for (long value : sorted) {
+            doo.writeZLong(value - previous);
+            previous = value;
+        }
+    }
+
+    private static Set<Long> readLongSet(ExtendedDataInputStream doo) throws IOException {
+        int size = doo.readVInt();
+        Set<Long> result = new HashSet<>();
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            value += doo.readZLong();
+            result.add(value);
+        }
+        return result;
+    }
+
     public static StatusEdit readV1(short editType, DataInputStream doo) throws IOException {
         StatusEdit res = new StatusEdit();
         res.editType = editType;
@@ -681,9 +846,12 @@ public final class StatusEdit {
     
     @SuppressFBWarnings(value = "DLS_DEAD_LOCAL_STORE")
     public static StatusEdit read(byte[] data) throws IOException {
-        ByteArrayInputStream in = new ByteArrayInputStream(data);
+        SimpleByteArrayInputStream in = new SimpleByteArrayInputStream(data);
         ExtendedDataInputStream doo = new ExtendedDataInputStream(in);
         short header = doo.readShort();
+        if (header == TYPE_V3) {
+            return readV3(doo);
+        }
         if (header != TYPE_V2) {
             return readV1(header, doo);
         }
@@ -799,10 +967,7 @@ public final class StatusEdit {
                 res.timestamp = doo.readLong();
                 res.executionDeadline = doo.readLong();
                 res.payload = new byte[doo.readVInt()];
-                int countRead = doo.read(res.payload, 0, res.payload.length);
-                if (countRead != res.payload.length) {
-                    throw new IOException("short read " + countRead + " <> " + res.payload.length);
-                }
+                doo.readFully(res.payload);
                 break;
             default:
                 throw new UnsupportedOperationException("editType=" + res.editType);
@@ -811,4 +976,78 @@ public final class StatusEdit {
 
     }
 
+    private static StatusEdit readV3(ExtendedDataInputStream doo) throws IOException {
+        StatusEdit res = new StatusEdit();
+        int version = doo.readVInt();
+        if (version > PROTOCOL_VERSION) {
+            throw new IOException("unsupported protocol version " + version);
+        }
+        res.editType = (short) doo.readVInt();
+        switch (res.editType) {
+            case TYPE_BEGIN_TRANSACTION:
+                res.transactionId = doo.readZLong();
+                res.timestamp = doo.readZLong();
+                break;
+            case TYPE_COMMIT_TRANSACTION:
+            case TYPE_ROLLBACK_TRANSACTION:
+                res.transactionId = doo.readZLong();
+                break;
+            case TYPE_PREPARE_ADD_TASK:
+                res.transactionId = doo.readZLong();
+            // fall through
+            case TYPE_ADD_TASK:
+                res.taskId = doo.readZLong();
+                res.userid = readString(doo);
+                res.taskStatus = (int) doo.readZLong();
+                res.taskType = readString(doo);
+                res.maxattempts = (int) doo.readZLong();
+                res.attempt = (int) doo.readZLong();
+                res.requestedStartTime = doo.readZLong();
+                res.executionDeadline = doo.readZLong();
+                res.parameter = readString(doo);
+                res.slot = readString(doo);
+                res.codepool = readString(doo);
+                res.mode = readString(doo);
+                break;
+            case TYPE_WORKER_CONNECTED:
+                res.workerId = readString(doo);
+                res.workerLocation = readString(doo);
+                res.workerProcessId = readString(doo);
+                res.timestamp = doo.readZLong();
+                res.actualRunningTasks = readLongSet(doo);
+                break;
+            case TYPE_WORKER_DIED:
+            case TYPE_WORKER_DISCONNECTED:
+                res.workerId = readString(doo);
+                res.timestamp = doo.readZLong();
+                break;
+            case TYPE_ASSIGN_TASK_TO_WORKER:
+                res.workerId = readString(doo);
+                res.taskId = doo.readZLong();
+                res.attempt = (int) doo.readZLong();
+                res.resources = readString(doo);
+                break;
+            case TYPE_TASK_STATUS_CHANGE:
+                res.taskId = doo.readZLong();
+                res.taskStatus = (int) doo.readZLong();
+                res.workerId = readString(doo);
+                res.result = readString(doo);
+                break;
+            case TYPE_NOOP:
+                break;
+            case TYPE_DELETECODEPOOL:
+                res.codepool = readString(doo);
+                break;
+            case TYPE_CREATECODEPOOL:
+                res.codepool = readString(doo);
+                res.timestamp = doo.readZLong();
+                res.executionDeadline = doo.readZLong();
+                res.payload = doo.readArray();
+                break;
+            default:
+                throw new UnsupportedOperationException("editType=" + res.editType);
+        }
+        return res;
+    }
+
 }
@@ -21,6 +21,7 @@
 package majordodo.task;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
 import majordodo.worker.TaskExecutorStatus;
@@ -89,12 +90,23 @@ public class Task implements Delayed {
 
     @Override
     public String toString() {
-        return "Task{" + "type=" + type + ", parameter=" + parameter + ", result=" + result + ", createdTimestamp=" + createdTimestamp + ", delay=" + getDelay(TimeUnit.SECONDS) + "s, status=" + status + " " + statusToString(status) + ", taskId=" + taskId + ", userId=" + userId + ", workerId=" + workerId + '}';
+        return "Task{" + "type=" + type + ", parameter=" + getParameter() + ", result=" + getResult() + ", createdTimestamp=" + createdTimestamp + ", delay=" + getDelay(TimeUnit.SECONDS) + "s, status=" + status + " " + statusToString(status) + ", taskId=" + taskId + ", userId=" + userId + ", workerId=" + workerId + '}';
     }
 
     private String type;
-    private String parameter;
-    private String result;
+    /**
+     * Parameter and result are kept as UTF-8 bytes, which saves the String object for each of them
+     */
+    private byte[] parameter;
+    private byte[] result;
+    /**
+     * Position of parameter and result in the {@link FinishedTasksStore}, -1 while they are kept in memory
+     */
+    private long payloadPosition = -1;
+    /**
+     * Last snapshot for which this task has already been copied, see {@link BrokerStatus#createSnapshot() }
+     */
+    int snapshotEpoch;
     private long createdTimestamp;
     private int status;
     private long taskId;
@@ -205,20 +217,23 @@ public class Task implements Delayed {
         this.type = type;
     }
 
+    /**
+     * Decodes the parameter at every call, callers which only need to copy it should use the bytes
+     */
     public String getParameter() {
-        return parameter;
+        return decode(parameter);
     }
 
     public void setParameter(String parameter) {
-        this.parameter = parameter;
+        this.parameter = encode(parameter);
     }
 
     public String getResult() {
-        return result;
+        return decode(result);
     }
 
     public void setResult(String result) {
-        this.result = result;
+        this.result = encode(result);
     }
 
     public long getCreatedTimestamp() {
@@ -253,9 +268,42 @@ public class Task implements Delayed {
         copy.executionDeadline = this.executionDeadline;
         copy.slot = this.slot;
         copy.resources = this.resources;
+        copy.payloadPosition = this.payloadPosition;
         return copy;
     }
 
+    long getPayloadPosition() {
+        return payloadPosition;
+    }
+
+    byte[] getParameterBytes() {
+        return parameter;
+    }
+
+    byte[] getResultBytes() {
+        return result;
+    }
+
+    void spillPayload(long position) {
+        this.payloadPosition = position;
+        this.parameter = null;
+        this.result = null;
+    }
+
+    void restorePayload(byte[] parameter, byte[] result) {
+        this.payloadPosition = -1;
+        this.parameter = parameter;
+        this.result = result;
+    }
+
+    private static byte[] encode(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static String decode(byte[] value) {
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
     @Override
     public long getDelay(TimeUnit unit) {
         return unit.convert(requestedStartTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
@@ -29,11 +29,22 @@ public class TaskFinishedData {
     public final long taskid;
     public final String result;
     public final int finalStatus;
+    /**
+     * Start and end of the execution, as measured by the worker, 0 if unknown
+     */
+    public final long executionStart;
+    public final long executionEnd;
 
     public TaskFinishedData(long taskid, String result, int finalStatus) {
+        this(taskid, result, finalStatus, 0, 0);
+    }
+
+    public TaskFinishedData(long taskid, String result, int finalStatus, long executionStart, long executionEnd) {
         this.taskid = taskid;
         this.result = result;
         this.finalStatus = finalStatus;
+        this.executionStart = executionStart;
+        this.executionEnd = executionEnd;
     }
 
 }
@@ -0,0 +1,176 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import majordodo.utils.LatencyHistogram;
+
+/**
+ * Tracks the lifecycle of the tasks executed by this broker and aggregates the time spent in each phase, for each
+ * tasktype. Only tasks which are assigned to workers are tracked, so memory is bounded by the number of running tasks.
+ * Phases, in milliseconds:
+ * <ul>
+ * <li>{@link #QUEUE_WAIT}: from submission (or the requested start time, or the return to waiting status) to the
+ * assignment to a worker
+ * <li>{@link #DELIVERY}: from the assignment to the moment the task has been sent to the worker
+ * <li>{@link #EXECUTION}: execution on the worker, measured by the clock of the worker
+ * <li>{@link #NOTIFICATION}: from the delivery to the acknowledgment of the final status, minus the execution. This
+ * accounts for the queue of the worker, the batching of the notifications and the network
+ * <li>{@link #END_TO_END}: from submission (or the requested start time) to the acknowledgment of the final status,
+ * including the previous attempts
+ * </ul>
+ *
+ * @author enrico.olivelli
+ */
+public class TaskLatencyTracker {
+
+    public static final String QUEUE_WAIT = "queueWait";
+    public static final String DELIVERY = "delivery";
+    public static final String EXECUTION = "execution";
+    public static final String NOTIFICATION = "notification";
+    public static final String END_TO_END = "endToEnd";
+
+    private static final class Timeline {
+
+        private final String taskType;
+        /**
+         * Submission, or requested start time, of the task, the retries do not move it
+         */
+        private final long submitted;
+        private final long assigned;
+        private volatile long delivered;
+        private volatile long executionStart;
+        private volatile long executionEnd;
+
+        Timeline(String taskType, long submitted, long assigned) {
+            this.taskType = taskType;
+            this.submitted = submitted;
+            this.assigned = assigned;
+        }
+    }
+
+    private static final class TaskTypeHistograms {
+
+        private final LatencyHistogram queueWait = new LatencyHistogram();
+        private final LatencyHistogram delivery = new LatencyHistogram();
+        private final LatencyHistogram execution = new LatencyHistogram();
+        private final LatencyHistogram notification = new LatencyHistogram();
+        private final LatencyHistogram endToEnd = new LatencyHistogram();
+
+        private Map<String, Map<String, Object>> toMap() {
+            Map<String, Map<String, Object>> res = new TreeMap<>();
+            res.put(QUEUE_WAIT, queueWait.toMap());
+            res.put(DELIVERY, delivery.toMap());
+            res.put(EXECUTION, execution.toMap());
+            res.put(NOTIFICATION, notification.toMap());
+            res.put(END_TO_END, endToEnd.toMap());
+            return res;
+        }
+    }
+
+    private final Map<Long, Timeline> running = new ConcurrentHashMap<>();
+    /**
+     * Tasks which went back to waiting status, with the time of the change
+     */
+    private final Map<Long, Long> requeued = new ConcurrentHashMap<>();
+    private final Map<String, TaskTypeHistograms> byTaskType = new ConcurrentHashMap<>();
+
+    private TaskTypeHistograms histograms(String taskType) {
+        return byTaskType.computeIfAbsent(taskType, k -> new TaskTypeHistograms());
+    }
+
+    void taskAssigned(Task task, long now) {
+        Long requeuedAt = requeued.remove(task.getTaskId());
+        long submitted = Math.max(task.getCreatedTimestamp(), task.getRequestedStartTime());
+        long enqueued = requeuedAt != null ? requeuedAt : submitted;
+        running.put(task.getTaskId(), new Timeline(task.getType(), submitted, now));
+        histograms(task.getType()).queueWait.record(now - enqueued);
+    }
+
+    /**
+     * The task has been written to the connection of the worker
+     *
+     * @param taskId
+     * @param now
+     */
+    public void taskDelivered(long taskId, long now) {
+        Timeline timeline = running.get(taskId);
+        if (timeline != null) {
+            timeline.delivered = now;
+            histograms(timeline.taskType).delivery.record(now - timeline.assigned);
+        }
+    }
+
+    /**
+     * The worker notified the end of the execution, the final status is going to be acknowledged
+     *
+     * @param taskId
+     * @param executionStart start of the execution, as measured by the worker, 0 if unknown
+     * @param executionEnd end of the execution, as measured by the worker, 0 if unknown
+     */
+    public void taskExecuted(long taskId, long executionStart, long executionEnd) {
+        Timeline timeline = running.get(taskId);
+        if (timeline != null) {
+            timeline.executionStart = executionStart;
+            timeline.executionEnd = executionEnd;
+        }
+    }
+
+    void taskFinished(long taskId, long now) {
+        Timeline timeline = running.remove(taskId);
+        if (timeline == null) {
+            return;
+        }
+        TaskTypeHistograms histograms = histograms(timeline.taskType);
+        long execution = -1;
+        if (timeline.executionStart > 0 && timeline.executionEnd >= timeline.executionStart) {
+            execution = timeline.executionEnd - timeline.executionStart;
+            histograms.execution.record(execution);
+        }
+        if (timeline.delivered > 0 && execution >= 0) {
+            histograms.notification.record(now - timeline.delivered - execution);
+        }
+        histograms.endToEnd.record(now - timeline.submitted);
+    }
+
+    void taskRequeued(long taskId, long now) {
+        running.remove(taskId);
+        requeued.put(taskId, now);
+    }
+
+    void forget(long taskId) {
+        running.remove(taskId);
+        requeued.remove(taskId);
+    }
+
+    /**
+     * @return for each tasktype, for each phase, count, mean, max and percentiles in milliseconds
+     */
+    public Map<String, Map<String, Map<String, Object>>> getLatencies() {
+        Map<String, Map<String, Map<String, Object>>> res = new TreeMap<>();
+        byTaskType.forEach((taskType, histograms) -> {
+            res.put(taskType, histograms.toMap());
+        });
+        return res;
+    }
+
+}
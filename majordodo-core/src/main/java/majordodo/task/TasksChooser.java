@@ -19,39 +19,55 @@
  */
 package majordodo.task;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.PriorityQueue;
-import java.util.Queue;
 import java.util.Set;
 import java.util.logging.Logger;
 
 import majordodo.utils.DiscardingBoundedPriorityQueue;
 import majordodo.utils.IntCounter;
+import majordodo.utils.LongIntHashMap;
 
 /**
- * Chooses tasks
+ * Chooses tasks.<br>
+ * The chooser is fed with a lot of candidates, so {@link #accept(int, long, int, java.lang.String, int, int[]) } works
+ * only on arrays indexed by tasktype id and on primitive maps, and {@link Entry entries} are recycled.
  *
  * @author enrico.olivelli
  */
 public final class TasksChooser {
 
-    private final List<Integer> groups;
-    private final Set<Integer> excludedGroups;
-    private final Map<Integer, Integer> availableSpace;
+    private static final int NO_SPACE = -1;
+    private static final int MAX_POOLED_ENTRIES = 4096;
+    private static final int MAX_RETAINED_USERS = 4096;
+
+    private final int[] groups;
+    private final int[] excludedGroups;
+    /**
+     * Available space, indexed by tasktype id, {@link #NO_SPACE} means that the tasktype is not requested
+     */
+    private final int[] availableSpace;
     private final Map<Integer, IntCounter> availableResourcesCounters;
-    private final Map<Integer, Integer> priorityByGroup = new HashMap<>();
     private final boolean matchAllGroups;
     private final int max;
-    private final Map<Integer, PriorityQueue<Entry>> bestbyTasktype = new HashMap<>();
-    private final PriorityQueue<Entry> matchAllTypesQueue;
-    private final Integer availableSpaceForAnyTask;
-    private final Map<IntTaskTypeUser, IntCounter> availableSpacePerUser;
+    /**
+     * Best entries, indexed by tasktype id
+     */
+    private final DiscardingBoundedPriorityQueue<Entry>[] bestbyTasktype;
+    private final DiscardingBoundedPriorityQueue<Entry> matchAllTypesQueue;
+    private final int availableSpaceForAnyTask;
+    private final boolean limitSpacePerUser;
+    private final UserCounters userCounters;
     private final int maxThreadPerUserPerTaskTypePercent;
+    private final Recycler recycler;
+    private final List<Entry> choosen = new ArrayList<>();
 
     static final class IntTaskTypeUser {
 
@@ -99,6 +115,41 @@ public final class TasksChooser {
 
     }
 
+    /**
+     * Objects recycled by the choosers of a thread, a recycler must not be shared among threads
+     */
+    static final class Recycler {
+
+        private final Deque<Entry> entries = new ArrayDeque<>();
+        private final Deque<UserCounters> userCounters = new ArrayDeque<>();
+        private int[] availableByResource = new int[16];
+
+    }
+
+    /**
+     * Per user counters, a counter is identified by (tasktype id, user index)
+     */
+    private static final class UserCounters {
+
+        /**
+         * Interned user ids, they are kept when the counters are recycled
+         */
+        private final Map<String, Integer> userIndexes = new HashMap<>();
+        private final LongIntHashMap slots = new LongIntHashMap(-1);
+        private int[] values = new int[16];
+        private int size;
+
+        private void reset() {
+            if (userIndexes.size() > MAX_RETAINED_USERS) {
+                userIndexes.clear();
+                slots.clear();
+            } else {
+                slots.reset();
+            }
+            size = 0;
+        }
+    }
+
     static final class Entry implements Comparable<Entry> {
 
         /**
@@ -113,10 +164,11 @@ public final class TasksChooser {
 
         };
 
-        final int position;
-        final long taskid;
-        final int priorityByGroup;
-        final int[] resources;
+        // entries are recycled, see TasksChooser#release
+        int position;
+        long taskid;
+        int priorityByGroup;
+        int[] resources;
 
         public Entry(int position, long taskid, int priorityByGroup, int[] resources) {
             this.position = position;
@@ -125,6 +177,13 @@ public final class TasksChooser {
             this.resources = resources;
         }
 
+        void reset(int position, long taskid, int priorityByGroup, int[] resources) {
+            this.position = position;
+            this.taskid = taskid;
+            this.priorityByGroup = priorityByGroup;
+            this.resources = resources;
+        }
+
         @Override
         public int hashCode() {
             return position;
@@ -158,12 +217,15 @@ public final class TasksChooser {
          */
         @Override
         public int compareTo(Entry o) {
+            return compare(this.priorityByGroup, this.position, o);
+        }
 
-            int diff = this.priorityByGroup - o.priorityByGroup;
+        static int compare(int priorityByGroup, int position, Entry o) {
+            int diff = priorityByGroup - o.priorityByGroup;
             if (diff != 0) {
                 return diff;
             }
-            if (this.position < o.position) {
+            if (position < o.position) {
                 return 1;
             } else {
                 return -1;
@@ -176,14 +238,30 @@ public final class TasksChooser {
         Map<Integer, IntCounter> availableResourcesCounters, int max,
         Map<IntTaskTypeUser, IntCounter> availableSpacePerUser,
         int maxThreadPerUserPerTaskTypePercent) {
-        this.availableSpacePerUser = availableSpacePerUser;
-        this.availableSpace = new HashMap<>(availableSpace);
-        this.groups = groups;
+        this(groups, excludedGroups, availableSpace, availableResourcesCounters, max, availableSpacePerUser,
+            maxThreadPerUserPerTaskTypePercent, null);
+    }
+
+    /**
+     * @param recycler objects to be recycled, see {@link #release() }
+     */
+    @SuppressWarnings("unchecked")
+    TasksChooser(List<Integer> groups, Set<Integer> excludedGroups, Map<Integer, Integer> availableSpace,
+        Map<Integer, IntCounter> availableResourcesCounters, int max,
+        Map<IntTaskTypeUser, IntCounter> availableSpacePerUser,
+        int maxThreadPerUserPerTaskTypePercent, Recycler recycler) {
         this.availableResourcesCounters = availableResourcesCounters;
-        this.excludedGroups = excludedGroups;
         this.max = max;
         this.maxThreadPerUserPerTaskTypePercent = maxThreadPerUserPerTaskTypePercent;
+        this.recycler = recycler;
 
+        int maxTaskType = 0;
+        for (int tasktype : availableSpace.keySet()) {
+            maxTaskType = Math.max(maxTaskType, tasktype);
+        }
+        this.availableSpace = new int[maxTaskType + 1];
+        Arrays.fill(this.availableSpace, NO_SPACE);
+        this.bestbyTasktype = new DiscardingBoundedPriorityQueue[maxTaskType + 1];
         /*
 		 * Bonded priority queues will be used. each add will request log(n)
 		 * operations but n represent maximum task number for a type (enough
@@ -191,29 +269,79 @@ public final class TasksChooser {
          */
         availableSpace.entrySet().stream().forEach((entry) -> {
             if (entry.getKey() > 0) {
-                bestbyTasktype.put(entry.getKey(), new DiscardingBoundedPriorityQueue<>(entry.getValue()));
+                this.availableSpace[entry.getKey()] = entry.getValue();
+                bestbyTasktype[entry.getKey()] = new DiscardingBoundedPriorityQueue<>(entry.getValue());
             }
         });
 
-        availableSpaceForAnyTask = availableSpace.get(0);
+        Integer forAnyTask = availableSpace.get(0);
+        if (forAnyTask != null) {
+            availableSpaceForAnyTask = forAnyTask;
+            matchAllTypesQueue = new DiscardingBoundedPriorityQueue<>(forAnyTask);
+        } else {
+            availableSpaceForAnyTask = NO_SPACE;
+            matchAllTypesQueue = null;
+        }
+
         this.matchAllGroups = groups.contains(Task.GROUP_ANY);
-        int priority = groups.size();
+        // priority of a group is given by its position in the list
+        this.groups = new int[groups.size()];
+        int i = 0;
         for (int idgroup : groups) {
-            this.priorityByGroup.put(idgroup, priority--);
+            this.groups[i++] = idgroup;
+        }
+        this.excludedGroups = new int[excludedGroups.size()];
+        i = 0;
+        for (int idgroup : excludedGroups) {
+            this.excludedGroups[i++] = idgroup;
         }
-        if (availableSpaceForAnyTask != null) {
-            matchAllTypesQueue = new DiscardingBoundedPriorityQueue<>(availableSpaceForAnyTask);
+        Arrays.sort(this.excludedGroups);
+
+        this.limitSpacePerUser = availableSpacePerUser != null;
+        if (limitSpacePerUser) {
+            UserCounters recycled = recycler != null ? recycler.userCounters.poll() : null;
+            this.userCounters = recycled != null ? recycled : new UserCounters();
+            for (Map.Entry<IntTaskTypeUser, IntCounter> entry : availableSpacePerUser.entrySet()) {
+                IntTaskTypeUser key = entry.getKey();
+                addUserCounter(userCounterKey(key.tasktype, key.userid), entry.getValue().count);
+            }
         } else {
-            matchAllTypesQueue = null;
+            this.userCounters = null;
         }
+    }
 
+    private long userCounterKey(int tasktype, String userid) {
+        Map<String, Integer> userIndexes = userCounters.userIndexes;
+        Integer index = userIndexes.get(userid);
+        if (index == null) {
+            index = userIndexes.size() + 1;
+            userIndexes.put(userid, index);
+        }
+        // tasktype is always greater than zero, so the key is never zero
+        return (((long) tasktype) << 32) | index;
+    }
+
+    private int addUserCounter(long key, int value) {
+        UserCounters counters = userCounters;
+        if (counters.size == counters.values.length) {
+            counters.values = Arrays.copyOf(counters.values, counters.size * 2);
+        }
+        int slot = counters.size++;
+        counters.values[slot] = value;
+        counters.slots.put(key, slot);
+        return slot;
     }
 
     List<Entry> getChoosenTasks() {
 
-        final List<Entry> result = new ArrayList<>();
+        final List<Entry> result = choosen;
+        result.clear();
 
-        bestbyTasktype.values().forEach(result::addAll);
+        for (DiscardingBoundedPriorityQueue<Entry> queue : bestbyTasktype) {
+            if (queue != null) {
+                result.addAll(queue);
+            }
+        }
 
         if (matchAllTypesQueue != null) {
             result.addAll(matchAllTypesQueue);
@@ -224,99 +352,238 @@ public final class TasksChooser {
         }
 
         if (!availableResourcesCounters.isEmpty()) {
-            List<Entry> newResult = new ArrayList<>();
+            int[] availableByResource = availableByResource();
+            // accepted entries are compacted at the head of the list
             int acceptedCount = 0;
-            for (Entry entry : result) {
-                // an entry can be accepted only if there is space for every declared resource                
+            for (int i = 0; i < result.size() && acceptedCount < max; i++) {
+                Entry entry = result.get(i);
+                // an entry can be accepted only if there is space for every declared resource
                 if (entry.resources == null) {
-                    newResult.add(entry);
-                    acceptedCount++;
+                    result.set(acceptedCount++, entry);
                 } else {
                     boolean allOk = true;
                     for (int idresource : entry.resources) {
-                        IntCounter spaceForResource = availableResourcesCounters.get(idresource);
-                        if (spaceForResource != null && spaceForResource.count <= 0) {
+                        if (idresource < availableByResource.length && availableByResource[idresource] <= 0) {
                             allOk = false;
                             break;
                         }
                     }
                     if (allOk) {
                         for (int idresource : entry.resources) {
-                            IntCounter spaceForResource = availableResourcesCounters.get(idresource);
-                            if (spaceForResource != null) {
-                                spaceForResource.count--;
+                            if (idresource < availableByResource.length) {
+                                availableByResource[idresource]--;
                             }
                         }
-                        newResult.add(entry);
-                        acceptedCount++;
+                        result.set(acceptedCount++, entry);
                     }
                 }
-                if (acceptedCount >= max) {
-                    break;
-                }
             }
-            return newResult;
+            truncate(result, acceptedCount);
+        } else {
+            truncate(result, max);
+        }
+        return result;
+
+    }
+
+    private static void truncate(List<Entry> list, int size) {
+        for (int i = list.size() - 1; i >= size; i--) {
+            list.remove(i);
+        }
+    }
+
+    /**
+     * Snapshot of the resource counters, indexed by resource id. Resources without limits have
+     * {@link Integer#MAX_VALUE} space.<br>
+     * The returned array is shared by the choosers of the thread, it is valid only inside
+     * {@link #getChoosenTasks() }
+     */
+    private int[] availableByResource() {
+        int maxResource = 0;
+        for (int idresource : availableResourcesCounters.keySet()) {
+            maxResource = Math.max(maxResource, idresource);
+        }
+        int[] res;
+        if (recycler == null) {
+            res = new int[maxResource + 1];
         } else {
+            if (recycler.availableByResource.length <= maxResource) {
+                recycler.availableByResource = new int[Math.max(maxResource + 1, recycler.availableByResource.length * 2)];
+            }
+            res = recycler.availableByResource;
+        }
+        Arrays.fill(res, 0, maxResource + 1, Integer.MAX_VALUE);
+        for (Map.Entry<Integer, IntCounter> entry : availableResourcesCounters.entrySet()) {
+            res[entry.getKey()] = entry.getValue().count;
+        }
+        return res;
+    }
 
-            return result.size() > max ? result.subList(0, max) : result;
+    /**
+     * Gives back every entry to the pool, entries returned by {@link #getChoosenTasks() } must not be used anymore
+     */
+    void release() {
+        if (recycler == null) {
+            return;
         }
+        for (DiscardingBoundedPriorityQueue<Entry> queue : bestbyTasktype) {
+            if (queue != null) {
+                recycle(queue);
+            }
+        }
+        if (matchAllTypesQueue != null) {
+            recycle(matchAllTypesQueue);
+        }
+        choosen.clear();
+        if (userCounters != null) {
+            userCounters.reset();
+            recycler.userCounters.add(userCounters);
+        }
+    }
 
+    private void recycle(DiscardingBoundedPriorityQueue<Entry> queue) {
+        Deque<Entry> pool = recycler.entries;
+        for (Entry entry : queue) {
+            if (pool.size() >= MAX_POOLED_ENTRIES) {
+                break;
+            }
+            entry.resources = null;
+            pool.add(entry);
+        }
+        queue.clear();
     }
 
     private static final Logger LOGGER = Logger.getLogger(TasksChooser.class.getName());
 
-    void accept(int position, TasksHeap.TaskEntry entry) {
+    /**
+     * Checks if tasks of the given group could be accepted by this chooser
+     *
+     * @param idgroup
+     * @return
+     */
+    boolean isGroupAccepted(int idgroup) {
+        return (matchAllGroups && Arrays.binarySearch(excludedGroups, idgroup) < 0) || indexOfGroup(idgroup) >= 0;
+    }
 
-        final int idgroup = entry.groupid;
+    private int indexOfGroup(int idgroup) {
+        // the list of groups is usually very short
+        for (int i = 0; i < groups.length; i++) {
+            if (groups[i] == idgroup) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int priorityByGroup(int idgroup) {
+        int index = indexOfGroup(idgroup);
+        // possibile if using "matchAllGroups"
+        return index < 0 ? Integer.MIN_VALUE : groups.length - index;
+    }
 
-        if ((matchAllGroups && !excludedGroups.contains(idgroup)) || groups.contains(idgroup)) {
+    /**
+     * Checks if tasks of the given type could be accepted by this chooser
+     *
+     * @param tasktype
+     * @return
+     */
+    boolean isTaskTypeAccepted(int tasktype) {
+        return availableSpaceForAnyTask != NO_SPACE || availableSpaceForTaskType(tasktype) != NO_SPACE;
+    }
+
+    private int availableSpaceForTaskType(int tasktype) {
+        return tasktype > 0 && tasktype < availableSpace.length ? availableSpace[tasktype] : NO_SPACE;
+    }
+
+    private DiscardingBoundedPriorityQueue<Entry> queueForTaskType(int tasktype) {
+        DiscardingBoundedPriorityQueue<Entry> bytasktype = tasktype > 0 && tasktype < bestbyTasktype.length ? bestbyTasktype[tasktype] : null;
+        return bytasktype != null ? bytasktype : matchAllTypesQueue;
+    }
+
+    /**
+     * Checks if any further task of the given type and group would be discarded. Tasks are expected to be submitted to
+     * {@link #accept(int, long, int, java.lang.String, int, int[]) } in ascending position order, so that a new entry
+     * never wins a tie against an entry with the same priority which is already in the queue.
+     *
+     * @param tasktype
+     * @param idgroup
+     * @return
+     */
+    boolean isSaturated(int tasktype, int idgroup) {
+        DiscardingBoundedPriorityQueue<Entry> queue = queueForTaskType(tasktype);
+        if (queue == null || !queue.isFull()) {
+            return false;
+        }
+        return queue.peek().priorityByGroup >= priorityByGroup(idgroup);
+    }
 
-            int tasktype = entry.tasktype;
+    /**
+     * Offers a task to the chooser
+     *
+     * @return true if the task entered the set of choosen tasks, it could still be discarded later
+     */
+    boolean accept(int position, long taskid, int tasktype, String userid, int idgroup, int[] resources) {
 
-            Integer availableSpaceForTaskType = availableSpace.get(tasktype);
+        if (isGroupAccepted(idgroup)) {
 
-            if (availableSpaceForTaskType == null) {
+            int availableSpaceForTaskType = availableSpaceForTaskType(tasktype);
+
+            if (availableSpaceForTaskType == NO_SPACE) {
                 availableSpaceForTaskType = availableSpaceForAnyTask;
             }
 
-            if (availableSpaceForTaskType != null) {
+            if (availableSpaceForTaskType != NO_SPACE) {
 
-                if (availableSpacePerUser != null) {
-                    IntCounter counterForUser = availableSpacePerUser.get(new IntTaskTypeUser(tasktype, entry.userid));
-                    if (counterForUser == null) {
+                if (limitSpacePerUser) {
+                    long key = userCounterKey(tasktype, userid);
+                    int slot = userCounters.slots.get(key);
+                    if (slot < 0) {
                         int limitForUserWithoutAnyTaskRunning = (availableSpaceForTaskType * maxThreadPerUserPerTaskTypePercent) / 100;
                         if (limitForUserWithoutAnyTaskRunning <= 0) {
                             limitForUserWithoutAnyTaskRunning = 1;
                         }
-                        counterForUser = new IntCounter(limitForUserWithoutAnyTaskRunning);
-                        availableSpacePerUser.put(new IntTaskTypeUser(tasktype, entry.userid), counterForUser);
+                        slot = addUserCounter(key, limitForUserWithoutAnyTaskRunning);
                     }
-                    if (--counterForUser.count < 0) {
-                        return;
+                    if (--userCounters.values[slot] < 0) {
+                        return false;
                     }
 
                 }
 
-                Queue<Entry> queue;
-                Queue<Entry> bytasktype = bestbyTasktype.get(tasktype);
-
                 /*
 				 * If availableSpaceForTaskType is not null bytasktype or
 				 * matchAllTypesQueue aren't null... so queue is not null
                  */
-                queue = bytasktype != null ? bytasktype : matchAllTypesQueue;
+                DiscardingBoundedPriorityQueue<Entry> queue = queueForTaskType(tasktype);
 
-                Integer priority = priorityByGroup.get(idgroup);
+                int priority = priorityByGroup(idgroup);
 
-                // possibile if using "matchAllGroups"
-                if (priority == null) {
-                    priority = Integer.MIN_VALUE;
+                if (queue.isFull()) {
+                    Entry smallest = queue.peek();
+                    if (Entry.compare(priority, position, smallest) <= 0) {
+                        // would be discarded
+                        return false;
+                    }
+                    // recycle the discarded entry
+                    queue.poll();
+                    smallest.reset(position, taskid, priority, resources);
+                    queue.add(smallest);
+                } else {
+                    queue.add(newEntry(position, taskid, priority, resources));
                 }
-
-                queue.add(new Entry(position, entry.taskid, priority, entry.resources));
-
+                return true;
             }
         }
+        return false;
+    }
+
+    private Entry newEntry(int position, long taskid, int priority, int[] resources) {
+        Entry entry = recycler != null ? recycler.entries.poll() : null;
+        if (entry == null) {
+            return new Entry(position, taskid, priority, resources);
+        }
+        entry.reset(position, taskid, priority, resources);
+        return entry;
     }
 
 }
@@ -21,11 +21,18 @@ package majordodo.task;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Consumer;
 import java.util.logging.Level;
@@ -33,7 +40,7 @@ import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import majordodo.utils.IntCounter;
-import majordodo.utils.IntCounter;
+import majordodo.utils.LongIntHashMap;
 
 /**
  * Heap of tasks to be executed. Tasks are not arranged in a queue but in an heap.<br>
@@ -52,21 +59,68 @@ public class TasksHeap {
     private static final Logger LOGGER = Logger.getLogger(TasksHeap.class.getName());
 
     private static final int TASKTYPE_ANYTASK = 0;
+    private static final int MAX_CLAIM_ATTEMPTS = 3;
+    /**
+     * Entries and counters of the {@link TasksChooser} are recycled, each thread has its own recycler
+     */
+    private static final ThreadLocal<TasksChooser.Recycler> CHOOSER_RECYCLER = ThreadLocal.withInitial(TasksChooser.Recycler::new);
 
     private int actualsize;
-    private int fragmentation;
+    private final AtomicInteger fragmentation = new AtomicInteger();
     private int maxFragmentation;
     private int minValidPosition;
     private int autoGrowPercent = 25;
     private int size;
-    private TaskEntry[] actuallist;
+    private final int initialSize;
+    private final TasksHeapStorage actuallist;
     private final TaskPropertiesMapperFunction resourceMapper;
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    /**
+     * Guards global resource counters and dictionaries when tasks are claimed concurrently
+     */
+    private final ReentrantLock claimLock = new ReentrantLock();
+    private volatile boolean concurrentClaim;
     private final Map<String, Integer> resourceMappings = new HashMap<>();
     private final Map<Integer, String> resourceIdMappings = new HashMap<>();
     private final Map<String, int[]> resourcesListPool = new HashMap<>();
     private final Map<int[], String[]> resourcesIdsListPool = new HashMap<>();
     private final Map<int[], String> resourcesStringListPool = new HashMap<>();
+    /**
+     * Secondary index, tasktype -&gt; group -&gt; positions of the tasks, in insertion order
+     */
+    private final Map<Integer, Map<Integer, TasksBucket>> buckets = new HashMap<>();
+    /**
+     * Position of each waiting task. It is modified while holding the writeLock, or the readLock together with the
+     * claimLock
+     */
+    private final LongIntHashMap positionsByTaskId = new LongIntHashMap(-1);
+
+    /**
+     * Maximum number of slots visited by a single step of incremental compaction, 0 means that compaction is executed
+     * in a single pass inside takeTasks
+     */
+    private int compactionStepSize;
+    private long compactionPauseBudgetNanos = TimeUnit.MILLISECONDS.toNanos(2);
+    private int shrinkThresholdPercent = 25;
+    /**
+     * State of the incremental compaction pass: slots before compactionWritePos are compacted, slots between
+     * compactionWritePos and compactionReadPos are empty, slots from compactionReadPos still have to be visited
+     */
+    private boolean compactionInProgress;
+    private int compactionReadPos;
+    private int compactionWritePos;
+    /**
+     * Index of the compacted slots, during a compaction pass {@link #buckets} is used only for the slots which have
+     * not been visited yet
+     */
+    private Map<Integer, Map<Integer, TasksBucket>> compactedBuckets;
+    private volatile long compactionPasses;
+    private volatile long compactionSteps;
+    private volatile long compactionStepsOverBudget;
+    private volatile long lastCompactionPauseNanos;
+    private volatile long maxCompactionPauseNanos;
+    private volatile long totalCompactionPauseNanos;
+    private volatile long shrinks;
 
     public int getAutoGrowPercent() {
         return autoGrowPercent;
@@ -84,7 +138,7 @@ public class TasksHeap {
     }
 
     public int getFragmentation() {
-        return fragmentation;
+        return fragmentation.get();
     }
 
     public int getSize() {
@@ -92,13 +146,37 @@ public class TasksHeap {
     }
 
     public TasksHeap(int size, TaskPropertiesMapperFunction tenantAssigner) {
+        this(size, tenantAssigner, TasksHeapLayout.OBJECTS);
+    }
+
+    public TasksHeap(int size, TaskPropertiesMapperFunction tenantAssigner, TasksHeapLayout layout) {
         this.size = size;
+        this.initialSize = size;
         this.resourceMapper = tenantAssigner;
-        this.actuallist = new TaskEntry[size];
-        for (int i = 0; i < size; i++) {
-            this.actuallist[i] = new TaskEntry(0, 0, null, 0, null);
-        }
+        this.actuallist = TasksHeapStorage.create(layout, size);
         this.maxFragmentation = size / 4;
+        this.layout = layout;
+    }
+
+    private final TasksHeapLayout layout;
+
+    public TasksHeapLayout getLayout() {
+        return layout;
+    }
+
+    public boolean isConcurrentClaim() {
+        return concurrentClaim;
+    }
+
+    /**
+     * In concurrent claim mode tasks are chosen while holding a shared lock, so that many workers can be served in
+     * parallel, and each task is claimed atomically on its slot. Tasks which have been claimed by some other worker in
+     * the meantime are simply skipped.
+     *
+     * @param concurrentClaim
+     */
+    public void setConcurrentClaim(boolean concurrentClaim) {
+        this.concurrentClaim = concurrentClaim;
     }
 
     public int getMaxFragmentation() {
@@ -109,42 +187,168 @@ public class TasksHeap {
         this.maxFragmentation = maxFragmentation;
     }
 
+    public int getCompactionStepSize() {
+        return compactionStepSize;
+    }
+
+    /**
+     * Enables incremental compaction: takeTasks will never compact the heap, compaction is performed by many calls to
+     * {@link #runCompactionStep() }, each one visiting at most the given number of slots.
+     *
+     * @param compactionStepSize maximum number of slots visited by each step, 0 disables incremental compaction
+     */
+    public void setCompactionStepSize(int compactionStepSize) {
+        if (compactionStepSize < 0) {
+            throw new IllegalArgumentException(compactionStepSize + "");
+        }
+        this.compactionStepSize = compactionStepSize;
+    }
+
+    public long getCompactionPauseBudgetNanos() {
+        return compactionPauseBudgetNanos;
+    }
+
+    /**
+     * A compaction step ends as soon as it holds the lock for more than the given time
+     *
+     * @param compactionPauseBudgetNanos
+     */
+    public void setCompactionPauseBudgetNanos(long compactionPauseBudgetNanos) {
+        if (compactionPauseBudgetNanos <= 0) {
+            throw new IllegalArgumentException(compactionPauseBudgetNanos + "");
+        }
+        this.compactionPauseBudgetNanos = compactionPauseBudgetNanos;
+    }
+
+    public int getShrinkThresholdPercent() {
+        return shrinkThresholdPercent;
+    }
+
+    /**
+     * At the end of an incremental compaction pass the heap is shrinked (never below the initial size) if less than
+     * the given percent of the slots is in use
+     *
+     * @param shrinkThresholdPercent
+     */
+    public void setShrinkThresholdPercent(int shrinkThresholdPercent) {
+        if (shrinkThresholdPercent < 0 || shrinkThresholdPercent > 100) {
+            throw new IllegalArgumentException(shrinkThresholdPercent + "");
+        }
+        this.shrinkThresholdPercent = shrinkThresholdPercent;
+    }
+
+    public long getCompactionPasses() {
+        return compactionPasses;
+    }
+
+    public long getCompactionSteps() {
+        return compactionSteps;
+    }
+
+    public long getCompactionStepsOverBudget() {
+        return compactionStepsOverBudget;
+    }
+
+    public long getLastCompactionPauseNanos() {
+        return lastCompactionPauseNanos;
+    }
+
+    public long getMaxCompactionPauseNanos() {
+        return maxCompactionPauseNanos;
+    }
+
+    public long getTotalCompactionPauseNanos() {
+        return totalCompactionPauseNanos;
+    }
+
+    public long getShrinks() {
+        return shrinks;
+    }
+
     public void removeExpiredTasks(Set<Long> taskid) {
         lock.writeLock().lock();
         try {
-            for (TaskEntry entry : actuallist) {
-                if (taskid.contains(entry.taskid)) {
-                    entry.taskid = 0;
-                    entry.tasktype = 0;
-                    entry.userid = null;
-                    entry.groupid = 0;
-                    entry.resources = null;
-                }
+            for (long id : taskid) {
+                removeTaskAtPosition(id);
             }
         } finally {
             lock.writeLock().unlock();
         }
     }
 
+    /**
+     * Removes a waiting task from the heap
+     *
+     * @param taskid
+     * @return true if the task was waiting in the heap
+     */
+    public boolean removeTask(long taskid) {
+        lock.writeLock().lock();
+        try {
+            return removeTaskAtPosition(taskid);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean removeTaskAtPosition(long taskid) {
+        // this method must be invoked inside a writeLock
+        int position = positionsByTaskId.remove(taskid);
+        if (position < 0 || actuallist.getTaskId(position) != taskid) {
+            return false;
+        }
+        actuallist.clear(position);
+        fragmentation.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Position of a waiting task inside the heap
+     *
+     * @param taskid
+     * @return the position, or -1 if the task is not waiting in the heap
+     */
+    public int getTaskPosition(long taskid) {
+        lock.writeLock().lock();
+        try {
+            int position = positionsByTaskId.get(taskid);
+            if (position < 0 || actuallist.getTaskId(position) != taskid) {
+                return -1;
+            }
+            return position;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
     private final Map<String, Integer> taskTypesIds = new HashMap<>();
     private final Map<Integer, String> taskTypes = new HashMap<>();
     private int newIdtaskType = 0;
 
     private void doAutoGrow() {
-        int delta = (int) (((actuallist.length * 1L * autoGrowPercent)) / 100);
+        doAutoGrow(actuallist.capacity() + 1);
+    }
+
+    private void doAutoGrow(int requiredSize) {
+        int delta = (int) (((actuallist.capacity() * 1L * autoGrowPercent)) / 100);
         if (delta <= 0) {
             // be sure taht we always increment by one, in tore to have space for a new task
             delta = 1;
         }
-        int newSize = actuallist.length + delta;
+        int newSize = Math.max(actuallist.capacity() + delta, requiredSize);
         LOGGER.log(Level.INFO, "doAutoGrow size {0}, newsize {1}", new Object[]{size, newSize});
-        TaskEntry[] newList = new TaskEntry[newSize];
-        System.arraycopy(actuallist, 0, newList, 0, actuallist.length);
-        for (int i = actuallist.length; i < newList.length; i++) {
-            newList[i] = new TaskEntry(0, 0, null, 0, null);
-        }
-        this.size = newList.length;
-        this.actuallist = newList;
+        actuallist.resize(newSize);
+        this.size = newSize;
+    }
+
+    private volatile TasksHeapListener listener;
+
+    public TasksHeapListener getListener() {
+        return listener;
+    }
+
+    public void setListener(TasksHeapListener listener) {
+        this.listener = listener;
     }
 
     public void insertTask(long taskid, String tasktype, String userid) {
@@ -157,21 +361,101 @@ public class TasksHeap {
             if (actualsize == size) {
                 doAutoGrow();
             }
-            Integer taskTypeId = taskTypesIds.get(tasktype);
-            if (taskTypeId == null) {
-                taskTypeId = ++newIdtaskType;
-                taskTypesIds.put(tasktype, taskTypeId);
-                taskTypes.put(taskTypeId, tasktype);
-            }
-            TaskEntry entry = this.actuallist[actualsize++];
-            entry.taskid = taskid;
-            entry.tasktype = taskTypeId;
-            entry.userid = userid;
-            entry.groupid = groupid;
-            entry.resources = resources;
+            int taskTypeId = resolveTaskTypeId(tasktype);
+            int position = actualsize++;
+            actuallist.set(position, taskid, taskTypeId, userid, groupid, resources);
+            indexTask(position, taskTypeId, groupid);
+            positionsByTaskId.put(taskid, position);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        TasksHeapListener _listener = listener;
+        if (_listener != null) {
+            _listener.tasksAvailable(tasktype, groupid);
+        }
+    }
+
+    /**
+     * Inserts a batch of tasks, preserving the order of the collection. Task properties are computed before acquiring
+     * the lock and the whole batch is published with a single acquisition of the lock
+     *
+     * @param tasks
+     */
+    public void insertTasks(Collection<Task> tasks) {
+        int count = tasks.size();
+        if (count == 0) {
+            return;
+        }
+        long[] taskids = new long[count];
+        String[] tasktypes = new String[count];
+        String[] userids = new String[count];
+        int[] groupids = new int[count];
+        String[][] resourceIds = new String[count][];
+        int i = 0;
+        for (Task task : tasks) {
+            TaskProperties taskProperties = resourceMapper.getTaskProperties(task.getTaskId(), task.getType(), task.getUserId());
+            taskids[i] = task.getTaskId();
+            tasktypes[i] = task.getType();
+            userids[i] = task.getUserId();
+            groupids[i] = taskProperties.groupId;
+            resourceIds[i] = taskProperties.resources;
+            i++;
+        }
+        lock.writeLock().lock();
+        try {
+            if (actualsize + count > size) {
+                doAutoGrow(actualsize + count);
+            }
+            // mapper functions usually return the same array for many tasks, this way we are going to pool each array only once
+            Map<String[], int[]> resourcesByArray = new IdentityHashMap<>();
+            String lastTaskType = null;
+            int lastTaskTypeId = 0;
+            for (i = 0; i < count; i++) {
+                String[] taskResourceIds = resourceIds[i];
+                int[] resources = null;
+                if (taskResourceIds != null) {
+                    resources = resourcesByArray.get(taskResourceIds);
+                    if (resources == null) {
+                        resources = convertResourceList(taskResourceIds);
+                        if (resources != null) {
+                            resourcesByArray.put(taskResourceIds, resources);
+                        }
+                    }
+                }
+                String tasktype = tasktypes[i];
+                if (lastTaskType == null || !lastTaskType.equals(tasktype)) {
+                    lastTaskTypeId = resolveTaskTypeId(tasktype);
+                    lastTaskType = tasktype;
+                }
+                int position = actualsize++;
+                actuallist.set(position, taskids[i], lastTaskTypeId, userids[i], groupids[i], resources);
+                indexTask(position, lastTaskTypeId, groupids[i]);
+                positionsByTaskId.put(taskids[i], position);
+            }
         } finally {
             lock.writeLock().unlock();
         }
+        TasksHeapListener _listener = listener;
+        if (_listener != null) {
+            // notify each (tasktype, group) only once
+            Map<String, Set<Integer>> notified = new HashMap<>();
+            for (i = 0; i < count; i++) {
+                if (notified.computeIfAbsent(tasktypes[i], k -> new HashSet<>()).add(groupids[i])) {
+                    _listener.tasksAvailable(tasktypes[i], groupids[i]);
+                }
+            }
+        }
+    }
+
+    private int resolveTaskTypeId(String tasktype) {
+        // this method must be invoked inside a writeLock
+        Integer taskTypeId = taskTypesIds.get(tasktype);
+        if (taskTypeId == null) {
+            taskTypeId = ++newIdtaskType;
+            taskTypesIds.put(tasktype, taskTypeId);
+            taskTypes.put(taskTypeId, tasktype);
+        }
+        return taskTypeId;
     }
 
     String resolveTaskType(int tasktype) {
@@ -214,7 +498,7 @@ public class TasksHeap {
 
     public static final class TaskEntry {
 
-        public long taskid;
+        public volatile long taskid;
         public int tasktype;
         public String userid;
         public int groupid;
@@ -235,13 +519,130 @@ public class TasksHeap {
 
     }
 
+    /**
+     * Positions of the tasks of a given tasktype and group. Positions are appended in ascending order, slots which
+     * have been emptied are skipped lazily and discarded at the next compaction.
+     */
+    private static final class TasksBucket {
+
+        final int tasktype;
+        final int groupid;
+        int[] positions = new int[16];
+        int head;
+        int tail;
+
+        TasksBucket(int tasktype, int groupid) {
+            this.tasktype = tasktype;
+            this.groupid = groupid;
+        }
+
+        void add(int position) {
+            if (tail == positions.length) {
+                int live = tail - head;
+                if (head > positions.length / 2) {
+                    System.arraycopy(positions, head, positions, 0, live);
+                } else {
+                    int[] newPositions = new int[positions.length * 2];
+                    System.arraycopy(positions, head, newPositions, 0, live);
+                    positions = newPositions;
+                }
+                head = 0;
+                tail = live;
+            }
+            positions[tail++] = position;
+        }
+
+        boolean isEmpty() {
+            return head == tail;
+        }
+
+        /**
+         * Index of the first entry whose position is not less than the given one, positions are sorted
+         */
+        int lowerBound(int position) {
+            int low = head;
+            int high = tail;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (positions[mid] < position) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        boolean matches(TasksHeapStorage storage, int position) {
+            return storage.getTaskId(position) > 0
+                && storage.getTaskType(position) == tasktype
+                && storage.getGroupId(position) == groupid;
+        }
+
+    }
+
+    /**
+     * Cursor on a bucket, used to merge buckets in position order
+     */
+    private static final class BucketCursor {
+
+        final TasksBucket bucket;
+        int index;
+
+        BucketCursor(TasksBucket bucket, int index) {
+            this.bucket = bucket;
+            this.index = index;
+        }
+
+        int position() {
+            return bucket.positions[index];
+        }
+
+    }
+
+    private void indexTask(int position, int tasktype, int groupid) {
+        indexTask(buckets, position, tasktype, groupid);
+    }
+
+    private static void indexTask(Map<Integer, Map<Integer, TasksBucket>> index, int position, int tasktype, int groupid) {
+        // this method must be invoked inside a writeLock
+        Map<Integer, TasksBucket> byGroup = index.get(tasktype);
+        if (byGroup == null) {
+            byGroup = new HashMap<>();
+            index.put(tasktype, byGroup);
+        }
+        TasksBucket bucket = byGroup.get(groupid);
+        if (bucket == null) {
+            bucket = new TasksBucket(tasktype, groupid);
+            byGroup.put(groupid, bucket);
+        }
+        bucket.add(position);
+    }
+
+    private void rebuildIndex() {
+        // this method must be invoked inside a writeLock
+        buckets.clear();
+        for (int i = minValidPosition; i < actualsize; i++) {
+            if (actuallist.getTaskId(i) > 0) {
+                indexTask(i, actuallist.getTaskType(i), actuallist.getGroupId(i));
+            }
+        }
+        if (compactionInProgress) {
+            compactedBuckets.clear();
+            for (int i = 0; i < compactionWritePos; i++) {
+                if (actuallist.getTaskId(i) > 0) {
+                    indexTask(compactedBuckets, i, actuallist.getTaskType(i), actuallist.getGroupId(i));
+                }
+            }
+        }
+    }
+
     public void scan(Consumer<TaskEntry> consumer) {
         lock.readLock().lock();
         try {
             for (int i = minValidPosition; i < actualsize; i++) {
-                TaskEntry entry = this.actuallist[i];
-                if (entry.taskid > 0) {
-                    consumer.accept(entry);
+                if (actuallist.getTaskId(i) > 0) {
+                    consumer.accept(actuallist.getEntry(i));
                 }
             }
         } finally {
@@ -253,50 +654,134 @@ public class TasksHeap {
         lock.readLock().lock();
         try {
             for (int i = 0; i < actualsize; i++) {
-                TaskEntry entry = this.actuallist[i];
-                consumer.accept(entry);
+                consumer.accept(actuallist.getEntry(i));
             }
         } finally {
             lock.readLock().unlock();
         }
     }
 
-    public void recomputeGroups() {
+    /**
+     * Maps again the properties of the waiting tasks. When the mapper is a {@link CachingTaskPropertiesMapperFunction}
+     * only the tasks of the (tasktype, userid) pairs whose properties changed are updated
+     *
+     * @return true if the group or the resources of at least a task changed, so that workers may accept it now
+     */
+    public boolean recomputeGroups() {
+        if (resourceMapper instanceof CachingTaskPropertiesMapperFunction) {
+            // the mapper is invoked outside the lock
+            Map<TaskTypeUser, TaskProperties> changed = ((CachingTaskPropertiesMapperFunction) resourceMapper).refresh();
+            if (changed != null) {
+                if (!changed.isEmpty()) {
+                    return updateTaskProperties(changed);
+                }
+                return false;
+            }
+        }
         lock.writeLock().lock();
         try {
+            boolean propertiesChanged = false;
+            boolean groupsChanged = false;
             for (int i = minValidPosition; i < actualsize; i++) {
-                TaskEntry entry = this.actuallist[i];
-                if (entry.taskid > 0) {
-                    TaskProperties taskProperties = resourceMapper.getTaskProperties(entry.taskid, taskTypes.get(entry.tasktype), entry.userid);
+                long taskid = actuallist.getTaskId(i);
+                if (taskid > 0) {
+                    TaskProperties taskProperties = resourceMapper.getTaskProperties(taskid, taskTypes.get(actuallist.getTaskType(i)), actuallist.getUserId(i));
                     int newGroup = taskProperties.groupId;
                     int[] resources = convertResourceList(taskProperties.resources);
+                    int actualGroup = actuallist.getGroupId(i);
                     // we can compare the "resources" array using the reference because we are pooling them
-                    if (entry.groupid != newGroup || entry.resources != resources) {
+                    if (actualGroup != newGroup || actuallist.getResources(i) != resources) {
                         // let's limit writes on memory, most often group/resources does not change
-                        entry.groupid = newGroup;
-                        entry.resources = resources;
+                        propertiesChanged = true;
+                        groupsChanged |= actualGroup != newGroup;
+                        actuallist.setGroupAndResources(i, newGroup, resources);
                     }
                 }
             }
+            if (groupsChanged) {
+                rebuildIndex();
+            }
+            return propertiesChanged;
         } finally {
             lock.writeLock().unlock();
         }
     }
 
+    private static final int PROPERTIES_CHANGED = 1;
+    private static final int GROUPS_CHANGED = 2;
+
+    private boolean updateTaskProperties(Map<TaskTypeUser, TaskProperties> changed) {
+        lock.writeLock().lock();
+        try {
+            Map<Integer, Map<String, TaskProperties>> changedByTaskType = new HashMap<>();
+            for (Map.Entry<TaskTypeUser, TaskProperties> entry : changed.entrySet()) {
+                Integer tasktype = taskTypesIds.get(entry.getKey().taskType);
+                if (tasktype != null) {
+                    changedByTaskType.computeIfAbsent(tasktype, k -> new HashMap<>())
+                        .put(entry.getKey().userId, entry.getValue());
+                }
+            }
+            int changes = 0;
+            // only the buckets of the affected tasktypes are visited
+            for (Map.Entry<Integer, Map<String, TaskProperties>> entry : changedByTaskType.entrySet()) {
+                changes |= updateTaskProperties(buckets.get(entry.getKey()), entry.getKey(), entry.getValue());
+                if (compactedBuckets != null) {
+                    changes |= updateTaskProperties(compactedBuckets.get(entry.getKey()), entry.getKey(), entry.getValue());
+                }
+            }
+            if ((changes & GROUPS_CHANGED) != 0) {
+                rebuildIndex();
+            }
+            return changes != 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return a combination of {@link #PROPERTIES_CHANGED} and {@link #GROUPS_CHANGED}
+     */
+    private int updateTaskProperties(Map<Integer, TasksBucket> byGroup, int tasktype, Map<String, TaskProperties> changedByUser) {
+        if (byGroup == null) {
+            return 0;
+        }
+        int changes = 0;
+        for (TasksBucket bucket : byGroup.values()) {
+            for (int i = bucket.head; i < bucket.tail; i++) {
+                int pos = bucket.positions[i];
+                if (actuallist.getTaskId(pos) <= 0 || actuallist.getTaskType(pos) != tasktype) {
+                    continue;
+                }
+                TaskProperties taskProperties = changedByUser.get(actuallist.getUserId(pos));
+                if (taskProperties == null) {
+                    continue;
+                }
+                int newGroup = taskProperties.groupId;
+                int[] resources = convertResourceList(taskProperties.resources);
+                int actualGroup = actuallist.getGroupId(pos);
+                if (actualGroup != newGroup || actuallist.getResources(pos) != resources) {
+                    changes |= actualGroup != newGroup ? PROPERTIES_CHANGED | GROUPS_CHANGED : PROPERTIES_CHANGED;
+                    actuallist.setGroupAndResources(pos, newGroup, resources);
+                }
+            }
+        }
+        return changes;
+    }
+
     public void runCompaction() {
         LOGGER.log(Level.FINEST, "running compaction,"
-            + "fragmentation " + fragmentation + ", actualsize " + actualsize
+            + "fragmentation " + fragmentation.get() + ", actualsize " + actualsize
             + ", size " + size + ", minValidPosition " + minValidPosition);
         lock.writeLock().lock();
+        long start = System.nanoTime();
         try {
+            abortCompactionPass();
             int[] nonemptypositions = new int[size];
             int insertpos = 0;
-            int pos = 0;
-            for (TaskEntry entry : actuallist) {
-                if (entry.taskid > 0) {
+            for (int pos = 0; pos < size; pos++) {
+                if (actuallist.getTaskId(pos) > 0) {
                     nonemptypositions[insertpos++] = pos + 1; // NOTE_A: 0 means "empty", so we are going to add "+1" to every position
                 }
-                pos++;
             }
             int writepos = 0;
             for (int nonemptyindex = 0; nonemptyindex < size; nonemptyindex++) {
@@ -305,38 +790,134 @@ public class TasksHeap {
                     break;
                 }
                 nextnotempty = nextnotempty - 1; // see NOTE_A
-                actuallist[writepos].taskid = actuallist[nextnotempty].taskid;
-                actuallist[writepos].tasktype = actuallist[nextnotempty].tasktype;
-                actuallist[writepos].userid = actuallist[nextnotempty].userid;
-                actuallist[writepos].groupid = actuallist[nextnotempty].groupid;
-                actuallist[writepos].resources = actuallist[nextnotempty].resources;
+                actuallist.move(nextnotempty, writepos);
+                positionsByTaskId.put(actuallist.getTaskId(writepos), writepos);
                 writepos++;
             }
             for (int j = writepos; j < size; j++) {
-                actuallist[j].taskid = 0;
-                actuallist[j].tasktype = 0;
-                actuallist[j].userid = null;
-                actuallist[j].groupid = 0;
-                actuallist[j].resources = null;
+                actuallist.clear(j);
             }
 
             minValidPosition = 0;
             actualsize = writepos + 1;
-            fragmentation = 0;
-            LOGGER.log(Level.FINEST, "after compaction, fragmentation " + fragmentation + ", actualsize " + actualsize + ", size " + size + ", minValidPosition " + minValidPosition);
+            fragmentation.set(0);
+            rebuildIndex();
+            LOGGER.log(Level.FINEST, "after compaction, fragmentation " + fragmentation.get() + ", actualsize " + actualsize + ", size " + size + ", minValidPosition " + minValidPosition);
+            compactionPasses++;
+        } finally {
+            recordCompactionPause(System.nanoTime() - start);
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Runs a step of incremental compaction. A new compaction pass is started if the heap is fragmented or if it could
+     * be shrinked. Entries are moved towards the beginning of the heap preserving their order, every step holds the
+     * lock for at most {@link #getCompactionStepSize() } slots or {@link #getCompactionPauseBudgetNanos() }.
+     *
+     * @return true if the compaction pass is still in progress and another step should follow
+     */
+    public boolean runCompactionStep() {
+        int stepSize = compactionStepSize > 0 ? compactionStepSize : Integer.MAX_VALUE;
+        lock.writeLock().lock();
+        long start = System.nanoTime();
+        try {
+            if (!compactionInProgress) {
+                if (fragmentation.get() <= maxFragmentation && !isShrinkable()) {
+                    return false;
+                }
+                startCompactionPass();
+            }
+            int visited = 0;
+            while (compactionReadPos < actualsize && visited < stepSize) {
+                int pos = compactionReadPos++;
+                if (actuallist.getTaskId(pos) > 0) {
+                    int writepos = compactionWritePos++;
+                    if (pos != writepos) {
+                        actuallist.move(pos, writepos);
+                        actuallist.clear(pos);
+                        positionsByTaskId.put(actuallist.getTaskId(writepos), writepos);
+                    }
+                    indexTask(compactedBuckets, writepos, actuallist.getTaskType(writepos), actuallist.getGroupId(writepos));
+                } else {
+                    actuallist.clear(pos);
+                }
+                if ((++visited & 0xFF) == 0 && System.nanoTime() - start > compactionPauseBudgetNanos) {
+                    break;
+                }
+            }
+            compactionSteps++;
+            if (compactionReadPos < actualsize) {
+                return true;
+            }
+            finishCompactionPass();
+            return false;
         } finally {
+            recordCompactionPause(System.nanoTime() - start);
             lock.writeLock().unlock();
         }
     }
 
+    private boolean isShrinkable() {
+        return size > initialSize && actualsize * 100L < size * (long) shrinkThresholdPercent;
+    }
+
+    private void startCompactionPass() {
+        // this method must be invoked inside a writeLock
+        LOGGER.log(Level.FINEST, "starting compaction pass, fragmentation {0}, actualsize {1}, size {2}",
+            new Object[]{fragmentation.get(), actualsize, size});
+        compactionInProgress = true;
+        compactionReadPos = 0;
+        compactionWritePos = 0;
+        compactedBuckets = new HashMap<>();
+        // entries are going to be moved below minValidPosition
+        minValidPosition = 0;
+    }
+
+    private void finishCompactionPass() {
+        // this method must be invoked inside a writeLock
+        int reclaimed = actualsize - compactionWritePos;
+        actualsize = compactionWritePos;
+        buckets.clear();
+        buckets.putAll(compactedBuckets);
+        abortCompactionPass();
+        fragmentation.updateAndGet(f -> Math.max(0, f - reclaimed));
+        compactionPasses++;
+        if (isShrinkable()) {
+            int newSize = Math.max(initialSize, (int) (actualsize + (actualsize * 1L * autoGrowPercent) / 100) + 1);
+            LOGGER.log(Level.INFO, "shrink size {0}, newsize {1}", new Object[]{size, newSize});
+            actuallist.resize(newSize);
+            size = newSize;
+            shrinks++;
+        }
+        LOGGER.log(Level.FINEST, "compaction pass finished, reclaimed {0}, actualsize {1}, size {2}",
+            new Object[]{reclaimed, actualsize, size});
+    }
+
+    private void abortCompactionPass() {
+        compactionInProgress = false;
+        compactedBuckets = null;
+    }
+
+    private void recordCompactionPause(long pause) {
+        // this method must be invoked inside a writeLock
+        lastCompactionPauseNanos = pause;
+        totalCompactionPauseNanos += pause;
+        if (pause > maxCompactionPauseNanos) {
+            maxCompactionPauseNanos = pause;
+        }
+        if (compactionStepSize > 0 && pause > compactionPauseBudgetNanos) {
+            compactionStepsOverBudget++;
+        }
+    }
+
     public List<AssignedTask> takeTasks(int max, List<Integer> groups, Set<Integer> excludedGroups, Map<String, Integer> availableSpace,
         Map<String, Integer> workerResourceLimits, ResourceUsageCounters workerResourceUsageCounters,
         Map<String, Integer> globalResourceLimits, ResourceUsageCounters globalResourceUsageCounters,
         Map<TaskTypeUser, IntCounter> availableSpacePerUser, int maxThreadPerUserPerTaskTypePercent) {
-        Map<Integer, Integer> availableSpaceByTaskTaskId = new HashMap<>();
-        Integer forAny = availableSpace.get(Task.TASKTYPE_ANY);
-        if (forAny != null) {
-            availableSpaceByTaskTaskId.put(TasksHeap.TASKTYPE_ANYTASK, forAny);
+        if (concurrentClaim) {
+            return takeTasksConcurrently(max, groups, excludedGroups, availableSpace, workerResourceLimits, workerResourceUsageCounters,
+                globalResourceLimits, globalResourceUsageCounters, availableSpacePerUser, maxThreadPerUserPerTaskTypePercent);
         }
 
         Map<Integer, IntCounter> availableResourcesCounters = new HashMap<>();
@@ -356,60 +937,405 @@ public class TasksHeap {
                 computeAvailableResources(globalResourceLimits, availableResourcesCounters, globalResourceUsageCounters);
             }
 
-            for (Map.Entry<String, Integer> entry : availableSpace.entrySet()) {
-                Integer typeId = taskTypesIds.get(entry.getKey());
-                if (typeId != null) {
-                    availableSpaceByTaskTaskId.put(typeId, entry.getValue());
+            TasksChooser chooser = new TasksChooser(groups, excludedGroups, mapAvailableSpace(availableSpace), availableResourcesCounters, max,
+                mapAvailableSpacePerUser(availableSpacePerUser), maxThreadPerUserPerTaskTypePercent, CHOOSER_RECYCLER.get());
+            List<AssignedTask> result;
+            try {
+                chooseFromIndex(chooser, true);
+                List<TasksChooser.Entry> choosen = chooser.getChoosenTasks();
+                if (choosen.isEmpty()) {
+                    return Collections.emptyList();
                 }
-            }
-            Map<TasksChooser.IntTaskTypeUser, IntCounter> _availableSpacePerUser = null;
-
-            if (availableSpacePerUser != null) {
-                _availableSpacePerUser = new HashMap<>(availableSpacePerUser.size());
-                for (Map.Entry<TaskTypeUser, IntCounter> entry : availableSpacePerUser.entrySet()) {
-                    TaskTypeUser taskTypeUser = entry.getKey();
-                    Integer typeId = taskTypesIds.get(taskTypeUser.taskType);
-                    if (typeId != null) {
-                        _availableSpacePerUser.put(new TasksChooser.IntTaskTypeUser(typeId, taskTypeUser.userId), entry.getValue());
+                result = new ArrayList<>(choosen.size());
+                for (TasksChooser.Entry choosenentry : choosen) {
+                    AssignedTask assigned = removeChoosenTask(choosenentry);
+                    if (assigned != null) {
+                        result.add(assigned);
                     }
                 }
+            } finally {
+                chooser.release();
+            }
+            if (compactionStepSize == 0 && this.fragmentation.get() > maxFragmentation) {
+                runCompaction();
+            }
+            return result;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+    }
+
+    private AssignedTask removeChoosenTask(TasksChooser.Entry choosenentry) {
+        // this method must be invoked inside a writeLock
+        int pos = choosenentry.position;
+        if (actuallist.getTaskId(pos) != choosenentry.taskid) {
+            return null;
+        }
+        actuallist.clearTask(pos);
+        positionsByTaskId.remove(choosenentry.taskid);
+        this.fragmentation.incrementAndGet();
+        int[] resources = actuallist.getResources(pos);
+        if (pos == minValidPosition && !compactionInProgress) {
+            minValidPosition++;
+        }
+        return new AssignedTask(choosenentry.taskid, convertResourceListToIds(resources), convertResourceListString(resources));
+    }
+
+    /**
+     * Assigns tasks to many workers with a single pass over the heap. Each worker gets tasks according to its own
+     * groups, resource limits and per-user limits, a task is offered to the workers in turn until one of them accepts
+     * it. A task accepted by a worker and later discarded in favour of a task with higher priority will not be
+     * assigned in this round.<br>
+     * The result is set on each request, see {@link WorkerTasksRequest#getAssignedTasks()}
+     *
+     * @param requests
+     * @param globalResourceLimits
+     * @param globalResourceUsageCounters
+     */
+    public void takeTasksForWorkers(List<WorkerTasksRequest> requests,
+        Map<String, Integer> globalResourceLimits, ResourceUsageCounters globalResourceUsageCounters) {
+        int count = requests.size();
+        if (count == 0) {
+            return;
+        }
+        boolean hasGlobalLimits = globalResourceLimits != null && !globalResourceLimits.isEmpty();
+        List<Map<Integer, IntCounter>> availableResourcesByWorker = new ArrayList<>(count);
+        for (WorkerTasksRequest request : requests) {
+            Map<Integer, IntCounter> availableResourcesCounters = new HashMap<>();
+            request.workerResourceUsageCounters.updateResourceCounters();
+            if (request.workerResourceLimits != null && !request.workerResourceLimits.isEmpty()) {
+                computeAvailableResources(request.workerResourceLimits, availableResourcesCounters, request.workerResourceUsageCounters);
             }
+            availableResourcesByWorker.add(availableResourcesCounters);
+        }
 
-            TasksChooser chooser = new TasksChooser(groups, excludedGroups, availableSpaceByTaskTaskId, availableResourcesCounters, max,
-                _availableSpacePerUser, maxThreadPerUserPerTaskTypePercent);
-            for (int i = minValidPosition; i < actualsize; i++) {
-                TaskEntry entry = this.actuallist[i];
-                if (entry.taskid > 0) {
-                    chooser.accept(i, entry);
-                }
-            }
-            List<TasksChooser.Entry> choosen = chooser.getChoosenTasks();
-            if (choosen.isEmpty()) {
-                return Collections.emptyList();
-            }
-            List<AssignedTask> result = new ArrayList<>();
-            for (TasksChooser.Entry choosenentry : choosen) {
-                int pos = choosenentry.position;
-                TaskEntry entry = this.actuallist[pos];
-                if (entry.taskid == choosenentry.taskid) {
-                    entry.taskid = 0;
-                    entry.tasktype = 0;
-                    entry.userid = null;
-                    this.fragmentation++;
-                    result.add(new AssignedTask(choosenentry.taskid, convertResourceListToIds(entry.resources), convertResourceListString(entry.resources)));
-                    if (pos == minValidPosition) {
-                        minValidPosition++;
+        lock.writeLock().lock();
+        try {
+            // global counters but be modified only inside this "global" lock
+            globalResourceUsageCounters.updateResourceCounters();
+            Map<Integer, IntCounter> globalAvailableResources = new HashMap<>();
+            if (hasGlobalLimits) {
+                computeAvailableResources(globalResourceLimits, globalAvailableResources, globalResourceUsageCounters);
+            }
+            TasksChooser.Recycler recycler = CHOOSER_RECYCLER.get();
+            TasksChooser[] choosers = new TasksChooser[count];
+            try {
+                for (int i = 0; i < count; i++) {
+                    WorkerTasksRequest request = requests.get(i);
+                    Map<Integer, IntCounter> availableResourcesCounters = availableResourcesByWorker.get(i);
+                    if (hasGlobalLimits) {
+                        computeAvailableResources(globalResourceLimits, availableResourcesCounters, globalResourceUsageCounters);
+                    }
+                    choosers[i] = new TasksChooser(request.groups, request.excludedGroups, mapAvailableSpace(request.availableSpace),
+                        availableResourcesCounters, request.max, mapAvailableSpacePerUser(request.availableSpacePerUser),
+                        request.maxThreadPerUserPerTaskTypePercent, recycler);
+                }
+                chooseFromIndex(choosers);
+                for (int i = 0; i < count; i++) {
+                    List<TasksChooser.Entry> choosen = choosers[i].getChoosenTasks();
+                    if (choosen.isEmpty()) {
+                        continue;
+                    }
+                    List<AssignedTask> result = new ArrayList<>(choosen.size());
+                    for (TasksChooser.Entry choosenentry : choosen) {
+                        // every worker sees all of the globally available resources, they are actually shared
+                        if (hasGlobalLimits && !useGlobalResources(choosenentry.resources, globalAvailableResources)) {
+                            continue;
+                        }
+                        AssignedTask assigned = removeChoosenTask(choosenentry);
+                        if (assigned != null) {
+                            result.add(assigned);
+                        }
+                    }
+                    requests.get(i).setAssignedTasks(result);
+                }
+            } finally {
+                for (TasksChooser chooser : choosers) {
+                    if (chooser != null) {
+                        chooser.release();
                     }
                 }
             }
-            if (this.fragmentation > maxFragmentation) {
+            if (compactionStepSize == 0 && this.fragmentation.get() > maxFragmentation) {
                 runCompaction();
             }
-            return result;
         } finally {
             lock.writeLock().unlock();
         }
+    }
+
+    private static boolean useGlobalResources(int[] resources, Map<Integer, IntCounter> globalAvailableResources) {
+        if (resources == null) {
+            return true;
+        }
+        for (int resource : resources) {
+            IntCounter available = globalAvailableResources.get(resource);
+            if (available != null && available.count <= 0) {
+                return false;
+            }
+        }
+        for (int resource : resources) {
+            IntCounter available = globalAvailableResources.get(resource);
+            if (available != null) {
+                available.count--;
+            }
+        }
+        return true;
+    }
+
+    private List<AssignedTask> takeTasksConcurrently(int max, List<Integer> groups, Set<Integer> excludedGroups, Map<String, Integer> availableSpace,
+        Map<String, Integer> workerResourceLimits, ResourceUsageCounters workerResourceUsageCounters,
+        Map<String, Integer> globalResourceLimits, ResourceUsageCounters globalResourceUsageCounters,
+        Map<TaskTypeUser, IntCounter> availableSpacePerUser, int maxThreadPerUserPerTaskTypePercent) {
+
+        // takeTasks for a single worker is guaranteed to be executed not concurrently
+        workerResourceUsageCounters.updateResourceCounters();
+        List<AssignedTask> result = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (int attempt = 1; attempt <= MAX_CLAIM_ATTEMPTS; attempt++) {
+                // as in the locked path, limits are known before choosing
+                Map<Integer, IntCounter> availableResourcesCounters = computeAvailableResourcesForClaim(workerResourceLimits,
+                    workerResourceUsageCounters, globalResourceLimits, globalResourceUsageCounters);
+                TasksChooser chooser = new TasksChooser(groups, excludedGroups, mapAvailableSpace(availableSpace), availableResourcesCounters, max,
+                    mapAvailableSpacePerUser(availableSpacePerUser), maxThreadPerUserPerTaskTypePercent, CHOOSER_RECYCLER.get());
+                int conflicts;
+                try {
+                    chooseFromIndex(chooser, false);
+                    conflicts = claimTasks(chooser.getChoosenTasks(), result);
+                } finally {
+                    chooser.release();
+                }
+                if (!result.isEmpty()) {
+                    claimLock.lock();
+                    try {
+                        forgetPositions(result);
+                    } finally {
+                        claimLock.unlock();
+                    }
+                }
+                if (conflicts == 0 || !result.isEmpty()) {
+                    break;
+                }
+                LOGGER.log(Level.FINER, "all the {0} choosen tasks have been claimed by other workers, attempt {1}", new Object[]{conflicts, attempt});
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (compactionStepSize == 0 && fragmentation.get() > maxFragmentation && lock.writeLock().tryLock()) {
+            try {
+                if (fragmentation.get() > maxFragmentation) {
+                    runCompaction();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        return result;
+    }
+
+    private Map<Integer, IntCounter> computeAvailableResourcesForClaim(
+        Map<String, Integer> workerResourceLimits, ResourceUsageCounters workerResourceUsageCounters,
+        Map<String, Integer> globalResourceLimits, ResourceUsageCounters globalResourceUsageCounters) {
+        // this method must be invoked inside a readLock
+        Map<Integer, IntCounter> availableResourcesCounters = new HashMap<>();
+        claimLock.lock();
+        try {
+            // global counters and resource ids dictionaries must be modified only inside this "global" lock
+            globalResourceUsageCounters.updateResourceCounters();
+            if (workerResourceLimits != null && !workerResourceLimits.isEmpty()) {
+                computeAvailableResources(workerResourceLimits, availableResourcesCounters, workerResourceUsageCounters);
+            }
+            if (globalResourceLimits != null && !globalResourceLimits.isEmpty()) {
+                computeAvailableResources(globalResourceLimits, availableResourcesCounters, globalResourceUsageCounters);
+            }
+        } finally {
+            claimLock.unlock();
+        }
+        return availableResourcesCounters;
+    }
+
+    private void forgetPositions(List<AssignedTask> claimed) {
+        // this method must be invoked inside a readLock, holding the claimLock
+        for (AssignedTask task : claimed) {
+            positionsByTaskId.remove(task.taskid);
+        }
+    }
+
+    private int claimTasks(List<TasksChooser.Entry> choosen, List<AssignedTask> result) {
+        // this method must be invoked inside a readLock
+        int conflicts = 0;
+        for (TasksChooser.Entry choosenentry : choosen) {
+            int pos = choosenentry.position;
+            if (actuallist.claimTask(pos, choosenentry.taskid)) {
+                this.fragmentation.incrementAndGet();
+                int[] resources = actuallist.getResources(pos);
+                result.add(new AssignedTask(choosenentry.taskid, convertResourceListToIds(resources), convertResourceListString(resources)));
+            } else {
+                conflicts++;
+            }
+        }
+        return conflicts;
+    }
+
+    private Map<Integer, Integer> mapAvailableSpace(Map<String, Integer> availableSpace) {
+        Map<Integer, Integer> availableSpaceByTaskTaskId = new HashMap<>();
+        Integer forAny = availableSpace.get(Task.TASKTYPE_ANY);
+        if (forAny != null) {
+            availableSpaceByTaskTaskId.put(TasksHeap.TASKTYPE_ANYTASK, forAny);
+        }
+        for (Map.Entry<String, Integer> entry : availableSpace.entrySet()) {
+            Integer typeId = taskTypesIds.get(entry.getKey());
+            if (typeId != null) {
+                availableSpaceByTaskTaskId.put(typeId, entry.getValue());
+            }
+        }
+        return availableSpaceByTaskTaskId;
+    }
 
+    private Map<TasksChooser.IntTaskTypeUser, IntCounter> mapAvailableSpacePerUser(Map<TaskTypeUser, IntCounter> availableSpacePerUser) {
+        if (availableSpacePerUser == null) {
+            return null;
+        }
+        Map<TasksChooser.IntTaskTypeUser, IntCounter> _availableSpacePerUser = new HashMap<>(availableSpacePerUser.size());
+        for (Map.Entry<TaskTypeUser, IntCounter> entry : availableSpacePerUser.entrySet()) {
+            TaskTypeUser taskTypeUser = entry.getKey();
+            Integer typeId = taskTypesIds.get(taskTypeUser.taskType);
+            if (typeId != null) {
+                // the chooser copies the counters, so they are not modified
+                _availableSpacePerUser.put(new TasksChooser.IntTaskTypeUser(typeId, taskTypeUser.userId), entry.getValue());
+            }
+        }
+        return _availableSpacePerUser;
+    }
+
+    /**
+     * Feeds the chooser only with the tasks it could accept. Eligible buckets are merged in position order, this way
+     * the chooser sees the same sequence of entries it would see on a full scan of the heap, without visiting tasks of
+     * other groups/tasktypes. A bucket is abandoned as soon as the chooser cannot accept any other task from it.
+     *
+     * @param exclusive if the caller holds the writeLock, and so it is allowed to trim the buckets
+     */
+    private void chooseFromIndex(TasksChooser chooser, boolean exclusive) {
+        // this method must be invoked at least inside a readLock, buckets are modified only when holding the writeLock
+        PriorityQueue<BucketCursor> cursors = new PriorityQueue<>((a, b) -> Integer.compare(a.position(), b.position()));
+        // slots which have already been visited by the compaction pass are found only in compactedBuckets
+        addBucketCursors(chooser, buckets, compactionInProgress ? compactionReadPos : 0, exclusive, cursors);
+        if (compactionInProgress) {
+            addBucketCursors(chooser, compactedBuckets, 0, exclusive, cursors);
+        }
+        BucketCursor cursor;
+        while ((cursor = cursors.poll()) != null) {
+            TasksBucket bucket = cursor.bucket;
+            if (chooser.isSaturated(bucket.tasktype, bucket.groupid)) {
+                continue;
+            }
+            int position = cursor.position();
+            // when not exclusive the slot can be claimed concurrently, read the taskid only once
+            long taskid = actuallist.getTaskId(position);
+            if (taskid != 0 && bucket.matches(actuallist, position)) {
+                chooser.accept(position, taskid, bucket.tasktype, actuallist.getUserId(position),
+                    bucket.groupid, actuallist.getResources(position));
+            }
+            if (++cursor.index < bucket.tail) {
+                cursors.add(cursor);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #chooseFromIndex(majordodo.task.TasksChooser, boolean) } but feeds many choosers with a single
+     * merge of the buckets, each task is offered to the choosers in turn, starting from a different one at each task,
+     * until one of them accepts it
+     */
+    private void chooseFromIndex(TasksChooser[] choosers) {
+        // this method must be invoked inside a writeLock
+        PriorityQueue<BucketCursor> cursors = new PriorityQueue<>((a, b) -> Integer.compare(a.position(), b.position()));
+        addBucketCursors(choosers, buckets, compactionInProgress ? compactionReadPos : 0, cursors);
+        if (compactionInProgress) {
+            addBucketCursors(choosers, compactedBuckets, 0, cursors);
+        }
+        int count = choosers.length;
+        int first = 0;
+        BucketCursor cursor;
+        while ((cursor = cursors.poll()) != null) {
+            TasksBucket bucket = cursor.bucket;
+            int position = cursor.position();
+            long taskid = actuallist.getTaskId(position);
+            boolean saturated = true;
+            if (taskid != 0 && bucket.matches(actuallist, position)) {
+                String userid = actuallist.getUserId(position);
+                int[] resources = actuallist.getResources(position);
+                for (int i = 0; i < count; i++) {
+                    TasksChooser chooser = choosers[(first + i) % count];
+                    if (!chooser.isTaskTypeAccepted(bucket.tasktype) || !chooser.isGroupAccepted(bucket.groupid)
+                        || chooser.isSaturated(bucket.tasktype, bucket.groupid)) {
+                        continue;
+                    }
+                    saturated = false;
+                    if (chooser.accept(position, taskid, bucket.tasktype, userid, bucket.groupid, resources)) {
+                        break;
+                    }
+                }
+                first = (first + 1) % count;
+            } else {
+                saturated = false;
+            }
+            if (!saturated && ++cursor.index < bucket.tail) {
+                cursors.add(cursor);
+            }
+        }
+    }
+
+    private void addBucketCursors(TasksChooser[] choosers, Map<Integer, Map<Integer, TasksBucket>> index, int minPosition,
+        PriorityQueue<BucketCursor> cursors) {
+        for (Map.Entry<Integer, Map<Integer, TasksBucket>> byTaskType : index.entrySet()) {
+            for (TasksBucket bucket : byTaskType.getValue().values()) {
+                boolean accepted = false;
+                for (TasksChooser chooser : choosers) {
+                    if (chooser.isTaskTypeAccepted(bucket.tasktype) && chooser.isGroupAccepted(bucket.groupid)) {
+                        accepted = true;
+                        break;
+                    }
+                }
+                if (!accepted) {
+                    continue;
+                }
+                // discard emptied slots at the head of the bucket
+                while (!bucket.isEmpty() && !bucket.matches(actuallist, bucket.positions[bucket.head])) {
+                    bucket.head++;
+                }
+                int start = minPosition > 0 ? bucket.lowerBound(minPosition) : bucket.head;
+                if (start < bucket.tail) {
+                    cursors.add(new BucketCursor(bucket, start));
+                }
+            }
+        }
+    }
+
+    private void addBucketCursors(TasksChooser chooser, Map<Integer, Map<Integer, TasksBucket>> index, int minPosition,
+        boolean exclusive, PriorityQueue<BucketCursor> cursors) {
+        for (Map.Entry<Integer, Map<Integer, TasksBucket>> byTaskType : index.entrySet()) {
+            if (!chooser.isTaskTypeAccepted(byTaskType.getKey())) {
+                continue;
+            }
+            for (TasksBucket bucket : byTaskType.getValue().values()) {
+                if (!chooser.isGroupAccepted(bucket.groupid)) {
+                    continue;
+                }
+                if (exclusive) {
+                    // discard emptied slots at the head of the bucket
+                    while (!bucket.isEmpty() && !bucket.matches(actuallist, bucket.positions[bucket.head])) {
+                        bucket.head++;
+                    }
+                }
+                int start = minPosition > 0 ? bucket.lowerBound(minPosition) : bucket.head;
+                if (start < bucket.tail) {
+                    cursors.add(new BucketCursor(bucket, start));
+                }
+            }
+        }
     }
 
     private void computeAvailableResources(
@@ -0,0 +1,48 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+/**
+ * Memory layout of the entries of the {@link TasksHeap}
+ *
+ * @author enrico.olivelli
+ */
+public enum TasksHeapLayout {
+
+    /**
+     * One object per slot
+     */
+    OBJECTS,
+    /**
+     * Parallel primitive arrays, one per attribute of the task
+     */
+    COLUMNS,
+    /**
+     * Parallel columns allocated outside of the Java heap, useful for very big heaps
+     */
+    OFFHEAP_COLUMNS;
+
+    public static TasksHeapLayout parse(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return OBJECTS;
+        }
+        return TasksHeapLayout.valueOf(value.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+/**
+ * Receives notifications about new tasks available on the {@link TasksHeap}. Notifications are sent outside the locks
+ * of the heap, this listener must be very fast
+ *
+ * @author enrico.olivelli
+ */
+@FunctionalInterface
+public interface TasksHeapListener {
+
+    /**
+     * Tasks of the given type and group have been inserted into the heap
+     *
+     * @param tasktype
+     * @param groupId
+     */
+    public void tasksAvailable(String tasktype, int groupId);
+}
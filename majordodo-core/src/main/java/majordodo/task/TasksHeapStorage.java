@@ -0,0 +1,123 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+/**
+ * Physical storage of the slots of the {@link TasksHeap}. Access to the storage is guarded by the lock of the heap, only
+ * {@link #claimTask(int, long)} can be invoked concurrently.
+ *
+ * @author enrico.olivelli
+ */
+abstract class TasksHeapStorage {
+
+    private static final int CLAIM_STRIPES = 64;
+
+    private final Object[] claimStripes;
+
+    TasksHeapStorage() {
+        this.claimStripes = new Object[CLAIM_STRIPES];
+        for (int i = 0; i < CLAIM_STRIPES; i++) {
+            this.claimStripes[i] = new Object();
+        }
+    }
+
+    static TasksHeapStorage create(TasksHeapLayout layout, int size) {
+        switch (layout) {
+            case OBJECTS:
+                return new ObjectsTasksHeapStorage(size);
+            case COLUMNS:
+                return new ColumnarTasksHeapStorage(size, false);
+            case OFFHEAP_COLUMNS:
+                return new ColumnarTasksHeapStorage(size, true);
+            default:
+                throw new IllegalArgumentException("unsupported layout " + layout);
+        }
+    }
+
+    abstract int capacity();
+
+    /**
+     * Changes the capacity of the storage, preserving the contents of the slots which fit into the new capacity
+     *
+     * @param newCapacity
+     */
+    abstract void resize(int newCapacity);
+
+    abstract long getTaskId(int position);
+
+    abstract int getTaskType(int position);
+
+    abstract int getGroupId(int position);
+
+    abstract String getUserId(int position);
+
+    abstract int[] getResources(int position);
+
+    abstract void set(int position, long taskid, int tasktype, String userid, int groupid, int[] resources);
+
+    abstract void setGroupAndResources(int position, int groupid, int[] resources);
+
+    /**
+     * Marks the slot as empty, the slot retains the resources of the task, which can be still needed by the caller
+     *
+     * @param position
+     */
+    abstract void clearTask(int position);
+
+    /**
+     * Atomically marks the slot as empty, only if it still contains the given task. This method can be invoked
+     * concurrently by many threads holding the shared lock of the heap
+     *
+     * @param position
+     * @param taskid
+     * @return true if the task has been claimed by the caller
+     */
+    boolean claimTask(int position, long taskid) {
+        if (taskid == 0) {
+            return false;
+        }
+        synchronized (claimStripes[position % CLAIM_STRIPES]) {
+            if (getTaskId(position) != taskid) {
+                return false;
+            }
+            clearTask(position);
+            return true;
+        }
+    }
+
+    /**
+     * Resets every attribute of the slot
+     *
+     * @param position
+     */
+    abstract void clear(int position);
+
+    void move(int from, int to) {
+        set(to, getTaskId(from), getTaskType(from), getUserId(from), getGroupId(from), getResources(from));
+    }
+
+    /**
+     * Returns a view of the slot, to be used only for monitoring and tests
+     *
+     * @param position
+     * @return
+     */
+    abstract TasksHeap.TaskEntry getEntry(int position);
+}
@@ -28,6 +28,7 @@ import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -90,16 +91,11 @@ public class WorkerManager {
 
     private void requestNewTasks() {
         long _start = System.currentTimeMillis();
-        int max = this.maxThreads;
         try {
-            Map<String, Integer> availableSpace = new HashMap<>(this.maxThreadsByTaskType);
-            int actuallyRunning = broker.getBrokerStatus().applyRunningTasksFilterToAssignTasksRequest(workerId, availableSpace);
-            LOGGER.log(Level.FINEST, "{0} requestNewTasks actuallyRunning {2} max {3} groups {4},excludedGroups {5} availableSpace {1}, maxThreadsByTaskType {6}, maxThreadPerUserPerTaskTypePercent {7} ",
-                new Object[]{workerId, availableSpace + "", actuallyRunning, max, groups, excludedGroups, maxThreadsByTaskType, maxThreadPerUserPerTaskTypePercent});
-            max = max - actuallyRunning;
+            WorkerTasksRequest request = createTasksRequest();
             List<AssignedTask> tasks;
-            if (max > 0 && !availableSpace.isEmpty()) {
-                tasks = broker.assignTasksToWorker(max, availableSpace, groups, excludedGroups, workerId,
+            if (request != null) {
+                tasks = broker.assignTasksToWorker(request.max, request.availableSpace, groups, excludedGroups, workerId,
                     resourceLimis, resourceUsageCounters, maxThreadPerUserPerTaskTypePercent);
                 tasks.forEach(this::taskAssigned);
             } else {
@@ -115,11 +111,91 @@ public class WorkerManager {
         }
     }
 
+    private WorkerTasksRequest createTasksRequest() {
+        int max = this.maxThreads;
+        Map<String, Integer> availableSpace = new HashMap<>(this.maxThreadsByTaskType);
+        int actuallyRunning = broker.getBrokerStatus().applyRunningTasksFilterToAssignTasksRequest(workerId, availableSpace);
+        LOGGER.log(Level.FINEST, "{0} requestNewTasks actuallyRunning {2} max {3} groups {4},excludedGroups {5} availableSpace {1}, maxThreadsByTaskType {6}, maxThreadPerUserPerTaskTypePercent {7} ",
+            new Object[]{workerId, availableSpace + "", actuallyRunning, max, groups, excludedGroups, maxThreadsByTaskType, maxThreadPerUserPerTaskTypePercent});
+        max = max - actuallyRunning;
+        if (max <= 0 || availableSpace.isEmpty()) {
+            return null;
+        }
+        return new WorkerTasksRequest(workerId, max, groups, excludedGroups, availableSpace,
+            resourceLimis, resourceUsageCounters, maxThreadPerUserPerTaskTypePercent);
+    }
+
+    /**
+     * Prepares a request of new tasks for the batch scheduling round, see {@link Broker#assignTasksToWorkers(java.util.List)}.
+     * This method must be called only when no thread is assigned to this worker
+     *
+     * @return null if the worker is not able to receive new tasks
+     */
+    WorkerTasksRequest prepareTasksRequest() {
+        if (broker.isStopped() || !broker.isWritable()) {
+            return null;
+        }
+        WorkerStatus status = broker.getBrokerStatus().getWorkerStatus(workerId);
+        if (status == null || status.getStatus() != WorkerStatus.STATUS_CONNECTED) {
+            return null;
+        }
+        connectionLock.lock();
+        try {
+            if (connection == null || !connection.validate()) {
+                return null;
+            }
+        } finally {
+            connectionLock.unlock();
+        }
+        return createTasksRequest();
+    }
+
+    /**
+     * Receives the tasks assigned during the batch scheduling round
+     *
+     * @param tasks
+     */
+    void tasksAssigned(List<AssignedTask> tasks) {
+        tasks.forEach(this::taskAssigned);
+        if (!tasks.isEmpty()) {
+            LOGGER.log(Level.FINER, "{0} assigned {1} tasks", new Object[]{workerId, tasks.size()});
+        }
+    }
+
     public Broker getBroker() {
         return broker;
     }
 
     private volatile boolean threadAssigned;
+    private final AtomicBoolean wakeUpRequested = new AtomicBoolean();
+
+    /**
+     * @return true if no other wake up request was pending
+     */
+    boolean requestWakeUp() {
+        return wakeUpRequested.compareAndSet(false, true);
+    }
+
+    void clearWakeUpRequest() {
+        wakeUpRequested.set(false);
+    }
+
+    /**
+     * Checks if this worker is configured to run tasks of the given type and group
+     *
+     * @param tasktype
+     * @param groupId
+     * @return
+     */
+    boolean canAcceptTasks(String tasktype, int groupId) {
+        Map<String, Integer> _maxThreadsByTaskType = maxThreadsByTaskType;
+        if (!_maxThreadsByTaskType.containsKey(tasktype) && !_maxThreadsByTaskType.containsKey(Task.TASKTYPE_ANY)) {
+            return false;
+        }
+        List<Integer> _groups = groups;
+        return _groups.contains(groupId)
+            || (_groups.contains(Task.GROUP_ANY) && !excludedGroups.contains(groupId));
+    }
 
     public boolean isThreadAssigned() {
         return threadAssigned;
@@ -130,22 +206,34 @@ public class WorkerManager {
     }
 
     public Runnable operation() {
+        return operation(true);
+    }
+
+    /**
+     * @param requestNewTasks false if new tasks have already been requested with the batch scheduling round
+     * @return
+     */
+    Runnable operation(boolean requestNewTasks) {
         return new Runnable() {
             @Override
             public void run() {
                 String name = Thread.currentThread().getName();
                 try {
                     Thread.currentThread().setName(name + "_" + workerId);
-                    manageWorker();
+                    manageWorker(requestNewTasks);
                 } finally {
                     Thread.currentThread().setName(name);
                     threadAssigned = false;
+                    if (wakeUpRequested.get()) {
+                        // somebody asked for a wake up while we were working
+                        broker.getWorkers().enqueueWakeUp(WorkerManager.this);
+                    }
                 }
             }
         };
     }
 
-    private void manageWorker() {
+    private void manageWorker(boolean requestNewTasks) {
         if (broker.isStopped() || !broker.isWritable()) {
             return;
         }
@@ -190,7 +278,9 @@ public class WorkerManager {
                     lastActivity = connection.getLastReceivedMessageTs();
                 }
                 LOGGER.log(Level.FINEST, "wakeup {0}, lastActivity {1}  taskToBeSubmittedToRemoteWorker {2} tasksRunningOnRemoteWorker {3}", new Object[]{workerId, new java.util.Date(lastActivity), taskToBeSubmittedToRemoteWorker, tasksRunningOnRemoteWorker});
-                requestNewTasks();
+                if (requestNewTasks) {
+                    requestNewTasks();
+                }
                 int max = 100;
                 while (max-- > 0) {
                     AssignedTask taskToBeSubmitted = taskToBeSubmittedToRemoteWorker.poll();
@@ -214,6 +304,7 @@ public class WorkerManager {
                                         taskToBeSubmittedToRemoteWorker.add(taskToBeSubmitted);
                                     } else {
                                         tasksRunningOnRemoteWorker.add(taskToBeSubmitted.taskid);
+                                        broker.getTaskLatencyTracker().taskDelivered(taskToBeSubmitted.taskid, System.currentTimeMillis());
                                     }
                                 });
                             } else {
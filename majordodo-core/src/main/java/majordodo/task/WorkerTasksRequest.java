@@ -0,0 +1,73 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import majordodo.utils.IntCounter;
+
+/**
+ * Request of new tasks on behalf of a worker, used in order to assign tasks to many workers with a single pass over
+ * the tasksheap
+ *
+ * @author enrico.olivelli
+ */
+public final class WorkerTasksRequest {
+
+    public final String workerId;
+    public final int max;
+    public final List<Integer> groups;
+    public final Set<Integer> excludedGroups;
+    public final Map<String, Integer> availableSpace;
+    public final Map<String, Integer> workerResourceLimits;
+    public final ResourceUsageCounters workerResourceUsageCounters;
+    public final int maxThreadPerUserPerTaskTypePercent;
+    Map<TaskTypeUser, IntCounter> availableSpacePerUser;
+    private List<AssignedTask> assignedTasks = Collections.emptyList();
+
+    public WorkerTasksRequest(String workerId, int max, List<Integer> groups, Set<Integer> excludedGroups,
+        Map<String, Integer> availableSpace, Map<String, Integer> workerResourceLimits,
+        ResourceUsageCounters workerResourceUsageCounters, int maxThreadPerUserPerTaskTypePercent) {
+        this.workerId = workerId;
+        this.max = max;
+        this.groups = groups;
+        this.excludedGroups = excludedGroups;
+        this.availableSpace = availableSpace;
+        this.workerResourceLimits = workerResourceLimits;
+        this.workerResourceUsageCounters = workerResourceUsageCounters;
+        this.maxThreadPerUserPerTaskTypePercent = maxThreadPerUserPerTaskTypePercent;
+    }
+
+    public List<AssignedTask> getAssignedTasks() {
+        return assignedTasks;
+    }
+
+    void setAssignedTasks(List<AssignedTask> assignedTasks) {
+        this.assignedTasks = assignedTasks;
+    }
+
+    @Override
+    public String toString() {
+        return "WorkerTasksRequest{" + "workerId=" + workerId + ", max=" + max + ", groups=" + groups + ", availableSpace=" + availableSpace + '}';
+    }
+
+}
@@ -26,7 +26,9 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
@@ -50,12 +52,18 @@ public class Workers {
     private final Thread workersActivityThread;
     private volatile boolean stop;
     private final ExecutorService workersThreadpool;
+    private final boolean batchScheduling;
 
     private final Object waitForEvent = new Object();
+    private boolean fullSweepRequested;
+    private final Queue<WorkerManager> wakeUpRequests = new ConcurrentLinkedQueue<>();
+    private final long fullSweepPeriod;
 
     public Workers(Broker broker) {
         this.broker = broker;
         this.workersActivityThread = new Thread(new Life(), "workers-life");
+        this.batchScheduling = broker.getConfiguration().isWorkersBatchScheduling();
+        this.fullSweepPeriod = broker.getConfiguration().getWorkersFullSweepPeriod();
         this.workersThreadpool = Executors.newFixedThreadPool(broker.getConfiguration().getWorkersThreadpoolSize(), new ThreadFactory() {
             @Override
             public Thread newThread(Runnable r) {
@@ -119,26 +127,52 @@ public class Workers {
         @Override
         public void run() {
             try {
+                long nextFullSweep = 0;
                 while (!stop) {
+                    boolean fullSweep;
                     synchronized (waitForEvent) {
-                        waitForEvent.wait(500);
+                        long wait = nextFullSweep - System.currentTimeMillis();
+                        if (!fullSweepRequested && wakeUpRequests.isEmpty() && wait > 0) {
+                            waitForEvent.wait(wait);
+                        }
+                        fullSweep = fullSweepRequested || System.currentTimeMillis() >= nextFullSweep;
+                        fullSweepRequested = false;
                     }
                     List<WorkerManager> managers;
-                    lock.readLock().lock();
-                    try {
-                        managers = new ArrayList<>(nodeManagers.values());
-                    } finally {
-                        lock.readLock().unlock();
+                    if (fullSweep) {
+                        nextFullSweep = System.currentTimeMillis() + fullSweepPeriod;
+                        wakeUpRequests.clear();
+                        lock.readLock().lock();
+                        try {
+                            managers = new ArrayList<>(nodeManagers.values());
+                        } finally {
+                            lock.readLock().unlock();
+                        }
+                    } else {
+                        managers = new ArrayList<>();
+                        WorkerManager man;
+                        while ((man = wakeUpRequests.poll()) != null) {
+                            managers.add(man);
+                        }
                     }
                     Collections.shuffle(managers);
+                    List<WorkerManager> ready = new ArrayList<>(managers.size());
                     for (WorkerManager man : managers) {
                         if (!man.isThreadAssigned()) {
+                            // wake up requests received from now on will be served by another round
+                            man.clearWakeUpRequest();
                             man.threadAssigned();
-                            try {
-                                workersThreadpool.submit(man.operation());
-                            } catch (RejectedExecutionException rejected) {
-                                LOGGER.log(Level.SEVERE, "workers manager rejected task", rejected);
-                            }
+                            ready.add(man);
+                        }
+                    }
+                    if (batchScheduling) {
+                        assignTasksInBatch(ready);
+                    }
+                    for (WorkerManager man : ready) {
+                        try {
+                            workersThreadpool.submit(man.operation(!batchScheduling));
+                        } catch (RejectedExecutionException rejected) {
+                            LOGGER.log(Level.SEVERE, "workers manager rejected task", rejected);
                         }
                     }
                 }
@@ -150,12 +184,98 @@ public class Workers {
         }
     }
 
+    private void assignTasksInBatch(List<WorkerManager> managers) {
+        List<WorkerManager> requesting = new ArrayList<>(managers.size());
+        List<WorkerTasksRequest> requests = new ArrayList<>(managers.size());
+        try {
+            for (WorkerManager man : managers) {
+                WorkerTasksRequest request = man.prepareTasksRequest();
+                if (request != null) {
+                    requesting.add(man);
+                    requests.add(request);
+                }
+            }
+            if (requests.isEmpty()) {
+                return;
+            }
+            broker.assignTasksToWorkers(requests);
+            for (int i = 0; i < requests.size(); i++) {
+                requesting.get(i).tasksAssigned(requests.get(i).getAssignedTasks());
+            }
+        } catch (Exception error) {
+            LOGGER.log(Level.SEVERE, "error assigning tasks", error);
+        }
+    }
+
+    /**
+     * Wakes up every worker
+     */
     public void wakeUp() {
+        synchronized (waitForEvent) {
+            fullSweepRequested = true;
+            waitForEvent.notify();
+        }
+    }
+
+    /**
+     * Wakes up a single worker, if a thread is already managing the worker it will be woken up again as soon as the
+     * thread finishes its work. A worker is queued only once until the next round
+     *
+     * @param man
+     */
+    void wakeUp(WorkerManager man) {
+        if (man.requestWakeUp()) {
+            enqueueWakeUp(man);
+        }
+    }
+
+    /**
+     * Queues again a worker whose wake up request is still pending
+     *
+     * @param man
+     */
+    void enqueueWakeUp(WorkerManager man) {
+        wakeUpRequests.add(man);
         synchronized (waitForEvent) {
             waitForEvent.notify();
         }
     }
 
+    /**
+     * Wakes up a single worker
+     *
+     * @param workerId
+     */
+    public void wakeUpWorker(String workerId) {
+        WorkerManager man = getWorkerManagerNoCreate(workerId);
+        if (man != null) {
+            wakeUp(man);
+        }
+    }
+
+    /**
+     * Wakes up only the workers which could accept tasks of the given type and group
+     *
+     * @param tasktype
+     * @param groupId
+     */
+    public void wakeUpForTasks(String tasktype, int groupId) {
+        List<WorkerManager> toWakeUp = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (WorkerManager man : nodeManagers.values()) {
+                if (man.canAcceptTasks(tasktype, groupId)) {
+                    toWakeUp.add(man);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (WorkerManager man : toWakeUp) {
+            wakeUp(man);
+        }
+    }
+
     public WorkerManager getWorkerManagerNoCreate(String id) {
         lock.readLock().lock();
         try {
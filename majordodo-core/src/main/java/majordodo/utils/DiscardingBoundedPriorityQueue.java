@@ -51,6 +51,17 @@ public final class DiscardingBoundedPriorityQueue<E extends Comparable<E>> exten
 		this.maxSize = size;
 	}
 
+	/**
+	 * Checks if the queue reached its bounding size, from now on an element
+	 * will be accepted only if it is bigger than the smallest one.
+	 *
+	 * @return {@code true} if the queue is full
+	 */
+	public boolean isFull()
+	{
+		return this.size() >= maxSize;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * <p>
@@ -0,0 +1,135 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent histogram of non negative values, with log-linear buckets like HdrHistogram: values below 64 are counted
+ * exactly, bigger values fall in one of 32 buckets for each power of two, so that percentiles are reported with a
+ * relative error of about 3%. Memory is constant, whatever the range of the values.
+ *
+ * @author enrico.olivelli
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_BUCKETS = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = LINEAR_BUCKETS + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    static int bucketIndex(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketLowerBound(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        long subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+        return (1L << exponent) | (subBucket << (exponent - SUB_BUCKET_BITS));
+    }
+
+    /**
+     * Records a value, negative values (for instance due to clock adjustments) are recorded as zero
+     *
+     * @param value
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketIndex(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long c = count.sum();
+        return c == 0 ? 0 : (double) sum.sum() / c;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the highest value which is equivalent, with the precision of the histogram, to the value at the given
+     * percentile
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                long highestEquivalent = i + 1 < BUCKETS ? bucketLowerBound(i + 1) - 1 : Long.MAX_VALUE;
+                return Math.min(highestEquivalent, getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * @return count, mean, max and the most interesting percentiles
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> res = new LinkedHashMap<>();
+        res.put("count", getCount());
+        res.put("mean", getMean());
+        res.put("p50", getValueAtPercentile(50));
+        res.put("p90", getValueAtPercentile(90));
+        res.put("p99", getValueAtPercentile(99));
+        res.put("p999", getValueAtPercentile(99.9));
+        res.put("max", getMax());
+        return res;
+    }
+
+}
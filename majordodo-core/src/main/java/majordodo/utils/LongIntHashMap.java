@@ -0,0 +1,194 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.utils;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from long to int, without boxing. Key 0 is reserved and cannot be stored.
+ *
+ * @author enrico.olivelli
+ */
+public class LongIntHashMap {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private final int missingValue;
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+    private int resizeThreshold;
+
+    /**
+     * @param missingValue value returned by {@link #get(long) } and {@link #remove(long) } for missing keys
+     */
+    public LongIntHashMap(int missingValue) {
+        this.missingValue = missingValue;
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        this.mask = capacity - 1;
+        this.resizeThreshold = capacity / 2;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int get(long key) {
+        int index = hash(key) & mask;
+        long k;
+        while ((k = keys[index]) != 0) {
+            if (k == key) {
+                return values[index];
+            }
+            index = (index + 1) & mask;
+        }
+        return missingValue;
+    }
+
+    /**
+     * Maps the key to the given value
+     *
+     * @param key
+     * @param value
+     * @return the previous value, or the missing value
+     */
+    public int put(long key, int value) {
+        if (key == 0) {
+            throw new IllegalArgumentException("key 0 is reserved");
+        }
+        int index = hash(key) & mask;
+        long k;
+        while ((k = keys[index]) != 0) {
+            if (k == key) {
+                int previous = values[index];
+                values[index] = value;
+                return previous;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = value;
+        if (++size > resizeThreshold) {
+            rehash(keys.length * 2);
+        }
+        return missingValue;
+    }
+
+    /**
+     * Removes the key
+     *
+     * @param key
+     * @return the value, or the missing value
+     */
+    public int remove(long key) {
+        int index = hash(key) & mask;
+        long k;
+        while ((k = keys[index]) != 0) {
+            if (k == key) {
+                int previous = values[index];
+                deleteSlot(index);
+                size--;
+                if (keys.length > MIN_CAPACITY && size < keys.length / 8) {
+                    // give back memory after a burst
+                    rehash(keys.length / 2);
+                }
+                return previous;
+            }
+            index = (index + 1) & mask;
+        }
+        return missingValue;
+    }
+
+    /**
+     * Backward shift deletion, keeps the probe sequences valid without tombstones
+     */
+    private void deleteSlot(int index) {
+        int hole = index;
+        int next = (hole + 1) & mask;
+        long k;
+        while ((k = keys[next]) != 0) {
+            int ideal = hash(k) & mask;
+            // move the entry into the hole only if the hole lies between its ideal slot and its actual slot
+            if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = k;
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = 0;
+        values[hole] = 0;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(newCapacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key != 0) {
+                int index = hash(key) & mask;
+                while (keys[index] != 0) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = key;
+                values[index] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Removes every mapping, keeping the current capacity
+     */
+    public void reset() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, 0);
+        size = 0;
+    }
+
+    /**
+     * Removes every mapping, releasing memory if the map had grown
+     */
+    public void clear() {
+        if (keys.length > MIN_CAPACITY) {
+            allocate(MIN_CAPACITY);
+        } else {
+            Arrays.fill(keys, 0);
+            Arrays.fill(values, 0);
+        }
+        size = 0;
+    }
+
+}
@@ -0,0 +1,271 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.utils;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Open addressing hash map from long to objects, without boxing and without an entry object per mapping. Null values
+ * are not allowed, every key is allowed.
+ *
+ * @author enrico.olivelli
+ * @param <V>
+ */
+public class LongObjectHashMap<V> {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+    private int resizeThreshold;
+    private int modCount;
+
+    public LongObjectHashMap() {
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        this.mask = capacity - 1;
+        this.resizeThreshold = (capacity / 4) * 3;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Looks up a key. The table is read only once, so a lookup which races with a writer always terminates, it may
+     * return a wrong result or throw an exception which the caller has to discard
+     *
+     * @param key
+     * @return the value, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        Object[] table = values;
+        long[] tableKeys = keys;
+        int tableMask = table.length - 1;
+        int index = hash(key) & tableMask;
+        Object v;
+        while ((v = table[index]) != null) {
+            if (tableKeys[index] == key) {
+                return (V) v;
+            }
+            index = (index + 1) & tableMask;
+        }
+        return null;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Maps the key to the given value
+     *
+     * @param key
+     * @param value
+     * @return the previous value, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("null values are not allowed");
+        }
+        int index = hash(key) & mask;
+        Object v;
+        while ((v = values[index]) != null) {
+            if (keys[index] == key) {
+                values[index] = value;
+                return (V) v;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = value;
+        modCount++;
+        if (++size > resizeThreshold) {
+            rehash(keys.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * Removes the key
+     *
+     * @param key
+     * @return the value, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int index = hash(key) & mask;
+        Object v;
+        while ((v = values[index]) != null) {
+            if (keys[index] == key) {
+                deleteSlot(index);
+                size--;
+                modCount++;
+                if (keys.length > MIN_CAPACITY && size < keys.length / 8) {
+                    // give back memory after a burst
+                    rehash(keys.length / 2);
+                }
+                return (V) v;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Backward shift deletion, keeps the probe sequences valid without tombstones
+     */
+    private void deleteSlot(int index) {
+        int hole = index;
+        int next = (hole + 1) & mask;
+        Object v;
+        while ((v = values[next]) != null) {
+            long k = keys[next];
+            int ideal = hash(k) & mask;
+            // move the entry into the hole only if the hole lies between its ideal slot and its actual slot
+            if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = k;
+                values[hole] = v;
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = 0;
+        values[hole] = null;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(newCapacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            Object value = oldValues[i];
+            if (value != null) {
+                int index = hash(oldKeys[i]) & mask;
+                while (values[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = oldKeys[i];
+                values[index] = value;
+            }
+        }
+    }
+
+    /**
+     * Removes every mapping, releasing memory if the map had grown
+     */
+    public void clear() {
+        if (keys.length > MIN_CAPACITY) {
+            allocate(MIN_CAPACITY);
+        } else {
+            Arrays.fill(keys, 0);
+            Arrays.fill(values, null);
+        }
+        size = 0;
+        modCount++;
+    }
+
+    /**
+     * Copies the values of the map into a new array, the empty slots are null. This is a single array copy, which is
+     * much cheaper than iterating over the map
+     *
+     * @return
+     */
+    public Object[] copyValues() {
+        return Arrays.copyOf(values, values.length);
+    }
+
+    /**
+     * Live view on the values of the map, in no particular order. The view does not support removals.
+     *
+     * @return
+     */
+    public Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new ValuesIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private final class ValuesIterator implements Iterator<V> {
+
+        private final Object[] table = values;
+        private final int expectedModCount = modCount;
+        private int next = advance(0);
+
+        private int advance(int from) {
+            for (int i = from; i < table.length; i++) {
+                if (table[i] != null) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next >= 0;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V next() {
+            if (next < 0) {
+                throw new NoSuchElementException();
+            }
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            int current = next;
+            next = advance(current + 1);
+            return (V) table[current];
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counts events and measures their rate, as an exponentially weighted moving average over the last minute. Marking an
+ * event is cheap and can be done from many threads, the average is updated lazily every 5 seconds.
+ *
+ * @author enrico.olivelli
+ */
+public class RateMeter {
+
+    private static final long TICK_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+    private static final double TICK_INTERVAL_SECONDS = 5;
+    private static final double ALPHA = 1 - Math.exp(-TICK_INTERVAL_SECONDS / 60);
+
+    private final LongSupplier clock;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder uncounted = new LongAdder();
+    private final AtomicLong lastTick;
+    private volatile double rate;
+    private volatile boolean initialized;
+
+    public RateMeter() {
+        this(System::nanoTime);
+    }
+
+    RateMeter(LongSupplier clock) {
+        this.clock = clock;
+        this.lastTick = new AtomicLong(clock.getAsLong());
+    }
+
+    public void mark() {
+        tickIfNeeded();
+        count.increment();
+        uncounted.increment();
+    }
+
+    /**
+     * @return the total number of events
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return events per second, averaged over the last minute
+     */
+    public double getRate() {
+        tickIfNeeded();
+        return rate;
+    }
+
+    private void tickIfNeeded() {
+        long oldTick = lastTick.get();
+        long age = clock.getAsLong() - oldTick;
+        if (age >= TICK_INTERVAL) {
+            long newTick = oldTick + age - age % TICK_INTERVAL;
+            // only the thread which moves the tick forward updates the average
+            if (lastTick.compareAndSet(oldTick, newTick)) {
+                long ticks = age / TICK_INTERVAL;
+                for (long i = 0; i < ticks; i++) {
+                    tick();
+                }
+            }
+        }
+    }
+
+    private void tick() {
+        double instantRate = uncounted.sumThenReset() / TICK_INTERVAL_SECONDS;
+        if (initialized) {
+            rate += ALPHA * (instantRate - rate);
+        } else {
+            rate = instantRate;
+            initialized = true;
+        }
+    }
+
+}
@@ -93,6 +93,17 @@ public class ExtendedDataInputStream extends DataInputStream {
         return readVLong(false);
     }
 
+    /**
+     * Reads a long written with {@link ExtendedDataOutputStream#writeZLong(long)}
+     *
+     * @return
+     * @throws IOException
+     */
+    public long readZLong() throws IOException {
+        long i = readVLong(true);
+        return (i >>> 1) ^ -(i & 1);
+    }
+
     private long readVLong(boolean allowNegative) throws IOException {
         /* This is the original code of this method,
      * but a Hotspot bug (see LUCENE-2975) corrupts the for-loop if
@@ -57,6 +57,17 @@ public final class ExtendedDataOutputStream extends DataOutputStream {
         writeSignedVLong(i);
     }
 
+    /**
+     * Writes a long in a variable-length zig-zag format, values near to zero, positive or negative, take fewer bytes.
+     *
+     * @param i
+     * @throws IOException
+     * @see ExtendedDataInputStream#readZLong()
+     */
+    public final void writeZLong(long i) throws IOException {
+        writeSignedVLong((i << 1) ^ (i >> 63));
+    }
+
     // write a potentially negative vLong
     private void writeSignedVLong(long i) throws IOException {
         while ((i & ~0x7FL) != 0L) {
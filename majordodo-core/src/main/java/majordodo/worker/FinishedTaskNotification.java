@@ -33,12 +33,23 @@ public class FinishedTaskNotification {
     public final String finalStatus;
     public final String results;
     public final Throwable error;
+    /**
+     * Start and end of the execution, 0 if unknown
+     */
+    public final long executionStart;
+    public final long executionEnd;
 
     public FinishedTaskNotification(long taskId, String finalStatus, String results, Throwable error) {
+        this(taskId, finalStatus, results, error, 0, 0);
+    }
+
+    public FinishedTaskNotification(long taskId, String finalStatus, String results, Throwable error, long executionStart, long executionEnd) {
         this.taskId = taskId;
         this.finalStatus = finalStatus;
         this.results = results;
         this.error = error;
+        this.executionStart = executionStart;
+        this.executionEnd = executionEnd;
     }
 
     @Override
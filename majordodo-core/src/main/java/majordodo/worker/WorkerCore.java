@@ -40,6 +40,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -270,6 +271,10 @@ public class WorkerCore implements ChannelEventListener, ConnectionRequestInfo,
     }
 
     BlockingQueue<FinishedTaskNotification> pendingFinishedTaskNotifications = new LinkedBlockingQueue<>();
+    /**
+     * Start of the execution of the running tasks, reported to the broker in order to track latencies
+     */
+    private final Map<Long, Long> executionStarts = new ConcurrentHashMap<>();
     private long lastFinishedTaskNotificationSent;
     private long lastPingSent;
 
@@ -286,9 +291,12 @@ public class WorkerCore implements ChannelEventListener, ConnectionRequestInfo,
                     } finally {
                         runningTasksLock.writeLock().unlock();
                     }
-                    pendingFinishedTaskNotifications.add(new FinishedTaskNotification(taskId, finalStatus, results, error));
+                    Long executionStart = executionStarts.remove(taskId);
+                    pendingFinishedTaskNotifications.add(new FinishedTaskNotification(taskId, finalStatus, results, error,
+                            executionStart != null ? executionStart : 0, System.currentTimeMillis()));
                     break;
                 case TaskExecutorStatus.RUNNING:
+                    executionStarts.put(taskId, System.currentTimeMillis());
                     break;
             }
         }
@@ -306,6 +314,10 @@ public class WorkerCore implements ChannelEventListener, ConnectionRequestInfo,
                 params.put("taskid", not.taskId);
                 params.put("status", not.finalStatus);
                 params.put("result", not.results);
+                if (not.executionStart > 0) {
+                    params.put("startts", not.executionStart);
+                    params.put("finishts", not.executionEnd);
+                }
                 if (not.error != null) {
                     params.put("error", ErrorUtils.stacktrace(not.error));
                     LOGGER.log(Level.SEVERE, "notifyTaskFinished " + params, not.error);
@@ -195,8 +195,6 @@ public class TaskExecutionWithCodePoolTest {
                     config.setMaxThreadsByTaskType(tags);
                     config.setGroups(Arrays.asList(group));
                     try (WorkerCore core = new WorkerCore(config, workerId, locator, listener);) {
-                        core.start();
-                        assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
                         core.setExecutorFactory(
                                 (String tasktype, Map<String, Object> parameters) -> new TaskExecutor() {
 
@@ -209,6 +207,8 @@ public class TaskExecutionWithCodePoolTest {
 
                         }
                         );
+                        core.start();
+                        assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
 
                         assertTrue(allTaskExecuted.await(30, TimeUnit.SECONDS));
 
@@ -88,8 +88,6 @@ public class DeadWorkerResourceCountersAtFollowerPromotionTest extends BrokerTes
         config.setMaxThreadsByTaskType(tags);
         config.setGroups(Arrays.asList(group));
         try (WorkerCore core = new WorkerCore(config, workerId, brokerLocator, listener);) {
-            core.start();
-            assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
             core.setExecutorFactory(
                 (String tasktype, Map<String, Object> parameters) -> new TaskExecutor() {
 
@@ -103,6 +101,8 @@ public class DeadWorkerResourceCountersAtFollowerPromotionTest extends BrokerTes
 
                 }
             );
+            core.start();
+            assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
 
             taskId = broker1.getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, userId, taskParams, 1, 0, 0, null, 0, null, null)).getTaskId();
 
@@ -190,8 +190,6 @@ public class DeadWorkerResourceCountersAtFollowerPromotionTest extends BrokerTes
         config.setMaxThreadsByTaskType(tags);
         config.setGroups(Arrays.asList(group));
         try (WorkerCore core = new WorkerCore(config, workerId, brokerLocator, listener);) {
-            core.start();
-            assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
             core.setExecutorFactory(
                 (String tasktype, Map<String, Object> parameters) -> new TaskExecutor() {
 
@@ -206,6 +204,8 @@ public class DeadWorkerResourceCountersAtFollowerPromotionTest extends BrokerTes
 
                 }
             );
+            core.start();
+            assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
 
             taskId = broker1.getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, userId, taskParams, 1, 0, 0, null, 0, null, null)).getTaskId();
 
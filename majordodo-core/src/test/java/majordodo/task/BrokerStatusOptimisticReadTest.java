@@ -0,0 +1,84 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import majordodo.clientfacade.TaskStatusView;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests for the lookups of single tasks while edits are applied
+ *
+ * @author enrico.olivelli
+ */
+public class BrokerStatusOptimisticReadTest {
+
+    @Test
+    public void testLookupsDuringWrites() throws Exception {
+        BrokerStatus status = new BrokerStatus(new MemoryCommitLog());
+        status.recover();
+        status.startWriting();
+
+        int count = 1000;
+        long firstTaskId = status.nextTaskId();
+        assertNull(status.applyModification(StatusEdit.ADD_TASK(firstTaskId, "mytype", "param", "user", 0, 0, 0, null, 0, null, null)).error);
+        for (int i = 1; i < count; i++) {
+            assertNull(status.applyModification(StatusEdit.ADD_TASK(status.nextTaskId(), "mytype", "param", "user", 0, 0, 0, null, 0, null, null)).error);
+        }
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            try {
+                int i = 0;
+                while (!done.get()) {
+                    TaskStatusView view = status.getTaskStatus(firstTaskId + (i++ % count));
+                    assertNotNull(view);
+                    assertEquals("param", view.getData());
+                    // a view is never built from a half-applied edit
+                    if (view.getStatus() == Task.STATUS_RUNNING) {
+                        assertEquals("worker", view.getWorkerId());
+                    } else {
+                        assertEquals(Task.STATUS_WAITING, view.getStatus());
+                    }
+                }
+            } catch (Throwable t) {
+                error.set(t);
+            }
+        });
+        reader.start();
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < count; i++) {
+                long taskId = firstTaskId + i;
+                assertNull(status.applyModification(StatusEdit.ASSIGN_TASK_TO_WORKER(taskId, "worker", round + 1, null)).error);
+                assertNull(status.applyModification(StatusEdit.TASK_STATUS_CHANGE(taskId, "worker", Task.STATUS_WAITING, null)).error);
+            }
+        }
+        done.set(true);
+        reader.join();
+        assertNull(error.get());
+        assertTrue(status.getTaskStatus(firstTaskId).getAttempts() > 0);
+    }
+}
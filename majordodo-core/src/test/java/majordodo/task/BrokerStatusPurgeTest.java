@@ -0,0 +1,129 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.Collections;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests for the purge of finished tasks and the expiration of deadlines
+ *
+ * @author enrico.olivelli
+ */
+public class BrokerStatusPurgeTest {
+
+    private static long addTask(BrokerStatus status, long executionDeadline) throws Exception {
+        long taskId = status.nextTaskId();
+        StatusEdit edit = StatusEdit.ADD_TASK(taskId, "mytype", "user", "param", 0, 0, executionDeadline, null, 0, null, null);
+        assertNull(status.applyModification(edit).error);
+        return taskId;
+    }
+
+    @Test
+    public void testPurgeAndExpire() throws Exception {
+        BrokerStatus status = new BrokerStatus(new MemoryCommitLog());
+        status.recover();
+        status.startWriting();
+
+        long now = System.currentTimeMillis();
+        long[] expiring = new long[10];
+        for (int i = 0; i < expiring.length; i++) {
+            // the latest tasks have the earliest deadlines
+            expiring[i] = addTask(status, now - 1000 - i);
+        }
+        long notExpiring = addTask(status, now + 60000);
+        long noDeadline = addTask(status, 0);
+        long[] finished = new long[25];
+        for (int i = 0; i < finished.length; i++) {
+            finished[i] = addTask(status, now - 1000);
+            assertNull(status.applyModification(StatusEdit.TASK_STATUS_CHANGE(finished[i], null, Task.STATUS_FINISHED, "ok")).error);
+        }
+        assertEquals(37, status.getStats().getTasks());
+
+        // nothing is over the retention
+        Set<Long> expired = status.purgeFinishedTasksAndSignalExpiredTasks(60000, 4, 3);
+        assertEquals(4, expired.size());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(expired.contains(expiring[expiring.length - 1 - i]));
+        }
+        assertEquals(25, status.getStats().getFinishedTasks());
+
+        for (long taskId : expired) {
+            assertNull(status.applyModification(StatusEdit.TASK_STATUS_CHANGE(taskId, null, Task.STATUS_ERROR, "deadline_expired")).error);
+        }
+        Thread.sleep(10);
+
+        // every finished task is over the retention, they are purged in many batches
+        expired = status.purgeFinishedTasksAndSignalExpiredTasks(0, 100, 3);
+        assertEquals(6, expired.size());
+        for (int i = 0; i < 6; i++) {
+            assertTrue(expired.contains(expiring[i]));
+        }
+        assertEquals(0, status.getStats().getFinishedTasks());
+        assertEquals(0, status.getStats().getErrorTasks());
+        assertEquals(8, status.getStats().getTasks());
+        for (long taskId : finished) {
+            assertNull(status.getTask(taskId));
+        }
+        assertNotNull(status.getTask(notExpiring));
+        assertNotNull(status.getTask(noDeadline));
+
+        // running tasks cannot expire
+        assertNull(status.applyModification(StatusEdit.ASSIGN_TASK_TO_WORKER(expiring[0], "worker", 1, null)).error);
+        expired = status.purgeFinishedTasksAndSignalExpiredTasks(0, 100, 3);
+        assertEquals(5, expired.size());
+        assertTrue(!expired.contains(expiring[0]));
+    }
+
+    @Test
+    public void testInvalidPurgeBatchSize() throws Exception {
+        BrokerConfiguration configuration = new BrokerConfiguration();
+        for (int value : new int[]{0, -1}) {
+            try {
+                configuration.setFinishedTasksPurgeBatchSize(value);
+                fail();
+            } catch (IllegalArgumentException expected) {
+            }
+            try {
+                configuration.read(Collections.singletonMap("finishedTasksPurgeBatchSize", value + ""));
+                fail();
+            } catch (RuntimeException expected) {
+            }
+        }
+        assertEquals(1000, configuration.getFinishedTasksPurgeBatchSize());
+
+        // an empty batch ends the purge
+        BrokerStatus status = new BrokerStatus(new MemoryCommitLog());
+        status.recover();
+        status.startWriting();
+        long taskId = addTask(status, 0);
+        assertNull(status.applyModification(StatusEdit.TASK_STATUS_CHANGE(taskId, null, Task.STATUS_FINISHED, "ok")).error);
+        Thread.sleep(10);
+        status.purgeFinishedTasksAndSignalExpiredTasks(0, 100, 0);
+        assertNotNull(status.getTask(taskId));
+    }
+
+}
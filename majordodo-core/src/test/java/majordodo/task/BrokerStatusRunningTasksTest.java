@@ -0,0 +1,104 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import majordodo.utils.IntCounter;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests for the indexes of running tasks by worker
+ *
+ * @author enrico.olivelli
+ */
+public class BrokerStatusRunningTasksTest {
+
+    private static long addTask(BrokerStatus status, String taskType, String userId) throws Exception {
+        long taskId = status.nextTaskId();
+        StatusEdit edit = StatusEdit.ADD_TASK(taskId, taskType, "param", userId, 0, 0, 0, null, 0, null, null);
+        assertNull(status.applyModification(edit).error);
+        return taskId;
+    }
+
+    private static void assign(BrokerStatus status, long taskId, String workerId) throws Exception {
+        assertNull(status.applyModification(StatusEdit.ASSIGN_TASK_TO_WORKER(taskId, workerId, 1, null)).error);
+    }
+
+    @Test
+    public void testRunningTasksByWorker() throws Exception {
+        BrokerStatus status = new BrokerStatus(new MemoryCommitLog());
+        status.recover();
+        status.startWriting();
+
+        long t1 = addTask(status, "type1", "user1");
+        long t2 = addTask(status, "type1", "user1");
+        long t3 = addTask(status, "type1", "user2");
+        long t4 = addTask(status, "type2", "user1");
+        long t5 = addTask(status, "type2", "user1");
+        assign(status, t1, "w1");
+        assign(status, t2, "w1");
+        assign(status, t3, "w1");
+        assign(status, t4, "w1");
+        assign(status, t5, "w2");
+
+        assertEquals(new HashSet<>(Arrays.asList(t1, t2, t3, t4)), new HashSet<>(status.getRunningTasksAssignedToWorker("w1")));
+        assertEquals(Arrays.asList(t5), status.getRunningTasksAssignedToWorker("w2"));
+        assertTrue(status.getRunningTasksAssignedToWorker("w3").isEmpty());
+
+        Map<String, Integer> availableSpace = new HashMap<>();
+        availableSpace.put("type1", 10);
+        availableSpace.put("type2", 1);
+        assertEquals(4, status.applyRunningTasksFilterToAssignTasksRequest("w1", availableSpace));
+        assertEquals(Integer.valueOf(7), availableSpace.get("type1"));
+        assertTrue(!availableSpace.containsKey("type2"));
+
+        Map<String, Integer> startingAvailableSpace = new HashMap<>();
+        startingAvailableSpace.put("type1", 10);
+        startingAvailableSpace.put(Task.TASKTYPE_ANY, 4);
+        Map<TaskTypeUser, IntCounter> perUser = status.collectMaxAvailableSpacePerUserOnWorker("w1", 50, startingAvailableSpace);
+        assertEquals(3, perUser.size());
+        assertEquals(5 - 2, perUser.get(new TaskTypeUser("type1", "user1")).count);
+        assertEquals(5 - 1, perUser.get(new TaskTypeUser("type1", "user2")).count);
+        assertEquals(2 - 1, perUser.get(new TaskTypeUser("type2", "user1")).count);
+
+        // finished tasks and tasks moved to another worker leave the index
+        assertNull(status.applyModification(StatusEdit.TASK_STATUS_CHANGE(t1, "w1", Task.STATUS_FINISHED, "ok")).error);
+        assign(status, t2, "w2");
+        assertNull(status.applyModification(StatusEdit.TASK_STATUS_CHANGE(t3, "w1", Task.STATUS_WAITING, null)).error);
+        assertEquals(Arrays.asList(t4), status.getRunningTasksAssignedToWorker("w1"));
+        assertEquals(new HashSet<>(Arrays.asList(t2, t5)), new HashSet<>(status.getRunningTasksAssignedToWorker("w2")));
+
+        perUser = status.collectMaxAvailableSpacePerUserOnWorker("w1", 50, startingAvailableSpace);
+        assertEquals(1, perUser.size());
+        assertEquals(2 - 1, perUser.get(new TaskTypeUser("type2", "user1")).count);
+
+        assertNull(status.applyModification(StatusEdit.TASK_STATUS_CHANGE(t4, "w1", Task.STATUS_ERROR, "error")).error);
+        assertTrue(status.getRunningTasksAssignedToWorker("w1").isEmpty());
+        assertEquals(0, status.applyRunningTasksFilterToAssignTasksRequest("w1", availableSpace));
+        assertTrue(status.collectMaxAvailableSpacePerUserOnWorker("w1", 50, startingAvailableSpace).isEmpty());
+    }
+
+}
@@ -27,6 +27,7 @@ import java.util.zip.GZIPInputStream;
 import majordodo.codepools.CodePool;
 import org.junit.Assert;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import org.junit.Test;
 
 /**
@@ -122,6 +123,36 @@ public class BrokerStatusSerializerTest {
         assertEquals(co1.getTtl(),snap.getCodePools().get(0).getTtl());
         assertEquals(co1.getCreationTimestamp(),snap.getCodePools().get(0).getCreationTimestamp());
         Assert.assertArrayEquals(co1.getCodePoolData(),snap.getCodePools().get(0).getCodePoolData());
+        assertEquals(task1.getParameter(), snap.getTasks().get(0).getParameter());
+        assertEquals(task1.getResult(), snap.getTasks().get(0).getResult());
+        assertEquals(task2.getParameter(), snap.getTasks().get(1).getParameter());
+        assertEquals(task2.getResult(), snap.getTasks().get(1).getResult());
+    }
+
+    @Test
+    public void testEscapingAndNullResult() throws Exception {
+        BrokerStatusSnapshot snapBefore = new BrokerStatusSnapshot(17, 18, new LogSequenceNumber(101, 102));
+        snapBefore.setTasks(new ArrayList<>());
+        snapBefore.setTransactions(new ArrayList<>());
+        snapBefore.setWorkers(new ArrayList<>());
+
+        Task task = new Task();
+        task.setAttempts(1);
+        task.setMaxattempts(2);
+        task.setCreatedTimestamp(1233);
+        task.setParameter("\"quoted\" \\ \u00e0\u00e8\u20ac\n\u0001");
+        task.setResult(null);
+        task.setStatus(Task.STATUS_WAITING);
+        task.setTaskId(343);
+        task.setType("444");
+        task.setUserId("fdfd");
+        snapBefore.getTasks().add(task);
+
+        ByteArrayOutputStream oo = new ByteArrayOutputStream();
+        BrokerStatusSnapshot.serializeSnapshot(snapBefore, oo);
+        BrokerStatusSnapshot snap = BrokerStatusSnapshot.deserializeSnapshot(new ByteArrayInputStream(oo.toByteArray()));
+        assertEquals(task.getParameter(), snap.getTasks().get(0).getParameter());
+        assertNull(snap.getTasks().get(0).getResult());
     }
 
     @Test
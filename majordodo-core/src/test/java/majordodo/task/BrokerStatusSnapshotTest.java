@@ -0,0 +1,87 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests that snapshots taken while edits are applied are consistent with their log position
+ *
+ * @author enrico.olivelli
+ */
+public class BrokerStatusSnapshotTest {
+
+    @Test
+    public void testSnapshotDuringWrites() throws Exception {
+        BrokerStatus status = new BrokerStatus(new MemoryCommitLog());
+        status.recover();
+        status.startWriting();
+
+        int count = 5000;
+        long[] taskIds = new long[count];
+        for (int i = 0; i < count; i++) {
+            taskIds[i] = status.nextTaskId();
+            assertNull(status.applyModification(StatusEdit.ADD_TASK(taskIds[i], "mytype", "param" + i, "user", 0, 0, 0, null, 0, null, null)).error);
+        }
+        long base = status.createSnapshot().getActualLogSequenceNumber().sequenceNumber;
+
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; i < count; i++) {
+                    status.applyModification(StatusEdit.TASK_STATUS_CHANGE(taskIds[i], null, Task.STATUS_FINISHED, "result" + i));
+                }
+            } catch (Throwable t) {
+                error.set(t);
+            }
+        });
+        writer.start();
+        int snapshots = 0;
+        while (writer.isAlive() || snapshots == 0) {
+            BrokerStatusSnapshot snapshot = status.createSnapshot();
+            // every edit after the base finishes the task with the same index
+            long finishedAtCapture = snapshot.getActualLogSequenceNumber().sequenceNumber - base;
+            assertEquals(count, snapshot.getTasks().size());
+            int finished = 0;
+            for (Task task : snapshot.getTasks()) {
+                int i = (int) (task.getTaskId() - taskIds[0]);
+                assertEquals("param" + i, task.getParameter());
+                if (i < finishedAtCapture) {
+                    assertEquals(Task.STATUS_FINISHED, task.getStatus());
+                    assertEquals("result" + i, task.getResult());
+                    finished++;
+                } else {
+                    assertEquals(Task.STATUS_WAITING, task.getStatus());
+                    assertNull(task.getResult());
+                }
+            }
+            assertEquals(finishedAtCapture, finished);
+            snapshots++;
+        }
+        writer.join();
+        assertNull(error.get());
+        assertTrue(snapshots > 0);
+        assertEquals(count, status.getStats().getFinishedTasks());
+    }
+}
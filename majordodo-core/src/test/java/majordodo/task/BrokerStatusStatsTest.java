@@ -0,0 +1,141 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.nio.file.Path;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the counters of tasks per tasktype and per user
+ *
+ * @author enrico.olivelli
+ */
+public class BrokerStatusStatsTest {
+
+    @Rule
+    public TemporaryFolder folderSnapshots = new TemporaryFolder();
+    @Rule
+    public TemporaryFolder folderLogs = new TemporaryFolder();
+
+    private static long addTask(BrokerStatus status, String taskType, String userId) throws Exception {
+        long taskId = status.nextTaskId();
+        assertNull(status.applyModification(StatusEdit.ADD_TASK(taskId, taskType, "param", userId, 0, 0, 0, null, 0, null, null)).error);
+        return taskId;
+    }
+
+    @Test
+    public void testBreakdowns() throws Exception {
+        BrokerStatus status = new BrokerStatus(new MemoryCommitLog());
+        status.recover();
+        status.startWriting();
+
+        long task1 = addTask(status, "type1", "user1");
+        long task2 = addTask(status, "type1", "user2");
+        long task3 = addTask(status, "type2", "user1");
+        assertNull(status.applyModification(StatusEdit.ASSIGN_TASK_TO_WORKER(task1, "worker", 1, null)).error);
+        assertNull(status.applyModification(StatusEdit.ASSIGN_TASK_TO_WORKER(task3, "worker", 1, null)).error);
+        assertNull(status.applyModification(StatusEdit.TASK_STATUS_CHANGE(task3, "worker", Task.STATUS_ERROR, "error")).error);
+
+        BrokerStatusStats stats = status.getStats();
+        assertEquals(3, stats.getTasks());
+        assertEquals(1, stats.getRunningTasks());
+        assertEquals(1, stats.getWaitingTasks());
+        assertEquals(1, stats.getErrorTasks());
+
+        BrokerStatusStats.TaskCounters type1 = stats.getTasksByTaskType().get("type1");
+        assertEquals(2, type1.getTasks());
+        assertEquals(1, type1.getRunningTasks());
+        assertEquals(1, type1.getWaitingTasks());
+        BrokerStatusStats.TaskCounters type2 = stats.getTasksByTaskType().get("type2");
+        assertEquals(1, type2.getTasks());
+        assertEquals(1, type2.getErrorTasks());
+        assertEquals(0, type2.getRunningTasks());
+
+        BrokerStatusStats.TaskCounters user1 = stats.getTasksByUser().get("user1");
+        assertEquals(2, user1.getTasks());
+        assertEquals(1, user1.getRunningTasks());
+        assertEquals(1, user1.getErrorTasks());
+        assertEquals(1, stats.getTasksByUser().get("user2").getWaitingTasks());
+
+        // purged tasks disappear from the counters
+        Thread.sleep(10);
+        status.purgeFinishedTasksAndSignalExpiredTasks(0, 100, 100);
+        assertEquals(2, stats.getTasks());
+        assertEquals(0, type2.getTasks());
+        assertEquals(0, type2.getErrorTasks());
+        assertEquals(1, user1.getTasks());
+
+        // users without tasks are not tracked any more
+        assertNull(status.applyModification(StatusEdit.ASSIGN_TASK_TO_WORKER(task2, "worker", 1, null)).error);
+        assertNull(status.applyModification(StatusEdit.TASK_STATUS_CHANGE(task2, "worker", Task.STATUS_FINISHED, "ok")).error);
+        Thread.sleep(10);
+        status.purgeFinishedTasksAndSignalExpiredTasks(0, 100, 100);
+        assertNull(stats.getTasksByUser().get("user2"));
+        assertEquals(1, stats.getTasksByUser().size());
+        assertEquals(1, stats.getTasks());
+    }
+
+    @Test
+    public void testRatesAfterRecovery() throws Exception {
+        Path snapshots = folderSnapshots.getRoot().toPath();
+        Path logs = folderLogs.getRoot().toPath();
+        int count = 1000;
+        try (FileCommitLog log = new FileCommitLog(snapshots, logs, 1024 * 1024);) {
+            BrokerStatus status = new BrokerStatus(log);
+            status.recover();
+            status.startWriting();
+            for (int i = 0; i < count; i++) {
+                long taskId = addTask(status, "type1", "user" + (i % 10));
+                if (i % 2 == 0) {
+                    assertNull(status.applyModification(StatusEdit.ASSIGN_TASK_TO_WORKER(taskId, "worker", 1, null)).error);
+                    assertNull(status.applyModification(StatusEdit.TASK_STATUS_CHANGE(taskId, "worker", Task.STATUS_FINISHED, "ok")).error);
+                }
+                if (i == count / 2) {
+                    // recovery will read both the snapshot and the log
+                    status.checkpoint(0);
+                }
+            }
+        }
+
+        try (FileCommitLog log = new FileCommitLog(snapshots, logs, 1024 * 1024);) {
+            BrokerStatus status = new BrokerStatus(log);
+            status.recover();
+            status.startWriting();
+
+            // recovered tasks are counted but they were not submitted now
+            BrokerStatusStats stats = status.getStats();
+            assertEquals(count, stats.getTasks());
+            assertEquals(count / 2, stats.getFinishedTasks());
+            assertEquals(count / 2, stats.getWaitingTasks());
+
+            // wait for the rates to be computed
+            Thread.sleep(5500);
+            assertTrue(stats.getSubmitRate() < 1);
+            assertTrue(stats.getAssignRate() < 1);
+            assertTrue(stats.getFinishRate() < 1);
+            assertTrue(stats.getErrorRate() < 1);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+@RunWith(Parameterized.class)
+public class CachingTaskPropertiesMapperFunctionTest {
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> layouts() {
+        return Arrays.asList(new Object[][]{
+            {TasksHeapLayout.OBJECTS},
+            {TasksHeapLayout.COLUMNS},
+            {TasksHeapLayout.OFFHEAP_COLUMNS}
+        });
+    }
+
+    private final TasksHeapLayout layout;
+
+    public CachingTaskPropertiesMapperFunctionTest(TasksHeapLayout layout) {
+        this.layout = layout;
+    }
+
+    private static final String TASKTYPE_MYTASK1 = "MYTASK1";
+    private static final String TASKTYPE_MYTASK2 = "MYTASK2";
+    private static final String USERID1 = "myuser1";
+    private static final String USERID2 = "myuser2";
+    private static final int GROUPID1 = 9713;
+    private static final int GROUPID2 = 972;
+
+    private final Map<String, Integer> groupsByUser = new ConcurrentHashMap<>();
+    private final AtomicInteger mapperCalls = new AtomicInteger();
+    private final AtomicLong now = new AtomicLong(1000);
+
+    private final TaskPropertiesMapperFunction FUNCTION = (long taskid, String taskType, String userid) -> {
+        mapperCalls.incrementAndGet();
+        return new TaskProperties(groupsByUser.getOrDefault(userid, -1), null);
+    };
+
+    private CachingTaskPropertiesMapperFunction newCache(int maxSize, long ttl) {
+        groupsByUser.put(USERID1, GROUPID1);
+        groupsByUser.put(USERID2, GROUPID2);
+        return new CachingTaskPropertiesMapperFunction(FUNCTION, maxSize, ttl, now::get);
+    }
+
+    private static List<AssignedTask> take(TasksHeap instance, int max, int group) {
+        Map<String, Integer> availableSpace = new HashMap<>();
+        availableSpace.put(Task.TASKTYPE_ANY, max);
+        return instance.takeTasks(max, Arrays.asList(group), Collections.emptySet(), availableSpace,
+            Collections.emptyMap(), new ResourceUsageCounters(), Collections.emptyMap(), new ResourceUsageCounters(), null, 0);
+    }
+
+    @Test
+    public void testTtlAndInvalidation() throws Exception {
+        CachingTaskPropertiesMapperFunction cache = newCache(100, 1000);
+        TaskProperties first = cache.getTaskProperties(1, TASKTYPE_MYTASK1, USERID1);
+        assertSame(first, cache.getTaskProperties(2, TASKTYPE_MYTASK1, USERID1));
+        assertEquals(1, mapperCalls.get());
+        assertEquals(1, cache.getHits());
+
+        now.addAndGet(1000);
+        cache.getTaskProperties(3, TASKTYPE_MYTASK1, USERID1);
+        assertEquals(2, mapperCalls.get());
+
+        cache.invalidate(TASKTYPE_MYTASK1, USERID1);
+        cache.getTaskProperties(4, TASKTYPE_MYTASK1, USERID1);
+        assertEquals(3, mapperCalls.get());
+
+        // nothing changed
+        assertTrue(cache.refresh().isEmpty());
+
+        groupsByUser.put(USERID1, GROUPID2);
+        cache.invalidateUser(USERID1);
+        Map<TaskTypeUser, TaskProperties> changed = cache.refresh();
+        assertEquals(1, changed.size());
+        assertEquals(GROUPID2, changed.get(new TaskTypeUser(TASKTYPE_MYTASK1, USERID1)).groupId);
+        assertTrue(cache.refresh().isEmpty());
+    }
+
+    @Test
+    public void testLruEviction() throws Exception {
+        CachingTaskPropertiesMapperFunction cache = newCache(2, 100000);
+        cache.getTaskProperties(1, TASKTYPE_MYTASK1, USERID1);
+        cache.getTaskProperties(2, TASKTYPE_MYTASK1, USERID2);
+        cache.getTaskProperties(3, TASKTYPE_MYTASK1, USERID1);
+        // evicts (MYTASK1, USERID2), the least recently used
+        cache.getTaskProperties(4, TASKTYPE_MYTASK2, USERID1);
+        assertEquals(2, cache.size());
+        assertEquals(3, mapperCalls.get());
+        cache.getTaskProperties(5, TASKTYPE_MYTASK1, USERID1);
+        assertEquals(3, mapperCalls.get());
+
+        // tasks of the evicted pair could still be waiting, a full recomputation is needed
+        assertNull(cache.refresh());
+        assertTrue(cache.refresh().isEmpty());
+    }
+
+    @Test
+    public void testChangeOfEvictedPairAfterRefresh() throws Exception {
+        CachingTaskPropertiesMapperFunction cache = newCache(1, 100000);
+        TasksHeap instance = new TasksHeap(100, cache, layout);
+        instance.insertTask(1, TASKTYPE_MYTASK1, USERID1);
+        // evicts (MYTASK1, USERID1)
+        instance.insertTask(2, TASKTYPE_MYTASK1, USERID2);
+        instance.recomputeGroups();
+
+        // the change happens after the first refresh which followed the eviction
+        groupsByUser.put(USERID1, GROUPID2);
+        instance.recomputeGroups();
+        List<AssignedTask> group2 = take(instance, 100, GROUPID2);
+        assertEquals(2, group2.size());
+    }
+
+    @Test
+    public void testTrackingOverflow() throws Exception {
+        CachingTaskPropertiesMapperFunction cache = newCache(1, 100000);
+        cache.getTaskProperties(1, TASKTYPE_MYTASK1, USERID1);
+        cache.getTaskProperties(2, TASKTYPE_MYTASK1, USERID2);
+        cache.getTaskProperties(3, TASKTYPE_MYTASK2, USERID1);
+        // evicted pairs, a full recomputation is needed
+        assertNull(cache.refresh());
+        assertTrue(cache.refresh().isEmpty());
+    }
+
+    @Test
+    public void testRecomputeOnlyChangedPairs() throws Exception {
+        CachingTaskPropertiesMapperFunction cache = newCache(100, 100000);
+        TasksHeap instance = new TasksHeap(100, cache, layout);
+        long taskid = 0;
+        for (int i = 0; i < 10; i++) {
+            instance.insertTask(++taskid, TASKTYPE_MYTASK1, USERID1);
+            instance.insertTask(++taskid, TASKTYPE_MYTASK2, USERID1);
+            instance.insertTask(++taskid, TASKTYPE_MYTASK1, USERID2);
+        }
+        assertEquals(3, mapperCalls.get());
+
+        // nothing changed, the mapper is not invoked at all
+        instance.recomputeGroups();
+        assertEquals(3, mapperCalls.get());
+
+        groupsByUser.put(USERID1, GROUPID2);
+        cache.invalidate(TASKTYPE_MYTASK1, USERID1);
+        instance.recomputeGroups();
+        assertEquals(4, mapperCalls.get());
+
+        // only (MYTASK1, USERID1) moved to GROUPID2
+        List<AssignedTask> group1 = take(instance, 100, GROUPID1);
+        assertEquals(10, group1.size());
+        for (AssignedTask task : group1) {
+            assertEquals(2, task.taskid % 3);
+        }
+        List<AssignedTask> group2 = take(instance, 100, GROUPID2);
+        assertEquals(20, group2.size());
+        for (AssignedTask task : group2) {
+            assertTrue(task.taskid % 3 != 2);
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests for the columnar storage of the heap
+ *
+ * @author enrico.olivelli
+ */
+public class ColumnarTasksHeapStorageTest {
+
+    @Test
+    public void testUsersDictionaryIsBounded() {
+        int size = 10;
+        ColumnarTasksHeapStorage storage = new ColumnarTasksHeapStorage(size, false);
+        long taskid = 0;
+        for (int round = 0; round < 1000; round++) {
+            for (int pos = 0; pos < size; pos++) {
+                storage.set(pos, ++taskid, 1, "user" + taskid, 0, null);
+            }
+            for (int pos = 0; pos < size; pos++) {
+                assertEquals("user" + storage.getTaskId(pos), storage.getUserId(pos));
+            }
+            // claimed tasks are cleared later, as the compaction does
+            assertTrue(storage.claimTask(0, storage.getTaskId(0)));
+            assertNull(storage.getEntry(0).userid);
+            storage.move(size - 1, 1);
+            for (int pos = 0; pos < size; pos++) {
+                if (pos != 1) {
+                    storage.clear(pos);
+                }
+            }
+            assertEquals(1, storage.getUsersCount());
+            storage.clear(1);
+            assertEquals(0, storage.getUsersCount());
+        }
+        storage.set(0, ++taskid, 1, "user", 0, null);
+        storage.set(1, ++taskid, 1, "user", 0, null);
+        storage.resize(1);
+        assertEquals("user", storage.getUserId(0));
+        assertEquals(1, storage.getUsersCount());
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class DelayedTasksTimingWheelTest {
+
+    private static final long TICK = 5;
+
+    @Test
+    public void testTasksAreGivenBackOnlyWhenDue() {
+        long start = 1000000;
+        DelayedTasksTimingWheel wheel = new DelayedTasksTimingWheel(TICK, start);
+        wheel.schedule(1, start + 7);
+        wheel.schedule(2, start + 7);
+        wheel.schedule(3, start + 100);
+        assertEquals(3, wheel.size());
+
+        List<Long> due = new ArrayList<>();
+        assertEquals(0, wheel.advance(start + 6, due::add));
+        assertEquals(2, wheel.advance(start + 10, due::add));
+        assertEquals(2, due.size());
+        assertTrue(due.contains(1L));
+        assertTrue(due.contains(2L));
+        assertEquals(0, wheel.advance(start + 100, due::add));
+        assertEquals(1, wheel.advance(start + 105, due::add));
+        assertEquals(Long.valueOf(3), due.get(2));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testAlreadyDueTask() {
+        long start = 1000000;
+        DelayedTasksTimingWheel wheel = new DelayedTasksTimingWheel(TICK, start);
+        wheel.advance(start + 50, id -> {
+        });
+        wheel.schedule(1, start);
+        List<Long> due = new ArrayList<>();
+        assertEquals(1, wheel.advance(start + 50, due::add));
+        assertEquals(Long.valueOf(1), due.get(0));
+    }
+
+    @Test
+    public void testFarFutureTasks() {
+        long start = 1000000;
+        DelayedTasksTimingWheel wheel = new DelayedTasksTimingWheel(TICK, start);
+        wheel.schedule(1, Long.MAX_VALUE);
+        wheel.schedule(2, start + 3 * 24 * 60 * 60 * 1000L);
+        Map<Long, Long> entries = new HashMap<>();
+        wheel.forEach(entries::put);
+        assertEquals(Long.valueOf(Long.MAX_VALUE), entries.get(1L));
+        assertEquals(Long.valueOf(start + 3 * 24 * 60 * 60 * 1000L), entries.get(2L));
+
+        List<Long> due = new ArrayList<>();
+        assertEquals(0, wheel.advance(start + 3 * 24 * 60 * 60 * 1000L, due::add));
+        assertEquals(1, wheel.advance(start + 3 * 24 * 60 * 60 * 1000L + TICK, due::add));
+        assertEquals(Long.valueOf(2), due.get(0));
+        assertEquals(1, wheel.size());
+    }
+
+    @Test
+    public void testRandomSchedule() {
+        long start = 1000000;
+        DelayedTasksTimingWheel wheel = new DelayedTasksTimingWheel(TICK, start);
+        Random random = new Random(1234);
+        Map<Long, Long> startTimes = new HashMap<>();
+        for (long taskId = 1; taskId <= 20000; taskId++) {
+            // up to ten minutes, in order to use three levels
+            long startTime = start + random.nextInt(10 * 60 * 1000);
+            startTimes.put(taskId, startTime);
+            wheel.schedule(taskId, startTime);
+        }
+        long now = start;
+        while (!wheel.isEmpty()) {
+            now += 1 + random.nextInt(200);
+            long time = now;
+            wheel.advance(time, taskId -> {
+                long startTime = startTimes.remove(taskId);
+                assertTrue(startTime < time);
+                assertTrue(startTime >= time - 200 - TICK);
+            });
+        }
+        assertTrue(startTimes.isEmpty());
+    }
+
+    @Test
+    public void testRealignAfterLongTime() {
+        long now = System.currentTimeMillis();
+        // the wheel has been created by a follower which has been running for some days
+        DelayedTasksTimingWheel wheel = new DelayedTasksTimingWheel(TICK, now - 5 * 24 * 60 * 60 * 1000L);
+        wheel.schedule(1, now + 1000);
+        wheel.realign(now);
+        assertEquals(now - now % TICK, wheel.getCurrentTime());
+        wheel.schedule(2, now + 100);
+        wheel.schedule(3, now - 100);
+        assertEquals(3, wheel.size());
+
+        List<Long> due = new ArrayList<>();
+        assertEquals(1, wheel.advance(now + 50, due::add));
+        assertEquals(Long.valueOf(3), due.get(0));
+        assertEquals(1, wheel.advance(now + 105, due::add));
+        assertEquals(Long.valueOf(2), due.get(1));
+        assertEquals(1, wheel.advance(now + 1005, due::add));
+        assertEquals(Long.valueOf(1), due.get(2));
+        assertEquals(0, wheel.size());
+    }
+}
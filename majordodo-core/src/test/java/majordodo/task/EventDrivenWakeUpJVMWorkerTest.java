@@ -0,0 +1,97 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import majordodo.clientfacade.AddTaskRequest;
+import majordodo.executors.TaskExecutor;
+import majordodo.worker.WorkerCore;
+import majordodo.worker.WorkerCoreConfiguration;
+import majordodo.worker.WorkerStatusListener;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Simple tests, the periodic wake up of the workers is disabled in practice, so workers must be woken up by events
+ *
+ * @author enrico.olivelli
+ */
+public class EventDrivenWakeUpJVMWorkerTest extends SimpleBrokerSuite {
+
+    @Override
+    protected BrokerConfiguration createBrokerConfiguration() {
+        BrokerConfiguration configuration = super.createBrokerConfiguration();
+        configuration.setWorkersFullSweepPeriod(10 * 60 * 1000);
+        return configuration;
+    }
+
+    @Test
+    public void wakeUpAfterGroupsRecomputation() throws Exception {
+        String movingUserId = "movinguser";
+        declareGroupForUser(movingUserId, group + 1);
+
+        CountDownLatch connectedLatch = new CountDownLatch(1);
+        CountDownLatch taskExecuted = new CountDownLatch(1);
+        WorkerStatusListener listener = new WorkerStatusListener() {
+
+            @Override
+            public void connectionEvent(String event, WorkerCore core) {
+                if (event.equals(WorkerStatusListener.EVENT_CONNECTED)) {
+                    connectedLatch.countDown();
+                }
+            }
+
+        };
+        Map<String, Integer> tags = new HashMap<>();
+        tags.put(TASKTYPE_MYTYPE, 1);
+        WorkerCoreConfiguration config = new WorkerCoreConfiguration();
+        config.setWorkerId("workerid");
+        config.setMaxThreadsByTaskType(tags);
+        config.setGroups(Arrays.asList(group));
+        try (WorkerCore core = new WorkerCore(config, "here", getBrokerLocator(), listener);) {
+            core.setExecutorFactory((String tasktype, Map<String, Object> parameters) -> new TaskExecutor() {
+
+                @Override
+                public String executeTask(Map<String, Object> parameters) throws Exception {
+                    taskExecuted.countDown();
+                    return "";
+                }
+
+            });
+            core.start();
+            assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
+
+            // the task is not in a group accepted by the worker
+            getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, movingUserId, "param", 0, 0, 0, null, 0, null, null));
+            assertFalse(taskExecuted.await(1, TimeUnit.SECONDS));
+
+            // the idle worker is woken up as soon as the task moves to its group
+            declareGroupForUser(movingUserId, group);
+            broker.recomputeGroups();
+            assertTrue(taskExecuted.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+}
@@ -167,8 +167,6 @@ public class ExpireMultipleTasksTest {
                     config.setMaxThreadsByTaskType(tags);
                     config.setGroups(Arrays.asList(group));
                     try (WorkerCore core = new WorkerCore(config, workerId, locator, listener);) {
-                        core.start();
-                        assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
                         core.setExecutorFactory(
                                 (String tasktype, Map<String, Object> parameters) -> new TaskExecutor() {
 
@@ -182,6 +180,8 @@ public class ExpireMultipleTasksTest {
 
                         }
                         );
+                        core.start();
+                        assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
 
                         taskId = broker.getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, userId, taskParams, 0, 0, System.currentTimeMillis() - 1000 * 60 * 60, null, 0, null, null)).getTaskId();
                         taskId = broker.getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, userId, taskParams, 0, 0, System.currentTimeMillis() - 1000 * 60 * 60, null, 0, null, null)).getTaskId();
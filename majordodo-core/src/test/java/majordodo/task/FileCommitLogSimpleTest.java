@@ -24,11 +24,23 @@ import majordodo.task.FileCommitLog;
 import majordodo.task.LogSequenceNumber;
 import majordodo.task.Task;
 import majordodo.task.StatusEdit;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import org.junit.Rule;
@@ -93,4 +105,282 @@ public class FileCommitLogSimpleTest {
 
     }
 
+    @Test
+    public void synchFailureTest() throws Exception {
+        AtomicBoolean failSynch = new AtomicBoolean();
+        try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), folderLogs.getRoot().toPath(), 1024 * 1024) {
+            @Override
+            void synch() throws IOException {
+                if (failSynch.get()) {
+                    throw new IOException("simulated fsync failure");
+                }
+                super.synch();
+            }
+        };) {
+            BrokerStatusSnapshot snapshot = log.loadBrokerStatusSnapshot();
+            log.recovery(snapshot.getActualLogSequenceNumber(), (a, b) -> {
+                fail();
+            }, false);
+            log.startWriting();
+            log.logStatusEdit(StatusEdit.ADD_TASK(1, "mytype", "param1", "myuser", 0, 0, 0, null, 0, null, null));
+            assertTrue(log.isWritable());
+
+            failSynch.set(true);
+            try {
+                log.logStatusEdit(StatusEdit.ADD_TASK(2, "mytype", "param1", "myuser", 0, 0, 0, null, 0, null, null));
+                fail();
+            } catch (LogNotAvailableException expected) {
+                assertTrue(expected.getCause() instanceof IOException);
+            }
+            assertFalse(log.isWritable());
+            assertTrue(log.isClosed());
+
+            // the log does not accept edits any more, even if the disk is back
+            failSynch.set(false);
+            try {
+                log.logStatusEdit(StatusEdit.ADD_TASK(3, "mytype", "param1", "myuser", 0, 0, 0, null, 0, null, null));
+                fail();
+            } catch (LogNotAvailableException expected) {
+                assertTrue(expected.getCause() instanceof IOException);
+            }
+        }
+    }
+
+    @Test
+    public void concurrentBatchesTest() throws Exception {
+        int threads = 4;
+        int batches = 20;
+        int batchSize = 50;
+        List<LogSequenceNumber> written = Collections.synchronizedList(new ArrayList<>());
+        // small files in order to roll new ledgers in the middle of batches
+        try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), folderLogs.getRoot().toPath(), 16 * 1024);) {
+            BrokerStatusSnapshot snapshot = log.loadBrokerStatusSnapshot();
+            log.recovery(snapshot.getActualLogSequenceNumber(), (a, b) -> {
+                fail();
+            }, false);
+            log.startWriting();
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                results.add(executor.submit(() -> {
+                    for (int b = 0; b < batches; b++) {
+                        List<StatusEdit> edits = new ArrayList<>();
+                        for (int i = 0; i < batchSize; i++) {
+                            edits.add(StatusEdit.ADD_TASK(1, "mytype", "param1", "myuser", 0, 0, 0, null, 0, null, null));
+                        }
+                        List<LogSequenceNumber> res = log.logStatusEditBatch(edits);
+                        assertEquals(batchSize, res.size());
+                        for (int i = 1; i < res.size(); i++) {
+                            assertTrue(res.get(i).after(res.get(i - 1)));
+                        }
+                        written.addAll(res);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : results) {
+                f.get();
+            }
+            executor.shutdown();
+        }
+        assertEquals(threads * batches * batchSize, written.stream().map(n -> n.ledgerId + "," + n.sequenceNumber).distinct().count());
+        try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), folderLogs.getRoot().toPath(), 16 * 1024);) {
+            BrokerStatusSnapshot snapshot = log.loadBrokerStatusSnapshot();
+            AtomicInteger count = new AtomicInteger();
+            log.recovery(snapshot.getActualLogSequenceNumber(), (a, b) -> {
+                count.incrementAndGet();
+            }, false);
+            assertEquals(threads * batches * batchSize, count.get());
+        }
+    }
+
+    @Test
+    public void preallocatedSegmentsTest() throws Exception {
+        long maxLogFileSize = 16 * 1024;
+        Path logs = folderLogs.getRoot().toPath();
+        LogSequenceNumber snapshotSequenceNumber;
+        try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), logs, maxLogFileSize);) {
+            BrokerStatusSnapshot snapshot = log.loadBrokerStatusSnapshot();
+            log.recovery(snapshot.getActualLogSequenceNumber(), (a, b) -> {
+                fail();
+            }, false);
+            log.startWriting();
+            log.logStatusEdit(StatusEdit.NOOP());
+            // the file is allocated at once, and not while it is written
+            assertEquals(maxLogFileSize, Files.size(log.getCurrentLedgerFilePath()));
+            for (int i = 0; i < 1000; i++) {
+                log.logStatusEdit(StatusEdit.ADD_TASK(i, "mytype", "param1", "myuser", 0, 0, 0, null, 0, null, null));
+            }
+            snapshotSequenceNumber = log.getLastSequenceNumber();
+            assertTrue(snapshotSequenceNumber.ledgerId > 2);
+            log.checkpoint(new BrokerStatusSnapshot(0, 0, snapshotSequenceNumber));
+            assertEquals(2, countFiles(logs, ".txfree"));
+
+            // new ledgers reuse the recycled segments
+            while (log.getLastSequenceNumber().ledgerId < snapshotSequenceNumber.ledgerId + 2) {
+                log.logStatusEdit(StatusEdit.TASK_STATUS_CHANGE(1, "node1", Task.STATUS_FINISHED, "theresult"));
+            }
+            assertEquals(0, countFiles(logs, ".txfree"));
+        }
+        try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), logs, maxLogFileSize);) {
+            BrokerStatusSnapshot snapshot = log.loadBrokerStatusSnapshot();
+            assertEquals(snapshotSequenceNumber.ledgerId, snapshot.getActualLogSequenceNumber().ledgerId);
+            assertEquals(snapshotSequenceNumber.sequenceNumber, snapshot.getActualLogSequenceNumber().sequenceNumber);
+            List<LogSequenceNumber> recovered = new ArrayList<>();
+            log.recovery(snapshot.getActualLogSequenceNumber(), (a, b) -> {
+                assertEquals(StatusEdit.TYPE_TASK_STATUS_CHANGE, b.editType);
+                assertTrue(recovered.isEmpty() || a.after(recovered.get(recovered.size() - 1)));
+                recovered.add(a);
+            }, false);
+            assertTrue(recovered.size() > 0);
+            // the last ledger has just been opened and it is empty
+            assertEquals(snapshotSequenceNumber.ledgerId + 1, recovered.get(recovered.size() - 1).ledgerId);
+        }
+    }
+
+    @Test
+    public void segmentWithoutHeaderTest() throws Exception {
+        Path logs = folderLogs.getRoot().toPath();
+        try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), logs, 1024 * 1024);) {
+            log.loadBrokerStatusSnapshot();
+            log.recovery(new LogSequenceNumber(-1, -1), (a, b) -> {
+                fail();
+            }, false);
+            log.startWriting();
+            log.logStatusEdit(StatusEdit.ADD_TASK(1, "mytype", "param1", "myuser", 0, 0, 0, null, 0, null, null));
+        }
+        // simulate a crash after a new segment has been zero-filled but before its header reached the disk
+        Path lastFile = logs.resolve(String.format("%016x", 2) + ".txlog");
+        Files.write(lastFile, new byte[1024 * 1024]);
+        for (int i = 0; i < 2; i++) {
+            try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), logs, 1024 * 1024);) {
+                List<StatusEdit> edits = new ArrayList<>();
+                log.recovery(new LogSequenceNumber(-1, -1), (a, b) -> {
+                    edits.add(b);
+                }, false);
+                assertEquals(1 + i, edits.size());
+                assertEquals(1, edits.get(0).taskId);
+                assertFalse(Files.exists(lastFile));
+                log.startWriting();
+                log.logStatusEdit(StatusEdit.NOOP());
+            }
+        }
+    }
+
+    @Test
+    public void unfinishedEntryInPreallocatedSegmentTest() throws Exception {
+        Path logFile;
+        try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), folderLogs.getRoot().toPath(), 1024 * 1024);) {
+            log.loadBrokerStatusSnapshot();
+            log.recovery(new LogSequenceNumber(-1, -1), (a, b) -> {
+                fail();
+            }, false);
+            log.startWriting();
+            log.logStatusEdit(StatusEdit.ADD_TASK(1, "mytype", "param1", "myuser", 0, 0, 0, null, 0, null, null));
+            log.logStatusEdit(StatusEdit.ADD_TASK(2, "mytype", "param1", "myuser", 0, 0, 0, null, 0, null, null));
+            logFile = log.getCurrentLedgerFilePath();
+        }
+        // simulate a torn write of the last entry: its tail is still zeroed
+        byte[] content = Files.readAllBytes(logFile);
+        int end = content.length;
+        while (content[end - 1] == 0) {
+            end--;
+        }
+        Arrays.fill(content, end - 10, end, (byte) 0);
+        Files.write(logFile, content);
+        try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), folderLogs.getRoot().toPath(), 1024 * 1024);) {
+            List<StatusEdit> edits = new ArrayList<>();
+            log.recovery(new LogSequenceNumber(-1, -1), (a, b) -> {
+                edits.add(b);
+            }, false);
+            assertEquals(1, edits.size());
+            assertEquals(1, edits.get(0).taskId);
+        }
+    }
+
+    @Test
+    public void recoveryFromIndexTest() throws Exception {
+        Path logFile;
+        try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), folderLogs.getRoot().toPath(), 1024 * 1024);) {
+            log.loadBrokerStatusSnapshot();
+            log.recovery(new LogSequenceNumber(-1, -1), (a, b) -> {
+                fail();
+            }, false);
+            log.startWriting();
+            for (int i = 0; i < 2500; i++) {
+                log.logStatusEdit(StatusEdit.ADD_TASK(i, "mytype", "param1", "myuser", 0, 0, 0, null, 0, null, null));
+            }
+            logFile = log.getCurrentLedgerFilePath();
+        }
+        assertEquals(1, countFiles(folderLogs.getRoot().toPath(), ".txidx"));
+
+        // corrupt the first entry, it is covered by the checksum
+        byte[] content = Files.readAllBytes(logFile);
+        content[16 + 13 + 5] ^= 0x5A;
+        Files.write(logFile, content);
+
+        try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), folderLogs.getRoot().toPath(), 1024 * 1024);) {
+            // the index points after the corrupted entry
+            List<StatusEdit> edits = new ArrayList<>();
+            log.recovery(new LogSequenceNumber(1, 2100), (a, b) -> {
+                assertTrue(a.sequenceNumber > 2100);
+                edits.add(b);
+            }, false);
+            assertEquals(399, edits.size());
+            assertEquals(2101, edits.get(0).taskId);
+
+            // reading from the start we stop at the corrupted entry, as it is in the last file
+            edits.clear();
+            log.recovery(new LogSequenceNumber(-1, -1), (a, b) -> {
+                edits.add(b);
+            }, false);
+            assertEquals(0, edits.size());
+        }
+    }
+
+    @Test
+    public void skipSegmentsBeforeSnapshotTest() throws Exception {
+        Path logs = folderLogs.getRoot().toPath();
+        List<LogSequenceNumber> written = new ArrayList<>();
+        try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), logs, 16 * 1024);) {
+            log.loadBrokerStatusSnapshot();
+            log.recovery(new LogSequenceNumber(-1, -1), (a, b) -> {
+                fail();
+            }, false);
+            log.startWriting();
+            for (int i = 0; i < 1000; i++) {
+                written.add(log.logStatusEdit(StatusEdit.ADD_TASK(i, "mytype", "param1", "myuser", 0, 0, 0, null, 0, null, null)));
+            }
+        }
+        assertTrue(written.get(written.size() - 1).ledgerId > 3);
+
+        // corrupt an entry of the first segment
+        Path firstFile = logs.resolve(String.format("%016x", 1) + ".txlog");
+        byte[] content = Files.readAllBytes(firstFile);
+        content[16 + 13 + 5] ^= 0x5A;
+        Files.write(firstFile, content);
+
+        try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), logs, 16 * 1024);) {
+            try {
+                log.recovery(new LogSequenceNumber(-1, -1), (a, b) -> {
+                }, false);
+                fail();
+            } catch (LogNotAvailableException expected) {
+            }
+            // the first segment is not read at all
+            AtomicInteger count = new AtomicInteger();
+            log.recovery(new LogSequenceNumber(3, -1), (a, b) -> {
+                assertTrue(a.ledgerId >= 3);
+                count.incrementAndGet();
+            }, false);
+            assertEquals(written.stream().filter(n -> n.ledgerId >= 3).count(), count.get());
+        }
+    }
+
+    private static int countFiles(Path directory, String extension) throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return (int) files.filter(p -> p.getFileName().toString().endsWith(extension)).count();
+        }
+    }
+
 }
@@ -0,0 +1,155 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import majordodo.clientfacade.TaskStatusView;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests for the payloads of finished tasks moved out of memory
+ *
+ * @author enrico.olivelli
+ */
+public class FinishedTasksStoreTest {
+
+    @Test
+    public void testSpillAndPurge() throws Exception {
+        Path mavenTargetDir = Paths.get("target").toAbsolutePath();
+        Path workDir = Files.createTempDirectory(mavenTargetDir, "test" + System.nanoTime());
+
+        // very small segments and cache, in order to read from many files
+        FinishedTasksStore store = new FinishedTasksStore(workDir, 100, 2);
+        BrokerStatus status = new BrokerStatus(new MemoryCommitLog());
+        status.setFinishedTasksStore(store);
+        status.recover();
+        status.startWriting();
+
+        long[] taskIds = new long[20];
+        for (int i = 0; i < taskIds.length; i++) {
+            taskIds[i] = status.nextTaskId();
+            assertNull(status.applyModification(StatusEdit.ADD_TASK(taskIds[i], "mytype", "param" + i, "user", 0, 0, 0, null, 0, null, null)).error);
+            assertNull(status.applyModification(StatusEdit.TASK_STATUS_CHANGE(taskIds[i], null, Task.STATUS_FINISHED, "result" + i)).error);
+        }
+        // payloads are written in background
+        store.waitForPendingWrites();
+        for (int i = 0; i < taskIds.length; i++) {
+            assertTrue(status.getTask(taskIds[i]).getPayloadPosition() >= 0);
+        }
+        assertTrue(store.getSegmentsCount() > 1);
+
+        for (int i = 0; i < taskIds.length; i++) {
+            TaskStatusView view = status.getTaskStatus(taskIds[i]);
+            assertEquals("param" + i, view.getData());
+            assertEquals("result" + i, view.getResult());
+        }
+        for (Task task : status.createSnapshot().getTasks()) {
+            int i = (int) (task.getTaskId() - taskIds[0]);
+            assertEquals("param" + i, task.getParameter());
+            assertEquals("result" + i, task.getResult());
+        }
+
+        // a new status change replaces the result of a finished task
+        assertNull(status.applyModification(StatusEdit.TASK_STATUS_CHANGE(taskIds[0], null, Task.STATUS_ERROR, "changed")).error);
+        assertEquals("param0", status.getTaskStatus(taskIds[0]).getData());
+        assertEquals("changed", status.getTaskStatus(taskIds[0]).getResult());
+        store.waitForPendingWrites();
+        assertEquals("changed", status.getTaskStatus(taskIds[0]).getResult());
+
+        Thread.sleep(10);
+        status.purgeFinishedTasksAndSignalExpiredTasks(0, 100, 1000);
+        assertEquals(0, status.getStats().getTasks());
+        // only the segment which is currently written is left
+        assertEquals(1, store.getSegmentsCount());
+
+        status.close();
+        assertEquals(0, store.getSegmentsCount());
+    }
+
+    @Test
+    public void testReadWhileSegmentsAreReleased() throws Exception {
+        Path mavenTargetDir = Paths.get("target").toAbsolutePath();
+        Path workDir = Files.createTempDirectory(mavenTargetDir, "test" + System.nanoTime());
+
+        // no cache, every read goes to the segments
+        try (FinishedTasksStore store = new FinishedTasksStore(workDir, 100, 0)) {
+            int count = 2000;
+            long[] positions = new long[count];
+            for (int i = 0; i < count; i++) {
+                positions[i] = store.write(i, ("param" + i).getBytes(StandardCharsets.UTF_8), null);
+            }
+            AtomicBoolean done = new AtomicBoolean();
+            ExecutorService reader = Executors.newSingleThreadExecutor();
+            try {
+                Future<Integer> reads = reader.submit(() -> {
+                    int found = 0;
+                    while (!done.get()) {
+                        for (int i = count - 1; i >= 0; i--) {
+                            // a released payload is simply not available any more
+                            FinishedTasksStore.Payload payload = store.read(i, positions[i]);
+                            if (payload != null) {
+                                assertEquals("param" + i, new String(payload.parameter, StandardCharsets.UTF_8));
+                                found++;
+                            }
+                        }
+                    }
+                    return found;
+                });
+                for (int i = 0; i < count; i++) {
+                    store.release(i, positions[i]);
+                }
+                done.set(true);
+                reads.get();
+            } finally {
+                reader.shutdown();
+            }
+            assertEquals(1, store.getSegmentsCount());
+        }
+    }
+
+    @Test
+    public void testTaskFinishedAgain() throws Exception {
+        Path mavenTargetDir = Paths.get("target").toAbsolutePath();
+        Path workDir = Files.createTempDirectory(mavenTargetDir, "test" + System.nanoTime());
+
+        try (FinishedTasksStore store = new FinishedTasksStore(workDir, 1024, 10)) {
+            long first = store.write(1, "param".getBytes(StandardCharsets.UTF_8), "first".getBytes(StandardCharsets.UTF_8));
+            long second = store.write(1, "param".getBytes(StandardCharsets.UTF_8), "second".getBytes(StandardCharsets.UTF_8));
+            assertEquals("first", new String(store.read(1, first).result, StandardCharsets.UTF_8));
+            assertEquals("second", new String(store.read(1, second).result, StandardCharsets.UTF_8));
+
+            // releasing the old position keeps the new payload
+            store.release(1, first);
+            assertTrue(store.isCached(1, second));
+            assertEquals("second", new String(store.read(1, second).result, StandardCharsets.UTF_8));
+            store.release(1, second);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests for the recovery pipeline
+ *
+ * @author enrico.olivelli
+ */
+public class LogRecoveryPipelineTest {
+
+    @Test
+    public void testEditsAreAppliedInOrder() throws Exception {
+        int count = 25000;
+        AtomicLong next = new AtomicLong();
+        Thread caller = Thread.currentThread();
+        new LogRecoveryPipeline("test", 4).run((sink) -> {
+            for (int i = 0; i < count; i++) {
+                sink.accept(new LogSequenceNumber(1, i), StatusEdit.COMMIT_TRANSACTION(i).serialize());
+            }
+        }, (number, edit) -> {
+            assertSame(caller, Thread.currentThread());
+            long expected = next.getAndIncrement();
+            assertEquals(expected, number.sequenceNumber);
+            assertEquals(expected, edit.transactionId);
+        });
+        assertEquals(count, next.get());
+    }
+
+    @Test
+    public void testReaderFailure() throws Exception {
+        AtomicLong applied = new AtomicLong();
+        try {
+            new LogRecoveryPipeline("test", 2).run((sink) -> {
+                for (int i = 0; i < 5000; i++) {
+                    sink.accept(new LogSequenceNumber(1, i), StatusEdit.NOOP().serialize());
+                }
+                throw new IOException("broken file");
+            }, (number, edit) -> {
+                applied.incrementAndGet();
+            });
+            fail();
+        } catch (LogNotAvailableException expected) {
+            assertTrue(expected.getCause() instanceof IOException);
+        }
+        // every entry before the failure has been applied
+        assertEquals(5000, applied.get());
+    }
+
+    @Test
+    public void testConsumerFailureStopsTheReader() throws Exception {
+        try {
+            new LogRecoveryPipeline("test", 2).run((sink) -> {
+                // endless log
+                for (long i = 0;; i++) {
+                    sink.accept(new LogSequenceNumber(1, i), StatusEdit.NOOP().serialize());
+                }
+            }, (number, edit) -> {
+                if (number.sequenceNumber == 3000) {
+                    throw new RuntimeException("broker failed");
+                }
+            });
+            fail();
+        } catch (RuntimeException expected) {
+            assertEquals("broker failed", expected.getMessage());
+        }
+    }
+
+    @Test
+    public void testCorruptedEntry() throws Exception {
+        try {
+            new LogRecoveryPipeline("test", 2).run((sink) -> {
+                sink.accept(new LogSequenceNumber(1, 0), new byte[]{1});
+            }, (number, edit) -> {
+                fail();
+            });
+            fail();
+        } catch (LogNotAvailableException expected) {
+        }
+    }
+}
@@ -186,8 +186,6 @@ public class MaxTasksPerUserTest {
                     int expectedPeek = (maxThreadsPerTaskType * limitPercent) / 100;
 
                     try (WorkerCore core = new WorkerCore(config, workerId, locator, listener);) {
-                        core.start();
-                        assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
                         core.setExecutorFactory(
                             (String tasktype, Map<String, Object> parameters) -> new TaskExecutor() {
 
@@ -212,6 +210,8 @@ public class MaxTasksPerUserTest {
 
                         }
                         );
+                        core.start();
+                        assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
 
                         assertTrue(allTaskExecuted.await(1, TimeUnit.MINUTES));
 
@@ -177,8 +177,6 @@ public class ReplicatedTaskExecutionSendAgainFinishedNotificationTest {
                                 config.setMaxThreadsByTaskType(tags);
                                 config.setGroups(Arrays.asList(group));
                                 try (WorkerCore core = new WorkerCore(config, workerId, locator, listener);) {
-                                    core.start();
-                                    assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
                                     core.setExecutorFactory(
                                         (String tasktype, Map<String, Object> parameters) -> new TaskExecutor() {
 
@@ -192,6 +190,8 @@ public class ReplicatedTaskExecutionSendAgainFinishedNotificationTest {
 
                                     }
                                     );
+                                    core.start();
+                                    assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
 
                                     taskId = broker1.getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, userId, taskParams, 0, 0, 0, null, 0, null, null)).getTaskId();
 
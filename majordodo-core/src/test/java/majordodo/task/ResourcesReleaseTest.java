@@ -180,8 +180,6 @@ public class ResourcesReleaseTest {
                     config.setMaxThreadsByTaskType(tags);
                     config.setGroups(Arrays.asList(group));
                     try (WorkerCore core = new WorkerCore(config, workerId, locator, listener);) {
-                        core.start();
-                        assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
                         core.setExecutorFactory(
                                 (String tasktype, Map<String, Object> parameters) -> new TaskExecutor() {
 
@@ -194,6 +192,8 @@ public class ResourcesReleaseTest {
 
                         }
                         );
+                        core.start();
+                        assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
 
                         assertTrue(allTaskExecuted.await(30, TimeUnit.SECONDS));
 
@@ -272,8 +272,6 @@ public class ResourcesReleaseTest {
                     config.setMaxThreadsByTaskType(tags);
                     config.setGroups(Arrays.asList(group));
                     try (WorkerCore core = new WorkerCore(config, workerId, locator, listener);) {
-                        core.start();
-                        assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
                         core.setExecutorFactory(
                                 (String tasktype, Map<String, Object> parameters) -> new TaskExecutor() {
 
@@ -286,6 +284,8 @@ public class ResourcesReleaseTest {
                             }
                         }
                         );
+                        core.start();
+                        assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
                         assertTrue(allTaskExecuted.await(30, TimeUnit.SECONDS));
                     }
                     assertTrue(disconnectedLatch.await(10, TimeUnit.SECONDS));
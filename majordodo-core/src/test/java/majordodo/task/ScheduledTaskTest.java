@@ -23,8 +23,10 @@ import majordodo.executors.TaskExecutor;
 import majordodo.network.netty.NettyBrokerLocator;
 import majordodo.worker.WorkerCore;
 import majordodo.worker.WorkerCoreConfiguration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -47,6 +49,31 @@ public class ScheduledTaskTest extends BrokerTestUtils {
     public void reduceCycleWaitTime() {
         broker.setCycleAwaitSeconds(1);
     }
+
+    @Test
+    public void burstOfScheduledTasksTest() throws Exception {
+        int count = 5000;
+        long requestedStartTime = System.currentTimeMillis() + 2000;
+        List<AddTaskRequest> requests = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            requests.add(new AddTaskRequest(0, TASKTYPE_MYTYPE, userId, "param" + i, 0, requestedStartTime, 0, null, 0, null, null));
+        }
+        List<SubmitTaskResult> results = broker.getClient().submitTasks(requests);
+        assertEquals(count, broker.getDelayedTasksQueueView().getTasks().size());
+        assertEquals(0, broker.getHeapStatusView().getTasks().size());
+
+        while (broker.getHeapStatusView().getSize() < count) {
+            Thread.sleep(10);
+        }
+        // all of the tasks are resumed together, as soon as the requested start time is reached
+        long resumeTime = System.currentTimeMillis();
+        assertTrue(resumeTime >= requestedStartTime);
+        assertTrue("resumed " + (resumeTime - requestedStartTime) + " ms late", resumeTime - requestedStartTime < 1000);
+        assertEquals(0, broker.getDelayedTasksQueueView().getTasks().size());
+        for (SubmitTaskResult result : results) {
+            assertEquals(Task.STATUS_WAITING, broker.getBrokerStatus().getTask(result.getTaskId()).getStatus());
+        }
+    }
     
     @Test
     public void scheduledTaskTest() throws Exception {
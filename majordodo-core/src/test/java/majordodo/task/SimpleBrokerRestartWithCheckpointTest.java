@@ -171,8 +171,6 @@ public class SimpleBrokerRestartWithCheckpointTest {
                     config.setMaxThreadsByTaskType(tags);
                     config.setGroups(Arrays.asList(group));
                     try (WorkerCore core = new WorkerCore(config, workerId, locator, listener);) {
-                        core.start();
-                        assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
                         core.setExecutorFactory(
                                 (String tasktype, Map<String, Object> parameters) -> new TaskExecutor() {
 
@@ -185,6 +183,8 @@ public class SimpleBrokerRestartWithCheckpointTest {
 
                         }
                         );
+                        core.start();
+                        assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
 
                         taskId = broker.getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, userId, taskParams, 0, 0, 0, null, 0, null, null)).getTaskId();
                         assertTrue(allTaskExecuted.await(30, TimeUnit.SECONDS));
@@ -36,6 +36,7 @@ import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import majordodo.clientfacade.AddTaskRequest;
 import majordodo.clientfacade.SubmitTaskResult;
+import majordodo.utils.TestUtils;
 import static org.junit.Assert.assertEquals;
 import org.junit.Before;
 import org.junit.Test;
@@ -164,6 +165,61 @@ public abstract class SimpleBrokerSuite extends BasicBrokerEnv {
         assertTrue(todo.isEmpty());
     }
 
+    @Test
+    public void taskLatenciesTest() throws Exception {
+
+        CountDownLatch connectedLatch = new CountDownLatch(1);
+        WorkerStatusListener listener = new WorkerStatusListener() {
+
+            @Override
+            public void connectionEvent(String event, WorkerCore core) {
+                if (event.equals(WorkerStatusListener.EVENT_CONNECTED)) {
+                    connectedLatch.countDown();
+                }
+            }
+
+        };
+        Map<String, Integer> tags = new HashMap<>();
+        tags.put(TASKTYPE_MYTYPE, 1);
+        WorkerCoreConfiguration config = new WorkerCoreConfiguration();
+        config.setMaxPendingFinishedTaskNotifications(1);
+        config.setWorkerId("workerid");
+        config.setMaxThreadsByTaskType(tags);
+        config.setGroups(Arrays.asList(group));
+        try (WorkerCore core = new WorkerCore(config, "here", getBrokerLocator(), listener);) {
+
+            core.setExecutorFactory((String typeType, Map<String, Object> parameters) -> new TaskExecutor() {
+
+                @Override
+                public String executeTask(Map<String, Object> parameters) throws Exception {
+                    Thread.sleep(50);
+                    return "";
+                }
+
+            });
+            core.start();
+            assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
+            for (int i = 0; i < 5; i++) {
+                getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, userId, "param", 0, 0, 0, null, 0, null, null));
+            }
+            TestUtils.waitForCondition(() -> Long.valueOf(5).equals(getLatency(TaskLatencyTracker.END_TO_END, "count")), TestUtils.NOOP, 30);
+        }
+        assertEquals(5L, getLatency(TaskLatencyTracker.QUEUE_WAIT, "count"));
+        assertEquals(5L, getLatency(TaskLatencyTracker.DELIVERY, "count"));
+        assertEquals(5L, getLatency(TaskLatencyTracker.EXECUTION, "count"));
+        assertEquals(5L, getLatency(TaskLatencyTracker.NOTIFICATION, "count"));
+        assertTrue((Long) getLatency(TaskLatencyTracker.EXECUTION, "p50") >= 50);
+        assertTrue((Long) getLatency(TaskLatencyTracker.END_TO_END, "max") >= 50);
+    }
+
+    private Object getLatency(String phase, String value) {
+        Map<String, Map<String, Map<String, Object>>> latencies = getClient().getTaskLatencies();
+        if (!latencies.containsKey(TASKTYPE_MYTYPE)) {
+            return null;
+        }
+        return latencies.get(TASKTYPE_MYTYPE).get(phase).get(value);
+    }
+
     @Test
     public void manyTasks_max10() throws Exception {
         java.util.logging.LogManager.getLogManager().reset();
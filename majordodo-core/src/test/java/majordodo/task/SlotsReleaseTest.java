@@ -184,8 +184,6 @@ public class SlotsReleaseTest {
                     config.setMaxThreadsByTaskType(tags);
                     config.setGroups(Arrays.asList(group));
                     try (WorkerCore core = new WorkerCore(config, workerId, locator, listener);) {
-                        core.start();
-                        assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
                         core.setExecutorFactory(
                             (String tasktype, Map<String, Object> parameters) -> new TaskExecutor() {
 
@@ -197,6 +195,8 @@ public class SlotsReleaseTest {
 
                         }
                         );
+                        core.start();
+                        assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
 
                         assertTrue(allTaskExecuted.await(30, TimeUnit.SECONDS));
 
@@ -275,8 +275,6 @@ public class SlotsReleaseTest {
                     config.setMaxThreadsByTaskType(tags);
                     config.setGroups(Arrays.asList(group));
                     try (WorkerCore core = new WorkerCore(config, workerId, locator, listener);) {
-                        core.start();
-                        assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
                         core.setExecutorFactory(
                             (String tasktype, Map<String, Object> parameters) -> new TaskExecutor() {
 
@@ -288,6 +286,8 @@ public class SlotsReleaseTest {
                             }
                         }
                         );
+                        core.start();
+                        assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
                         assertTrue(allTaskExecuted.await(30, TimeUnit.SECONDS));
                     }
                     assertTrue(disconnectedLatch.await(10, TimeUnit.SECONDS));
@@ -0,0 +1,111 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests about serialization of StatusEdit
+ *
+ * @author enrico.olivelli
+ */
+public class StatusEditTest {
+
+    @Test
+    public void testSerializeAndRead() throws Exception {
+        Set<Long> runningTasks = new HashSet<>(Arrays.asList(Long.MIN_VALUE, -1L, 0L, 3L, 4L, 1000000L, Long.MAX_VALUE));
+        List<StatusEdit> edits = new ArrayList<>();
+        edits.add(StatusEdit.NOOP());
+        edits.add(StatusEdit.DELETE_CODEPOOL("codepool"));
+        edits.add(StatusEdit.CREATE_CODEPOOL("codepool", Long.MAX_VALUE - 123, "payload".getBytes(), 321));
+        edits.add(StatusEdit.CREATE_CODEPOOL("codepool", 123, new byte[0], 0));
+        edits.add(StatusEdit.BEGIN_TRANSACTION(431, 123));
+        edits.add(StatusEdit.ROLLBACK_TRANSACTION(Long.MAX_VALUE - 432));
+        edits.add(StatusEdit.COMMIT_TRANSACTION(433));
+        edits.add(StatusEdit.ASSIGN_TASK_TO_WORKER(Long.MAX_VALUE - 123, "nodeId", 12, "resources"));
+        edits.add(StatusEdit.TASK_STATUS_CHANGE(234, "workerId", Integer.MIN_VALUE + 4, "result"));
+        edits.add(StatusEdit.ADD_TASK(Integer.MAX_VALUE - 12, "taskType", "taskParameter", "userid", 1, 744, Long.MIN_VALUE + 3, "slot", 4, "codePool", "mode"));
+        edits.add(StatusEdit.ADD_TASK(12, "taskType", "è中😀", "userid", 1, 0, 0, null, 0, null, null));
+        edits.add(StatusEdit.PREPARE_ADD_TASK(51, 13, "taskType", "taskParameter", "userid", 1, Long.MAX_VALUE - 744, 3, "slot", 4, "codePool", "mode"));
+        edits.add(StatusEdit.WORKER_CONNECTED("workerId", "processid", "nodeLocation", runningTasks, 32));
+        edits.add(StatusEdit.WORKER_CONNECTED("workerId", "processid", "nodeLocation", new HashSet<>(), 32));
+        edits.add(StatusEdit.WORKER_DISCONNECTED("workerId", 16));
+        edits.add(StatusEdit.WORKER_DIED("workerId", Long.MAX_VALUE - 45));
+
+        for (boolean v3 : new boolean[]{false, true}) {
+            for (StatusEdit edit : edits) {
+                byte[] data = edit.serialize(v3);
+                StatusEdit read = StatusEdit.read(data);
+                assertEquals(edit, read);
+                assertEquals(edit.parameter, read.parameter);
+            }
+        }
+    }
+
+    @Test
+    public void testVersion2IsWrittenByDefault() throws Exception {
+        StatusEdit edit = StatusEdit.TASK_STATUS_CHANGE(234, "workerId", Task.STATUS_FINISHED, "result");
+        assertEquals(StatusEdit.TYPE_V2, readHeader(edit.serialize()));
+        assertEquals(StatusEdit.TYPE_V2, readHeader(edit.serialize(false)));
+        assertEquals(StatusEdit.TYPE_V3, readHeader(edit.serialize(true)));
+    }
+
+    @Test
+    public void testNullValuesAreReadAsInVersion2() throws Exception {
+        StatusEdit addTask = StatusEdit.ADD_TASK(12, "taskType", null, "userid", 1, 0, 0, null, 0, null, null);
+        StatusEdit statusChange = StatusEdit.TASK_STATUS_CHANGE(234, null, Task.STATUS_WAITING, null);
+        StatusEdit assign = StatusEdit.ASSIGN_TASK_TO_WORKER(123, "nodeId", 12, null);
+        for (boolean v3 : new boolean[]{false, true}) {
+            StatusEdit readAddTask = StatusEdit.read(addTask.serialize(v3));
+            assertEquals("", readAddTask.parameter);
+            assertNull(readAddTask.slot);
+            assertNull(readAddTask.codepool);
+            assertNull(readAddTask.mode);
+            StatusEdit readStatusChange = StatusEdit.read(statusChange.serialize(v3));
+            assertEquals("", readStatusChange.workerId);
+            assertEquals("", readStatusChange.result);
+            assertEquals("", StatusEdit.read(assign.serialize(v3)).resources);
+        }
+    }
+
+    private static short readHeader(byte[] data) {
+        return (short) (((data[0] & 0xFF) << 8) | (data[1] & 0xFF));
+    }
+
+    @Test
+    public void testCompactRunningTasks() throws Exception {
+        Set<Long> runningTasks = new HashSet<>();
+        for (long i = 0; i < 1000; i++) {
+            runningTasks.add(1_000_000_000L + i * 7);
+        }
+        byte[] data = StatusEdit.WORKER_CONNECTED("workerId", "processid", "nodeLocation", runningTasks, System.currentTimeMillis()).serialize(true);
+        // about one byte for each task id
+        assertTrue("size " + data.length, data.length < 1100);
+        assertEquals(runningTasks, StatusEdit.read(data).actualRunningTasks);
+    }
+}
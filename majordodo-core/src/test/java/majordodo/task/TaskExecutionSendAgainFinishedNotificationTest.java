@@ -138,8 +138,6 @@ public class TaskExecutionSendAgainFinishedNotificationTest {
                     config.setMaxThreadsByTaskType(tags);
                     config.setGroups(Arrays.asList(group));
                     try (WorkerCore core = new WorkerCore(config, workerId, locator, listener);) {
-                        core.start();
-                        assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
                         core.setExecutorFactory(
                             (String tasktype, Map<String, Object> parameters) -> new TaskExecutor() {
 
@@ -151,6 +149,8 @@ public class TaskExecutionSendAgainFinishedNotificationTest {
 
                         }
                         );
+                        core.start();
+                        assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
 
                         taskId = broker.getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, userId, taskParams, 0, 0, 0, null, 0, null, null)).getTaskId();
                         assertTrue(allTaskExecuted.await(30, TimeUnit.SECONDS));
@@ -242,8 +242,6 @@ public class TaskExecutionSendAgainFinishedNotificationTest {
                     config.setMaxThreadsByTaskType(tags);
                     config.setGroups(Arrays.asList(group));
                     try (WorkerCore core = new WorkerCore(config, workerId, locator, listener);) {
-                        core.start();
-                        assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
                         core.setExecutorFactory(
                             (String tasktype, Map<String, Object> parameters) -> new TaskExecutor() {
 
@@ -255,6 +253,8 @@ public class TaskExecutionSendAgainFinishedNotificationTest {
 
                         }
                         );
+                        core.start();
+                        assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
 
                         taskId = broker.getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, userId, taskParams, 0, 0, 0, null, 0, null, null)).getTaskId();
                         assertTrue(allTaskExecuted.await(30, TimeUnit.SECONDS));
@@ -0,0 +1,56 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Tests for the latencies of the phases of the lifecycle of the tasks
+ *
+ * @author enrico.olivelli
+ */
+public class TaskLatencyTrackerTest {
+
+    @Test
+    public void testRetriedTask() throws Exception {
+        TaskLatencyTracker tracker = new TaskLatencyTracker();
+        Task task = new Task();
+        task.setTaskId(1);
+        task.setType("mytype");
+        task.setCreatedTimestamp(1000);
+
+        // first attempt, the task goes back to waiting status
+        tracker.taskAssigned(task, 1100);
+        tracker.taskRequeued(1, 1500);
+
+        // second attempt
+        tracker.taskAssigned(task, 1600);
+        tracker.taskFinished(1, 1700);
+
+        Map<String, Map<String, Object>> latencies = tracker.getLatencies().get("mytype");
+        assertEquals(2L, latencies.get(TaskLatencyTracker.QUEUE_WAIT).get("count"));
+        assertEquals(100L, latencies.get(TaskLatencyTracker.QUEUE_WAIT).get("max"));
+        // end to end latency starts from the submission, not from the retry
+        assertEquals(1L, latencies.get(TaskLatencyTracker.END_TO_END).get("count"));
+        assertEquals(700L, latencies.get(TaskLatencyTracker.END_TO_END).get("max"));
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+@RunWith(Parameterized.class)
+public class TasksHeapBatchTakeTest {
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> layouts() {
+        return Arrays.asList(new Object[][]{
+            {TasksHeapLayout.OBJECTS},
+            {TasksHeapLayout.COLUMNS},
+            {TasksHeapLayout.OFFHEAP_COLUMNS}
+        });
+    }
+
+    private final TasksHeapLayout layout;
+
+    public TasksHeapBatchTakeTest(TasksHeapLayout layout) {
+        this.layout = layout;
+    }
+
+    private static final String TASKTYPE_MYTASK1 = "MYTASK1";
+    private static final String TASKTYPE_MYTASK2 = "MYTASK2";
+    private static final String USERID1 = "myuser1";
+    private static final String USERID2 = "myuser2";
+    private static final int GROUPID1 = 9713;
+    private static final int GROUPID2 = 972;
+    private static final String RESOURCE1 = "db1";
+
+    private final TaskPropertiesMapperFunction DEFAULT_FUNCTION = (long taskid, String taskType, String userid) -> {
+        switch (userid) {
+            case USERID1:
+                return new TaskProperties(GROUPID1, null);
+            case USERID2:
+                return new TaskProperties(GROUPID2, new String[]{RESOURCE1});
+            default:
+                return new TaskProperties(-1, null);
+        }
+    };
+
+    private static WorkerTasksRequest request(String workerId, int max, List<Integer> groups, String tasktype) {
+        Map<String, Integer> availableSpace = new HashMap<>();
+        availableSpace.put(tasktype, max);
+        return new WorkerTasksRequest(workerId, max, groups, Collections.emptySet(), availableSpace,
+            Collections.emptyMap(), new ResourceUsageCounters(), 0);
+    }
+
+    @Test
+    public void testSinglePassForManyWorkers() throws Exception {
+        TasksHeap instance = new TasksHeap(100, DEFAULT_FUNCTION, layout);
+        long taskid = 0;
+        for (int i = 0; i < 10; i++) {
+            instance.insertTask(++taskid, TASKTYPE_MYTASK1, USERID1);
+            instance.insertTask(++taskid, TASKTYPE_MYTASK1, USERID2);
+            instance.insertTask(++taskid, TASKTYPE_MYTASK2, USERID1);
+        }
+        List<WorkerTasksRequest> requests = new ArrayList<>();
+        requests.add(request("worker1", 4, Arrays.asList(GROUPID1), TASKTYPE_MYTASK1));
+        requests.add(request("worker2", 4, Arrays.asList(GROUPID1), TASKTYPE_MYTASK1));
+        requests.add(request("worker3", 100, Arrays.asList(GROUPID2), Task.TASKTYPE_ANY));
+        requests.add(request("worker4", 100, Arrays.asList(Task.GROUP_ANY), TASKTYPE_MYTASK2));
+        instance.takeTasksForWorkers(requests, Collections.emptyMap(), new ResourceUsageCounters());
+
+        Set<Long> assigned = new HashSet<>();
+        for (WorkerTasksRequest request : requests) {
+            for (AssignedTask task : request.getAssignedTasks()) {
+                assertTrue(assigned.add(task.taskid));
+            }
+        }
+        assertEquals(4, requests.get(0).getAssignedTasks().size());
+        assertEquals(4, requests.get(1).getAssignedTasks().size());
+        for (int i = 0; i < 2; i++) {
+            for (AssignedTask task : requests.get(i).getAssignedTasks()) {
+                // MYTASK1 of USERID1
+                assertEquals(1, task.taskid % 3);
+            }
+        }
+        assertEquals(10, requests.get(2).getAssignedTasks().size());
+        for (AssignedTask task : requests.get(2).getAssignedTasks()) {
+            assertEquals(2, task.taskid % 3);
+            assertEquals(RESOURCE1, task.resources);
+        }
+        assertEquals(10, requests.get(3).getAssignedTasks().size());
+        for (AssignedTask task : requests.get(3).getAssignedTasks()) {
+            assertEquals(0, task.taskid % 3);
+        }
+        assertEquals(2, countWaiting(instance));
+    }
+
+    @Test
+    public void testGlobalResourceLimitsAreShared() throws Exception {
+        TasksHeap instance = new TasksHeap(100, DEFAULT_FUNCTION, layout);
+        for (long taskid = 1; taskid <= 10; taskid++) {
+            instance.insertTask(taskid, TASKTYPE_MYTASK1, USERID2);
+        }
+        List<WorkerTasksRequest> requests = new ArrayList<>();
+        requests.add(request("worker1", 5, Arrays.asList(GROUPID2), TASKTYPE_MYTASK1));
+        requests.add(request("worker2", 5, Arrays.asList(GROUPID2), TASKTYPE_MYTASK1));
+        Map<String, Integer> globalResourceLimits = new HashMap<>();
+        globalResourceLimits.put(RESOURCE1, 3);
+        instance.takeTasksForWorkers(requests, globalResourceLimits, new ResourceUsageCounters());
+        int total = requests.get(0).getAssignedTasks().size() + requests.get(1).getAssignedTasks().size();
+        assertEquals(3, total);
+        assertEquals(7, countWaiting(instance));
+    }
+
+    private static int countWaiting(TasksHeap instance) {
+        int[] count = new int[1];
+        instance.scan(entry -> {
+            if (entry.taskid > 0) {
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+
+}
@@ -21,6 +21,7 @@ package majordodo.task;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -28,9 +29,27 @@ import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 import static org.junit.Assert.assertEquals;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
 
+@RunWith(Parameterized.class)
 public class TasksHeapCompactionTest {
 
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> layouts() {
+        return Arrays.asList(new Object[][]{
+            {TasksHeapLayout.OBJECTS},
+            {TasksHeapLayout.COLUMNS},
+            {TasksHeapLayout.OFFHEAP_COLUMNS}
+        });
+    }
+
+    private final TasksHeapLayout layout;
+
+    public TasksHeapCompactionTest(TasksHeapLayout layout) {
+        this.layout = layout;
+    }
+
     private static final String TASKTYPE_MYTASK1 = "MYTASK1";
     private static final String TASKTYPE_MYTASK2 = "MYTASK2";
     private static final String USERID1 = "myuser1";
@@ -59,7 +78,7 @@ public class TasksHeapCompactionTest {
 
     @Test
     public void testCompation1() throws Exception {
-        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION);
+        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION, layout);
         instance.setMaxFragmentation(1000000);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(Task.TASKTYPE_ANY, 1);
@@ -107,7 +126,7 @@ public class TasksHeapCompactionTest {
 
     @Test
     public void testCompation2() throws Exception {
-        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION);
+        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION, layout);
         instance.setMaxFragmentation(1000000);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(TASKTYPE_MYTASK1, 100);
@@ -175,7 +194,7 @@ public class TasksHeapCompactionTest {
 
     @Test
     public void testCompation3() throws Exception {
-        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION);
+        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION, layout);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(Task.TASKTYPE_ANY, 1);
         AtomicLong newTaskId = new AtomicLong(987);
@@ -226,4 +245,126 @@ public class TasksHeapCompactionTest {
 
     }
 
+    private static List<AssignedTask> take(TasksHeap instance, int max, String tasktype) {
+        Map< String, Integer> availableSpace = new HashMap<>();
+        availableSpace.put(tasktype, max);
+        return instance.takeTasks(max, Arrays.asList(Task.GROUP_ANY), Collections.emptySet(), availableSpace,
+            Collections.emptyMap(), new ResourceUsageCounters(), Collections.emptyMap(), new ResourceUsageCounters(), null, 0);
+    }
+
+    @Test
+    public void testIncrementalCompaction() throws Exception {
+        TasksHeap instance = new TasksHeap(100, DEFAULT_FUNCTION, layout);
+        instance.setMaxFragmentation(20);
+        instance.setCompactionStepSize(7);
+        // odd ids are MYTASK2
+        for (long taskid = 1; taskid <= 100; taskid++) {
+            instance.insertTask(taskid, taskid % 2 == 0 ? TASKTYPE_MYTASK1 : TASKTYPE_MYTASK2, USERID1);
+        }
+        assertEquals(50, take(instance, 100, TASKTYPE_MYTASK1).size());
+        // compaction is not executed inside takeTasks
+        assertEquals(50, instance.getFragmentation());
+        assertEquals(0, instance.getCompactionPasses());
+
+        assertEquals(true, instance.runCompactionStep());
+        assertEquals(true, instance.runCompactionStep());
+        assertEquals(true, instance.runCompactionStep());
+        for (long taskid = 101; taskid <= 110; taskid++) {
+            instance.insertTask(taskid, TASKTYPE_MYTASK2, USERID1);
+        }
+
+        // tasks are taken in FIFO order, both from the compacted and from the not compacted part of the heap
+        List<AssignedTask> taskids = take(instance, 15, TASKTYPE_MYTASK2);
+        assertEquals(15, taskids.size());
+        for (int i = 0; i < 15; i++) {
+            assertEquals(1 + i * 2, taskids.get(i).taskid);
+        }
+
+        int steps = 3;
+        while (instance.runCompactionStep()) {
+            steps++;
+        }
+        steps++;
+        assertEquals(steps, instance.getCompactionSteps());
+        assertEquals(1, instance.getCompactionPasses());
+        // tasks 1..21 had already been compacted when they were taken, so they left some hole
+        assertEquals(11, instance.getFragmentation());
+        assertEquals(false, instance.runCompactionStep());
+        assertEquals(steps, instance.getCompactionSteps());
+
+        List<TasksHeap.TaskEntry> entries = new ArrayList<>();
+        instance.scanFull(entry -> {
+            entries.add(entry);
+        });
+        List<Long> remaining = new ArrayList<>();
+        for (TasksHeap.TaskEntry entry : entries) {
+            if (entry.taskid > 0) {
+                remaining.add(entry.taskid);
+            }
+        }
+        List<Long> expected = new ArrayList<>();
+        for (long taskid = 31; taskid <= 99; taskid += 2) {
+            expected.add(taskid);
+        }
+        for (long taskid = 101; taskid <= 110; taskid++) {
+            expected.add(taskid);
+        }
+        assertEquals(expected, remaining);
+        assertEquals(expected.size() + 11, instance.getActualsize());
+
+        taskids = take(instance, 100, TASKTYPE_MYTASK2);
+        assertEquals(expected.size(), taskids.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).longValue(), taskids.get(i).taskid);
+        }
+    }
+
+    @Test
+    public void testShrinkAfterBurst() throws Exception {
+        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION, layout);
+        instance.setCompactionStepSize(50);
+        for (long taskid = 1; taskid <= 1000; taskid++) {
+            instance.insertTask(taskid, TASKTYPE_MYTASK1, USERID1);
+        }
+        assertEquals(true, instance.getSize() >= 1000);
+        assertEquals(1000, take(instance, 1000, TASKTYPE_MYTASK1).size());
+
+        while (instance.runCompactionStep()) {
+        }
+        assertEquals(1, instance.getCompactionPasses());
+        assertEquals(1, instance.getShrinks());
+        assertEquals(10, instance.getSize());
+        assertEquals(0, instance.getActualsize());
+        assertEquals(0, instance.getFragmentation());
+
+        for (long taskid = 1001; taskid <= 1005; taskid++) {
+            instance.insertTask(taskid, TASKTYPE_MYTASK1, USERID1);
+        }
+        List<AssignedTask> taskids = take(instance, 10, TASKTYPE_MYTASK1);
+        assertEquals(5, taskids.size());
+        assertEquals(1001, taskids.get(0).taskid);
+        assertEquals(1005, taskids.get(4).taskid);
+    }
+
+    @Test
+    public void testCompactionPauseBudget() throws Exception {
+        TasksHeap instance = new TasksHeap(5000, DEFAULT_FUNCTION, layout);
+        instance.setCompactionStepSize(Integer.MAX_VALUE);
+        // every step is going to stop as soon as it checks the elapsed time, that is every 256 slots
+        instance.setCompactionPauseBudgetNanos(1);
+        for (long taskid = 1; taskid <= 5000; taskid++) {
+            instance.insertTask(taskid, taskid % 2 == 0 ? TASKTYPE_MYTASK1 : TASKTYPE_MYTASK2, USERID1);
+        }
+        assertEquals(2500, take(instance, 5000, TASKTYPE_MYTASK1).size());
+        while (instance.runCompactionStep()) {
+        }
+        assertEquals(1, instance.getCompactionPasses());
+        assertEquals(5000 / 256 + 1, instance.getCompactionSteps());
+        assertEquals(instance.getCompactionSteps(), instance.getCompactionStepsOverBudget());
+        assertEquals(true, instance.getMaxCompactionPauseNanos() > 0);
+        assertEquals(true, instance.getTotalCompactionPauseNanos() >= instance.getMaxCompactionPauseNanos());
+        assertEquals(2500, instance.getActualsize());
+        assertEquals(2500, take(instance, 5000, TASKTYPE_MYTASK2).size());
+    }
+
 }
@@ -0,0 +1,191 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+/**
+ * Many workers taking tasks at the same time with concurrent claim enabled
+ *
+ * @author enrico.olivelli
+ */
+@RunWith(Parameterized.class)
+public class TasksHeapConcurrentClaimTest {
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> layouts() {
+        return Arrays.asList(new Object[][]{
+            {TasksHeapLayout.OBJECTS},
+            {TasksHeapLayout.COLUMNS},
+            {TasksHeapLayout.OFFHEAP_COLUMNS}
+        });
+    }
+
+    private final TasksHeapLayout layout;
+
+    public TasksHeapConcurrentClaimTest(TasksHeapLayout layout) {
+        this.layout = layout;
+    }
+
+    private static final String TASKTYPE_MYTASK1 = "MYTASK1";
+    private static final String TASKTYPE_MYTASK2 = "MYTASK2";
+    private static final String USERID1 = "myuser1";
+    private static final String USERID2 = "myuser2";
+    private static final int GROUPID1 = 9713;
+    private static final int GROUPID2 = 972;
+    private static final String RESOURCE1 = "db1";
+    private static final int NUM_WORKERS = 8;
+
+    private final TaskPropertiesMapperFunction DEFAULT_FUNCTION = new TaskPropertiesMapperFunction() {
+        @Override
+        public TaskProperties getTaskProperties(long taskid, String taskType, String userid) {
+            int groupId = USERID1.equals(userid) ? GROUPID1 : GROUPID2;
+            return new TaskProperties(groupId, new String[]{RESOURCE1});
+        }
+    };
+
+    private TasksHeap createHeap(int numTasks) {
+        TasksHeap instance = new TasksHeap(numTasks / 4, DEFAULT_FUNCTION, layout);
+        instance.setConcurrentClaim(true);
+        instance.setMaxFragmentation(numTasks / 10);
+        for (int i = 1; i <= numTasks; i++) {
+            instance.insertTask(i, i % 2 == 0 ? TASKTYPE_MYTASK1 : TASKTYPE_MYTASK2, i % 3 == 0 ? USERID1 : USERID2);
+        }
+        return instance;
+    }
+
+    private Set<Long> takeAllConcurrently(TasksHeap instance, Map<String, Integer> globalLimits,
+        ResourceUsageCounters globalCounters) throws Exception {
+        Set<Long> taken = ConcurrentHashMap.newKeySet();
+        AtomicInteger duplicates = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService threads = Executors.newFixedThreadPool(NUM_WORKERS);
+        try {
+            Future<?>[] futures = new Future<?>[NUM_WORKERS];
+            for (int w = 0; w < NUM_WORKERS; w++) {
+                futures[w] = threads.submit(() -> {
+                    Map<String, Integer> availableSpace = new HashMap<>();
+                    availableSpace.put(Task.TASKTYPE_ANY, 100);
+                    ResourceUsageCounters workerCounters = new ResourceUsageCounters();
+                    start.await();
+                    int emptyRounds = 0;
+                    while (emptyRounds < 10) {
+                        List<AssignedTask> tasks = instance.takeTasks(7, Arrays.asList(Task.GROUP_ANY), Collections.emptySet(), availableSpace,
+                            null, workerCounters, globalLimits, globalCounters, null, 0);
+                        if (tasks.isEmpty()) {
+                            emptyRounds++;
+                            Thread.yield();
+                        } else {
+                            emptyRounds = 0;
+                        }
+                        for (AssignedTask task : tasks) {
+                            assertEquals(RESOURCE1, task.resources);
+                            if (!taken.add(task.taskid)) {
+                                duplicates.incrementAndGet();
+                            }
+                            if (globalCounters != null) {
+                                globalCounters.useResources(task.resourceIds);
+                                globalCounters.releaseResources(task.resourceIds);
+                            }
+                        }
+                    }
+                    return null;
+                });
+            }
+            start.countDown();
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            threads.shutdown();
+            assertTrue(threads.awaitTermination(1, TimeUnit.MINUTES));
+        }
+        assertEquals(0, duplicates.get());
+        return taken;
+    }
+
+    private static void assertHeapIsEmpty(TasksHeap instance) {
+        AtomicInteger count = new AtomicInteger();
+        instance.scan(entry -> {
+            count.incrementAndGet();
+        });
+        assertEquals(0, count.get());
+    }
+
+    @Test
+    public void testEveryTaskIsClaimedOnlyOnce() throws Exception {
+        int numTasks = 20000;
+        TasksHeap instance = createHeap(numTasks);
+        Set<Long> taken = takeAllConcurrently(instance, null, new ResourceUsageCounters());
+        assertEquals(numTasks, taken.size());
+        assertHeapIsEmpty(instance);
+    }
+
+    @Test
+    public void testEveryTaskIsClaimedOnlyOnceWithGlobalLimits() throws Exception {
+        int numTasks = 5000;
+        TasksHeap instance = createHeap(numTasks);
+        Map<String, Integer> globalLimits = new HashMap<>();
+        globalLimits.put(RESOURCE1, 20);
+        Set<Long> taken = takeAllConcurrently(instance, globalLimits, new ResourceUsageCounters());
+        assertEquals(numTasks, taken.size());
+        assertHeapIsEmpty(instance);
+    }
+
+    @Test
+    public void testResourceLimitsAreEnforced() throws Exception {
+        TasksHeap instance = createHeap(100);
+        Map<String, Integer> availableSpace = new HashMap<>();
+        availableSpace.put(Task.TASKTYPE_ANY, 100);
+
+        Map<String, Integer> workerLimits = new HashMap<>();
+        workerLimits.put(RESOURCE1, 3);
+        List<AssignedTask> tasks = instance.takeTasks(10, Arrays.asList(Task.GROUP_ANY), Collections.emptySet(), availableSpace,
+            workerLimits, new ResourceUsageCounters(), null, new ResourceUsageCounters(), null, 0);
+        assertEquals(3, tasks.size());
+
+        Map<String, Integer> globalLimits = new HashMap<>();
+        globalLimits.put(RESOURCE1, 5);
+        ResourceUsageCounters globalCounters = new ResourceUsageCounters();
+        globalCounters.useResources(new String[]{RESOURCE1, RESOURCE1, RESOURCE1, RESOURCE1});
+        tasks = instance.takeTasks(10, Arrays.asList(Task.GROUP_ANY), Collections.emptySet(), availableSpace,
+            null, new ResourceUsageCounters(), globalLimits, globalCounters, null, 0);
+        assertEquals(1, tasks.size());
+    }
+
+}
@@ -20,6 +20,7 @@
 package majordodo.task;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -29,12 +30,30 @@ import java.util.concurrent.atomic.AtomicLong;
 import majordodo.utils.IntCounter;
 import static org.junit.Assert.assertEquals;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertEquals;
 
+@RunWith(Parameterized.class)
 public class TasksHeapLimitsTest {
 
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> layouts() {
+        return Arrays.asList(new Object[][]{
+            {TasksHeapLayout.OBJECTS},
+            {TasksHeapLayout.COLUMNS},
+            {TasksHeapLayout.OFFHEAP_COLUMNS}
+        });
+    }
+
+    private final TasksHeapLayout layout;
+
+    public TasksHeapLimitsTest(TasksHeapLayout layout) {
+        this.layout = layout;
+    }
+
     private static final String TASKTYPE_MYTASK1 = "MYTASK1";
     private static final String TASKTYPE_MYTASK2 = "MYTASK2";
     private static final String USERID1 = "myuser1";
@@ -65,7 +84,7 @@ public class TasksHeapLimitsTest {
 
     @Test
     public void test_worker_limits() throws Exception {
-        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION);
+        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION, layout);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(Task.TASKTYPE_ANY, 10000);
         AtomicLong newTaskId = new AtomicLong(987);
@@ -85,7 +104,7 @@ public class TasksHeapLimitsTest {
 
     @Test
     public void test_global_limits() throws Exception {
-        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION);
+        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION, layout);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(Task.TASKTYPE_ANY, 10000);
         AtomicLong newTaskId = new AtomicLong(987);
@@ -105,7 +124,7 @@ public class TasksHeapLimitsTest {
 
     @Test
     public void test_worker_and_global_limits() throws Exception {
-        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION);
+        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION, layout);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(Task.TASKTYPE_ANY, 10000);
         AtomicLong newTaskId = new AtomicLong(987);
@@ -127,7 +146,7 @@ public class TasksHeapLimitsTest {
 
     @Test
     public void test_global_and_worker_limits() throws Exception {
-        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION);
+        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION, layout);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(Task.TASKTYPE_ANY, 10000);
         AtomicLong newTaskId = new AtomicLong(987);
@@ -149,7 +168,7 @@ public class TasksHeapLimitsTest {
 
     @Test
     public void test_used_resource_1() throws Exception {
-        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION);
+        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION, layout);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(Task.TASKTYPE_ANY, 10000);
         AtomicLong newTaskId = new AtomicLong(987);
@@ -173,7 +192,7 @@ public class TasksHeapLimitsTest {
 
     @Test
     public void test_used_resource_2() throws Exception {
-        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION);
+        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION, layout);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(Task.TASKTYPE_ANY, 10000);
         AtomicLong newTaskId = new AtomicLong(987);
@@ -198,7 +217,7 @@ public class TasksHeapLimitsTest {
 
     @Test
     public void test_limit_on_user_tasktype() throws Exception {
-        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION);
+        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION, layout);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(TASKTYPE_MYTASK1, 10);
         availableSpace.put(TASKTYPE_MYTASK2, 20);
@@ -225,7 +244,7 @@ public class TasksHeapLimitsTest {
 
     @Test
     public void test_limit_on_user_tasktype_2() throws Exception {
-        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION);
+        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION, layout);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(TASKTYPE_MYTASK1, 10);
         availableSpace.put(TASKTYPE_MYTASK2, 20);
@@ -251,7 +270,7 @@ public class TasksHeapLimitsTest {
 
     @Test
     public void test_limit_on_user_tasktype_3() throws Exception {
-        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION);
+        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION, layout);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(TASKTYPE_MYTASK1, 10);
         availableSpace.put(TASKTYPE_MYTASK2, 20);
@@ -19,18 +19,39 @@
  */
 package majordodo.task;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
+import majordodo.utils.IntCounter;
 import static org.junit.Assert.assertEquals;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
 
+@RunWith(Parameterized.class)
 public class TasksHeapTest {
 
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> layouts() {
+        return Arrays.asList(new Object[][]{
+            {TasksHeapLayout.OBJECTS},
+            {TasksHeapLayout.COLUMNS},
+            {TasksHeapLayout.OFFHEAP_COLUMNS}
+        });
+    }
+
+    private final TasksHeapLayout layout;
+
+    public TasksHeapTest(TasksHeapLayout layout) {
+        this.layout = layout;
+    }
+
     private static final String TASKTYPE_MYTASK1 = "MYTASK1";
     private static final String TASKTYPE_MYTASK2 = "MYTASK2";
     private static final String USERID1 = "myuser1";
@@ -59,7 +80,7 @@ public class TasksHeapTest {
 
     @Test
     public void test1() throws Exception {
-        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION);
+        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION, layout);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(Task.TASKTYPE_ANY, 1);
         AtomicLong newTaskId = new AtomicLong(987);
@@ -71,7 +92,7 @@ public class TasksHeapTest {
 
     @Test
     public void test2() throws Exception {
-        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION);
+        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION, layout);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(TASKTYPE_MYTASK1, 1);
         AtomicLong newTaskId = new AtomicLong(987);
@@ -83,7 +104,7 @@ public class TasksHeapTest {
 
     @Test
     public void test3() throws Exception {
-        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION);
+        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION, layout);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(Task.TASKTYPE_ANY, 1);
         AtomicLong newTaskId = new AtomicLong(987);
@@ -95,7 +116,7 @@ public class TasksHeapTest {
 
     @Test
     public void test4() throws Exception {
-        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION);
+        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION, layout);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(TASKTYPE_MYTASK1, 1);
         AtomicLong newTaskId = new AtomicLong(987);
@@ -107,7 +128,7 @@ public class TasksHeapTest {
 
     @Test
     public void test5() throws Exception {
-        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION);
+        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION, layout);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(TASKTYPE_MYTASK1, 1);
         availableSpace.put(TASKTYPE_MYTASK2, 1);
@@ -128,7 +149,7 @@ public class TasksHeapTest {
 
     @Test
     public void test6() throws Exception {
-        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION);
+        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION, layout);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(TASKTYPE_MYTASK1, 3);
         availableSpace.put(TASKTYPE_MYTASK2, 1);
@@ -157,7 +178,7 @@ public class TasksHeapTest {
 
     @Test
     public void testExcelude() throws Exception {
-        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION);
+        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION, layout);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(TASKTYPE_MYTASK1, 3);
         availableSpace.put(TASKTYPE_MYTASK2, 1);
@@ -177,9 +198,49 @@ public class TasksHeapTest {
 
     }
 
+    @Test
+    public void testGroupPriorityWithIndex() throws Exception {
+        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION, layout);
+        Map< String, Integer> availableSpace = new HashMap<>();
+        availableSpace.put(TASKTYPE_MYTASK1, 2);
+        AtomicLong newTaskId = new AtomicLong(0);
+        long task1 = newTaskId.incrementAndGet();
+        long task2 = newTaskId.incrementAndGet();
+        long task3 = newTaskId.incrementAndGet();
+        long task4 = newTaskId.incrementAndGet();
+        long task5 = newTaskId.incrementAndGet();
+        instance.insertTask(task1, TASKTYPE_MYTASK1, USERID1);
+        instance.insertTask(task2, TASKTYPE_MYTASK2, USERID2);
+        instance.insertTask(task3, TASKTYPE_MYTASK1, USERID1);
+        instance.insertTask(task4, TASKTYPE_MYTASK1, USERID2);
+        instance.insertTask(task5, TASKTYPE_MYTASK1, USERID2);
+
+        {
+            // GROUPID2 has higher priority
+            List<AssignedTask> taskids = instance.takeTasks(10, Arrays.asList(GROUPID2, GROUPID1), Collections.emptySet(), availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), Collections.emptyMap(), new ResourceUsageCounters(), null, 0);
+            assertEquals(2, taskids.size());
+            assertEquals(task4, taskids.get(0).taskid);
+            assertEquals(task5, taskids.get(1).taskid);
+        }
+        {
+            List<AssignedTask> taskids = instance.takeTasks(10, Arrays.asList(GROUPID2, GROUPID1), Collections.emptySet(), availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), Collections.emptyMap(), new ResourceUsageCounters(), null, 0);
+            assertEquals(2, taskids.size());
+            assertEquals(task1, taskids.get(0).taskid);
+            assertEquals(task3, taskids.get(1).taskid);
+        }
+        {
+            List<AssignedTask> taskids = instance.takeTasks(10, Arrays.asList(GROUPID2, GROUPID1), Collections.emptySet(), availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), Collections.emptyMap(), new ResourceUsageCounters(), null, 0);
+            assertEquals(0, taskids.size());
+        }
+        List<TasksHeap.TaskEntry> entries = new ArrayList<>();
+        instance.scan(entries::add);
+        assertEquals(1, entries.size());
+        assertEquals(task2, entries.get(0).taskid);
+    }
+
     @Test
     public void testAutoGrow() throws Exception {
-        TasksHeap instance = new TasksHeap(1, DEFAULT_FUNCTION);
+        TasksHeap instance = new TasksHeap(1, DEFAULT_FUNCTION, layout);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(TASKTYPE_MYTASK1, 3);
         availableSpace.put(TASKTYPE_MYTASK2, 1);
@@ -199,4 +260,123 @@ public class TasksHeapTest {
 
     }
 
+    private static Task newTask(long taskid, String tasktype, String userid) {
+        Task task = new Task();
+        task.setTaskId(taskid);
+        task.setType(tasktype);
+        task.setUserId(userid);
+        return task;
+    }
+
+    @Test
+    public void testInsertTasks() throws Exception {
+        TasksHeap instance = new TasksHeap(2, DEFAULT_FUNCTION, layout);
+        instance.insertTask(1, TASKTYPE_MYTASK1, USERID1);
+        instance.insertTasks(Collections.emptyList());
+        instance.insertTasks(Arrays.asList(
+            newTask(2, TASKTYPE_MYTASK2, USERID1),
+            newTask(3, TASKTYPE_MYTASK1, USERID2),
+            newTask(4, TASKTYPE_MYTASK1, USERID1),
+            newTask(5, TASKTYPE_MYTASK2, USERID2),
+            newTask(6, TASKTYPE_MYTASK1, USERID2)));
+        // the heap grows only once
+        assertEquals(6, instance.getSize());
+        assertEquals(6, instance.getActualsize());
+
+        List<TasksHeap.TaskEntry> entries = new ArrayList<>();
+        instance.scan(entry -> {
+            entries.add(entry);
+        });
+        assertEquals(6, entries.size());
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i + 1, entries.get(i).taskid);
+        }
+
+        Map< String, Integer> availableSpace = new HashMap<>();
+        availableSpace.put(TASKTYPE_MYTASK1, 10);
+        List<AssignedTask> taskids = instance.takeTasks(10, Arrays.asList(Task.GROUP_ANY), new HashSet<>(Arrays.asList(GROUPID1)), availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), Collections.emptyMap(), new ResourceUsageCounters(), null, 0);
+        assertEquals(2, taskids.size());
+        assertEquals(3, taskids.get(0).taskid);
+        assertEquals(6, taskids.get(1).taskid);
+
+        availableSpace.put(Task.TASKTYPE_ANY, 10);
+        taskids = instance.takeTasks(10, Arrays.asList(Task.GROUP_ANY), Collections.emptySet(), availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), Collections.emptyMap(), new ResourceUsageCounters(), null, 0);
+        assertEquals(4, taskids.size());
+        assertEquals(1, taskids.get(0).taskid);
+        assertEquals(2, taskids.get(1).taskid);
+        assertEquals(4, taskids.get(2).taskid);
+        assertEquals(5, taskids.get(3).taskid);
+    }
+
+    @Test
+    public void testRemoveTask() throws Exception {
+        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION, layout);
+        instance.setMaxFragmentation(1000);
+        for (long taskid = 1; taskid <= 5; taskid++) {
+            instance.insertTask(taskid, TASKTYPE_MYTASK1, USERID1);
+        }
+        assertEquals(2, instance.getTaskPosition(3));
+        assertEquals(true, instance.removeTask(3));
+        assertEquals(false, instance.removeTask(3));
+        assertEquals(-1, instance.getTaskPosition(3));
+        assertEquals(-1, instance.getTaskPosition(1234));
+        instance.removeExpiredTasks(new HashSet<>(Arrays.asList(1L, 1234L)));
+        assertEquals(-1, instance.getTaskPosition(1));
+        assertEquals(2, instance.getFragmentation());
+
+        Map< String, Integer> availableSpace = new HashMap<>();
+        availableSpace.put(TASKTYPE_MYTASK1, 1);
+        List<AssignedTask> taskids = instance.takeTasks(1, Arrays.asList(Task.GROUP_ANY), Collections.emptySet(), availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), Collections.emptyMap(), new ResourceUsageCounters(), null, 0);
+        assertEquals(1, taskids.size());
+        assertEquals(2, taskids.get(0).taskid);
+        assertEquals(-1, instance.getTaskPosition(2));
+
+        // positions follow the entries during compaction
+        instance.runCompaction();
+        assertEquals(0, instance.getTaskPosition(4));
+        assertEquals(1, instance.getTaskPosition(5));
+        assertEquals(true, instance.removeTask(5));
+
+        taskids = instance.takeTasks(10, Arrays.asList(Task.GROUP_ANY), Collections.emptySet(), availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), Collections.emptyMap(), new ResourceUsageCounters(), null, 0);
+        assertEquals(1, taskids.size());
+        assertEquals(4, taskids.get(0).taskid);
+    }
+
+    @Test
+    public void testMaxTasksPerUser() throws Exception {
+        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION, layout);
+        for (long taskid = 1; taskid <= 20; taskid++) {
+            instance.insertTask(taskid, TASKTYPE_MYTASK1, taskid % 2 == 0 ? USERID1 : USERID2);
+        }
+        Map< String, Integer> availableSpace = new HashMap<>();
+        availableSpace.put(TASKTYPE_MYTASK1, 10);
+        Map<TaskTypeUser, IntCounter> availableSpacePerUser = new HashMap<>();
+        IntCounter counterForUser1 = new IntCounter(1);
+        availableSpacePerUser.put(new TaskTypeUser(TASKTYPE_MYTASK1, USERID1), counterForUser1);
+        // USERID2 has no task running, the limit is 30% of the available space
+        List<AssignedTask> taskids = instance.takeTasks(10, Arrays.asList(Task.GROUP_ANY), Collections.emptySet(), availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), Collections.emptyMap(), new ResourceUsageCounters(), availableSpacePerUser, 30);
+        assertEquals(4, taskids.size());
+        assertEquals(1, taskids.get(0).taskid);
+        assertEquals(2, taskids.get(1).taskid);
+        assertEquals(3, taskids.get(2).taskid);
+        assertEquals(5, taskids.get(3).taskid);
+        // counters provided by the caller are not modified
+        assertEquals(1, counterForUser1.count);
+
+        // recycled entries must not leak data from the previous run
+        taskids = instance.takeTasks(3, Arrays.asList(Task.GROUP_ANY), Collections.emptySet(), availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), Collections.emptyMap(), new ResourceUsageCounters(), null, 0);
+        assertEquals(3, taskids.size());
+        assertEquals(4, taskids.get(0).taskid);
+        assertEquals(6, taskids.get(1).taskid);
+        assertEquals(7, taskids.get(2).taskid);
+
+        // recycled per user counters must not leak data from the previous runs
+        taskids = instance.takeTasks(10, Arrays.asList(Task.GROUP_ANY), Collections.emptySet(), availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), Collections.emptyMap(), new ResourceUsageCounters(), availableSpacePerUser, 30);
+        assertEquals(4, taskids.size());
+        assertEquals(8, taskids.get(0).taskid);
+        assertEquals(9, taskids.get(1).taskid);
+        assertEquals(11, taskids.get(2).taskid);
+        assertEquals(13, taskids.get(3).taskid);
+    }
+
 }
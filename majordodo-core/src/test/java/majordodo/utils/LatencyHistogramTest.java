@@ -0,0 +1,65 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests for the latency histogram
+ *
+ * @author enrico.olivelli
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        long previous = -1;
+        for (long value = 0; value < 100000; value++) {
+            int index = LatencyHistogram.bucketIndex(value);
+            long lowerBound = LatencyHistogram.bucketLowerBound(index);
+            assertTrue(lowerBound <= value);
+            assertTrue(LatencyHistogram.bucketLowerBound(index + 1) > value);
+            // precision is about 3%
+            assertTrue(value - lowerBound <= Math.max(0, value / 32));
+            assertTrue(lowerBound >= previous);
+            previous = lowerBound;
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.bucketLowerBound(LatencyHistogram.bucketIndex(Long.MAX_VALUE)) + (1L << 57) - 1);
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        histogram.record(-5);
+        assertEquals(1001, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500, histogram.getMean(), 1);
+        assertEquals(500, histogram.getValueAtPercentile(50), 500 / 32);
+        assertEquals(990, histogram.getValueAtPercentile(99), 990 / 32);
+        assertEquals(1000, histogram.getValueAtPercentile(100));
+        assertEquals(0, histogram.getValueAtPercentile(0));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+public class LongIntHashMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        LongIntHashMap map = new LongIntHashMap(-1);
+        assertEquals(-1, map.get(1));
+        assertEquals(-1, map.put(1, 10));
+        assertEquals(10, map.put(1, 11));
+        assertEquals(11, map.get(1));
+        assertEquals(1, map.size());
+        assertEquals(11, map.remove(1));
+        assertEquals(-1, map.remove(1));
+        assertEquals(-1, map.get(1));
+        assertEquals(0, map.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReservedKey() {
+        new LongIntHashMap(-1).put(0, 1);
+    }
+
+    @Test
+    public void testRandomOperations() {
+        LongIntHashMap map = new LongIntHashMap(-1);
+        Map<Long, Integer> expected = new HashMap<>();
+        Random random = new Random(1234);
+        for (int i = 0; i < 200000; i++) {
+            // small key space, in order to have many collisions and removals
+            long key = 1 + random.nextInt(5000);
+            if (random.nextInt(3) == 0) {
+                Integer previous = expected.remove(key);
+                assertEquals(previous == null ? -1 : previous, map.remove(key));
+            } else {
+                int value = random.nextInt(Integer.MAX_VALUE);
+                Integer previous = expected.put(key, value);
+                assertEquals(previous == null ? -1 : previous, map.put(key, value));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (long key = 1; key <= 5000; key++) {
+            Integer value = expected.get(key);
+            assertEquals(value == null ? -1 : value, map.get(key));
+        }
+        for (Long key : expected.keySet()) {
+            map.remove(key);
+        }
+        assertEquals(0, map.size());
+        map.put(42, 1);
+        map.clear();
+        assertEquals(-1, map.get(42));
+        assertEquals(true, map.isEmpty());
+    }
+
+    @Test
+    public void testReset() {
+        LongIntHashMap map = new LongIntHashMap(-1);
+        for (long key = 1; key <= 1000; key++) {
+            map.put(key, (int) key);
+        }
+        map.reset();
+        assertEquals(0, map.size());
+        for (long key = 1; key <= 1000; key++) {
+            assertEquals(-1, map.get(key));
+        }
+        map.put(7, 70);
+        assertEquals(70, map.get(7));
+        assertEquals(1, map.size());
+    }
+
+}
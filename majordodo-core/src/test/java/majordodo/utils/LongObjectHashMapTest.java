@@ -0,0 +1,103 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.utils;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class LongObjectHashMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        LongObjectHashMap<String> map = new LongObjectHashMap<>();
+        assertNull(map.get(0));
+        assertNull(map.put(0, "zero"));
+        assertNull(map.put(1, "a"));
+        assertEquals("a", map.put(1, "b"));
+        assertEquals("b", map.get(1));
+        assertEquals("zero", map.get(0));
+        assertEquals(2, map.size());
+        assertEquals("b", map.remove(1));
+        assertNull(map.remove(1));
+        assertNull(map.get(1));
+        assertEquals(1, map.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullValue() {
+        new LongObjectHashMap<String>().put(1, null);
+    }
+
+    @Test
+    public void testRandomOperations() {
+        LongObjectHashMap<Integer> map = new LongObjectHashMap<>();
+        Map<Long, Integer> expected = new HashMap<>();
+        Random random = new Random(1234);
+        for (int i = 0; i < 200000; i++) {
+            // small key space, in order to have many collisions and removals
+            long key = random.nextInt(5000) - 100;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                int value = random.nextInt(Integer.MAX_VALUE);
+                assertEquals(expected.put(key, value), map.put(key, value));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (long key = -100; key < 4900; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+        List<Integer> values = new ArrayList<>(map.values());
+        List<Integer> expectedValues = new ArrayList<>(expected.values());
+        values.sort(null);
+        expectedValues.sort(null);
+        assertEquals(expectedValues, values);
+        for (Long key : expected.keySet()) {
+            map.remove(key);
+        }
+        assertEquals(0, map.size());
+        assertTrue(map.values().isEmpty());
+        map.put(42, 1);
+        map.clear();
+        assertNull(map.get(42));
+        assertEquals(true, map.isEmpty());
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void testConcurrentModification() {
+        LongObjectHashMap<String> map = new LongObjectHashMap<>();
+        map.put(1, "a");
+        map.put(2, "b");
+        Iterator<String> it = map.values().iterator();
+        it.next();
+        map.put(3, "c");
+        it.next();
+    }
+
+}
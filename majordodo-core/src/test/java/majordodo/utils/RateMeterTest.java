@@ -0,0 +1,56 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests for the rate meter
+ *
+ * @author enrico.olivelli
+ */
+public class RateMeterTest {
+
+    @Test
+    public void testRate() {
+        AtomicLong now = new AtomicLong();
+        RateMeter meter = new RateMeter(now::get);
+        assertEquals(0, meter.getRate(), 0);
+
+        // 10 events per second for one minute
+        for (int second = 0; second < 60; second++) {
+            for (int i = 0; i < 10; i++) {
+                meter.mark();
+            }
+            now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        }
+        assertEquals(600, meter.getCount());
+        assertEquals(10, meter.getRate(), 0.5);
+
+        // no events for ten minutes, the rate decays
+        now.addAndGet(TimeUnit.MINUTES.toNanos(10));
+        assertTrue(meter.getRate() < 0.01);
+        assertEquals(600, meter.getCount());
+    }
+}
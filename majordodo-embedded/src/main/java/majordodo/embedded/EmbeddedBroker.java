@@ -26,12 +26,14 @@ import majordodo.network.netty.NettyChannelAcceptor;
 import majordodo.replication.ReplicatedCommitLog;
 import majordodo.task.Broker;
 import majordodo.task.BrokerConfiguration;
+import majordodo.task.CachingTaskPropertiesMapperFunction;
 import majordodo.task.FileCommitLog;
 import majordodo.task.TaskPropertiesMapperFunction;
 import majordodo.task.TaskProperties;
 import majordodo.task.MemoryCommitLog;
 import majordodo.task.StatusChangesLog;
 import majordodo.task.TasksHeap;
+import majordodo.task.TasksHeapLayout;
 import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
@@ -208,7 +210,13 @@ public class EmbeddedBroker implements AutoCloseable {
         String sharedSecret = configuration.getStringProperty(EmbeddedBrokerConfiguration.KEY_SHAREDSECRET, EmbeddedBrokerConfiguration.KEY_SHAREDSECRET_DEFAULT);
         brokerConfiguration.setSharedSecret(sharedSecret);
         brokerConfiguration.read(configuration.getProperties());
-        broker = new Broker(brokerConfiguration, statusChangesLog, new TasksHeap(brokerConfiguration.getTasksHeapSize(), taskPropertiesMapperFunction));
+        TaskPropertiesMapperFunction mapper = taskPropertiesMapperFunction;
+        if (brokerConfiguration.getTaskPropertiesCacheTtl() > 0) {
+            mapper = new CachingTaskPropertiesMapperFunction(mapper, brokerConfiguration.getTaskPropertiesCacheSize(),
+                brokerConfiguration.getTaskPropertiesCacheTtl());
+        }
+        broker = new Broker(brokerConfiguration, statusChangesLog, new TasksHeap(brokerConfiguration.getTasksHeapSize(), mapper,
+            TasksHeapLayout.parse(brokerConfiguration.getTasksHeapLayout())));
         broker.setAuthenticationManager(authenticationManager);
         broker.setGlobalResourceLimitsConfiguration(globalResourceLimitsConfiguration);
         broker.setBrokerId(id);
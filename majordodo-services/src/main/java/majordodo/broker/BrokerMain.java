@@ -20,9 +20,11 @@
 package majordodo.broker;
 
 import majordodo.task.FileCommitLog;
+import majordodo.task.CachingTaskPropertiesMapperFunction;
 import majordodo.task.TaskPropertiesMapperFunction;
 import majordodo.task.StatusChangesLog;
 import majordodo.task.TasksHeap;
+import majordodo.task.TasksHeapLayout;
 import majordodo.network.netty.NettyChannelAcceptor;
 import majordodo.task.Broker;
 import majordodo.task.BrokerConfiguration;
@@ -177,6 +179,7 @@ public class BrokerMain implements AutoCloseable {
         String httphost = configuration.getProperty("broker.http.host", "0.0.0.0");
         int httpport = Integer.parseInt(configuration.getProperty("broker.http.port", "7364"));
         int taskheapsize = Integer.parseInt(configuration.getProperty("broker.tasksheap.size", "1000000"));
+        TasksHeapLayout taskheaplayout = TasksHeapLayout.parse(configuration.getProperty("broker.tasksheap.layout", "objects"));
         String assigner = configuration.getProperty("tasks.taskpropertiesmapperfunction", "");
         String sharedsecret = configuration.getProperty("sharedsecret", "dodo");
         String clusteringmode = configuration.getProperty("clustering.mode", "singleserver");
@@ -248,7 +251,10 @@ public class BrokerMain implements AutoCloseable {
         configuration.keySet().forEach(k -> props.put(k.toString(), configuration.get(k)));
         config.setSharedSecret(sharedsecret);
         config.read(props);
-        broker = new Broker(config, log, new TasksHeap(taskheapsize, mapper));
+        if (config.getTaskPropertiesCacheTtl() > 0) {
+            mapper = new CachingTaskPropertiesMapperFunction(mapper, config.getTaskPropertiesCacheSize(), config.getTaskPropertiesCacheTtl());
+        }
+        broker = new Broker(config, log, new TasksHeap(taskheapsize, mapper, taskheaplayout));
         broker.setAuthenticationManager(new SingleUserAuthenticationManager(adminuser, adminpassword));
         broker.setBrokerId(id);
         broker.setExternalProcessChecker(() -> {